@@ -0,0 +1,117 @@
+package com.template.contracts;
+
+import com.template.states.TokenState;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.template.contracts.TokenContract.TOKEN_CONTRACT_ID;
+import static net.corda.testing.node.NodeTestUtils.ledger;
+
+/**
+ * Measures {@link TokenContract#verify} alone, on transactions with a growing number of {@link TokenState}s, so
+ * that we can tell whether verification time grows linearly with the number of states.
+ * The {@link LedgerTransaction}s are resolved once per trial so that only the contract code is measured.
+ * Run it with the `gc` profiler, as configured in `build.gradle`, to also get the allocation rate per command.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TokenContractBenchmark {
+
+    /**
+     * The number of token states in inputs and / or outputs, depending on the command.
+     */
+    @Param({"1", "100", "1000", "10000"})
+    public int stateCount;
+
+    private final TestIdentity notaryId = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+    private final TestIdentity issuerId = new TestIdentity(new CordaX500Name("Issuer", "London", "GB"));
+    private final TestIdentity holderId = new TestIdentity(new CordaX500Name("Holder", "New York", "US"));
+    private final TestIdentity recipientId = new TestIdentity(new CordaX500Name("Recipient", "Paris", "FR"));
+    private final TokenContract contract = new TokenContract();
+
+    private LedgerTransaction issueTx;
+    private LedgerTransaction moveTx;
+    private LedgerTransaction redeemTx;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final MockServices services = new MockServices(
+                Collections.singletonList("com.template.contracts"),
+                issuerId,
+                holderId);
+        // Building transactions serialises their components, and outside of the test DSL there is no
+        // serialisation environment. The ledger DSL sets one up for the duration of the block.
+        ledger(services, ledger -> {
+            resolveTransactions(services);
+            return null;
+        });
+    }
+
+    private void resolveTransactions(@NotNull final MockServices services) {
+        final Party notary = notaryId.getParty();
+        final Party issuer = issuerId.getParty();
+        final Party holder = holderId.getParty();
+        final Party recipient = recipientId.getParty();
+
+        final TransactionBuilder issueBuilder = new TransactionBuilder(notary)
+                .addCommand(new Command<>(new TokenContract.Commands.Issue(), issuer.getOwningKey()));
+        for (int i = 0; i < stateCount; i++) {
+            issueBuilder.addOutputState(new TokenState(issuer, holder, 10L + i), TOKEN_CONTRACT_ID);
+        }
+        issueTx = issueBuilder.toLedgerTransaction(services);
+
+        // The issued states need to be in storage so that the other transactions can resolve them as inputs.
+        final SignedTransaction issued = services.signInitialTransaction(issueBuilder);
+        services.recordTransactions(Collections.singletonList(issued));
+        final List<StateAndRef<TokenState>> issuedTokens = issued.getTx().outRefsOfType(TokenState.class);
+
+        final TransactionBuilder moveBuilder = new TransactionBuilder(notary)
+                .addCommand(new Command<>(new TokenContract.Commands.Move(), holder.getOwningKey()));
+        issuedTokens.forEach(it -> {
+            moveBuilder.addInputState(it);
+            moveBuilder.addOutputState(moveTo(it.getState().getData(), recipient), TOKEN_CONTRACT_ID);
+        });
+        moveTx = moveBuilder.toLedgerTransaction(services);
+
+        final TransactionBuilder redeemBuilder = new TransactionBuilder(notary)
+                .addCommand(new Command<>(new TokenContract.Commands.Redeem(),
+                        Arrays.asList(issuer.getOwningKey(), holder.getOwningKey())));
+        issuedTokens.forEach(redeemBuilder::addInputState);
+        redeemTx = redeemBuilder.toLedgerTransaction(services);
+    }
+
+    @NotNull
+    private static TokenState moveTo(@NotNull final TokenState token, @NotNull final Party newHolder) {
+        return new TokenState(token.getIssuer(), newHolder, token.getQuantity());
+    }
+
+    @Benchmark
+    public void verifyIssue() {
+        contract.verify(issueTx);
+    }
+
+    @Benchmark
+    public void verifyMove() {
+        contract.verify(moveTx);
+    }
+
+    @Benchmark
+    public void verifyRedeem() {
+        contract.verify(redeemTx);
+    }
+}
@@ -0,0 +1,185 @@
+package com.template.flows;
+
+import com.template.flows.RedeemFlows.StateAccumulator;
+import com.template.states.TokenState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.serialization.SerializationAPIKt;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static com.template.contracts.TokenContract.TOKEN_CONTRACT_ID;
+import static net.corda.testing.node.NodeTestUtils.ledger;
+
+/**
+ * Compares the {@link SelectionStrategy}s on synthetic vaults. Beyond the throughput of the selection itself, the
+ * auxiliary counters tell, over all selections of an iteration:
+ * - how many inputs were picked,
+ * - how many change outputs the move to the exact amount needs,
+ * - how many serialised bytes the picked inputs and the resulting outputs add to the transaction.
+ * Divide them by `selections` to get the figures per selection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SelectionStrategyBenchmark {
+
+    /**
+     * - uniform: quantities evenly spread between 1 and 1,000.
+     * - dust: mostly quantities below 10, with a few between 100 and 10,000.
+     * - whales: mostly quantities between 10 and 100, with a few above 100,000.
+     */
+    @Param({"uniform", "dust", "whales"})
+    public String distribution;
+
+    @Param({"InVaultOrder", "LargestFirst", "SmallestFirst", "MinimiseInputs", "ExactMatch"})
+    public String strategyName;
+
+    @Param({"1000"})
+    public int vaultSize;
+
+    private static final int TARGET_COUNT = 1_024;
+
+    private final Party notary = new TestIdentity(new CordaX500Name("Notary", "London", "GB")).getParty();
+    private final Party issuer = new TestIdentity(new CordaX500Name("Issuer", "London", "GB")).getParty();
+    private final Party holder = new TestIdentity(new CordaX500Name("Holder", "New York", "US")).getParty();
+
+    private SelectionStrategy strategy;
+    private List<StateAndRef<TokenState>> candidatesInOrder;
+    private long[] targets;
+    private int nextTarget;
+    private int inputBytes;
+    private int outputBytes;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class SelectionCounters {
+        public long selections;
+        public long inputs;
+        public long changeOutputs;
+        public long selectionBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            selections = 0;
+            inputs = 0;
+            changeOutputs = 0;
+            selectionBytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        strategy = strategyFor(strategyName);
+        final Random random = new Random(42L);
+        final List<StateAndRef<TokenState>> vault = new ArrayList<>(vaultSize);
+        long total = 0L;
+        for (int i = 0; i < vaultSize; i++) {
+            final long quantity = quantityFor(distribution, random);
+            total += quantity;
+            vault.add(new StateAndRef<>(
+                    new TransactionState<>(new TokenState(issuer, holder, quantity), TOKEN_CONTRACT_ID, notary),
+                    new StateRef(SecureHash.randomSHA256(), 0)));
+        }
+        // This is the order in which TokenSelector would receive them from the vault.
+        candidatesInOrder = new ArrayList<>(vault);
+        final Sort sorting = strategy.getSorting();
+        if (sorting != null) {
+            final Sort.Direction direction = sorting.getColumns().iterator().next().getDirection();
+            candidatesInOrder.sort(direction == Sort.Direction.ASC
+                    ? SelectionStrategy.byQuantity()
+                    : SelectionStrategy.byQuantity().reversed());
+        }
+        // Targets up to a tenth of the vault, so that all can be reached.
+        targets = new long[TARGET_COUNT];
+        for (int i = 0; i < TARGET_COUNT; i++) {
+            targets[i] = 1L + (long) (random.nextDouble() * (total / 10));
+        }
+        nextTarget = 0;
+
+        // The sizes that an input and an output add to a transaction, as serialised by Corda.
+        ledger(new MockServices(), ledger -> {
+            final SerializationFactory factory = SerializationFactory.Companion.getDefaultFactory();
+            inputBytes = SerializationAPIKt.serialize(
+                    vault.get(0).getRef(), factory, factory.getDefaultContext()).getSize();
+            outputBytes = SerializationAPIKt.serialize(
+                    vault.get(0).getState(), factory, factory.getDefaultContext()).getSize();
+            return null;
+        });
+    }
+
+    @NotNull
+    private static SelectionStrategy strategyFor(@NotNull final String name) {
+        switch (name) {
+            case "InVaultOrder":
+                return new SelectionStrategy.InVaultOrder();
+            case "LargestFirst":
+                return new SelectionStrategy.LargestFirst();
+            case "SmallestFirst":
+                return new SelectionStrategy.SmallestFirst();
+            case "MinimiseInputs":
+                return new SelectionStrategy.MinimiseInputs();
+            case "ExactMatch":
+                return new SelectionStrategy.ExactMatch();
+            default:
+                throw new IllegalArgumentException("Unknown strategy " + name);
+        }
+    }
+
+    private static long quantityFor(@NotNull final String distribution, @NotNull final Random random) {
+        switch (distribution) {
+            case "uniform":
+                return 1L + random.nextInt(1_000);
+            case "dust":
+                return random.nextInt(10) == 0 ? 100L + random.nextInt(9_901) : 1L + random.nextInt(9);
+            case "whales":
+                return random.nextInt(50) == 0 ? 100_000L + random.nextInt(900_001) : 10L + random.nextInt(91);
+            default:
+                throw new IllegalArgumentException("Unknown distribution " + distribution);
+        }
+    }
+
+    /**
+     * Mimics what {@link TokenSelector} fetches: candidates in order until the target is reached and the strategy
+     * has as many as it wants.
+     */
+    @NotNull
+    private List<StateAndRef<TokenState>> fetchCandidates(final long targetSum) {
+        final int wanted = strategy.getCandidatesWanted();
+        long sum = 0L;
+        int count = 0;
+        while (count < candidatesInOrder.size() && (sum < targetSum || count < wanted)) {
+            sum += candidatesInOrder.get(count).getState().getData().getQuantity();
+            count++;
+        }
+        return candidatesInOrder.subList(0, count);
+    }
+
+    @Benchmark
+    public StateAccumulator select(@NotNull final SelectionCounters counters) {
+        final long targetSum = targets[nextTarget];
+        nextTarget = (nextTarget + 1) % TARGET_COUNT;
+        final StateAccumulator picked = strategy.select(fetchCandidates(targetSum), targetSum);
+        if (picked == null) throw new IllegalStateException("The synthetic vault cannot reach " + targetSum);
+
+        final int change = picked.sum == targetSum ? 0 : 1;
+        counters.selections++;
+        counters.inputs += picked.states.size();
+        counters.changeOutputs += change;
+        counters.selectionBytes += (long) picked.states.size() * inputBytes + (1L + change) * outputBytes;
+        return picked;
+    }
+}
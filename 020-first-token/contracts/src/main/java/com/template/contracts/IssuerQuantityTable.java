@@ -0,0 +1,232 @@
+package com.template.contracts;
+
+import net.corda.core.identity.Party;
+import org.jetbrains.annotations.NotNull;
+
+import java.security.PublicKey;
+import java.util.Set;
+
+/**
+ * Tallies the input and output quantities of {@link com.template.states.TokenState}s per issuer.
+ * It is an open-addressed table with linear probing, whose values are kept in primitive arrays. This way, adding a
+ * state neither boxes a {@link Long} nor allocates a map entry, which matters on transactions with thousands of
+ * states. There are usually only a handful of issuers, so the arrays rarely need to grow.
+ * It is not thread-safe, and is meant to live only for the duration of a single verification.
+ */
+final class IssuerQuantityTable {
+
+    private static final int DEFAULT_CAPACITY = 8;
+    private static final byte IN_INPUTS = 1;
+    private static final byte IN_OUTPUTS = 2;
+
+    @NotNull
+    private Party[] issuers;
+    @NotNull
+    private long[] inputSums;
+    @NotNull
+    private long[] outputSums;
+    /**
+     * Whether the issuer was seen in inputs, in outputs, or both. We cannot rely on the sums being non-zero, as a
+     * faulty state may well have a zero quantity.
+     */
+    @NotNull
+    private byte[] presence;
+    private int size;
+    private boolean overflowed;
+
+    IssuerQuantityTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Rounded up to a power of 2.
+     */
+    IssuerQuantityTable(final int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        final int roundedCapacity = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+        this.issuers = new Party[roundedCapacity];
+        this.inputSums = new long[roundedCapacity];
+        this.outputSums = new long[roundedCapacity];
+        this.presence = new byte[roundedCapacity];
+        this.size = 0;
+        this.overflowed = false;
+    }
+
+    void addInput(@NotNull final Party issuer, final long quantity) {
+        final int slot = slotOf(issuer);
+        presence[slot] |= IN_INPUTS;
+        inputSums[slot] = add(inputSums[slot], quantity);
+    }
+
+    void addOutput(@NotNull final Party issuer, final long quantity) {
+        final int slot = slotOf(issuer);
+        presence[slot] |= IN_OUTPUTS;
+        outputSums[slot] = add(outputSums[slot], quantity);
+    }
+
+    /**
+     * @return The number of distinct issuers seen so far, in inputs or outputs.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return Whether any of the sums went past {@link Long#MAX_VALUE} or below {@link Long#MIN_VALUE}. When this is
+     * the case, the sums cannot be trusted.
+     */
+    boolean hasOverflowed() {
+        return overflowed;
+    }
+
+    /**
+     * @return Whether the issuers found in inputs are exactly those found in outputs.
+     */
+    boolean isIssuerListConserved() {
+        for (int slot = 0; slot < issuers.length; slot++) {
+            if (issuers[slot] != null && presence[slot] != (IN_INPUTS | IN_OUTPUTS)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether, for each issuer, the sum of inputs equals the sum of outputs.
+     */
+    boolean isSumConservedPerIssuer() {
+        for (int slot = 0; slot < issuers.length; slot++) {
+            if (issuers[slot] != null && inputSums[slot] != outputSums[slot]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether the issuers found in outputs are all found in inputs too.
+     */
+    boolean areOutputIssuersInInputs() {
+        for (int slot = 0; slot < issuers.length; slot++) {
+            if (issuers[slot] != null && (presence[slot] & IN_OUTPUTS) != 0
+                    && (presence[slot] & IN_INPUTS) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether, for each issuer found in outputs, the sum of outputs is strictly below the sum of inputs.
+     */
+    boolean isOutputSumBelowInputSumPerIssuer() {
+        for (int slot = 0; slot < issuers.length; slot++) {
+            if (issuers[slot] != null && (presence[slot] & IN_OUTPUTS) != 0
+                    && inputSums[slot] <= outputSums[slot]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether all issuers found in inputs have their key in the given signers.
+     */
+    boolean areInputIssuersAmong(@NotNull final Set<PublicKey> signers) {
+        return areIssuersAmong(IN_INPUTS, signers);
+    }
+
+    /**
+     * @return Whether all issuers found in outputs have their key in the given signers.
+     */
+    boolean areOutputIssuersAmong(@NotNull final Set<PublicKey> signers) {
+        return areIssuersAmong(IN_OUTPUTS, signers);
+    }
+
+    /**
+     * @return The sum of input quantities for this issuer, or 0 if it was not seen.
+     */
+    long getInputSum(@NotNull final Party issuer) {
+        final int slot = find(issuer);
+        return slot < 0 ? 0L : inputSums[slot];
+    }
+
+    /**
+     * @return The sum of output quantities for this issuer, or 0 if it was not seen.
+     */
+    long getOutputSum(@NotNull final Party issuer) {
+        final int slot = find(issuer);
+        return slot < 0 ? 0L : outputSums[slot];
+    }
+
+    private boolean areIssuersAmong(final byte side, @NotNull final Set<PublicKey> signers) {
+        for (int slot = 0; slot < issuers.length; slot++) {
+            if (issuers[slot] != null && (presence[slot] & side) != 0
+                    && !signers.contains(issuers[slot].getOwningKey())) return false;
+        }
+        return true;
+    }
+
+    private long add(final long sum, final long quantity) {
+        final long result = sum + quantity;
+        // Same test as in Math.addExact, without the exception, so that the contract can decide whether and when
+        // an overflow is a failure.
+        if (((sum ^ result) & (quantity ^ result)) < 0) overflowed = true;
+        return result;
+    }
+
+    private static int indexFor(@NotNull final Party issuer, final int mask) {
+        // The hash code of a party is that of its public key, which is already well spread. We still mix the high
+        // bits in as we only keep the lowest ones.
+        final int hash = issuer.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * @return The slot of the issuer, or -1 if absent.
+     */
+    private int find(@NotNull final Party issuer) {
+        final int mask = issuers.length - 1;
+        int slot = indexFor(issuer, mask);
+        while (issuers[slot] != null) {
+            if (issuers[slot] == issuer || issuers[slot].equals(issuer)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The slot of the issuer, which is inserted if absent.
+     */
+    private int slotOf(@NotNull final Party issuer) {
+        final int mask = issuers.length - 1;
+        int slot = indexFor(issuer, mask);
+        while (issuers[slot] != null) {
+            // Consecutive states usually share the same issuer instance, so the identity check is the fast path.
+            if (issuers[slot] == issuer || issuers[slot].equals(issuer)) return slot;
+            slot = (slot + 1) & mask;
+        }
+        // We keep the load factor at or below 1/2 so that probing sequences stay short.
+        if ((size + 1) * 2 > issuers.length) {
+            grow();
+            return slotOf(issuer);
+        }
+        issuers[slot] = issuer;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        final Party[] oldIssuers = issuers;
+        final long[] oldInputSums = inputSums;
+        final long[] oldOutputSums = outputSums;
+        final byte[] oldPresence = presence;
+        final int newCapacity = oldIssuers.length * 2;
+        issuers = new Party[newCapacity];
+        inputSums = new long[newCapacity];
+        outputSums = new long[newCapacity];
+        presence = new byte[newCapacity];
+        final int mask = newCapacity - 1;
+        for (int oldSlot = 0; oldSlot < oldIssuers.length; oldSlot++) {
+            if (oldIssuers[oldSlot] == null) continue;
+            int slot = indexFor(oldIssuers[oldSlot], mask);
+            while (issuers[slot] != null) slot = (slot + 1) & mask;
+            issuers[slot] = oldIssuers[oldSlot];
+            inputSums[slot] = oldInputSums[oldSlot];
+            outputSums[slot] = oldOutputSums[oldSlot];
+            presence[slot] = oldPresence[oldSlot];
+        }
+    }
+}
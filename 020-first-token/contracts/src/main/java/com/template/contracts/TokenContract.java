@@ -1,19 +1,15 @@
 package com.template.contracts;
 
 import com.template.states.TokenState;
-import com.template.states.TokenStateUtilities;
-import net.corda.core.contracts.CommandData;
-import net.corda.core.contracts.CommandWithParties;
-import net.corda.core.contracts.Contract;
+import net.corda.core.contracts.*;
 import net.corda.core.identity.Party;
 import net.corda.core.transactions.LedgerTransaction;
 import org.jetbrains.annotations.NotNull;
 
 import java.security.PublicKey;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
 import static net.corda.core.contracts.ContractsDSL.requireThat;
@@ -24,33 +20,24 @@ public final class TokenContract implements Contract {
     @Override
     public void verify(@NotNull final LedgerTransaction tx) {
         final CommandWithParties<Commands> command = requireSingleCommand(tx.getCommands(), Commands.class);
+        final Set<PublicKey> signers = new HashSet<>(command.getSigners());
 
         // This contract does not care about states it has no knowledge about.
         // This will be useful, for instance, when the token is exchanged in a trade.
-        final List<TokenState> inputs = tx.inputsOfType(TokenState.class);
-        final List<TokenState> outputs = tx.outputsOfType(TokenState.class);
-        final boolean hasAllPositiveQuantities =
-                inputs.stream().allMatch(it -> 0 < it.getQuantity()) &&
-                        outputs.stream().allMatch(it -> 0 < it.getQuantity());
-        final Set<PublicKey> allInputHolderKeys = inputs.stream()
-                .map(it -> it.getHolder().getOwningKey())
-                .collect(Collectors.toSet());
+        // We go over the inputs and outputs only once, and collect in passing all that the rules below need.
+        final TokenStateTally tally = new TokenStateTally(tx, signers);
 
         if (command.getValue() instanceof Commands.Issue) {
             requireThat(req -> {
                 // Constraints on the shape of the transaction.
-                req.using("No tokens should be consumed, in inputs, when issuing.", inputs.isEmpty());
-                req.using("There should be issued tokens, in outputs.", !outputs.isEmpty());
+                req.using("No tokens should be consumed, in inputs, when issuing.", tally.inputCount == 0);
+                req.using("There should be issued tokens, in outputs.", tally.outputCount != 0);
 
                 // Constraints on the issued tokens themselves.
-                req.using("All quantities must be above 0.", hasAllPositiveQuantities);
+                req.using("All quantities must be above 0.", tally.hasAllPositiveQuantities);
 
                 // Constraints on the signers.
-                req.using("The issuers should sign.",
-                        command.getSigners().containsAll(outputs.stream()
-                                .map(it -> it.getIssuer().getOwningKey())
-                                .collect(Collectors.toSet())
-                        ));
+                req.using("The issuers should sign.", tally.sums.areOutputIssuersAmong(signers));
                 // We assume the owners need not sign although they are participants.
 
                 return null;
@@ -58,42 +45,46 @@ public final class TokenContract implements Contract {
         } else if (command.getValue() instanceof Commands.Move) {
             requireThat(req -> {
                 // Constraints on the shape of the transaction.
-                req.using("There should be tokens to move, in inputs.", !inputs.isEmpty());
-                req.using("There should be moved tokens, in outputs.", !outputs.isEmpty());
+                req.using("There should be tokens to move, in inputs.", tally.inputCount != 0);
+                req.using("There should be moved tokens, in outputs.", tally.outputCount != 0);
 
                 // Constraints on the redeemed tokens themselves.
-                req.using("All quantities must be above 0.", hasAllPositiveQuantities);
-                final Map<Party, Long> inputSums = TokenStateUtilities.mapSumByIssuer(inputs);
-                final Map<Party, Long> outputSums = TokenStateUtilities.mapSumByIssuer(outputs);
-                req.using("The list of issuers should be conserved.",
-                        inputSums.keySet().equals(outputSums.keySet()));
+                req.using("All quantities must be above 0.", tally.hasAllPositiveQuantities);
+                // We want to fail hard in case of overflow, as the sums cannot be compared then.
+                if (tally.sums.hasOverflowed()) throw new ArithmeticException("long overflow");
+                req.using("The list of issuers should be conserved.", tally.sums.isIssuerListConserved());
                 req.using("The sum of quantities for each issuer should be conserved.",
-                        inputSums.entrySet().stream()
-                                .allMatch(entry -> outputSums.get(entry.getKey()).equals(entry.getValue())));
+                        tally.sums.isSumConservedPerIssuer());
 
                 // Constraints on the signers.
-                req.using("The current holders should sign.",
-                        command.getSigners().containsAll(allInputHolderKeys));
+                req.using("The current holders should sign.", tally.allInputHoldersSign);
 
                 return null;
             });
         } else if (command.getValue() instanceof Commands.Redeem) {
             requireThat(req -> {
                 // Constraints on the shape of the transaction.
-                req.using("There should be tokens to redeem, in inputs.", !inputs.isEmpty());
-                req.using("No tokens should be issued, in outputs, when redeeming.", outputs.isEmpty());
+                req.using("There should be tokens to redeem, in inputs.", tally.inputCount != 0);
 
                 // Constraints on the redeemed tokens themselves.
-                req.using("All quantities must be above 0.", hasAllPositiveQuantities);
+                req.using("All quantities must be above 0.", tally.hasAllPositiveQuantities);
+
+                // Constraints on the change, if any. Outputs are only accepted as change, given back to the holders,
+                // so that a holder can redeem part of its tokens without first splitting them in a Move.
+                if (tally.outputCount != 0) {
+                    // We want to fail hard in case of overflow, as the sums cannot be compared then.
+                    if (tally.sums.hasOverflowed()) throw new ArithmeticException("long overflow");
+                    req.using("The change should only be of redeemed issuers.",
+                            tally.sums.areOutputIssuersInInputs());
+                    req.using("The change should be below the redeemed sum, for each issuer.",
+                            tally.sums.isOutputSumBelowInputSumPerIssuer());
+                    req.using("The change should go back to the current holders.",
+                            tally.allOutputHoldersAreInputHolders);
+                }
 
                 // Constraints on the signers.
-                req.using("The issuers should sign.",
-                        command.getSigners().containsAll(inputs.stream()
-                                .map(it -> it.getIssuer().getOwningKey())
-                                .collect(Collectors.toSet())
-                        ));
-                req.using("The current holders should sign.",
-                        command.getSigners().containsAll(allInputHolderKeys));
+                req.using("The issuers should sign.", tally.sums.areInputIssuersAmong(signers));
+                req.using("The current holders should sign.", tally.allInputHoldersSign);
 
                 return null;
             });
@@ -102,6 +93,67 @@ public final class TokenContract implements Contract {
         }
     }
 
+    /**
+     * The facts about the {@link TokenState}s of a transaction that the rules need, collected in a single pass over
+     * the inputs and outputs. Instead of filtering lists and building sets and maps, it uses counters, flags and
+     * an {@link IssuerQuantityTable}, so the cost per state is a handful of primitive operations.
+     */
+    private static final class TokenStateTally {
+        final int inputCount;
+        final int outputCount;
+        final boolean hasAllPositiveQuantities;
+        final boolean allInputHoldersSign;
+        final boolean allOutputHoldersAreInputHolders;
+        @NotNull
+        final IssuerQuantityTable sums;
+
+        TokenStateTally(@NotNull final LedgerTransaction tx, @NotNull final Set<PublicKey> signers) {
+            final IssuerQuantityTable sums = new IssuerQuantityTable();
+            int inputCount = 0;
+            int outputCount = 0;
+            boolean hasAllPositiveQuantities = true;
+            boolean allInputHoldersSign = true;
+            boolean allOutputHoldersAreInputHolders = true;
+            // There are very few distinct holders, typically 1, so this set stays tiny.
+            final Set<Party> inputHolders = new HashSet<>();
+            Party lastInputHolder = null;
+
+            // Indexed loops, so as not to create iterators, nor the intermediate lists of inputsOfType.
+            final List<StateAndRef<ContractState>> inputs = tx.getInputs();
+            for (int i = 0; i < inputs.size(); i++) {
+                final ContractState state = inputs.get(i).getState().getData();
+                if (!(state instanceof TokenState)) continue;
+                final TokenState token = (TokenState) state;
+                inputCount++;
+                hasAllPositiveQuantities &= 0 < token.getQuantity();
+                sums.addInput(token.getIssuer(), token.getQuantity());
+                // Consecutive inputs are very often from the same holder, so we do not look it up again.
+                if (!token.getHolder().equals(lastInputHolder)) {
+                    lastInputHolder = token.getHolder();
+                    inputHolders.add(lastInputHolder);
+                    allInputHoldersSign &= signers.contains(lastInputHolder.getOwningKey());
+                }
+            }
+            final List<TransactionState<ContractState>> outputs = tx.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                final ContractState state = outputs.get(i).getData();
+                if (!(state instanceof TokenState)) continue;
+                final TokenState token = (TokenState) state;
+                outputCount++;
+                hasAllPositiveQuantities &= 0 < token.getQuantity();
+                sums.addOutput(token.getIssuer(), token.getQuantity());
+                allOutputHoldersAreInputHolders &= inputHolders.contains(token.getHolder());
+            }
+
+            this.inputCount = inputCount;
+            this.outputCount = outputCount;
+            this.hasAllPositiveQuantities = hasAllPositiveQuantities;
+            this.allInputHoldersSign = allInputHoldersSign;
+            this.allOutputHoldersAreInputHolders = allOutputHoldersAreInputHolders;
+            this.sums = sums;
+        }
+    }
+
     public interface Commands extends CommandData {
         class Issue implements Commands {
         }
@@ -0,0 +1,9 @@
+package com.template.states;
+
+/**
+ * The family of schemas for {@link TokenState}. Each version of the schema is a {@link TokenSchemaV1}, and so on.
+ */
+public final class TokenSchema {
+    private TokenSchema() {
+    }
+}
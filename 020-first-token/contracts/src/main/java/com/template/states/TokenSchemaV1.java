@@ -0,0 +1,82 @@
+package com.template.states;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * The first version of the {@link TokenState} schema. It lets flows filter by issuer and holder, and sort by
+ * quantity, in SQL instead of doing it in the JVM after having fetched whole pages of states.
+ */
+public final class TokenSchemaV1 extends MappedSchema {
+
+    public static final String CHANGELOG_MASTER = "token.changelog-master";
+
+    public TokenSchemaV1() {
+        super(TokenSchema.class, 1, ImmutableList.of(PersistentToken.class));
+    }
+
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return CHANGELOG_MASTER;
+    }
+
+    /**
+     * The parties are saved by their X500 names, which is what flows have at hand when they search.
+     * The indexes follow the searches we do: by issuer for the issuer, and by holder and issuer, then quantity, for
+     * the holder about to move or redeem.
+     */
+    @Entity
+    @Table(name = "token_states",
+            indexes = {
+                    @Index(name = "token_issuer_idx", columnList = "issuer"),
+                    @Index(name = "token_holder_issuer_quantity_idx", columnList = "holder, issuer, quantity")
+            })
+    public static class PersistentToken extends PersistentState {
+        @Column(name = "issuer", nullable = false)
+        @NotNull
+        private final String issuer;
+        @Column(name = "holder", nullable = false)
+        @NotNull
+        private final String holder;
+        @Column(name = "quantity", nullable = false)
+        private final long quantity;
+
+        public PersistentToken(@NotNull final String issuer, @NotNull final String holder, final long quantity) {
+            this.issuer = issuer;
+            this.holder = holder;
+            this.quantity = quantity;
+        }
+
+        /**
+         * Default constructor required by Hibernate.
+         */
+        public PersistentToken() {
+            this.issuer = "";
+            this.holder = "";
+            this.quantity = 0L;
+        }
+
+        @NotNull
+        public String getIssuer() {
+            return issuer;
+        }
+
+        @NotNull
+        public String getHolder() {
+            return holder;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+    }
+}
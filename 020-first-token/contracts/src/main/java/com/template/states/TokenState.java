@@ -1,10 +1,13 @@
 package com.template.states;
 
+import com.google.common.collect.ImmutableList;
 import com.template.contracts.TokenContract;
 import net.corda.core.contracts.BelongsToContract;
-import net.corda.core.contracts.ContractState;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collections;
@@ -12,7 +15,7 @@ import java.util.List;
 import java.util.Objects;
 
 @BelongsToContract(TokenContract.class)
-public final class TokenState implements ContractState {
+public final class TokenState implements QueryableState {
 
     @NotNull
     private final Party issuer;
@@ -50,6 +53,25 @@ public final class TokenState implements ContractState {
         return quantity;
     }
 
+    // Being a QueryableState, each token is also saved in a table of its own, whose columns can be used in vault
+    // queries. This is what lets us filter by issuer without fetching states of other issuers.
+
+    @NotNull
+    @Override
+    public PersistentState generateMappedObject(@NotNull final MappedSchema schema) {
+        if (!(schema instanceof TokenSchemaV1)) throw new IllegalArgumentException("Unrecognised schema " + schema);
+        return new TokenSchemaV1.PersistentToken(
+                issuer.getName().toString(),
+                holder.getName().toString(),
+                quantity);
+    }
+
+    @NotNull
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() {
+        return ImmutableList.of(new TokenSchemaV1());
+    }
+
     // Forgetting equals and hashcode will cause all sorts of nasty side effects, as we are likely to put instances
     // in Sets or HashMaps. You always want to be able to know whether 2 instances are the same anyway.
 
@@ -0,0 +1,97 @@
+package com.template.contracts;
+
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.testing.core.TestIdentity;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class IssuerQuantityTableTests {
+
+    private final Party alice = new TestIdentity(new CordaX500Name("Alice", "London", "GB")).getParty();
+    private final Party bob = new TestIdentity(new CordaX500Name("Bob", "London", "GB")).getParty();
+    private final Party carly = new TestIdentity(new CordaX500Name("Carly", "London", "GB")).getParty();
+
+    @Test
+    public void emptyTableIsConserved() {
+        final IssuerQuantityTable table = new IssuerQuantityTable();
+        assertEquals(0, table.size());
+        assertTrue(table.isIssuerListConserved());
+        assertTrue(table.isSumConservedPerIssuer());
+        assertFalse(table.hasOverflowed());
+    }
+
+    @Test
+    public void sumsAreTalliedPerIssuer() {
+        final IssuerQuantityTable table = new IssuerQuantityTable();
+        table.addInput(alice, 10L);
+        table.addInput(alice, 15L);
+        table.addInput(carly, 30L);
+        table.addOutput(alice, 25L);
+        table.addOutput(carly, 20L);
+        assertEquals(2, table.size());
+        assertEquals(25L, table.getInputSum(alice));
+        assertEquals(25L, table.getOutputSum(alice));
+        assertEquals(30L, table.getInputSum(carly));
+        assertEquals(20L, table.getOutputSum(carly));
+        assertEquals(0L, table.getInputSum(bob));
+        assertTrue(table.isIssuerListConserved());
+        assertFalse(table.isSumConservedPerIssuer());
+    }
+
+    @Test
+    public void issuerOnlyInInputsIsNotConserved() {
+        final IssuerQuantityTable table = new IssuerQuantityTable();
+        table.addInput(alice, 10L);
+        table.addInput(carly, 10L);
+        table.addOutput(alice, 20L);
+        assertFalse(table.isIssuerListConserved());
+    }
+
+    @Test
+    public void issuerWithZeroQuantityIsStillPresent() {
+        final IssuerQuantityTable table = new IssuerQuantityTable();
+        table.addInput(alice, 10L);
+        table.addInput(carly, 0L);
+        table.addOutput(alice, 10L);
+        assertFalse(table.isIssuerListConserved());
+        assertTrue(table.isSumConservedPerIssuer());
+    }
+
+    @Test
+    public void tableGrowsPastItsCapacity() {
+        final IssuerQuantityTable table = new IssuerQuantityTable(1);
+        table.addInput(alice, 1L);
+        table.addInput(bob, 2L);
+        table.addInput(carly, 3L);
+        table.addOutput(carly, 3L);
+        assertEquals(3, table.size());
+        assertEquals(1L, table.getInputSum(alice));
+        assertEquals(2L, table.getInputSum(bob));
+        assertEquals(3L, table.getInputSum(carly));
+        assertEquals(3L, table.getOutputSum(carly));
+    }
+
+    @Test
+    public void overflowIsFlaggedNotThrown() {
+        final IssuerQuantityTable table = new IssuerQuantityTable();
+        table.addInput(alice, Long.MAX_VALUE);
+        assertFalse(table.hasOverflowed());
+        table.addInput(alice, 1L);
+        assertTrue(table.hasOverflowed());
+    }
+
+    @Test
+    public void issuersAmongSignersAreCheckedPerSide() {
+        final IssuerQuantityTable table = new IssuerQuantityTable();
+        table.addInput(alice, 10L);
+        table.addOutput(carly, 10L);
+        assertTrue(table.areInputIssuersAmong(Collections.singleton(alice.getOwningKey())));
+        assertFalse(table.areOutputIssuersAmong(Collections.singleton(alice.getOwningKey())));
+        assertTrue(table.areOutputIssuersAmong(ImmutableSet.of(alice.getOwningKey(), carly.getOwningKey())));
+    }
+}
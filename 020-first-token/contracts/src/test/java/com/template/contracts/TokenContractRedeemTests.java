@@ -33,12 +33,72 @@ public class TokenContractRedeemTests {
     }
 
     @Test
-    public void redeemTransactionMustHaveNoOutputs() {
+    public void redeemTransactionMustRedeemSomething() {
         transaction(ledgerServices, tx -> {
             tx.input(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 10L));
             tx.output(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 10L));
             tx.command(Arrays.asList(alice.getOwningKey(), bob.getOwningKey()), new TokenContract.Commands.Redeem());
-            tx.failsWith("No tokens should be issued, in outputs, when redeeming.");
+            tx.failsWith("The change should be below the redeemed sum, for each issuer.");
+            return null;
+        });
+    }
+
+    @Test
+    public void redeemTransactionCanGiveChangeToTheHolder() {
+        transaction(ledgerServices, tx -> {
+            tx.input(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 10L));
+            tx.input(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 20L));
+            tx.output(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 3L));
+            tx.command(Arrays.asList(alice.getOwningKey(), bob.getOwningKey()), new TokenContract.Commands.Redeem());
+            tx.verifies();
+            return null;
+        });
+    }
+
+    @Test
+    public void changeMustNotHaveAZeroQuantity() {
+        transaction(ledgerServices, tx -> {
+            tx.input(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 10L));
+            tx.output(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 0L));
+            tx.command(Arrays.asList(alice.getOwningKey(), bob.getOwningKey()), new TokenContract.Commands.Redeem());
+            tx.failsWith("All quantities must be above 0.");
+            return null;
+        });
+    }
+
+    @Test
+    public void changeMustBeOfRedeemedIssuers() {
+        transaction(ledgerServices, tx -> {
+            tx.input(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 10L));
+            tx.output(TOKEN_CONTRACT_ID, new TokenState(carly, bob, 3L));
+            tx.command(Arrays.asList(alice.getOwningKey(), bob.getOwningKey()), new TokenContract.Commands.Redeem());
+            tx.failsWith("The change should only be of redeemed issuers.");
+            return null;
+        });
+    }
+
+    @Test
+    public void changeMustBeBelowTheRedeemedSumForEachIssuer() {
+        transaction(ledgerServices, tx -> {
+            tx.input(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 10L));
+            tx.input(TOKEN_CONTRACT_ID, new TokenState(carly, bob, 20L));
+            tx.output(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 3L));
+            tx.output(TOKEN_CONTRACT_ID, new TokenState(carly, bob, 21L));
+            tx.command(
+                    Arrays.asList(alice.getOwningKey(), bob.getOwningKey(), carly.getOwningKey()),
+                    new TokenContract.Commands.Redeem());
+            tx.failsWith("The change should be below the redeemed sum, for each issuer.");
+            return null;
+        });
+    }
+
+    @Test
+    public void changeMustGoBackToTheCurrentHolders() {
+        transaction(ledgerServices, tx -> {
+            tx.input(TOKEN_CONTRACT_ID, new TokenState(alice, bob, 10L));
+            tx.output(TOKEN_CONTRACT_ID, new TokenState(alice, carly, 3L));
+            tx.command(Arrays.asList(alice.getOwningKey(), bob.getOwningKey()), new TokenContract.Commands.Redeem());
+            tx.failsWith("The change should go back to the current holders.");
             return null;
         });
     }
@@ -3,10 +3,10 @@ package com.template.states;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
 import net.corda.testing.core.TestIdentity;
+import net.corda.core.schemas.MappedSchema;
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.*;
 
 public class TokenStateTests {
 
@@ -77,4 +77,23 @@ public class TokenStateTests {
         assertNotEquals(token1, token2);
         assertNotEquals(token1.hashCode(), token2.hashCode());
     }
+
+    @Test
+    public void supportsTheFirstSchema() {
+        final TokenState token = new TokenState(alice, bob, 2L);
+        final MappedSchema schema = token.supportedSchemas().iterator().next();
+        assertTrue(schema instanceof TokenSchemaV1);
+        assertEquals(1, schema.getVersion());
+        assertEquals(TokenSchemaV1.CHANGELOG_MASTER, schema.getMigrationResource());
+    }
+
+    @Test
+    public void generatesTheMappedObjectOfTheFirstSchema() {
+        final TokenState token = new TokenState(alice, bob, 2L);
+        final TokenSchemaV1.PersistentToken mapped =
+                (TokenSchemaV1.PersistentToken) token.generateMappedObject(new TokenSchemaV1());
+        assertEquals(alice.getName().toString(), mapped.getIssuer());
+        assertEquals(bob.getName().toString(), mapped.getHolder());
+        assertEquals(2L, mapped.getQuantity());
+    }
 }
@@ -0,0 +1,82 @@
+package com.template.load;
+
+import org.HdrHistogram.Histogram;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records, per flow type, the latency of each flow that completed, and the count of those that failed.
+ * The latency is measured from the time at which the flow was meant to start, not the time it actually started. So
+ * when the nodes fall behind the target rate, the waiting shows in the numbers instead of being hidden.
+ */
+class FlowLatencies {
+
+    /**
+     * Flows taking longer than this are recorded as taking this long.
+     */
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    @NotNull
+    private final Map<String, Histogram> histograms = new TreeMap<>();
+    @NotNull
+    private final Map<String, AtomicLong> failures = new TreeMap<>();
+
+    FlowLatencies(@NotNull final Iterable<String> flowTypes) {
+        for (final String flowType : flowTypes) {
+            histograms.put(flowType, new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS));
+            failures.put(flowType, new AtomicLong());
+        }
+    }
+
+    void recordSuccess(@NotNull final String flowType, final long latencyNanos) {
+        final Histogram histogram = histograms.get(flowType);
+        synchronized (histogram) {
+            histogram.recordValue(Math.min(latencyNanos, HIGHEST_TRACKABLE_NANOS));
+        }
+    }
+
+    void recordFailure(@NotNull final String flowType) {
+        failures.get(flowType).incrementAndGet();
+    }
+
+    /**
+     * Writes one {@code <flowType>.hgrm} file per flow type, in milliseconds, which HdrHistogram's plotter reads, and
+     * a {@code summary.csv} with one line per flow type.
+     */
+    void write(@NotNull final File directory, final long measuredNanos) throws FileNotFoundException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create " + directory);
+        }
+        final double measuredSeconds = measuredNanos / 1_000_000_000.0;
+        try (PrintStream csv = new PrintStream(new File(directory, "summary.csv"))) {
+            csv.println("flow,completed,failed,tps,p50_ms,p99_ms,p99.9_ms,max_ms");
+            for (final Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                final Histogram histogram;
+                synchronized (entry.getValue()) {
+                    histogram = entry.getValue().copy();
+                }
+                try (PrintStream hgrm = new PrintStream(new File(directory, entry.getKey() + ".hgrm"))) {
+                    histogram.outputPercentileDistribution(hgrm, NANOS_PER_MILLI);
+                }
+                csv.printf("%s,%d,%d,%.2f,%.3f,%.3f,%.3f,%.3f%n",
+                        entry.getKey(),
+                        histogram.getTotalCount(),
+                        failures.get(entry.getKey()).get(),
+                        histogram.getTotalCount() / measuredSeconds,
+                        histogram.getValueAtPercentile(50.0) / NANOS_PER_MILLI,
+                        histogram.getValueAtPercentile(99.0) / NANOS_PER_MILLI,
+                        histogram.getValueAtPercentile(99.9) / NANOS_PER_MILLI,
+                        histogram.getMaxValue() / NANOS_PER_MILLI);
+            }
+        }
+    }
+}
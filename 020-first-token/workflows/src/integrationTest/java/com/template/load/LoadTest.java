@@ -0,0 +1,361 @@
+package com.template.load;
+
+import com.google.common.collect.ImmutableList;
+import com.template.flows.Constants;
+import com.template.flows.IssueFlows;
+import com.template.flows.MoveFlows;
+import com.template.flows.RedeemFlows;
+import com.template.states.TokenState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.driver.DriverDSL;
+import net.corda.testing.driver.DriverParameters;
+import net.corda.testing.driver.NodeHandle;
+import net.corda.testing.driver.NodeParameters;
+import net.corda.testing.node.NotarySpec;
+import net.corda.testing.node.TestCordapp;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import static net.corda.testing.driver.Driver.driver;
+
+/**
+ * Starts, in-process, a notary, an issuer and a number of holders, then drives a mix of issue, move and redeem flows
+ * over RPC at a target rate, and reports the throughput and latencies per flow type. Run it with
+ * {@code ./gradlew workflows:loadTest}, and configure it with the system properties below, for instance
+ * {@code -Dload.rate=50 -Dload.mix=issue=20,move=70,redeem=10}.
+ * <ul>
+ *     <li>{@code load.holders}, default 4: how many holders to start.</li>
+ *     <li>{@code load.redeemers}, default 1: how many of the holders only redeem.</li>
+ *     <li>{@code load.rate}, default 20: how many flows to start per second.</li>
+ *     <li>{@code load.warmup}, default 20: for how many seconds to run before measuring.</li>
+ *     <li>{@code load.duration}, default 60: for how many seconds to measure.</li>
+ *     <li>{@code load.mix}, default {@code issue=40,move=50,redeem=10}: the relative weights of the flow types.</li>
+ *     <li>{@code load.quantity}, default 100: the quantity of each issued state.</li>
+ *     <li>{@code load.maxInFlight}, default 500: how many flows may be running at once.</li>
+ *     <li>{@code load.seed}, default 1: the seed of the random choices, so that runs are repeatable.</li>
+ *     <li>{@code load.output}, default {@code build/reports/load}: where to write the results.</li>
+ * </ul>
+ * A move picks a state the harness knows to be spendable and gives it in full to another holder, so that concurrent
+ * moves never collide at the notary. The redeeming holders only receive issued states, and redeem them with
+ * {@link RedeemFlows.SimpleInitiator}, whose soft-locks keep concurrent redeems apart. When there is nothing to move
+ * or redeem yet, an issue is started instead.
+ * <p>
+ * The nodes respond to moves and redeems with the flows of {@link com.template.load.flows.LoadResponders}. Every flow
+ * that fails is reported on the standard error as it happens, and the run fails at the end if any did.
+ */
+public class LoadTest {
+
+    static final String ISSUE = "issue";
+    static final String MOVE = "move";
+    static final String REDEEM = "redeem";
+
+    @NotNull
+    private final Settings settings;
+    @NotNull
+    private final DriverDSL dsl;
+    @NotNull
+    private final FlowLatencies latencies = new FlowLatencies(Arrays.asList(ISSUE, MOVE, REDEEM));
+    @NotNull
+    private final Random random;
+    @NotNull
+    private final Semaphore inFlight;
+
+    private CordaRPCOps issuerRpc;
+    private Party issuer;
+    private Party notary;
+    /**
+     * Map key: the holder that moves. Map value: the states it holds that no flow is spending.
+     */
+    private final Map<Party, ConcurrentLinkedQueue<StateAndRef<TokenState>>> spendable = new LinkedHashMap<>();
+    /**
+     * Map key: the holder that redeems. Map value: the count of its states that no flow is redeeming.
+     */
+    private final Map<Party, AtomicLong> redeemable = new LinkedHashMap<>();
+    private final Map<Party, CordaRPCOps> rpcs = new HashMap<>();
+    /**
+     * The count of flows that failed, whether measured or not.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    private LoadTest(@NotNull final Settings settings, @NotNull final DriverDSL dsl) {
+        this.settings = settings;
+        this.dsl = dsl;
+        this.random = new Random(settings.seed);
+        this.inFlight = new Semaphore(settings.maxInFlight);
+    }
+
+    public static void main(final String[] args) {
+        final Settings settings = Settings.fromSystemProperties();
+        driver(new DriverParameters()
+                .withStartNodesInProcess(true)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("com.template.contracts"),
+                        TestCordapp.findCordapp("com.template.flows"),
+                        TestCordapp.findCordapp("com.template.load.flows")))
+                .withNotarySpecs(ImmutableList.of(new NotarySpec(Constants.desiredNotary))), dsl -> {
+            try {
+                new LoadTest(settings, dsl).run();
+            } catch (Exception e) {
+                throw new RuntimeException("Caught exception during load test: ", e);
+            }
+            return null;
+        });
+    }
+
+    private void run() throws Exception {
+        startNodes();
+        final long periodNanos = TimeUnit.SECONDS.toNanos(1) / settings.rate;
+        final long start = System.nanoTime();
+        final long measureStart = start + TimeUnit.SECONDS.toNanos(settings.warmupSeconds);
+        final long end = measureStart + TimeUnit.SECONDS.toNanos(settings.durationSeconds);
+        for (long i = 0; ; i++) {
+            final long intended = start + i * periodNanos;
+            if (end <= intended) break;
+            for (long now = System.nanoTime(); now < intended; now = System.nanoTime()) {
+                LockSupport.parkNanos(intended - now);
+            }
+            inFlight.acquire();
+            dispatch(pickFlowType(), intended, measureStart <= intended);
+        }
+        // Let the last flows finish, so that the slowest ones are counted too.
+        if (!inFlight.tryAcquire(settings.maxInFlight, 5, TimeUnit.MINUTES)) {
+            System.err.println("Some flows did not finish in time, they are not counted.");
+        }
+
+        final File output = new File(settings.output);
+        latencies.write(output, end - measureStart);
+        System.out.println("Results written to " + output.getAbsolutePath());
+        Files.readAllLines(new File(output, "summary.csv").toPath()).forEach(System.out::println);
+        if (0 < failed.get()) {
+            throw new IllegalStateException(failed.get() + " flows failed, see the errors above.");
+        }
+    }
+
+    private void startNodes() throws Exception {
+        final NodeHandle issuerHandle = dsl.startNode(new NodeParameters()
+                .withProvidedName(new CordaX500Name("Issuer", "London", "GB"))).get();
+        final List<NodeHandle> holderHandles = new ArrayList<>();
+        for (int i = 0; i < settings.holders; i++) {
+            holderHandles.add(dsl.startNode(new NodeParameters()
+                    .withProvidedName(new CordaX500Name("Holder" + i, "New York", "US"))).get());
+        }
+        issuerRpc = issuerHandle.getRpc();
+        issuer = issuerHandle.getNodeInfo().getLegalIdentities().get(0);
+        notary = issuerRpc.notaryPartyFromX500Name(Constants.desiredNotary);
+        if (notary == null) throw new IllegalStateException("The notary is not known.");
+        for (int i = 0; i < holderHandles.size(); i++) {
+            final NodeHandle handle = holderHandles.get(i);
+            final Party holder = handle.getNodeInfo().getLegalIdentities().get(0);
+            rpcs.put(holder, handle.getRpc());
+            if (i < settings.holders - settings.redeemers) spendable.put(holder, new ConcurrentLinkedQueue<>());
+            else redeemable.put(holder, new AtomicLong());
+        }
+    }
+
+    @NotNull
+    private String pickFlowType() {
+        int pick = random.nextInt(settings.totalWeight());
+        for (final Map.Entry<String, Integer> weight : settings.mix.entrySet()) {
+            pick -= weight.getValue();
+            if (pick < 0) return weight.getKey();
+        }
+        throw new IllegalStateException("The weights do not add up.");
+    }
+
+    private void dispatch(@NotNull final String flowType, final long intended, final boolean measured) {
+        if (flowType.equals(MOVE) && dispatchMove(intended, measured)) return;
+        if (flowType.equals(REDEEM) && dispatchRedeem(intended, measured)) return;
+        final List<Party> holders = new ArrayList<>(rpcs.keySet());
+        final Party holder = holders.get(random.nextInt(holders.size()));
+        start(ISSUE, intended, measured, issuerRpc, IssueFlows.Initiator.class, it -> {
+            for (final StateAndRef<TokenState> issued : ((SignedTransaction) it).getTx()
+                    .outRefsOfType(TokenState.class)) {
+                makeAvailable(issued);
+            }
+        }, holder, settings.quantity);
+    }
+
+    /**
+     * @return Whether a move was started, there may be nothing to move.
+     */
+    private boolean dispatchMove(final long intended, final boolean measured) {
+        final List<Party> movers = new ArrayList<>(spendable.keySet());
+        if (movers.size() < 2) return false;
+        final int offset = random.nextInt(movers.size());
+        for (int i = 0; i < movers.size(); i++) {
+            final Party mover = movers.get((offset + i) % movers.size());
+            final StateAndRef<TokenState> input = spendable.get(mover).poll();
+            if (input == null) continue;
+            Party newHolder = mover;
+            while (newHolder.equals(mover)) newHolder = movers.get(random.nextInt(movers.size()));
+            final TokenState output = new TokenState(issuer, newHolder, input.getState().getData().getQuantity());
+            start(MOVE, intended, measured, rpcs.get(mover), MoveFlows.Initiator.class, it -> {
+                for (final StateAndRef<TokenState> moved : ((SignedTransaction) it).getTx()
+                        .outRefsOfType(TokenState.class)) {
+                    makeAvailable(moved);
+                }
+            }, ImmutableList.of(input), ImmutableList.of(output));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether a redeem was started, there may be nothing to redeem.
+     */
+    private boolean dispatchRedeem(final long intended, final boolean measured) {
+        final List<Party> redeemers = new ArrayList<>(redeemable.keySet());
+        if (redeemers.isEmpty()) return false;
+        final int offset = random.nextInt(redeemers.size());
+        for (int i = 0; i < redeemers.size(); i++) {
+            final Party redeemer = redeemers.get((offset + i) % redeemers.size());
+            final AtomicLong count = redeemable.get(redeemer);
+            if (count.getAndUpdate(it -> 0 < it ? it - 1 : it) <= 0) continue;
+            start(REDEEM, intended, measured, rpcs.get(redeemer), RedeemFlows.SimpleInitiator.class, it -> {
+            }, notary, issuer, redeemer, settings.quantity);
+            return true;
+        }
+        return false;
+    }
+
+    private void makeAvailable(@NotNull final StateAndRef<TokenState> state) {
+        final Party holder = state.getState().getData().getHolder();
+        final ConcurrentLinkedQueue<StateAndRef<TokenState>> queue = spendable.get(holder);
+        if (queue != null) queue.add(state);
+        else redeemable.get(holder).incrementAndGet();
+    }
+
+    private void start(
+            @NotNull final String flowType,
+            final long intended,
+            final boolean measured,
+            @NotNull final CordaRPCOps rpc,
+            @NotNull final Class<? extends FlowLogic<?>> flowClass,
+            @NotNull final Consumer<Object> onSuccess,
+            @NotNull final Object... args) {
+        try {
+            rpc.startFlowDynamic(flowClass, args).getReturnValue().toCompletableFuture()
+                    .whenComplete((result, error) -> {
+                        final long latency = System.nanoTime() - intended;
+                        try {
+                            if (error != null) {
+                                reportFailure(flowType, measured, error);
+                                return;
+                            }
+                            onSuccess.accept(result);
+                            if (measured) latencies.recordSuccess(flowType, latency);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+        } catch (RuntimeException e) {
+            reportFailure(flowType, measured, e);
+            inFlight.release();
+        }
+    }
+
+    private void reportFailure(@NotNull final String flowType, final boolean measured, @NotNull final Throwable error) {
+        failed.incrementAndGet();
+        if (measured) latencies.recordFailure(flowType);
+        System.err.println("A " + flowType + " flow failed:");
+        error.printStackTrace();
+    }
+
+    static class Settings {
+        final int holders;
+        final int redeemers;
+        final int rate;
+        final int warmupSeconds;
+        final int durationSeconds;
+        /**
+         * Map key: the flow type. Map value: its weight in the mix.
+         */
+        @NotNull
+        final Map<String, Integer> mix;
+        final long quantity;
+        final int maxInFlight;
+        final long seed;
+        @NotNull
+        final String output;
+
+        Settings(final int holders, final int redeemers, final int rate, final int warmupSeconds,
+                 final int durationSeconds, @NotNull final Map<String, Integer> mix, final long quantity,
+                 final int maxInFlight, final long seed, @NotNull final String output) {
+            if (holders < 1) throw new IllegalArgumentException("holders must be at least 1");
+            if (redeemers < 0 || holders < redeemers) {
+                throw new IllegalArgumentException("redeemers must be between 0 and holders");
+            }
+            if (rate <= 0) throw new IllegalArgumentException("rate must be positive");
+            if (warmupSeconds < 0) throw new IllegalArgumentException("warmupSeconds cannot be negative");
+            if (durationSeconds <= 0) throw new IllegalArgumentException("durationSeconds must be positive");
+            if (!Arrays.asList(ISSUE, MOVE, REDEEM).containsAll(mix.keySet())) {
+                throw new IllegalArgumentException("mix can only have " + ISSUE + ", " + MOVE + " and " + REDEEM);
+            }
+            if (mix.values().stream().anyMatch(it -> it < 0)) {
+                throw new IllegalArgumentException("mix weights cannot be negative");
+            }
+            if (mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+                throw new IllegalArgumentException("mix weights must add up to more than 0");
+            }
+            if (quantity <= 0) throw new IllegalArgumentException("quantity must be positive");
+            if (maxInFlight <= 0) throw new IllegalArgumentException("maxInFlight must be positive");
+            this.holders = holders;
+            this.redeemers = redeemers;
+            this.rate = rate;
+            this.warmupSeconds = warmupSeconds;
+            this.durationSeconds = durationSeconds;
+            this.mix = Collections.unmodifiableMap(new LinkedHashMap<>(mix));
+            this.quantity = quantity;
+            this.maxInFlight = maxInFlight;
+            this.seed = seed;
+            this.output = output;
+        }
+
+        @NotNull
+        static Settings fromSystemProperties() {
+            return new Settings(
+                    Integer.getInteger("load.holders", 4),
+                    Integer.getInteger("load.redeemers", 1),
+                    Integer.getInteger("load.rate", 20),
+                    Integer.getInteger("load.warmup", 20),
+                    Integer.getInteger("load.duration", 60),
+                    parseMix(System.getProperty("load.mix", "issue=40,move=50,redeem=10")),
+                    Long.getLong("load.quantity", 100L),
+                    Integer.getInteger("load.maxInFlight", 500),
+                    Long.getLong("load.seed", 1L),
+                    System.getProperty("load.output", "build/reports/load"));
+        }
+
+        /**
+         * @param mix Like {@code issue=40,move=50,redeem=10}.
+         */
+        @NotNull
+        static Map<String, Integer> parseMix(@NotNull final String mix) {
+            final Map<String, Integer> weights = new LinkedHashMap<>();
+            for (final String entry : mix.split(",")) {
+                final String[] keyValue = entry.trim().split("=");
+                if (keyValue.length != 2) throw new IllegalArgumentException("Cannot parse mix entry " + entry);
+                weights.put(keyValue[0].trim(), Integer.parseInt(keyValue[1].trim()));
+            }
+            return weights;
+        }
+
+        int totalWeight() {
+            return mix.values().stream().mapToInt(Integer::intValue).sum();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.template.load.flows;
+
+import com.template.flows.MoveFlows;
+import com.template.flows.RedeemFlows;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.flows.InitiatedBy;
+import net.corda.core.transactions.SignedTransaction;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The responders that the load test nodes need, because the workflows CorDapp leaves it to each node to choose its
+ * own for moves and redeems. They are in their own package so that the driver can load them as a CorDapp, without
+ * the rest of the load test.
+ */
+public interface LoadResponders {
+
+    @InitiatedBy(MoveFlows.Initiator.class)
+    class MoveResponder extends MoveFlows.Responder {
+
+        public MoveResponder(@NotNull final FlowSession counterpartySession) {
+            super(counterpartySession);
+        }
+    }
+
+    @InitiatedBy(RedeemFlows.Initiator.class)
+    class RedeemResponder extends RedeemFlows.Responder {
+
+        public RedeemResponder(@NotNull final FlowSession counterpartySession) {
+            super(counterpartySession);
+        }
+
+        @Override
+        protected void additionalChecks(@NotNull final SignedTransaction stx) {
+            // The issuer of the load test redeems whatever its holders bring back.
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.identity.Party;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+
+public interface BalanceFlows {
+
+    /**
+     * Returns the token balances of a holder, per issuer, as kept by {@link TokenBalanceService}. It does not touch
+     * the vault, so it is cheap enough to be polled by a dashboard.
+     */
+    @StartableByRPC
+    class Query extends FlowLogic<Map<Party, Long>> {
+
+        @NotNull
+        private final Party holder;
+        /**
+         * When not null, only the balance of this issuer is returned.
+         */
+        @Nullable
+        private final Party issuer;
+
+        public Query(@NotNull final Party holder) {
+            this(holder, null);
+        }
+
+        public Query(@NotNull final Party holder, @Nullable final Party issuer) {
+            //noinspection ConstantConditions
+            if (holder == null) throw new NullPointerException("holder cannot be null");
+            this.holder = holder;
+            this.issuer = issuer;
+        }
+
+        @Suspendable
+        @Override
+        public Map<Party, Long> call() throws FlowException {
+            final TokenBalanceService balances = getServiceHub().cordaService(TokenBalanceService.class);
+            if (issuer == null) return balances.getBalances(holder);
+            return ImmutableMap.of(issuer, balances.getBalance(holder, issuer));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.template.states.TokenState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteria.SoftLockingCondition;
+import net.corda.core.node.services.vault.QueryCriteria.SoftLockingType;
+import net.corda.core.node.services.vault.QueryCriteriaUtils;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.core.utilities.ProgressTracker.Step;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public interface ConsolidateFlows {
+
+    /**
+     * Started by a {@link TokenState#getHolder} to merge its many small states of a given issuer into few larger
+     * ones. Each round is a {@link MoveFlows.Initiator} transaction from the holder to itself, so the {@code Move}
+     * command and the conservation rules of the contract apply as usual, and no other party needs to sign.
+     * The smallest states are picked first, as they are the ones that bloat the vault and make later selections
+     * slower.
+     */
+    @StartableByRPC
+    @StartableByService
+    class Initiator extends FlowLogic<List<SignedTransaction>> {
+
+        public static final int DEFAULT_MAX_INPUTS_PER_TX = 100;
+        public static final int DEFAULT_MAX_TRANSACTIONS = 10;
+
+        @NotNull
+        private final Party notary;
+        @NotNull
+        private final Party issuer;
+        private final int maxInputsPerTx;
+        private final int maxTransactions;
+        @NotNull
+        private final ProgressTracker progressTracker;
+
+        private final static Step FETCHING_TOKEN_STATES = new Step("Fetching the smallest token states.");
+        private final static Step MERGING_TOKEN_STATES = new Step("Moving token states to ourselves, merged.");
+
+        @NotNull
+        public static ProgressTracker tracker() {
+            return new ProgressTracker(
+                    FETCHING_TOKEN_STATES,
+                    MERGING_TOKEN_STATES);
+        }
+
+        public Initiator(@NotNull final Party notary, @NotNull final Party issuer) {
+            this(notary, issuer, DEFAULT_MAX_INPUTS_PER_TX, DEFAULT_MAX_TRANSACTIONS);
+        }
+
+        public Initiator(
+                @NotNull final Party notary,
+                @NotNull final Party issuer,
+                final int maxInputsPerTx,
+                final int maxTransactions) {
+            this(notary, issuer, maxInputsPerTx, maxTransactions, tracker());
+        }
+
+        /**
+         * @param maxInputsPerTx  The most states consumed by a single transaction, so as to keep it of a size that the
+         *                        notary and the database handle comfortably.
+         * @param maxTransactions The most transactions done by this flow, after which it stops, even if some states
+         *                        could still be merged.
+         */
+        public Initiator(
+                @NotNull final Party notary,
+                @NotNull final Party issuer,
+                final int maxInputsPerTx,
+                final int maxTransactions,
+                @NotNull final ProgressTracker progressTracker) {
+            //noinspection ConstantConditions
+            if (notary == null) throw new NullPointerException("notary cannot be null");
+            //noinspection ConstantConditions
+            if (issuer == null) throw new NullPointerException("issuer cannot be null");
+            // Merging a single state is pointless.
+            if (maxInputsPerTx < 2) throw new IllegalArgumentException("maxInputsPerTx must be at least 2");
+            if (maxTransactions <= 0) throw new IllegalArgumentException("maxTransactions must be positive");
+            //noinspection ConstantConditions
+            if (progressTracker == null) throw new NullPointerException("progressTracker cannot be null");
+            this.notary = notary;
+            this.issuer = issuer;
+            this.maxInputsPerTx = maxInputsPerTx;
+            this.maxTransactions = maxTransactions;
+            this.progressTracker = progressTracker;
+        }
+
+        @NotNull
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public List<SignedTransaction> call() throws FlowException {
+            getServiceHub().cordaService(FlowTimingService.class).track(this);
+            final Party holder = getOurIdentity();
+            // States locked by other flows, for instance a redeem in progress, are not for us.
+            final QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria()
+                    .withNotary(Collections.singletonList(notary))
+                    .withSoftLockingCondition(new SoftLockingCondition(
+                            SoftLockingType.UNLOCKED_AND_SPECIFIED,
+                            Collections.singletonList(getRunId().getUuid())))
+                    .and(TokenQueries.heldBy(holder))
+                    .and(TokenQueries.issuedBy(issuer));
+            final Sort smallestFirst = TokenQueries.sortByQuantity(Sort.Direction.ASC);
+            final PageSpecification paging = new PageSpecification(QueryCriteriaUtils.DEFAULT_PAGE_NUM, maxInputsPerTx);
+
+            final List<SignedTransaction> moveTxs = new ArrayList<>();
+            while (moveTxs.size() < maxTransactions) {
+                progressTracker.setCurrentStep(FETCHING_TOKEN_STATES);
+                // The states consumed in the previous round are no longer unconsumed, so the first page is always
+                // the next one to merge.
+                final List<StateAndRef<TokenState>> smallest = getServiceHub().getVaultService()
+                        .queryBy(TokenState.class, criteria, paging, smallestFirst)
+                        .getStates();
+                if (smallest.size() < 2) break;
+                final List<TokenState> merged = merge(holder, smallest);
+                // Only when the quantities are so large that their sum overflows.
+                if (smallest.size() <= merged.size()) break;
+                softLock(smallest);
+
+                progressTracker.setCurrentStep(MERGING_TOKEN_STATES);
+                moveTxs.add(subFlow(new MoveFlows.Initiator(smallest, merged)));
+                // A short page means there is nothing left to merge.
+                if (smallest.size() < maxInputsPerTx) break;
+            }
+            return moveTxs;
+        }
+
+        /**
+         * @return As few states as possible, without overflowing their quantities.
+         */
+        @NotNull
+        private List<TokenState> merge(
+                @NotNull final Party holder,
+                @NotNull final List<StateAndRef<TokenState>> states) {
+            final List<TokenState> merged = new ArrayList<>();
+            long sum = 0L;
+            for (final StateAndRef<TokenState> state : states) {
+                final long quantity = state.getState().getData().getQuantity();
+                if (Long.MAX_VALUE - sum < quantity) {
+                    merged.add(new TokenState(issuer, holder, sum));
+                    sum = 0L;
+                }
+                sum += quantity;
+            }
+            merged.add(new TokenState(issuer, holder, sum));
+            return merged;
+        }
+
+        @Suspendable
+        private void softLock(@NotNull final List<StateAndRef<TokenState>> states) throws FlowException {
+            final List<StateRef> refs = states.stream()
+                    .map(StateAndRef::getRef)
+                    .collect(Collectors.toList());
+            try {
+                getServiceHub().getVaultService().softLockReserve(getRunId().getUuid(), NonEmptySet.copyOf(refs));
+            } catch (StatesNotAvailableException e) {
+                throw new FlowException("Some of the states to merge were locked by another flow.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.template.flows;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.jmx.JmxReporter;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.utilities.ProgressTracker;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times how long flows spend in each of their {@link ProgressTracker.Step}s, including the steps of child trackers,
+ * like those of {@link net.corda.core.flows.CollectSignaturesFlow} and {@link net.corda.core.flows.FinalityFlow}.
+ * So it tells whether a slow flow waits on verification, on signatures or on the notary.
+ * The timings go to Dropwizard {@link com.codahale.metrics.Timer}s, one per flow class and step, named like
+ * {@code com.template.flows.MoveFlows$Initiator.step.Gathering the counterparty's signature. > Collecting signatures
+ * from counterparties.},
+ * plus one for the whole flow, suffixed with {@link #TOTAL}. They are exported over JMX in the {@link #JMX_DOMAIN}
+ * domain, followed by the node's legal name, like {@code com.template.flows.O=Alice, L=London, C=GB}, where they can be
+ * read with JConsole or Jolokia, for instance. The legal name keeps apart the nodes that share a JVM, as in tests.
+ * The subscriptions are held here, not in the flow, so that they do not end up in the flow's checkpoints. A flow
+ * restored from a checkpoint after a restart is no longer timed.
+ */
+@CordaService
+public class FlowTimingService extends SingletonSerializeAsToken {
+
+    public static final String JMX_DOMAIN = "com.template.flows";
+    public static final String STEP = "step";
+    public static final String TOTAL = "total";
+    private static final String CHILD_SEPARATOR = " > ";
+
+    private final static Logger log = LoggerFactory.getLogger(FlowTimingService.class);
+
+    @NotNull
+    private final MetricRegistry registry;
+
+    @SuppressWarnings("unused")
+    public FlowTimingService(@NotNull final AppServiceHub serviceHub) {
+        this.registry = new MetricRegistry();
+        JmxReporter.forRegistry(registry)
+                .inDomain(jmxDomainOf(serviceHub.getMyInfo().getLegalIdentities().get(0).getName()))
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build()
+                .start();
+    }
+
+    @NotNull
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return The JMX domain of the node's timers. The characters that a JMX domain cannot have are replaced.
+     */
+    @NotNull
+    public static String jmxDomainOf(@NotNull final CordaX500Name nodeName) {
+        return JMX_DOMAIN + "." + nodeName.toString().replaceAll("[:*?\\n]", "_");
+    }
+
+    /**
+     * Call it at the start of the flow's {@code call()}, before the first step is set. The timings are recorded under
+     * the flow's class name.
+     * A flow whose tracker is the child of another one is not timed on its own. It runs as a sub flow of a flow that
+     * has a tracker, and its steps are already timed as child steps of its parent, if the parent is tracked, so it
+     * would be timed twice.
+     */
+    public void track(@NotNull final FlowLogic<?> flow) {
+        final ProgressTracker tracker = flow.getProgressTracker();
+        if (tracker == null || tracker.getParent() != null) return;
+        final StepClock clock = new StepClock(flow.getClass(), tracker);
+        tracker.getChanges().subscribe(
+                clock::onChange,
+                error -> clock.onEnd(false),
+                () -> clock.onEnd(true));
+    }
+
+    /**
+     * Keeps track of the step in which the flow currently is, and of when it got there.
+     * The changes of a tracker all come from the thread that runs its flow, so there is no need to synchronise.
+     */
+    private class StepClock {
+        @NotNull
+        private final String flowName;
+        @NotNull
+        private final ProgressTracker root;
+        private final long startNanos;
+        @Nullable
+        private String currentLabel = null;
+        private long currentSinceNanos;
+        private boolean ended = false;
+
+        StepClock(@NotNull final Class<?> flowClass, @NotNull final ProgressTracker root) {
+            this.flowName = flowClass.getName();
+            this.root = root;
+            this.startNanos = System.nanoTime();
+            this.currentSinceNanos = startNanos;
+        }
+
+        void onChange(@NotNull final ProgressTracker.Change change) {
+            if (!(change instanceof ProgressTracker.Change.Position)) return;
+            final ProgressTracker.Change.Position position = (ProgressTracker.Change.Position) change;
+            final ProgressTracker tracker = position.getTracker();
+            final ProgressTracker.Step step = position.getNewStep();
+            if (step.equals(ProgressTracker.UNSTARTED.INSTANCE)) return;
+            if (tracker == root && step.equals(ProgressTracker.DONE.INSTANCE)) {
+                onEnd(true);
+                return;
+            }
+            // When a child is done, the time until the next step is the parent step's.
+            final String label = step.equals(ProgressTracker.DONE.INSTANCE)
+                    ? labelOf(tracker.getParent())
+                    : prefixOf(tracker) + step.getLabel();
+            moveTo(label);
+        }
+
+        void onEnd(final boolean success) {
+            if (ended) return;
+            ended = true;
+            // A failed flow's last step would skew the step's timings.
+            if (!success) return;
+            moveTo(null);
+            registry.timer(MetricRegistry.name(flowName, TOTAL))
+                    .update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+        private void moveTo(@Nullable final String label) {
+            final long now = System.nanoTime();
+            if (currentLabel != null) {
+                registry.timer(MetricRegistry.name(flowName, STEP, currentLabel))
+                        .update(now - currentSinceNanos, TimeUnit.NANOSECONDS);
+            }
+            currentLabel = label;
+            currentSinceNanos = now;
+        }
+
+        /**
+         * @return The labels of the parent steps that lead to this tracker's steps.
+         */
+        @NotNull
+        private String prefixOf(@NotNull final ProgressTracker tracker) {
+            final ProgressTracker parent = tracker.getParent();
+            if (tracker == root || parent == null) return "";
+            return labelOf(parent) + CHILD_SEPARATOR;
+        }
+
+        @NotNull
+        private String labelOf(@Nullable final ProgressTracker tracker) {
+            if (tracker == null) {
+                log.warn("A child tracker of " + flowName + " has no parent.");
+                return "";
+            }
+            return prefixOf(tracker) + tracker.getCurrentStep().getLabel();
+        }
+    }
+}
@@ -7,6 +7,7 @@ import com.template.contracts.TokenContract.Commands.Issue;
 import com.template.states.TokenState;
 import javafx.util.Pair;
 import net.corda.core.contracts.Command;
+import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
 import net.corda.core.node.StatesToRecord;
@@ -16,8 +17,7 @@ import net.corda.core.utilities.ProgressTracker;
 import net.corda.core.utilities.ProgressTracker.Step;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 import java.util.stream.Collectors;
 
 public interface IssueFlows {
@@ -61,13 +61,20 @@ public interface IssueFlows {
          * This constructor would typically be called by RPC or by {@link FlowLogic#subFlow}.
          */
         public Initiator(@NotNull final List<Pair<Party, Long>> heldQuantities) {
+            this(heldQuantities, tracker());
+        }
+
+        public Initiator(@NotNull final List<Pair<Party, Long>> heldQuantities,
+                         @NotNull final ProgressTracker progressTracker) {
             //noinspection ConstantConditions
             if (heldQuantities == null) throw new NullPointerException("heldQuantities cannot be null");
             if (heldQuantities.isEmpty()) throw new IllegalArgumentException("heldQuantities cannot be empty");
             final boolean noneZero = heldQuantities.stream().noneMatch(heldQuantity -> heldQuantity.getValue() <= 0);
             if (!noneZero) throw new IllegalArgumentException("heldQuantities must all be above 0");
+            //noinspection ConstantConditions
+            if (progressTracker == null) throw new NullPointerException("progressTracker cannot be null");
             this.heldQuantities = ImmutableList.copyOf(heldQuantities);
-            this.progressTracker = tracker();
+            this.progressTracker = progressTracker;
         }
 
         /**
@@ -87,6 +94,7 @@ public interface IssueFlows {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            getServiceHub().cordaService(FlowTimingService.class).track(this);
             // It is a design decision to have this flow initiated by the issuer.
             final Party issuer = getOurIdentity();
             final List<TokenState> outputTokens = heldQuantities
@@ -152,6 +160,143 @@ public interface IssueFlows {
     }
 
 
+    /**
+     * Started by the issuer to issue to a great many holders, for instance a payroll. A single {@link Initiator}
+     * transaction with tens of thousands of outputs, and as many {@link FlowSession}s, would be too large to notarise
+     * and finalise in a reasonable time. Instead, this flow splits the list into chunks, bounded both in outputs and
+     * in distinct holders, and issues each chunk in its own transaction, one after the other.
+     * The node checkpoints the flow after each chunk, so after a restart it resumes from the last completed chunk
+     * instead of issuing everything again. Each checkpoint holds all the chunks of the flow, so its size grows with
+     * the list given, not with the transactions already issued.
+     * To run chunks concurrently, use {@link #lanes} and start each lane separately. The number of lanes bounds the
+     * number of transactions in flight.
+     */
+    @StartableByRPC
+    @StartableByService
+    class BulkInitiator extends FlowLogic<List<SecureHash>> {
+
+        public static final int DEFAULT_MAX_OUTPUTS_PER_TX = 200;
+        public static final int DEFAULT_MAX_HOLDERS_PER_TX = 20;
+
+        @NotNull
+        private final List<List<Pair<Party, Long>>> chunks;
+        @NotNull
+        private final List<Step> chunkSteps;
+        @NotNull
+        private final ProgressTracker progressTracker;
+
+        public BulkInitiator(@NotNull final List<Pair<Party, Long>> heldQuantities) {
+            this(heldQuantities, DEFAULT_MAX_OUTPUTS_PER_TX, DEFAULT_MAX_HOLDERS_PER_TX);
+        }
+
+        public BulkInitiator(
+                @NotNull final List<Pair<Party, Long>> heldQuantities,
+                final int maxOutputsPerTx,
+                final int maxHoldersPerTx) {
+            this(chunk(heldQuantities, maxOutputsPerTx, maxHoldersPerTx), 1);
+        }
+
+        /**
+         * @param chunks Each chunk is issued in its own transaction, in this order.
+         * @param lane   Only used to tell the progress of lanes apart.
+         */
+        public BulkInitiator(@NotNull final List<List<Pair<Party, Long>>> chunks, final int lane) {
+            //noinspection ConstantConditions
+            if (chunks == null) throw new NullPointerException("chunks cannot be null");
+            if (chunks.isEmpty()) throw new IllegalArgumentException("chunks cannot be empty");
+            if (chunks.stream().anyMatch(List::isEmpty)) throw new IllegalArgumentException("chunks cannot be empty");
+            this.chunks = ImmutableList.copyOf(chunks);
+            // One step per chunk, so that an RPC client can follow how far along we are.
+            final List<Step> chunkSteps = new ArrayList<>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                chunkSteps.add(new Step("Lane " + lane + ", issuing chunk " + (i + 1) + " of " + chunks.size() + ".") {
+                    @NotNull
+                    @Override
+                    public ProgressTracker childProgressTracker() {
+                        return Initiator.tracker();
+                    }
+                });
+            }
+            this.chunkSteps = ImmutableList.copyOf(chunkSteps);
+            this.progressTracker = new ProgressTracker(chunkSteps.toArray(new Step[0]));
+        }
+
+        /**
+         * Splits the held quantities, in order, into chunks that have at most this many outputs and this many
+         * distinct holders.
+         */
+        @NotNull
+        public static List<List<Pair<Party, Long>>> chunk(
+                @NotNull final List<Pair<Party, Long>> heldQuantities,
+                final int maxOutputsPerTx,
+                final int maxHoldersPerTx) {
+            //noinspection ConstantConditions
+            if (heldQuantities == null) throw new NullPointerException("heldQuantities cannot be null");
+            if (maxOutputsPerTx <= 0) throw new IllegalArgumentException("maxOutputsPerTx must be positive");
+            if (maxHoldersPerTx <= 0) throw new IllegalArgumentException("maxHoldersPerTx must be positive");
+            final List<List<Pair<Party, Long>>> chunks = new ArrayList<>();
+            List<Pair<Party, Long>> current = new ArrayList<>();
+            final Set<Party> currentHolders = new HashSet<>();
+            for (final Pair<Party, Long> heldQuantity : heldQuantities) {
+                final boolean isNewHolder = !currentHolders.contains(heldQuantity.getKey());
+                if (current.size() == maxOutputsPerTx
+                        || (isNewHolder && currentHolders.size() == maxHoldersPerTx)) {
+                    chunks.add(current);
+                    current = new ArrayList<>();
+                    currentHolders.clear();
+                }
+                current.add(heldQuantity);
+                currentHolders.add(heldQuantity.getKey());
+            }
+            if (!current.isEmpty()) chunks.add(current);
+            return chunks;
+        }
+
+        /**
+         * Deals the chunks, round-robin, to at most {@code parallelism} flows. Start them all to have as many
+         * transactions in flight.
+         */
+        @NotNull
+        public static List<BulkInitiator> lanes(
+                @NotNull final List<Pair<Party, Long>> heldQuantities,
+                final int maxOutputsPerTx,
+                final int maxHoldersPerTx,
+                final int parallelism) {
+            if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive");
+            final List<List<Pair<Party, Long>>> chunks = chunk(heldQuantities, maxOutputsPerTx, maxHoldersPerTx);
+            final int laneCount = Math.min(parallelism, chunks.size());
+            final List<List<List<Pair<Party, Long>>>> dealt = new ArrayList<>(laneCount);
+            for (int lane = 0; lane < laneCount; lane++) dealt.add(new ArrayList<>());
+            for (int i = 0; i < chunks.size(); i++) dealt.get(i % laneCount).add(chunks.get(i));
+            final List<BulkInitiator> lanes = new ArrayList<>(laneCount);
+            for (int lane = 0; lane < laneCount; lane++) lanes.add(new BulkInitiator(dealt.get(lane), lane + 1));
+            return lanes;
+        }
+
+        @NotNull
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        /**
+         * @return The ids of the issue transactions, in chunk order.
+         */
+        @Suspendable
+        @Override
+        public List<SecureHash> call() throws FlowException {
+            getServiceHub().cordaService(FlowTimingService.class).track(this);
+            final List<SecureHash> txIds = new ArrayList<>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                final Step chunkStep = chunkSteps.get(i);
+                progressTracker.setCurrentStep(chunkStep);
+                // We keep only the id, so that the checkpoint does not also grow with each issued transaction.
+                txIds.add(subFlow(new Initiator(chunks.get(i), chunkStep.childProgressTracker())).getId());
+            }
+            return txIds;
+        }
+    }
+
     @InitiatedBy(Initiator.class)
     class Responder extends FlowLogic<SignedTransaction> {
 
@@ -4,7 +4,6 @@ import co.paralleluniverse.fibers.Suspendable;
 import com.template.contracts.TokenContract;
 import com.template.contracts.TokenContract.Commands.Move;
 import com.template.states.TokenState;
-import net.corda.core.contracts.AttachmentResolutionException;
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.StateAndRef;
 import net.corda.core.contracts.TransactionResolutionException;
@@ -18,10 +17,7 @@ import net.corda.core.utilities.ProgressTracker;
 import net.corda.core.utilities.ProgressTracker.Step;
 import org.jetbrains.annotations.NotNull;
 
-import java.security.SignatureException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.stream.Collectors;
 
 public interface MoveFlows {
@@ -112,6 +108,7 @@ public interface MoveFlows {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            getServiceHub().cordaService(FlowTimingService.class).track(this);
             progressTracker.setCurrentStep(GENERATING_TRANSACTION);
             // We can only make a transaction if all states have to be marked by the same notary.
             final Set<Party> notaries = inputTokens.stream()
@@ -155,19 +152,6 @@ public interface MoveFlows {
                     .filter(it -> !it.equals(getOurIdentity()))
                     .map(this::initiateFlow)
                     .collect(Collectors.toList());
-            // Prime these responders to act in a signer type of way.
-            // We need to use `for` instead of `.forEach` because we would need to annotate the lambda with
-            // @Suspendable.
-            for (final FlowSession it : signerFlows) {
-                it.send(TransactionRole.SIGNER);
-            }
-            final SignedTransaction fullySignedTx = signerFlows.isEmpty() ? partlySignedTx :
-                    subFlow(new CollectSignaturesFlow(
-                            partlySignedTx,
-                            signerFlows,
-                            GATHERING_SIGS.childProgressTracker()));
-
-            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
             // The new holders that are not signers and still need to be informed.
             final List<FlowSession> newHolderFlows = outputTokens.stream()
                     .map(TokenState::getHolder)
@@ -176,12 +160,19 @@ public interface MoveFlows {
                     .filter(it -> !allSigners.contains(it))
                     .map(this::initiateFlow)
                     .collect(Collectors.toList());
-            // Prime these responders to act in a holder type of way.
-            // We need to use `for` instead of `.forEach` because we would need to annotate the lambda with
-            // @Suspendable.
-            for (final FlowSession it : newHolderFlows) {
-                it.send(TransactionRole.PARTICIPANT);
-            }
+            // Prime the responders to act in a signer or a holder type of way. All the roles go out in a single
+            // batched send, instead of a round of sends that grows with the count of counterparties.
+            final Map<FlowSession, Object> roles = new HashMap<>();
+            signerFlows.forEach(it -> roles.put(it, TransactionRole.SIGNER));
+            newHolderFlows.forEach(it -> roles.put(it, TransactionRole.PARTICIPANT));
+            if (!roles.isEmpty()) sendAllMap(roles);
+            final SignedTransaction fullySignedTx = signerFlows.isEmpty() ? partlySignedTx :
+                    subFlow(new CollectSignaturesFlow(
+                            partlySignedTx,
+                            signerFlows,
+                            GATHERING_SIGS.childProgressTracker()));
+
+            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
             final List<FlowSession> allFlows = new ArrayList<>(signerFlows);
             allFlows.addAll(newHolderFlows);
             return subFlow(new FinalityFlow(
@@ -253,13 +244,12 @@ public interface MoveFlows {
                             // Notice that there is still a security risk here as my node can be asked to sign
                             // without my human knowledge.
                             // I must be relevant. We don't like signing irrelevant transactions.
+                            // Only the input states are loaded, not the whole ledger transaction.
                             final boolean relevant;
                             try {
-                                relevant = stx.toLedgerTransaction(getServiceHub(), false)
-                                        .inputsOfType(TokenState.class)
-                                        .stream()
-                                        .anyMatch(it -> it.getHolder().equals(getOurIdentity()));
-                            } catch (SignatureException | AttachmentResolutionException | TransactionResolutionException ex) {
+                                relevant = getServiceHub().cordaService(RelevanceChecker.class)
+                                        .isHolderOfAnInput(stx, getOurIdentity());
+                            } catch (TransactionResolutionException ex) {
                                 throw new FlowException(ex);
                             }
                             if (!relevant) throw new FlowException("I must be relevant.");
@@ -0,0 +1,155 @@
+package com.template.flows;
+
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Reduces many gross transfers of tokens between holders into few net transfers, per issuer.
+ * For each issuer, it sums the net position of each holder in a primitive {@code long} array. It then settles
+ * positions greedily, by having the largest debtor pay the largest creditor. Each net transfer zeroes at least one
+ * position, so there are at most N - 1 transfers for N holders, whatever the count of gross transfers.
+ * This bound is not the minimum. When the holders split into groups whose positions sum to 0, each group can settle
+ * apart with one transfer fewer, but finding the most such groups is NP-hard, so the greedy settlement does not try.
+ */
+public final class NettingEngine {
+
+    private NettingEngine() {
+    }
+
+    /**
+     * A transfer of {@link #quantity} tokens of {@link #issuer}, from the {@link #payer} to the {@link #payee}.
+     */
+    @CordaSerializable
+    public static final class Transfer {
+        @NotNull
+        private final Party issuer;
+        @NotNull
+        private final Party payer;
+        @NotNull
+        private final Party payee;
+        private final long quantity;
+
+        public Transfer(
+                @NotNull final Party issuer,
+                @NotNull final Party payer,
+                @NotNull final Party payee,
+                final long quantity) {
+            //noinspection ConstantConditions
+            if (issuer == null) throw new NullPointerException("issuer cannot be null");
+            //noinspection ConstantConditions
+            if (payer == null) throw new NullPointerException("payer cannot be null");
+            //noinspection ConstantConditions
+            if (payee == null) throw new NullPointerException("payee cannot be null");
+            if (payer.equals(payee)) throw new IllegalArgumentException("payer and payee must be different");
+            if (quantity <= 0) throw new IllegalArgumentException("quantity must be positive");
+            this.issuer = issuer;
+            this.payer = payer;
+            this.payee = payee;
+            this.quantity = quantity;
+        }
+
+        @NotNull
+        public Party getIssuer() {
+            return issuer;
+        }
+
+        @NotNull
+        public Party getPayer() {
+            return payer;
+        }
+
+        @NotNull
+        public Party getPayee() {
+            return payee;
+        }
+
+        public long getQuantity() {
+            return quantity;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Transfer transfer = (Transfer) o;
+            return quantity == transfer.quantity &&
+                    issuer.equals(transfer.issuer) &&
+                    payer.equals(transfer.payer) &&
+                    payee.equals(transfer.payee);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(issuer, payer, payee, quantity);
+        }
+
+        @Override
+        public String toString() {
+            return "Transfer{" +
+                    "issuer=" + issuer +
+                    ", payer=" + payer +
+                    ", payee=" + payee +
+                    ", quantity=" + quantity +
+                    '}';
+        }
+    }
+
+    /**
+     * @return The net transfers, grouped by issuer in the order the issuers first appear.
+     * @throws ArithmeticException when a position overflows.
+     */
+    @NotNull
+    public static List<Transfer> net(@NotNull final List<Transfer> grossTransfers) {
+        final Map<Party, List<Transfer>> byIssuer = new LinkedHashMap<>();
+        for (final Transfer transfer : grossTransfers) {
+            byIssuer.computeIfAbsent(transfer.getIssuer(), it -> new ArrayList<>()).add(transfer);
+        }
+        final List<Transfer> netTransfers = new ArrayList<>();
+        byIssuer.forEach((issuer, transfers) -> netTransfers.addAll(netOfIssuer(issuer, transfers)));
+        return netTransfers;
+    }
+
+    @NotNull
+    private static List<Transfer> netOfIssuer(@NotNull final Party issuer, @NotNull final List<Transfer> transfers) {
+        // Each holder gets an index in the positions array, in order of appearance.
+        final Map<Party, Integer> indices = new HashMap<>();
+        final List<Party> holders = new ArrayList<>();
+        for (final Transfer transfer : transfers) {
+            for (final Party holder : Arrays.asList(transfer.getPayer(), transfer.getPayee())) {
+                if (!indices.containsKey(holder)) {
+                    indices.put(holder, holders.size());
+                    holders.add(holder);
+                }
+            }
+        }
+        // Positive when the holder is owed, negative when it owes.
+        final long[] positions = new long[holders.size()];
+        for (final Transfer transfer : transfers) {
+            final int payer = indices.get(transfer.getPayer());
+            final int payee = indices.get(transfer.getPayee());
+            positions[payer] = Math.subtractExact(positions[payer], transfer.getQuantity());
+            positions[payee] = Math.addExact(positions[payee], transfer.getQuantity());
+        }
+
+        final List<Transfer> netTransfers = new ArrayList<>();
+        while (true) {
+            // The first index wins ties, so that the result does not depend on anything but the input order.
+            int debtor = -1;
+            int creditor = -1;
+            for (int i = 0; i < positions.length; i++) {
+                if (positions[i] < 0 && (debtor < 0 || positions[i] < positions[debtor])) debtor = i;
+                if (0 < positions[i] && (creditor < 0 || positions[creditor] < positions[i])) creditor = i;
+            }
+            // The positions sum to 0, so there is a creditor if and only if there is a debtor.
+            if (debtor < 0 || creditor < 0) break;
+            final long quantity = Math.min(Math.negateExact(positions[debtor]), positions[creditor]);
+            netTransfers.add(new Transfer(issuer, holders.get(debtor), holders.get(creditor), quantity));
+            positions[debtor] += quantity;
+            positions[creditor] -= quantity;
+        }
+        return netTransfers;
+    }
+}
@@ -0,0 +1,368 @@
+package com.template.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.template.contracts.TokenContract;
+import com.template.contracts.TokenContract.Commands.Move;
+import com.template.flows.NettingEngine.Transfer;
+import com.template.flows.RedeemFlows.StateAccumulator;
+import com.template.states.TokenState;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.core.utilities.ProgressTracker.Step;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+public interface NettingFlows {
+
+    /**
+     * What the coordinator tells each holder about the settlement: the net transfers in which the holder pays or
+     * is paid. A holder that has to pay answers with the states it puts in.
+     */
+    @CordaSerializable
+    class SettlementRequest {
+        @NotNull
+        private final List<Transfer> netTransfers;
+
+        public SettlementRequest(@NotNull final List<Transfer> netTransfers) {
+            this.netTransfers = ImmutableList.copyOf(netTransfers);
+        }
+
+        @NotNull
+        public List<Transfer> getNetTransfers() {
+            return netTransfers;
+        }
+
+        /**
+         * @return Per issuer, what the holder pays minus what it is paid. Negative when it is paid more.
+         */
+        @NotNull
+        public Map<Party, Long> netOutflowOf(@NotNull final Party holder) {
+            return NettingFlows.netOutflowOf(netTransfers, holder);
+        }
+
+        public boolean isPayer(@NotNull final Party holder) {
+            return netTransfers.stream().anyMatch(it -> it.getPayer().equals(holder));
+        }
+    }
+
+    @NotNull
+    static Map<Party, Long> netOutflowOf(@NotNull final List<Transfer> netTransfers, @NotNull final Party holder) {
+        final Map<Party, Long> outflows = new HashMap<>();
+        for (final Transfer transfer : netTransfers) {
+            if (transfer.getPayer().equals(holder)) {
+                outflows.merge(transfer.getIssuer(), transfer.getQuantity(), Math::addExact);
+            } else if (transfer.getPayee().equals(holder)) {
+                outflows.merge(transfer.getIssuer(), -transfer.getQuantity(), Math::addExact);
+            }
+        }
+        return outflows;
+    }
+
+    /**
+     * Started by one of the holders, which acts as coordinator for a settlement window. It nets the gross transfers
+     * that the holders agreed on, collects from each paying holder enough states to cover its net payments, and
+     * settles everything in a single {@code Move} transaction. The paying holders get their change back in the same
+     * transaction, so the sums per issuer are conserved as {@link TokenContract} requires.
+     * So instead of one notarisation per gross transfer, there is one per window.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    class Initiator extends FlowLogic<SignedTransaction> {
+
+        @NotNull
+        private final List<Transfer> grossTransfers;
+        @NotNull
+        private final ProgressTracker progressTracker;
+
+        private final static Step NETTING = new Step("Netting the gross transfers.");
+        private final static Step COLLECTING_STATES = new Step("Collecting the states of the paying holders.");
+        private final static Step GENERATING_TRANSACTION = new Step("Generating transaction based on the net transfers.");
+        private final static Step VERIFYING_TRANSACTION = new Step("Verifying contract constraints.");
+        private final static Step SIGNING_TRANSACTION = new Step("Signing transaction with our private key.");
+        private final static Step GATHERING_SIGS = new Step("Gathering the paying holders' signatures.") {
+            @NotNull
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final static Step FINALISING_TRANSACTION = new Step("Obtaining notary signature and recording transaction.") {
+            @NotNull
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        @NotNull
+        public static ProgressTracker tracker() {
+            return new ProgressTracker(
+                    NETTING,
+                    COLLECTING_STATES,
+                    GENERATING_TRANSACTION,
+                    VERIFYING_TRANSACTION,
+                    SIGNING_TRANSACTION,
+                    GATHERING_SIGS,
+                    FINALISING_TRANSACTION);
+        }
+
+        public Initiator(@NotNull final List<Transfer> grossTransfers) {
+            this(grossTransfers, tracker());
+        }
+
+        public Initiator(@NotNull final List<Transfer> grossTransfers, @NotNull final ProgressTracker progressTracker) {
+            //noinspection ConstantConditions
+            if (grossTransfers == null) throw new NullPointerException("grossTransfers cannot be null");
+            if (grossTransfers.isEmpty()) throw new IllegalArgumentException("grossTransfers cannot be empty");
+            //noinspection ConstantConditions
+            if (progressTracker == null) throw new NullPointerException("progressTracker cannot be null");
+            this.grossTransfers = ImmutableList.copyOf(grossTransfers);
+            this.progressTracker = progressTracker;
+        }
+
+        @NotNull
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            progressTracker.setCurrentStep(NETTING);
+            final List<Transfer> netTransfers = NettingEngine.net(grossTransfers);
+            // The gross transfers may all cancel out.
+            if (netTransfers.isEmpty()) throw new FlowException("There is nothing to settle after netting.");
+            final Set<Party> holders = new LinkedHashSet<>();
+            netTransfers.forEach(it -> {
+                holders.add(it.getPayer());
+                holders.add(it.getPayee());
+            });
+            final Party us = getOurIdentity();
+            if (!holders.contains(us)) throw new FlowException("I must be one of the holders.");
+            final Party notary = getServiceHub().getNetworkMapCache().getNotary(Constants.desiredNotary);
+            if (notary == null) {
+                throw new FlowException("The desired notary is not known: " + Constants.desiredNotary.toString());
+            }
+
+            progressTracker.setCurrentStep(COLLECTING_STATES);
+            // Map key: the holder. Map value: the session with it, we do not need one with ourselves.
+            final Map<Party, FlowSession> sessions = new LinkedHashMap<>();
+            for (final Party holder : holders) {
+                if (!holder.equals(us)) sessions.put(holder, initiateFlow(holder));
+            }
+            // Each holder is told about its own transfers only, all in a single batched send.
+            final Map<FlowSession, Object> requests = new HashMap<>();
+            sessions.forEach((holder, session) -> requests.put(session, new SettlementRequest(netTransfers.stream()
+                    .filter(it -> it.getPayer().equals(holder) || it.getPayee().equals(holder))
+                    .collect(Collectors.toList()))));
+            sendAllMap(requests);
+            final List<StateAndRef<TokenState>> inputs = new ArrayList<>(
+                    selectOwnInputs(netTransfers, us, notary));
+            final List<FlowSession> payerSessions = new ArrayList<>();
+            for (final Map.Entry<Party, FlowSession> entry : sessions.entrySet()) {
+                if (netTransfers.stream().noneMatch(it -> it.getPayer().equals(entry.getKey()))) continue;
+                payerSessions.add(entry.getValue());
+                inputs.addAll(subFlow(new ReceiveStateAndRefFlow<TokenState>(entry.getValue())));
+            }
+
+            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+            if (inputs.stream().anyMatch(it -> !it.getState().getNotary().equals(notary))) {
+                throw new FlowException("All states must be with the notary " + notary);
+            }
+            final List<TokenState> outputs = outputsOf(netTransfers, inputs);
+            final Set<Party> signers = inputs.stream()
+                    .map(it -> it.getState().getData().getHolder())
+                    .collect(Collectors.toSet());
+            final TransactionBuilder txBuilder = new TransactionBuilder(notary)
+                    .addCommand(new Command<>(
+                            new Move(),
+                            signers.stream().map(Party::getOwningKey).collect(Collectors.toList())));
+            inputs.forEach(txBuilder::addInputState);
+            outputs.forEach(it -> txBuilder.addOutputState(it, TokenContract.TOKEN_CONTRACT_ID));
+
+            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+            txBuilder.verify(getServiceHub());
+
+            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+            final SignedTransaction partlySignedTx = getServiceHub().signInitialTransaction(txBuilder);
+
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            final SignedTransaction fullySignedTx = payerSessions.isEmpty() ? partlySignedTx :
+                    subFlow(new CollectSignaturesFlow(
+                            partlySignedTx,
+                            payerSessions,
+                            GATHERING_SIGS.childProgressTracker()));
+
+            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+            return subFlow(new FinalityFlow(
+                    fullySignedTx,
+                    new ArrayList<>(sessions.values()),
+                    FINALISING_TRANSACTION.childProgressTracker()));
+        }
+
+        @Suspendable
+        @NotNull
+        private List<StateAndRef<TokenState>> selectOwnInputs(
+                @NotNull final List<Transfer> netTransfers,
+                @NotNull final Party us,
+                @NotNull final Party notary) throws FlowException {
+            return selectToPay(getServiceHub(), netOutflowOf(netTransfers, us), us, notary, getRunId().getUuid());
+        }
+
+        /**
+         * @return The outputs that pay the payees, followed by the change of the payers.
+         */
+        @NotNull
+        private static List<TokenState> outputsOf(
+                @NotNull final List<Transfer> netTransfers,
+                @NotNull final List<StateAndRef<TokenState>> inputs) throws FlowException {
+            final List<TokenState> outputs = new ArrayList<>();
+            // Map key: the payer. Map value: per issuer, what it put in minus what it pays.
+            final Map<Party, Map<Party, Long>> changes = new LinkedHashMap<>();
+            for (final StateAndRef<TokenState> input : inputs) {
+                final TokenState token = input.getState().getData();
+                changes.computeIfAbsent(token.getHolder(), it -> new LinkedHashMap<>())
+                        .merge(token.getIssuer(), token.getQuantity(), Math::addExact);
+            }
+            for (final Transfer transfer : netTransfers) {
+                outputs.add(new TokenState(transfer.getIssuer(), transfer.getPayee(), transfer.getQuantity()));
+                changes.computeIfAbsent(transfer.getPayer(), it -> new LinkedHashMap<>())
+                        .merge(transfer.getIssuer(), -transfer.getQuantity(), Math::addExact);
+            }
+            for (final Map.Entry<Party, Map<Party, Long>> payerChanges : changes.entrySet()) {
+                for (final Map.Entry<Party, Long> change : payerChanges.getValue().entrySet()) {
+                    if (change.getValue() < 0) {
+                        throw new FlowException(payerChanges.getKey() + " did not put in enough tokens of " +
+                                change.getKey());
+                    }
+                    if (0 < change.getValue()) {
+                        outputs.add(new TokenState(change.getKey(), payerChanges.getKey(), change.getValue()));
+                    }
+                }
+            }
+            return outputs;
+        }
+    }
+
+    /**
+     * Picks and soft-locks, for each issuer, enough of the holder's states to pay its net outflow.
+     */
+    @Suspendable
+    @NotNull
+    static List<StateAndRef<TokenState>> selectToPay(
+            @NotNull final ServiceHub serviceHub,
+            @NotNull final Map<Party, Long> netOutflows,
+            @NotNull final Party holder,
+            @NotNull final Party notary,
+            @NotNull final UUID lockId) throws FlowException {
+        final List<StateAndRef<TokenState>> selected = new ArrayList<>();
+        final TokenSelector selector = new TokenSelector(serviceHub);
+        for (final Map.Entry<Party, Long> outflow : netOutflows.entrySet()) {
+            // We are paid on this issuer, nothing to put in.
+            if (outflow.getValue() <= 0) continue;
+            final QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria()
+                    .withNotary(Collections.singletonList(notary))
+                    .and(TokenQueries.heldBy(holder))
+                    .and(TokenQueries.issuedBy(outflow.getKey()));
+            final StateAccumulator accumulated = selector.selectWorthAtLeast(criteria, outflow.getValue(), lockId);
+            selected.addAll(accumulated.states);
+        }
+        return selected;
+    }
+
+    /**
+     * The counterpart of {@link Initiator} on each of the other holders. A paying holder puts in states to cover its
+     * net payments, and signs only if the transaction takes from it, per issuer, exactly what it was told.
+     */
+    @InitiatedBy(Initiator.class)
+    class Responder extends FlowLogic<SignedTransaction> {
+
+        @NotNull
+        private final FlowSession counterpartySession;
+
+        public Responder(@NotNull final FlowSession counterpartySession) {
+            this.counterpartySession = counterpartySession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            final Party us = getOurIdentity();
+            final SettlementRequest request = counterpartySession.receive(SettlementRequest.class)
+                    .unwrap(it -> {
+                        if (it.getNetTransfers().isEmpty()) throw new FlowException("There are no transfers for me.");
+                        final boolean allMine = it.getNetTransfers().stream()
+                                .allMatch(transfer -> transfer.getPayer().equals(us) || transfer.getPayee().equals(us));
+                        if (!allMine) throw new FlowException("I must be in all transfers.");
+                        return it;
+                    });
+            // Is the holder ok with these transfers? This is where a peer would check them against its own records
+            // of the settlement window, by overriding this class.
+            if (!request.isPayer(us)) return subFlow(new ReceiveFinalityFlow(counterpartySession));
+
+            final Party notary = getServiceHub().getNetworkMapCache().getNotary(Constants.desiredNotary);
+            if (notary == null) {
+                throw new FlowException("The desired notary is not known: " + Constants.desiredNotary.toString());
+            }
+            final Map<Party, Long> netOutflows = request.netOutflowOf(us);
+            final List<StateAndRef<TokenState>> putIn = selectToPay(
+                    getServiceHub(), netOutflows, us, notary, getRunId().getUuid());
+            subFlow(new SendStateAndRefFlow(counterpartySession, ImmutableList.copyOf(putIn)));
+            final Set<StateRef> putInRefs = putIn.stream()
+                    .map(StateAndRef::getRef)
+                    .collect(Collectors.toSet());
+
+            final SignTransactionFlow signTransactionFlow = new SignTransactionFlow(counterpartySession) {
+                @Override
+                protected void checkTransaction(@NotNull final SignedTransaction stx) throws FlowException {
+                    // Our signature would also spend any other state of ours that the coordinator added.
+                    final Map<Party, Long> outflows = new HashMap<>();
+                    for (final StateAndRef<TokenState> state : putIn) {
+                        final TokenState token = state.getState().getData();
+                        outflows.merge(token.getIssuer(), token.getQuantity(), Math::addExact);
+                    }
+                    final RelevanceChecker checker = getServiceHub().cordaService(RelevanceChecker.class);
+                    for (final StateRef input : stx.getInputs()) {
+                        if (putInRefs.contains(input)) continue;
+                        // The inputs are resolved by now, so we only need to load the others' states.
+                        final ContractState other = checker.load(input).getData();
+                        if (other instanceof TokenState && ((TokenState) other).getHolder().equals(us)) {
+                            throw new FlowException("An input of mine was added without my consent.");
+                        }
+                    }
+                    for (final TransactionState<ContractState> output : stx.getTx().getOutputs()) {
+                        if (!(output.getData() instanceof TokenState)) continue;
+                        final TokenState token = (TokenState) output.getData();
+                        if (token.getHolder().equals(us)) {
+                            outflows.merge(token.getIssuer(), -token.getQuantity(), Math::addExact);
+                        }
+                    }
+                    outflows.values().removeIf(it -> it == 0L);
+                    final Map<Party, Long> expected = new HashMap<>(netOutflows);
+                    expected.values().removeIf(it -> it == 0L);
+                    if (!outflows.equals(expected)) {
+                        throw new FlowException("The transaction does not settle what I was told.");
+                    }
+                }
+            };
+            final SecureHash txId = subFlow(signTransactionFlow).getId();
+            return subFlow(new ReceiveFinalityFlow(counterpartySession, txId));
+        }
+    }
+}
@@ -2,25 +2,22 @@ package com.template.flows;
 
 import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.collect.ImmutableList;
+import com.template.contracts.TokenContract;
 import com.template.states.TokenState;
 import javafx.util.Pair;
-import net.corda.core.contracts.AttachmentResolutionException;
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.StateAndRef;
 import net.corda.core.contracts.TransactionResolutionException;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
-import net.corda.core.node.services.vault.PageSpecification;
 import net.corda.core.node.services.vault.QueryCriteria;
-import net.corda.core.node.services.vault.QueryCriteriaUtils;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import net.corda.core.utilities.ProgressTracker;
 import net.corda.core.utilities.ProgressTracker.Step;
 import org.jetbrains.annotations.NotNull;
 
-import java.security.SignatureException;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -41,6 +38,12 @@ public interface RedeemFlows {
     class Initiator extends FlowLogic<SignedTransaction> {
         @NotNull
         private final List<StateAndRef<TokenState>> inputTokens;
+        /**
+         * The change given back to the holders, so that a part of the input tokens can be redeemed in a single
+         * transaction.
+         */
+        @NotNull
+        private final List<TokenState> changeTokens;
         @NotNull
         private final ProgressTracker progressTracker;
 
@@ -73,16 +76,30 @@ public interface RedeemFlows {
         // By requiring an exact list of states, this flow assures absolute precision at the expense of
         // user-friendliness.
         public Initiator(@NotNull final List<StateAndRef<TokenState>> inputTokens,
+                         @NotNull final List<TokenState> changeTokens,
                          @NotNull final ProgressTracker progressTracker) {
             //noinspection ConstantConditions
             if (inputTokens == null) throw new NullPointerException("inputTokens cannot be null");
             if (inputTokens.isEmpty()) throw new IllegalArgumentException("inputTokens cannot be empty");
             //noinspection ConstantConditions
+            if (changeTokens == null) throw new NullPointerException("changeTokens cannot be null");
+            //noinspection ConstantConditions
             if (progressTracker == null) throw new NullPointerException("progressTracker cannot be null");
             this.inputTokens = ImmutableList.copyOf(inputTokens);
+            this.changeTokens = ImmutableList.copyOf(changeTokens);
             this.progressTracker = progressTracker;
         }
 
+        public Initiator(@NotNull final List<StateAndRef<TokenState>> inputTokens,
+                         @NotNull final List<TokenState> changeTokens) {
+            this(inputTokens, changeTokens, tracker());
+        }
+
+        public Initiator(@NotNull final List<StateAndRef<TokenState>> inputTokens,
+                         @NotNull final ProgressTracker progressTracker) {
+            this(inputTokens, Collections.emptyList(), progressTracker);
+        }
+
         public Initiator(@NotNull final List<StateAndRef<TokenState>> inputTokens) {
             this(inputTokens, tracker());
         }
@@ -96,6 +113,7 @@ public interface RedeemFlows {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            getServiceHub().cordaService(FlowTimingService.class).track(this);
             progressTracker.setCurrentStep(GENERATING_TRANSACTION);
             // We can only make a transaction if all states have to be marked by the same notary.
             final Set<Party> notaries = inputTokens.stream()
@@ -122,6 +140,8 @@ public interface RedeemFlows {
             final TransactionBuilder txBuilder = new TransactionBuilder(notary)
                     .addCommand(txCommand);
             inputTokens.forEach(txBuilder::addInputState);
+            // The contract makes sure the change only goes back to the current holders.
+            changeTokens.forEach(it -> txBuilder.addOutputState(it, TokenContract.TOKEN_CONTRACT_ID));
 
             progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
             txBuilder.verify(getServiceHub());
@@ -224,14 +244,12 @@ public interface RedeemFlows {
                     // are free to not use this class if they want to.
                     // Here we only automatically check that it is technically satisfactory.
                     // We don't like signing irrelevant transactions. I must be relevant.
+                    // Only the input states are loaded, not the whole ledger transaction.
                     final boolean relevant;
                     try {
-                        relevant = stx.toLedgerTransaction(getServiceHub(), false)
-                                .inputsOfType(TokenState.class)
-                                .stream()
-                                .anyMatch(it -> it.getIssuer().equals(getOurIdentity()) ||
-                                        it.getHolder().equals(getOurIdentity()));
-                    } catch (SignatureException | AttachmentResolutionException | TransactionResolutionException ex) {
+                        relevant = getServiceHub().cordaService(RelevanceChecker.class)
+                                .isIssuerOrHolderOfAnInput(stx, getOurIdentity());
+                    } catch (TransactionResolutionException ex) {
                         throw new FlowException(ex);
                     }
                     if (!relevant) throw new FlowException("I must be relevant.");
@@ -325,12 +343,24 @@ public interface RedeemFlows {
     class SimpleInitiator extends FlowLogic<Pair<SignedTransaction, SignedTransaction>> {
         @NotNull
         private final Party issuer;
+        @NotNull
+        private final Party holder;
         private final long totalQuantity;
         /**
          * A basic search criteria for the vault.
          */
         @NotNull
         private final QueryCriteria tokenCriteria;
+        /**
+         * How to pick the states to redeem among those found in the vault.
+         */
+        @NotNull
+        private final SelectionStrategy strategy;
+        /**
+         * Whether to give the change back to ourselves within the redeem transaction, instead of first splitting
+         * the states in a separate move transaction.
+         */
+        private final boolean changeInRedeem;
         @NotNull
         final private ProgressTracker progressTracker;
 
@@ -357,7 +387,16 @@ public interface RedeemFlows {
                 @NotNull final Party issuer,
                 @NotNull final Party holder,
                 final long totalQuantity) {
-            this(notary, issuer, holder, totalQuantity, tracker());
+            this(notary, issuer, holder, totalQuantity, new SelectionStrategy.InVaultOrder());
+        }
+
+        public SimpleInitiator(
+                @NotNull final Party notary,
+                @NotNull final Party issuer,
+                @NotNull final Party holder,
+                final long totalQuantity,
+                @NotNull final SelectionStrategy strategy) {
+            this(notary, issuer, holder, totalQuantity, strategy, tracker());
         }
 
         public SimpleInitiator(
@@ -366,12 +405,54 @@ public interface RedeemFlows {
                 @NotNull final Party holder,
                 final long totalQuantity,
                 @NotNull final ProgressTracker progressTracker) {
+            this(notary, issuer, holder, totalQuantity, new SelectionStrategy.InVaultOrder(), progressTracker);
+        }
+
+        public SimpleInitiator(
+                @NotNull final Party notary,
+                @NotNull final Party issuer,
+                @NotNull final Party holder,
+                final long totalQuantity,
+                @NotNull final SelectionStrategy strategy,
+                @NotNull final ProgressTracker progressTracker) {
+            this(notary, issuer, holder, totalQuantity, strategy, false, progressTracker);
+        }
+
+        /**
+         * @param changeInRedeem When true, the change is given back within the redeem transaction, so there is a
+         *                       single transaction to sign, notarise and record, instead of a move and a redeem.
+         */
+        public SimpleInitiator(
+                @NotNull final Party notary,
+                @NotNull final Party issuer,
+                @NotNull final Party holder,
+                final long totalQuantity,
+                @NotNull final SelectionStrategy strategy,
+                final boolean changeInRedeem) {
+            this(notary, issuer, holder, totalQuantity, strategy, changeInRedeem, tracker());
+        }
+
+        public SimpleInitiator(
+                @NotNull final Party notary,
+                @NotNull final Party issuer,
+                @NotNull final Party holder,
+                final long totalQuantity,
+                @NotNull final SelectionStrategy strategy,
+                final boolean changeInRedeem,
+                @NotNull final ProgressTracker progressTracker) {
+            //noinspection ConstantConditions
+            if (strategy == null) throw new NullPointerException("strategy cannot be null");
             this.issuer = issuer;
+            this.holder = holder;
             if (totalQuantity <= 0) throw new IllegalArgumentException("totalQuantity must be positive");
             this.totalQuantity = totalQuantity;
             this.tokenCriteria = new QueryCriteria.VaultQueryCriteria()
                     .withParticipants(Collections.singletonList(holder))
-                    .withNotary(Collections.singletonList(notary));
+                    .withNotary(Collections.singletonList(notary))
+                    // The database drops the other issuers for us, thanks to the token schema.
+                    .and(TokenQueries.issuedBy(issuer));
+            this.strategy = strategy;
+            this.changeInRedeem = changeInRedeem;
             this.progressTracker = progressTracker;
         }
 
@@ -381,47 +462,30 @@ public interface RedeemFlows {
             return progressTracker;
         }
 
-        @NotNull
-        private StateAccumulator fetchWorthAtLeast(final long remainingSum) throws FlowException {
-            return fetchWorthAtLeast(
-                    remainingSum,
-                    new PageSpecification(1, QueryCriteriaUtils.DEFAULT_PAGE_SIZE));
-        }
-
-        @NotNull
-        private StateAccumulator fetchWorthAtLeast(
-                final long remainingSum,
-                @NotNull final PageSpecification paging) throws FlowException {
-            // We reached the desired state already.
-            if (remainingSum <= 0) return new StateAccumulator(0L);
-            final List<StateAndRef<TokenState>> pagedStates = getServiceHub().getVaultService()
-                    .queryBy(TokenState.class, tokenCriteria, paging)
-                    .getStates();
-            if (pagedStates.isEmpty()) throw new FlowException("Not enough states to reach sum.");
-
-            final StateAccumulator fetched = pagedStates.stream()
-                    // The previous query cannot pre-filter by issuer so we need to drop some here.
-                    .filter(it -> it.getState().getData().getIssuer().equals(issuer))
-                    // We will keep only up to the point where we have have enough.
-                    .reduce(
-                            new StateAccumulator(remainingSum),
-                            StateAccumulator::plus,
-                            StateAccumulator::plus);
-
-            // Let's fetch some more, possibly an empty list.
-            return fetched.plus(fetchWorthAtLeast(
-                    // If this number is 0 or less, we will get an empty list.
-                    remainingSum - fetched.sum,
-                    // Take the next page
-                    paging.copy(paging.getPageNumber() + 1, paging.getPageSize())
-            ));
-        }
-
         @Suspendable
         @Override
         public Pair<SignedTransaction, SignedTransaction> call() throws FlowException {
+            getServiceHub().cordaService(FlowTimingService.class).track(this);
             progressTracker.setCurrentStep(FETCHING_TOKEN_STATES);
-            final StateAccumulator accumulated = fetchWorthAtLeast(totalQuantity);
+            // The cached balance counts all the holder's tokens, so when even that is short, there is no need to go
+            // through the vault to find out.
+            final long balance = getServiceHub().cordaService(TokenBalanceService.class).getBalance(holder, issuer);
+            if (balance < totalQuantity) throw new FlowException("Not enough states to reach sum.");
+            // The selected states are soft-locked with our flow id, so that a concurrent redeem does not pick them.
+            final StateAccumulator accumulated = new TokenSelector(getServiceHub())
+                    .selectWorthAtLeast(tokenCriteria, totalQuantity, getRunId().getUuid(), strategy);
+
+            if (changeInRedeem) {
+                // The move transaction is skipped altogether, and so is its round of signatures and notarisation.
+                final List<TokenState> change = accumulated.sum <= totalQuantity ? Collections.emptyList() :
+                        Collections.singletonList(
+                                new TokenState(issuer, getOurIdentity(), accumulated.sum - totalQuantity));
+                progressTracker.setCurrentStep(HANDING_TO_INITIATOR);
+                return new Pair<>(null, subFlow(new Initiator(
+                        accumulated.states,
+                        change,
+                        HANDING_TO_INITIATOR.childProgressTracker())));
+            }
 
             progressTracker.setCurrentStep(MOVING_TO_EXACT_COUNT);
             // If we did not get an exact amount, we need to create some change for ourselves before we redeem the
@@ -0,0 +1,111 @@
+package com.template.flows;
+
+import com.template.states.TokenState;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionResolutionException;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Tells responders whether a transaction to sign concerns them, by looking only at its input {@link TokenState}s.
+ * Calling {@link SignedTransaction#toLedgerTransaction} for this would resolve every input, attachment and network
+ * parameter. Instead, this service loads only the input states, from the transactions already in storage, and keeps
+ * the recently loaded ones in a bounded LRU cache. A {@link StateRef} always points to the same state, so the cache
+ * never goes stale.
+ * The cache size can be set in the CorDapp configuration with {@link #CACHE_SIZE_KEY}.
+ */
+@CordaService
+public class RelevanceChecker extends SingletonSerializeAsToken {
+
+    public static final String CACHE_SIZE_KEY = "relevanceCacheSize";
+    public static final int DEFAULT_CACHE_SIZE = 10_000;
+
+    @NotNull
+    private final AppServiceHub serviceHub;
+    /**
+     * In access order, so that the eldest entry is the least recently used.
+     */
+    @NotNull
+    private final LinkedHashMap<StateRef, TransactionState<ContractState>> recentStates;
+
+    @SuppressWarnings("unused")
+    public RelevanceChecker(@NotNull final AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        final int cacheSize = config.exists(CACHE_SIZE_KEY) ? config.getInt(CACHE_SIZE_KEY) : DEFAULT_CACHE_SIZE;
+        if (cacheSize <= 0) throw new IllegalArgumentException(CACHE_SIZE_KEY + " must be positive");
+        this.recentStates = new LinkedHashMap<StateRef, TransactionState<ContractState>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<StateRef, TransactionState<ContractState>> eldest) {
+                return cacheSize < size();
+            }
+        };
+    }
+
+    /**
+     * @return Whether the party holds any of the input tokens.
+     */
+    public boolean isHolderOfAnInput(@NotNull final SignedTransaction stx, @NotNull final Party who)
+            throws TransactionResolutionException {
+        return anyInputToken(stx, it -> it.getHolder().equals(who));
+    }
+
+    /**
+     * @return Whether the party issued or holds any of the input tokens.
+     */
+    public boolean isIssuerOrHolderOfAnInput(@NotNull final SignedTransaction stx, @NotNull final Party who)
+            throws TransactionResolutionException {
+        return anyInputToken(stx, it -> it.getIssuer().equals(who) || it.getHolder().equals(who));
+    }
+
+    /**
+     * @return Whether any of the input tokens matches. The inputs that are not tokens are skipped.
+     */
+    public boolean anyInputToken(@NotNull final SignedTransaction stx, @NotNull final Predicate<TokenState> predicate)
+            throws TransactionResolutionException {
+        final List<StateRef> inputs = stx.getInputs();
+        for (int i = 0; i < inputs.size(); i++) {
+            final ContractState state = load(inputs.get(i)).getData();
+            if (state instanceof TokenState && predicate.test((TokenState) state)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @throws TransactionResolutionException when the transaction that created the state is not in storage. A
+     *                                        responder's transactions are resolved before they are checked, so this
+     *                                        should not happen there.
+     */
+    @NotNull
+    public TransactionState<ContractState> load(@NotNull final StateRef ref) throws TransactionResolutionException {
+        synchronized (recentStates) {
+            final TransactionState<ContractState> cached = recentStates.get(ref);
+            if (cached != null) return cached;
+        }
+        // Out of the lock, as it goes to the database.
+        //noinspection unchecked
+        final TransactionState<ContractState> loaded = (TransactionState<ContractState>) serviceHub.loadState(ref);
+        synchronized (recentStates) {
+            recentStates.put(ref, loaded);
+        }
+        return loaded;
+    }
+
+    public int getCachedCount() {
+        synchronized (recentStates) {
+            return recentStates.size();
+        }
+    }
+}
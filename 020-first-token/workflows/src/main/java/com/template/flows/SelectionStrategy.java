@@ -0,0 +1,303 @@
+package com.template.flows;
+
+import com.template.flows.RedeemFlows.StateAccumulator;
+import com.template.states.TokenState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.serialization.CordaSerializable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides which {@link TokenState}s to pick, among candidates fetched from the vault, to reach a target sum.
+ * The choice matters: every input makes the transaction larger and deepens the resolution of later transactions,
+ * and every surplus over the target becomes a change output that will have to be spent later.
+ * {@link TokenSelector} fetches the candidates in the order given by {@link #getSorting} until it has reached the
+ * target and collected at least {@link #getCandidatesWanted} of them.
+ */
+@CordaSerializable
+public interface SelectionStrategy {
+
+    /**
+     * The default number of candidates fetched by the strategies that compare combinations.
+     */
+    int DEFAULT_CANDIDATES_WANTED = 100;
+
+    /**
+     * @return The order in which the vault should return candidates, or null if the vault's order is fine.
+     */
+    @Nullable
+    Sort getSorting();
+
+    /**
+     * @return The number of candidates to fetch, even when fewer already reach the target. 0 means that the
+     * candidates can be streamed, and the fetching stop as soon as the target is reached.
+     */
+    int getCandidatesWanted();
+
+    /**
+     * @param candidates The states that can be picked, in the order of {@link #getSorting}.
+     * @param targetSum  The sum of quantities to reach.
+     * @return The picked states, whose sum is at least the target, or null if the candidates cannot reach it.
+     */
+    @Nullable
+    StateAccumulator select(@NotNull List<StateAndRef<TokenState>> candidates, long targetSum);
+
+    @NotNull
+    static Comparator<StateAndRef<TokenState>> byQuantity() {
+        return Comparator.comparingLong(it -> it.getState().getData().getQuantity());
+    }
+
+    /**
+     * Takes candidates in the given order until the target is reached.
+     *
+     * @return null if the target cannot be reached.
+     */
+    @Nullable
+    static StateAccumulator takeUntilReached(
+            @NotNull final List<StateAndRef<TokenState>> ordered,
+            final long targetSum) {
+        final List<StateAndRef<TokenState>> picked = new ArrayList<>();
+        long sum = 0L;
+        for (final StateAndRef<TokenState> candidate : ordered) {
+            if (targetSum <= sum) break;
+            picked.add(candidate);
+            sum = Math.addExact(sum, candidate.getState().getData().getQuantity());
+        }
+        if (sum < targetSum) return null;
+        return new StateAccumulator(targetSum, picked);
+    }
+
+    /**
+     * Picks states in the order the vault returns them. This is what we did before there were strategies.
+     */
+    class InVaultOrder implements SelectionStrategy {
+        @Nullable
+        @Override
+        public Sort getSorting() {
+            return null;
+        }
+
+        @Override
+        public int getCandidatesWanted() {
+            return 0;
+        }
+
+        @Nullable
+        @Override
+        public StateAccumulator select(
+                @NotNull final List<StateAndRef<TokenState>> candidates,
+                final long targetSum) {
+            return takeUntilReached(candidates, targetSum);
+        }
+    }
+
+    /**
+     * Picks the largest states first. It needs few inputs, but it leaves the small states, the dust, behind.
+     */
+    class LargestFirst implements SelectionStrategy {
+        @NotNull
+        @Override
+        public Sort getSorting() {
+            return TokenQueries.sortByQuantity(Sort.Direction.DESC);
+        }
+
+        @Override
+        public int getCandidatesWanted() {
+            return 0;
+        }
+
+        @Nullable
+        @Override
+        public StateAccumulator select(
+                @NotNull final List<StateAndRef<TokenState>> candidates,
+                final long targetSum) {
+            final List<StateAndRef<TokenState>> ordered = new ArrayList<>(candidates);
+            ordered.sort(byQuantity().reversed());
+            return takeUntilReached(ordered, targetSum);
+        }
+    }
+
+    /**
+     * Picks the smallest states first. It needs more inputs, but it cleans up the dust as it goes.
+     */
+    class SmallestFirst implements SelectionStrategy {
+        @NotNull
+        @Override
+        public Sort getSorting() {
+            return TokenQueries.sortByQuantity(Sort.Direction.ASC);
+        }
+
+        @Override
+        public int getCandidatesWanted() {
+            return 0;
+        }
+
+        @Nullable
+        @Override
+        public StateAccumulator select(
+                @NotNull final List<StateAndRef<TokenState>> candidates,
+                final long targetSum) {
+            final List<StateAndRef<TokenState>> ordered = new ArrayList<>(candidates);
+            ordered.sort(byQuantity());
+            return takeUntilReached(ordered, targetSum);
+        }
+    }
+
+    /**
+     * Picks as few states as possible. A single state that covers the target is preferred, and the smallest such
+     * one, so as to keep the change small. Otherwise, the largest states are taken, which needs the fewest inputs.
+     */
+    class MinimiseInputs implements SelectionStrategy {
+        private final int candidatesWanted;
+
+        public MinimiseInputs(final int candidatesWanted) {
+            if (candidatesWanted <= 0) throw new IllegalArgumentException("candidatesWanted must be positive");
+            this.candidatesWanted = candidatesWanted;
+        }
+
+        public MinimiseInputs() {
+            this(DEFAULT_CANDIDATES_WANTED);
+        }
+
+        @NotNull
+        @Override
+        public Sort getSorting() {
+            return TokenQueries.sortByQuantity(Sort.Direction.DESC);
+        }
+
+        @Override
+        public int getCandidatesWanted() {
+            return candidatesWanted;
+        }
+
+        @Nullable
+        @Override
+        public StateAccumulator select(
+                @NotNull final List<StateAndRef<TokenState>> candidates,
+                final long targetSum) {
+            StateAndRef<TokenState> smallestCovering = null;
+            for (final StateAndRef<TokenState> candidate : candidates) {
+                final long quantity = candidate.getState().getData().getQuantity();
+                if (targetSum <= quantity && (smallestCovering == null
+                        || quantity < smallestCovering.getState().getData().getQuantity())) {
+                    smallestCovering = candidate;
+                }
+            }
+            if (smallestCovering != null) {
+                return new StateAccumulator(targetSum, Collections.singletonList(smallestCovering));
+            }
+            return new LargestFirst().select(candidates, targetSum);
+        }
+    }
+
+    /**
+     * Looks for a combination of states whose sum is exactly the target, so that there is no change at all. It is
+     * a depth-first branch-and-bound over the candidates sorted from largest to smallest, that prunes a branch as
+     * soon as it overshoots or cannot reach the target anymore. The search is bounded by a number of tries, after
+     * which, as when there is no exact match, it falls back to {@link MinimiseInputs}.
+     */
+    class ExactMatch implements SelectionStrategy {
+        public static final int DEFAULT_MAX_TRIES = 10_000;
+
+        private final int candidatesWanted;
+        private final int maxTries;
+
+        public ExactMatch(final int candidatesWanted, final int maxTries) {
+            if (candidatesWanted <= 0) throw new IllegalArgumentException("candidatesWanted must be positive");
+            if (maxTries <= 0) throw new IllegalArgumentException("maxTries must be positive");
+            this.candidatesWanted = candidatesWanted;
+            this.maxTries = maxTries;
+        }
+
+        public ExactMatch() {
+            this(DEFAULT_CANDIDATES_WANTED, DEFAULT_MAX_TRIES);
+        }
+
+        @NotNull
+        @Override
+        public Sort getSorting() {
+            return TokenQueries.sortByQuantity(Sort.Direction.DESC);
+        }
+
+        @Override
+        public int getCandidatesWanted() {
+            return candidatesWanted;
+        }
+
+        public int getMaxTries() {
+            return maxTries;
+        }
+
+        @Nullable
+        @Override
+        public StateAccumulator select(
+                @NotNull final List<StateAndRef<TokenState>> candidates,
+                final long targetSum) {
+            final List<StateAndRef<TokenState>> ordered = new ArrayList<>(candidates);
+            ordered.sort(byQuantity().reversed());
+            final List<StateAndRef<TokenState>> exact = findExact(ordered, targetSum);
+            if (exact != null) return new StateAccumulator(targetSum, exact);
+            return new MinimiseInputs(candidatesWanted).select(ordered, targetSum);
+        }
+
+        /**
+         * The search is iterative, with the current branch kept in a boolean array, so that the stack does not
+         * grow with the number of candidates.
+         *
+         * @param ordered The candidates, sorted by decreasing quantity.
+         * @return The states that sum exactly to the target, or null if none was found within the tries.
+         */
+        @Nullable
+        private List<StateAndRef<TokenState>> findExact(
+                @NotNull final List<StateAndRef<TokenState>> ordered,
+                final long targetSum) {
+            final int count = ordered.size();
+            final long[] quantities = new long[count];
+            // What remains to be had from index i onwards. It saturates instead of overflowing.
+            final long[] remaining = new long[count + 1];
+            for (int i = count - 1; 0 <= i; i--) {
+                quantities[i] = ordered.get(i).getState().getData().getQuantity();
+                remaining[i] = Long.MAX_VALUE - remaining[i + 1] < quantities[i]
+                        ? Long.MAX_VALUE
+                        : remaining[i + 1] + quantities[i];
+            }
+
+            final boolean[] chosen = new boolean[count];
+            int index = 0;
+            long sum = 0L;
+            int tries = 0;
+            while (true) {
+                if (sum == targetSum) {
+                    final List<StateAndRef<TokenState>> picked = new ArrayList<>();
+                    for (int i = 0; i < index; i++) {
+                        if (chosen[i]) picked.add(ordered.get(i));
+                    }
+                    return picked;
+                }
+                if (maxTries <= tries++) return null;
+                // sum is always below the target, so the subtraction cannot overflow.
+                final long missing = targetSum - sum;
+                if (index < count && missing <= remaining[index]) {
+                    // Go deeper, including this candidate if it does not overshoot, excluding it otherwise.
+                    chosen[index] = quantities[index] <= missing;
+                    if (chosen[index]) sum += quantities[index];
+                    index++;
+                    continue;
+                }
+                // Dead end. Backtrack to the last included candidate, and try without it.
+                int last = index - 1;
+                while (0 <= last && !chosen[last]) last--;
+                if (last < 0) return null;
+                chosen[last] = false;
+                sum -= quantities[last];
+                index = last + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.template.flows;
+
+import com.google.common.collect.ImmutableMap;
+import com.template.states.TokenState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This service keeps the balance of each holder, per issuer, of the unconsumed {@link TokenState}s in the vault. So
+ * a balance check is a map lookup instead of a vault scan.
+ * It has the database sum the quantities once at startup, then it follows the vault updates. It knows what the vault
+ * knows, no more: for instance an issuer sees the tokens it issued, but not how they moved afterwards.
+ */
+@CordaService
+public class TokenBalanceService extends SingletonSerializeAsToken {
+
+    private final static Logger log = LoggerFactory.getLogger(TokenBalanceService.class);
+
+    @NotNull
+    private final AppServiceHub serviceHub;
+    /**
+     * Map key: the holder.
+     * Map value: the balances of the holder, per issuer.
+     */
+    @NotNull
+    private final Map<Party, Map<Party, Long>> balances;
+
+    @SuppressWarnings("unused")
+    public TokenBalanceService(@NotNull final AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.balances = new ConcurrentHashMap<>();
+        // Services are created before any flow runs, so no update can slip in between the bootstrap and the tracking.
+        bootstrap();
+        track();
+    }
+
+    private void bootstrap() {
+        final QueryCriteria criteria = TokenQueries.sumByHolderAndIssuer();
+        final int pageSize = QueryCriteriaUtils.DEFAULT_PAGE_SIZE;
+        int pageNumber = QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+        int rowCount;
+        do {
+            final List<Object> results = serviceHub.getVaultService()
+                    .queryBy(TokenState.class, criteria, new PageSpecification(pageNumber, pageSize))
+                    .getOtherResults();
+            // Each row is: sum, holder, issuer.
+            for (int i = 0; i + 2 < results.size(); i += 3) {
+                final Party holder = toParty((String) results.get(i + 1));
+                final Party issuer = toParty((String) results.get(i + 2));
+                if (holder == null || issuer == null) continue;
+                add(holder, issuer, ((Number) results.get(i)).longValue());
+            }
+            rowCount = results.size() / 3;
+            pageNumber++;
+        } while (rowCount == pageSize);
+    }
+
+    private void track() {
+        // We only want the updates, so the snapshot can be the smallest page. Without paging, the snapshot query
+        // would fail on a vault with more states than the default page size.
+        serviceHub.getVaultService()
+                .trackBy(
+                        TokenState.class,
+                        new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED),
+                        new PageSpecification(QueryCriteriaUtils.DEFAULT_PAGE_NUM, 1))
+                .getUpdates().subscribe(
+                this::handleUpdate,
+                error -> log.error("In TokenState tracking", error),
+                () -> log.info("TokenState updates closed!"));
+    }
+
+    private void handleUpdate(@NotNull final Vault.Update<TokenState> update) {
+        for (final StateAndRef<TokenState> consumed : update.getConsumed()) {
+            final TokenState token = consumed.getState().getData();
+            add(token.getHolder(), token.getIssuer(), -token.getQuantity());
+        }
+        for (final StateAndRef<TokenState> produced : update.getProduced()) {
+            final TokenState token = produced.getState().getData();
+            add(token.getHolder(), token.getIssuer(), token.getQuantity());
+        }
+    }
+
+    private void add(@NotNull final Party holder, @NotNull final Party issuer, final long quantity) {
+        balances.computeIfAbsent(holder, it -> new ConcurrentHashMap<>())
+                // We do not keep zero balances around.
+                .compute(issuer, (it, balance) -> {
+                    final long updated = (balance == null ? 0L : balance) + quantity;
+                    return updated == 0L ? null : updated;
+                });
+    }
+
+    private Party toParty(@NotNull final String name) {
+        final Party party = serviceHub.getIdentityService().wellKnownPartyFromX500Name(CordaX500Name.parse(name));
+        if (party == null) log.warn("Unknown party " + name + ", its tokens are left out of the balances");
+        return party;
+    }
+
+    /**
+     * @return The sum of quantities of the holder's unconsumed tokens of this issuer, including soft-locked ones.
+     */
+    public long getBalance(@NotNull final Party holder, @NotNull final Party issuer) {
+        final Map<Party, Long> ofHolder = balances.get(holder);
+        if (ofHolder == null) return 0L;
+        final Long balance = ofHolder.get(issuer);
+        return balance == null ? 0L : balance;
+    }
+
+    /**
+     * @return The balances of the holder, per issuer.
+     */
+    @NotNull
+    public Map<Party, Long> getBalances(@NotNull final Party holder) {
+        final Map<Party, Long> ofHolder = balances.get(holder);
+        return ofHolder == null ? ImmutableMap.of() : ImmutableMap.copyOf(ofHolder);
+    }
+}
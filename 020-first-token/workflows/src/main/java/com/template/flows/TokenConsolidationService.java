@@ -0,0 +1,183 @@
+package com.template.flows;
+
+import com.template.states.TokenState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This service watches the tokens we hold and, when the count of our states of a given issuer reaches a threshold,
+ * starts a {@link ConsolidateFlows.Initiator} in the background to merge them.
+ * It is disabled unless the CorDapp configuration sets {@link #THRESHOLD_KEY} to a positive value, for instance:
+ * <pre>
+ * consolidationThreshold=500
+ * consolidationMaxInputs=100
+ * consolidationMaxTransactions=10
+ * </pre>
+ */
+@CordaService
+public class TokenConsolidationService extends SingletonSerializeAsToken {
+
+    public static final String THRESHOLD_KEY = "consolidationThreshold";
+    public static final String MAX_INPUTS_KEY = "consolidationMaxInputs";
+    public static final String MAX_TRANSACTIONS_KEY = "consolidationMaxTransactions";
+
+    private final static Logger log = LoggerFactory.getLogger(TokenConsolidationService.class);
+
+    @NotNull
+    private final AppServiceHub serviceHub;
+    // A single thread is enough, and it makes sure we do not compete with ourselves for the same states.
+    @NotNull
+    private final ExecutorService executor;
+    private final int threshold;
+    private final int maxInputsPerTx;
+    private final int maxTransactions;
+    /**
+     * The issuers for which a check or a consolidation is under way, so that a flurry of updates does not start
+     * as many flows. Each future completes when its issuer is no longer busy.
+     */
+    @NotNull
+    private final Map<Party, CompletableFuture<Void>> busyIssuers;
+
+    @SuppressWarnings("unused")
+    public TokenConsolidationService(@NotNull final AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.threshold = config.exists(THRESHOLD_KEY) ? config.getInt(THRESHOLD_KEY) : 0;
+        this.maxInputsPerTx = config.exists(MAX_INPUTS_KEY)
+                ? config.getInt(MAX_INPUTS_KEY)
+                : ConsolidateFlows.Initiator.DEFAULT_MAX_INPUTS_PER_TX;
+        this.maxTransactions = config.exists(MAX_TRANSACTIONS_KEY)
+                ? config.getInt(MAX_TRANSACTIONS_KEY)
+                : ConsolidateFlows.Initiator.DEFAULT_MAX_TRANSACTIONS;
+        if (maxInputsPerTx < 2) throw new IllegalArgumentException(MAX_INPUTS_KEY + " must be at least 2");
+        if (maxTransactions <= 0) throw new IllegalArgumentException(MAX_TRANSACTIONS_KEY + " must be positive");
+        this.busyIssuers = new ConcurrentHashMap<>();
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "token-consolidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (threshold <= 0) {
+            log.info("Token consolidation is disabled");
+            return;
+        }
+        // Merging fewer states than the threshold would not bring the count below it.
+        if (threshold < 2) throw new IllegalArgumentException(THRESHOLD_KEY + " must be at least 2");
+        track();
+    }
+
+    private void track() {
+        // We only want the updates, so the snapshot can be the smallest page. Without paging, the snapshot query
+        // would fail on a vault with more states than the default page size, which is precisely our case.
+        serviceHub.getVaultService()
+                .trackBy(
+                        TokenState.class,
+                        new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED),
+                        new PageSpecification(QueryCriteriaUtils.DEFAULT_PAGE_NUM, 1))
+                .getUpdates().subscribe(
+                this::handleUpdate,
+                error -> log.error("In TokenState tracking", error),
+                () -> log.info("TokenState updates closed!"));
+    }
+
+    private void handleUpdate(@NotNull final Vault.Update<TokenState> update) {
+        // Only new states can push a count over the threshold.
+        // Map key: the issuer. Map value: the notary of one of its new states.
+        final Map<Party, Party> issuersToNotary = new HashMap<>();
+        for (final StateAndRef<TokenState> produced : update.getProduced()) {
+            final TokenState token = produced.getState().getData();
+            if (isMyKey(token.getHolder())) issuersToNotary.put(token.getIssuer(), produced.getState().getNotary());
+        }
+        issuersToNotary.forEach((issuer, notary) -> {
+            // The check is already pending, it will see this update.
+            if (busyIssuers.putIfAbsent(issuer, new CompletableFuture<>()) != null) return;
+            // We query the vault, and start flows, away from the tracking thread.
+            executor.execute(() -> consolidateIfNeeded(issuer, notary));
+        });
+    }
+
+    private void consolidateIfNeeded(@NotNull final Party issuer, @NotNull final Party notary) {
+        try {
+            final long count = countHeld(issuer, notary);
+            if (count < threshold) {
+                doneWith(issuer);
+                return;
+            }
+            log.info("Consolidating " + count + " token states of " + issuer);
+            serviceHub.startFlow(new ConsolidateFlows.Initiator(notary, issuer, maxInputsPerTx, maxTransactions))
+                    .getReturnValue()
+                    .then(result -> {
+                        doneWith(issuer);
+                        return null;
+                    });
+        } catch (Exception e) {
+            log.error("Failed to consolidate token states of " + issuer, e);
+            doneWith(issuer);
+        }
+    }
+
+    private void doneWith(@NotNull final Party issuer) {
+        final CompletableFuture<Void> busy = busyIssuers.remove(issuer);
+        if (busy != null) busy.complete(null);
+    }
+
+    /**
+     * @return The count of our unconsumed token states of this issuer and notary.
+     */
+    public long countHeld(@NotNull final Party issuer, @NotNull final Party notary) {
+        final QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria()
+                .withNotary(Collections.singletonList(notary))
+                .and(TokenQueries.heldBy(serviceHub.getMyInfo().getLegalIdentities().get(0)))
+                .and(TokenQueries.issuedBy(issuer));
+        // We only want the total, so the smallest page will do.
+        return serviceHub.getVaultService()
+                .queryBy(TokenState.class, criteria, new PageSpecification(QueryCriteriaUtils.DEFAULT_PAGE_NUM, 1))
+                .getTotalStatesAvailable();
+    }
+
+    public boolean isEnabled() {
+        return 0 < threshold;
+    }
+
+    /**
+     * @return Whether a consolidation of this issuer's states is being checked or under way.
+     */
+    public boolean isBusyWith(@NotNull final Party issuer) {
+        return busyIssuers.containsKey(issuer);
+    }
+
+    /**
+     * @return A future that completes when the check or consolidation of this issuer's states, if any, is done.
+     */
+    @NotNull
+    public CompletableFuture<Void> whenIdleWith(@NotNull final Party issuer) {
+        final CompletableFuture<Void> busy = busyIssuers.get(issuer);
+        return busy == null ? CompletableFuture.completedFuture(null) : busy;
+    }
+
+    private boolean isMyKey(@NotNull final Party who) {
+        return serviceHub.getKeyManagementService()
+                .filterMyKeys(Collections.singletonList(who.getOwningKey()))
+                .iterator()
+                .hasNext();
+    }
+}
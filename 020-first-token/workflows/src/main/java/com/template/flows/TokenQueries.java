@@ -0,0 +1,72 @@
+package com.template.flows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.template.states.TokenSchemaV1.PersistentToken;
+import com.template.states.TokenState;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import org.jetbrains.annotations.NotNull;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.getField;
+
+/**
+ * Vault query helpers based on the {@link com.template.states.TokenSchemaV1} columns of {@link TokenState}. They let
+ * the database do the filtering and sorting, instead of fetching states and dropping some in the JVM.
+ */
+public interface TokenQueries {
+
+    /**
+     * @return The criteria that selects only the tokens of the given issuer.
+     */
+    @NotNull
+    static QueryCriteria issuedBy(@NotNull final Party issuer) {
+        final CriteriaExpression issuerIndex = Builder.equal(field("issuer"), issuer.getName().toString());
+        //noinspection unchecked
+        return new QueryCriteria.VaultCustomQueryCriteria(issuerIndex);
+    }
+
+    /**
+     * @return The criteria that selects only the tokens of the given holder.
+     */
+    @NotNull
+    static QueryCriteria heldBy(@NotNull final Party holder) {
+        final CriteriaExpression holderIndex = Builder.equal(field("holder"), holder.getName().toString());
+        //noinspection unchecked
+        return new QueryCriteria.VaultCustomQueryCriteria(holderIndex);
+    }
+
+    /**
+     * @return The criteria that has the database sum the quantities, grouped by holder and issuer. Each row of the
+     * page's {@link Vault.Page#getOtherResults()} is then: the sum, the holder name, the issuer name.
+     */
+    @NotNull
+    static QueryCriteria sumByHolderAndIssuer() {
+        final CriteriaExpression sum = Builder.sum(
+                field("quantity"),
+                ImmutableList.of(field("holder"), field("issuer")));
+        //noinspection unchecked
+        return new QueryCriteria.VaultCustomQueryCriteria(sum);
+    }
+
+    /**
+     * @return The sort that orders tokens by their quantity.
+     */
+    @NotNull
+    static Sort sortByQuantity(@NotNull final Sort.Direction direction) {
+        return new Sort(ImmutableSet.of(new Sort.SortColumn(
+                new SortAttribute.Custom(PersistentToken.class, "quantity"),
+                direction)));
+    }
+
+    @NotNull
+    static FieldInfo field(@NotNull final String name) {
+        try {
+            return getField(name, PersistentToken.class);
+        } catch (NoSuchFieldException e) {
+            // The names are ours and fixed, so this is a programming error.
+            throw new IllegalArgumentException("Unknown token column " + name, e);
+        }
+    }
+}
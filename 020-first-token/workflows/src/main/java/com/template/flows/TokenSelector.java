@@ -0,0 +1,129 @@
+package com.template.flows;
+
+import com.template.flows.RedeemFlows.StateAccumulator;
+import com.template.states.TokenState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteria.SoftLockingCondition;
+import net.corda.core.node.services.vault.QueryCriteria.SoftLockingType;
+import net.corda.core.node.services.vault.QueryCriteriaUtils;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.utilities.NonEmptySet;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Picks {@link TokenState}s in the vault until their sum reaches a target, and soft-locks them for the flow that
+ * asked.
+ * It goes through the vault page by page in a loop, and stops querying as soon as the target is reached and the
+ * {@link SelectionStrategy} has enough candidates. This keeps the stack flat and the work proportional to the
+ * states actually needed.
+ * The soft-lock means that a concurrent flow of the same holder will not pick the same states and collide with us
+ * at the notary. The node releases the soft-locks of a flow when the flow ends.
+ */
+public class TokenSelector {
+
+    @NotNull
+    private final ServiceHub serviceHub;
+    private final int pageSize;
+
+    public TokenSelector(@NotNull final ServiceHub serviceHub) {
+        this(serviceHub, QueryCriteriaUtils.DEFAULT_PAGE_SIZE);
+    }
+
+    public TokenSelector(@NotNull final ServiceHub serviceHub, final int pageSize) {
+        //noinspection ConstantConditions
+        if (serviceHub == null) throw new NullPointerException("serviceHub cannot be null");
+        if (pageSize <= 0) throw new IllegalArgumentException("pageSize must be positive");
+        this.serviceHub = serviceHub;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Picks states in the order the vault returns them.
+     *
+     * @param criteria  The criteria that describes acceptable tokens, typically holder, notary and issuer.
+     * @param targetSum The sum of quantities to reach.
+     * @param lockId    The id with which to soft-lock the picked states, typically the flow's run id.
+     * @return The picked states, whose sum is at least the target.
+     * @throws FlowException when there are not enough unlocked states to reach the target, or when some of the
+     *                       picked states got locked by another flow in the meantime.
+     */
+    @NotNull
+    public StateAccumulator selectWorthAtLeast(
+            @NotNull final QueryCriteria criteria,
+            final long targetSum,
+            @NotNull final UUID lockId) throws FlowException {
+        return selectWorthAtLeast(criteria, targetSum, lockId, new SelectionStrategy.InVaultOrder());
+    }
+
+    /**
+     * @param strategy Decides the order in which to fetch candidates, how many, and which to pick among them.
+     */
+    @NotNull
+    public StateAccumulator selectWorthAtLeast(
+            @NotNull final QueryCriteria criteria,
+            final long targetSum,
+            @NotNull final UUID lockId,
+            @NotNull final SelectionStrategy strategy) throws FlowException {
+        if (targetSum <= 0) throw new IllegalArgumentException("targetSum must be positive");
+        // States locked by other flows are not for us. Those we may have locked already are.
+        final QueryCriteria unlockedCriteria = criteria.and(new QueryCriteria.VaultQueryCriteria()
+                .withSoftLockingCondition(new SoftLockingCondition(
+                        SoftLockingType.UNLOCKED_AND_SPECIFIED,
+                        Collections.singletonList(lockId))));
+        final Sort sorting = strategy.getSorting();
+        final int candidatesWanted = strategy.getCandidatesWanted();
+
+        final List<StateAndRef<TokenState>> candidates = new ArrayList<>();
+        long sum = 0L;
+        int pageNumber = QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+        boolean exhausted = false;
+        while (!exhausted && (sum < targetSum || candidates.size() < candidatesWanted)) {
+            final PageSpecification paging = new PageSpecification(pageNumber, pageSize);
+            final Vault.Page<TokenState> page = sorting == null
+                    ? serviceHub.getVaultService().queryBy(TokenState.class, unlockedCriteria, paging)
+                    : serviceHub.getVaultService().queryBy(TokenState.class, unlockedCriteria, paging, sorting);
+            final List<StateAndRef<TokenState>> pagedStates = page.getStates();
+            for (final StateAndRef<TokenState> state : pagedStates) {
+                candidates.add(state);
+                sum = Math.addExact(sum, state.getState().getData().getQuantity());
+                // We fetch only up to the point where we have enough.
+                if (targetSum <= sum && candidatesWanted <= candidates.size()) break;
+            }
+            // A short page is the last page, there is no point in asking for another.
+            exhausted = pagedStates.size() < pageSize;
+            pageNumber++;
+        }
+
+        final StateAccumulator picked = strategy.select(candidates, targetSum);
+        if (picked == null) throw new FlowException("Not enough states to reach sum.");
+        softLock(picked.states, lockId);
+        return picked;
+    }
+
+    private void softLock(
+            @NotNull final List<StateAndRef<TokenState>> picked,
+            @NotNull final UUID lockId) throws FlowException {
+        final List<StateRef> refs = picked.stream()
+                .map(StateAndRef::getRef)
+                .collect(Collectors.toList());
+        try {
+            serviceHub.getVaultService().softLockReserve(lockId, NonEmptySet.copyOf(refs));
+        } catch (StatesNotAvailableException e) {
+            // Another flow locked some of them between our query and now. Better to fail here than at the notary.
+            throw new FlowException("Some of the selected states were locked by another flow.", e);
+        }
+    }
+}
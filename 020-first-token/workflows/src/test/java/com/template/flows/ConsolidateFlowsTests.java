@@ -0,0 +1,150 @@
+package com.template.flows;
+
+import com.template.states.TokenState;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.StartedMockNode;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.template.flows.FlowHelpers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConsolidateFlowsTests {
+    private final MockNetwork network;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+    private final StartedMockNode carly;
+
+    public ConsolidateFlowsTests() throws Exception {
+        network = new MockNetwork(prepareMockNetworkParameters());
+        alice = network.createNode();
+        bob = network.createNode();
+        carly = network.createNode();
+        Arrays.asList(alice, bob, carly).forEach(it -> it.registerInitiatedFlow(IssueFlows.Responder.class));
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private List<SignedTransaction> consolidate(
+            @NotNull final StartedMockNode holder,
+            @NotNull final Party notary,
+            @NotNull final StartedMockNode issuer,
+            final int maxInputsPerTx,
+            final int maxTransactions) throws Exception {
+        final ConsolidateFlows.Initiator flow = new ConsolidateFlows.Initiator(
+                notary, issuer.getInfo().getLegalIdentities().get(0), maxInputsPerTx, maxTransactions);
+        final CordaFuture<List<SignedTransaction>> future = holder.startFlow(flow);
+        network.runNetwork();
+        return future.get();
+    }
+
+    @NotNull
+    private static List<Long> quantitiesInVault(@NotNull final StartedMockNode node) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(TokenState.class).getStates())
+                .stream()
+                .map(it -> it.getState().getData().getQuantity())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxInputsPerTxMustBeAtLeast2() {
+        final Party aliceParty = alice.getInfo().getLegalIdentities().get(0);
+        new ConsolidateFlows.Initiator(aliceParty, aliceParty, 1, 10);
+    }
+
+    @Test
+    public void mergesAllStatesInASingleTransaction() throws Throwable {
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(bob, 20L),
+                new FlowHelpers.NodeHolding(bob, 5L)));
+
+        final List<SignedTransaction> txs = consolidate(bob, tokens.get(0).getState().getNotary(), alice, 100, 10);
+
+        assertEquals(1, txs.size());
+        assertEquals(3, txs.get(0).getTx().getInputs().size());
+        assertEquals(1, txs.get(0).getTx().getOutputs().size());
+        assertEquals(createFrom(alice, bob, 35L), txs.get(0).getTx().getOutputs().get(0).getData());
+        assertEquals(Collections.singletonList(35L), quantitiesInVault(bob));
+    }
+
+    @Test
+    public void mergesTheSmallestFirstWithinTheMaxInputs() throws Throwable {
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(bob, 20L),
+                new FlowHelpers.NodeHolding(bob, 5L),
+                new FlowHelpers.NodeHolding(bob, 7L)));
+
+        final List<SignedTransaction> txs = consolidate(bob, tokens.get(0).getState().getNotary(), alice, 2, 1);
+
+        assertEquals(1, txs.size());
+        assertEquals(createFrom(alice, bob, 12L), txs.get(0).getTx().getOutputs().get(0).getData());
+        assertEquals(Arrays.asList(10L, 12L, 20L), quantitiesInVault(bob));
+    }
+
+    @Test
+    public void keepsMergingUntilASingleStateIsLeft() throws Throwable {
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(bob, 20L),
+                new FlowHelpers.NodeHolding(bob, 5L),
+                new FlowHelpers.NodeHolding(bob, 7L)));
+
+        final List<SignedTransaction> txs = consolidate(bob, tokens.get(0).getState().getNotary(), alice, 2, 10);
+
+        // 5 + 7, then 10 + 12, then 20 + 22.
+        assertEquals(3, txs.size());
+        txs.forEach(it -> assertEquals(2, it.getTx().getInputs().size()));
+        assertEquals(Collections.singletonList(42L), quantitiesInVault(bob));
+    }
+
+    @Test
+    public void doesNothingWithASingleState() throws Throwable {
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Collections.singletonList(
+                new FlowHelpers.NodeHolding(bob, 10L)));
+
+        final List<SignedTransaction> txs = consolidate(bob, tokens.get(0).getState().getNotary(), alice, 100, 10);
+
+        assertTrue(txs.isEmpty());
+        assertEquals(Collections.singletonList(10L), quantitiesInVault(bob));
+    }
+
+    @Test
+    public void onlyMergesTheStatesOfTheIssuer() throws Throwable {
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(bob, 20L)));
+        issueTokens(carly, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 1L),
+                new FlowHelpers.NodeHolding(bob, 2L)));
+
+        final List<SignedTransaction> txs = consolidate(bob, tokens.get(0).getState().getNotary(), alice, 100, 10);
+
+        assertEquals(1, txs.size());
+        assertEquals(Arrays.asList(1L, 2L, 30L), quantitiesInVault(bob));
+    }
+
+}
@@ -0,0 +1,123 @@
+package com.template.flows;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.template.states.TokenState;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.template.flows.FlowHelpers.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlowTimingServiceTests {
+    private final MockNetwork network;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+    private final StartedMockNode carly;
+
+    public FlowTimingServiceTests() throws Exception {
+        network = new MockNetwork(prepareMockNetworkParameters());
+        alice = network.createNode();
+        bob = network.createNode();
+        carly = network.createNode();
+        Arrays.asList(alice, bob, carly).forEach(it -> {
+            it.registerInitiatedFlow(IssueFlows.Responder.class);
+            it.registerInitiatedFlow(MoveFlows.Initiator.class, MoveFlows.Responder.class);
+        });
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @Test
+    public void stepsOfMoveAreTimedIncludingChildren() throws Throwable {
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Collections.singletonList(
+                new FlowHelpers.NodeHolding(bob, 10L)));
+        final CordaFuture<SignedTransaction> future = bob.startFlow(new MoveFlows.Initiator(
+                tokens, Collections.singletonList(createFrom(alice, carly, 10L))));
+        network.runNetwork();
+        future.get();
+
+        final String flowName = MoveFlows.Initiator.class.getName();
+        final Map<String, Timer> timers = bob.getServices().cordaService(FlowTimingService.class)
+                .getRegistry().getTimers();
+        assertEquals(1L, timers.get(MetricRegistry.name(flowName, FlowTimingService.TOTAL)).getCount());
+        assertEquals(1L, timers.get(MetricRegistry.name(flowName, FlowTimingService.STEP,
+                "Verifying contract constraints.")).getCount());
+        final String finalisingPrefix = MetricRegistry.name(flowName, FlowTimingService.STEP,
+                "Obtaining notary signature and recording transaction. > ");
+        assertTrue(timers.keySet().stream().anyMatch(it -> it.startsWith(finalisingPrefix)));
+    }
+
+    @Test
+    public void eachFlowClassHasItsOwnTimers() throws Throwable {
+        issueTokens(alice, network, Collections.singletonList(new FlowHelpers.NodeHolding(bob, 10L)));
+
+        final Map<String, Timer> timers = alice.getServices().cordaService(FlowTimingService.class)
+                .getRegistry().getTimers();
+        assertEquals(1L, timers.get(MetricRegistry.name(
+                IssueFlows.Initiator.class.getName(), FlowTimingService.TOTAL)).getCount());
+        assertTrue(timers.keySet().stream()
+                .noneMatch(it -> it.startsWith(MoveFlows.Initiator.class.getName())));
+    }
+
+    @Test
+    public void eachNodeExportsInItsOwnJmxDomain() throws Throwable {
+        issueTokens(alice, network, Collections.singletonList(new FlowHelpers.NodeHolding(bob, 10L)));
+
+        final String issueTotal = MetricRegistry.name(IssueFlows.Initiator.class.getName(), FlowTimingService.TOTAL);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName inAlice = new ObjectName(FlowTimingService.jmxDomainOf(
+                alice.getInfo().getLegalIdentities().get(0).getName()) + ":*");
+        final ObjectName inBob = new ObjectName(FlowTimingService.jmxDomainOf(
+                bob.getInfo().getLegalIdentities().get(0).getName()) + ":*");
+        assertTrue(server.queryNames(inAlice, null).stream()
+                .anyMatch(it -> issueTotal.equals(it.getKeyProperty("name"))));
+        assertTrue(server.queryNames(inBob, null).stream()
+                .noneMatch(it -> issueTotal.equals(it.getKeyProperty("name"))));
+    }
+
+    @Test
+    public void subFlowsAreTimedOnlyAsChildSteps() throws Throwable {
+        final CordaFuture<List<SecureHash>> future = alice.startFlow(new IssueFlows.BulkInitiator(Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L).toPair(),
+                new FlowHelpers.NodeHolding(bob, 20L).toPair()), 1, 10));
+        network.runNetwork();
+        assertEquals(2, future.get().size());
+
+        final String flowName = IssueFlows.BulkInitiator.class.getName();
+        final Map<String, Timer> timers = alice.getServices().cordaService(FlowTimingService.class)
+                .getRegistry().getTimers();
+        assertEquals(1L, timers.get(MetricRegistry.name(flowName, FlowTimingService.TOTAL)).getCount());
+        final String chunkPrefix = MetricRegistry.name(flowName, FlowTimingService.STEP,
+                "Lane 1, issuing chunk 2 of 2. > ");
+        assertTrue(timers.keySet().stream().anyMatch(it -> it.startsWith(chunkPrefix)));
+        // The chunks are not timed a second time under their own class.
+        assertTrue(timers.keySet().stream()
+                .noneMatch(it -> it.startsWith(IssueFlows.Initiator.class.getName())));
+    }
+
+}
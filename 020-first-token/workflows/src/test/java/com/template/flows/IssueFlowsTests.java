@@ -6,6 +6,8 @@ import javafx.util.Pair;
 import net.corda.core.concurrent.CordaFuture;
 import net.corda.core.contracts.ContractState;
 import net.corda.core.contracts.TransactionState;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.Party;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.testing.node.MockNetwork;
 import net.corda.testing.node.StartedMockNode;
@@ -222,4 +224,61 @@ public class IssueFlowsTests {
         assertHasStatesInVault(dan, Collections.emptyList());
     }
 
+    @Test
+    public void chunkSplitsByOutputCount() {
+        final Pair<Party, Long> bob10 = new FlowHelpers.NodeHolding(bob, 10L).toPair();
+        final List<List<Pair<Party, Long>>> chunks = IssueFlows.BulkInitiator.chunk(
+                Arrays.asList(bob10, bob10, bob10, bob10, bob10), 2, 10);
+        assertEquals(Arrays.asList(
+                Arrays.asList(bob10, bob10),
+                Arrays.asList(bob10, bob10),
+                Collections.singletonList(bob10)), chunks);
+    }
+
+    @Test
+    public void chunkSplitsByDistinctHolderCount() {
+        final Pair<Party, Long> bob10 = new FlowHelpers.NodeHolding(bob, 10L).toPair();
+        final Pair<Party, Long> carly20 = new FlowHelpers.NodeHolding(carly, 20L).toPair();
+        final Pair<Party, Long> dan30 = new FlowHelpers.NodeHolding(dan, 30L).toPair();
+        final List<List<Pair<Party, Long>>> chunks = IssueFlows.BulkInitiator.chunk(
+                Arrays.asList(bob10, carly20, bob10, dan30, carly20), 10, 2);
+        assertEquals(Arrays.asList(
+                Arrays.asList(bob10, carly20, bob10),
+                Arrays.asList(dan30, carly20)), chunks);
+    }
+
+    @Test
+    public void lanesAreBoundedByParallelism() {
+        final Pair<Party, Long> bob10 = new FlowHelpers.NodeHolding(bob, 10L).toPair();
+        final List<Pair<Party, Long>> heldQuantities = Arrays.asList(bob10, bob10, bob10, bob10, bob10);
+        assertEquals(2, IssueFlows.BulkInitiator.lanes(heldQuantities, 1, 10, 2).size());
+        assertEquals(5, IssueFlows.BulkInitiator.lanes(heldQuantities, 1, 10, 8).size());
+    }
+
+    @Test
+    public void bulkInitiatorIssuesEachChunkInItsOwnTransaction() throws Exception {
+        final TokenState expected1 = createFrom(alice, bob, 10L);
+        final TokenState expected2 = createFrom(alice, bob, 20L);
+        final TokenState expected3 = createFrom(alice, carly, 30L);
+
+        final IssueFlows.BulkInitiator flow = new IssueFlows.BulkInitiator(ImmutableList.of(
+                toPair(expected1),
+                toPair(expected2),
+                toPair(expected3)), 2, 10);
+        final CordaFuture<List<SecureHash>> future = alice.startFlow(flow);
+        network.runNetwork();
+        final List<SecureHash> txIds = future.get();
+
+        assertEquals(2, txIds.size());
+        final SignedTransaction firstTx = alice.getServices().getValidatedTransactions().getTransaction(txIds.get(0));
+        assertNotNull(firstTx);
+        assertEquals(2, firstTx.getTx().getOutputs().size());
+        final SignedTransaction secondTx = carly.getServices().getValidatedTransactions().getTransaction(txIds.get(1));
+        assertNotNull(secondTx);
+        assertEquals(expected3, secondTx.getTx().getOutputs().get(0).getData());
+        assertHasStatesInVault(bob, ImmutableList.of(expected1, expected2));
+        assertHasStatesInVault(carly, ImmutableList.of(expected3));
+        assertHasStatesInVault(dan, Collections.emptyList());
+    }
+
 }
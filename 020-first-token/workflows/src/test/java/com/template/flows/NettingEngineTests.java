@@ -0,0 +1,98 @@
+package com.template.flows;
+
+import com.template.flows.NettingEngine.Transfer;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.testing.core.TestIdentity;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+
+public class NettingEngineTests {
+
+    private final Party issuer = new TestIdentity(new CordaX500Name("Issuer", "Paris", "FR")).getParty();
+    private final Party otherIssuer = new TestIdentity(new CordaX500Name("Other Issuer", "Berlin", "DE")).getParty();
+    private final Party alice = new TestIdentity(new CordaX500Name("Alice", "London", "GB")).getParty();
+    private final Party bob = new TestIdentity(new CordaX500Name("Bob", "New York", "US")).getParty();
+    private final Party carly = new TestIdentity(new CordaX500Name("Carly", "New York", "US")).getParty();
+    private final Party dan = new TestIdentity(new CordaX500Name("Dan", "Madrid", "ES")).getParty();
+
+    @Test(expected = IllegalArgumentException.class)
+    public void transferCannotBeToSelf() {
+        new Transfer(issuer, alice, alice, 10L);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void transferMustHavePositiveQuantity() {
+        new Transfer(issuer, alice, bob, 0L);
+    }
+
+    @Test
+    public void nothingGivesNothing() {
+        assertEquals(Collections.emptyList(), NettingEngine.net(Collections.emptyList()));
+    }
+
+    @Test
+    public void singleTransferIsKept() {
+        final Transfer transfer = new Transfer(issuer, alice, bob, 10L);
+        assertEquals(Collections.singletonList(transfer), NettingEngine.net(Collections.singletonList(transfer)));
+    }
+
+    @Test
+    public void oppositeTransfersCancelOut() {
+        assertEquals(Collections.emptyList(), NettingEngine.net(asList(
+                new Transfer(issuer, alice, bob, 10L),
+                new Transfer(issuer, bob, alice, 10L))));
+    }
+
+    @Test
+    public void oppositeTransfersAreNetted() {
+        assertEquals(Collections.singletonList(new Transfer(issuer, alice, bob, 3L)), NettingEngine.net(asList(
+                new Transfer(issuer, alice, bob, 10L),
+                new Transfer(issuer, bob, alice, 7L))));
+    }
+
+    @Test
+    public void cycleIsNettedToItsRemainder() {
+        assertEquals(Collections.singletonList(new Transfer(issuer, alice, carly, 2L)), NettingEngine.net(asList(
+                new Transfer(issuer, alice, bob, 10L),
+                new Transfer(issuer, bob, carly, 10L),
+                new Transfer(issuer, carly, alice, 8L))));
+    }
+
+    @Test
+    public void largestDebtorPaysLargestCreditorFirst() {
+        final List<Transfer> netted = NettingEngine.net(asList(
+                new Transfer(issuer, alice, bob, 5L),
+                new Transfer(issuer, alice, carly, 10L),
+                new Transfer(issuer, dan, carly, 2L),
+                new Transfer(issuer, bob, dan, 1L)));
+        // Positions: alice -15, bob +4, carly +12, dan -1.
+        assertEquals(asList(
+                new Transfer(issuer, alice, carly, 12L),
+                new Transfer(issuer, alice, bob, 3L),
+                new Transfer(issuer, dan, bob, 1L)), netted);
+    }
+
+    @Test
+    public void issuersAreNettedSeparately() {
+        assertEquals(asList(
+                new Transfer(issuer, alice, bob, 3L),
+                new Transfer(otherIssuer, bob, alice, 7L)), NettingEngine.net(asList(
+                new Transfer(issuer, alice, bob, 10L),
+                new Transfer(otherIssuer, bob, alice, 7L),
+                new Transfer(issuer, bob, alice, 7L))));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void overflowingPositionIsRejected() {
+        NettingEngine.net(asList(
+                new Transfer(issuer, alice, bob, Long.MAX_VALUE),
+                new Transfer(issuer, carly, bob, 1L)));
+    }
+
+}
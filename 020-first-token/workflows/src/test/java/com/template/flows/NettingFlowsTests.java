@@ -0,0 +1,135 @@
+package com.template.flows;
+
+import com.template.flows.NettingEngine.Transfer;
+import com.template.states.TokenState;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.StartedMockNode;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static com.template.flows.FlowHelpers.*;
+import static org.junit.Assert.assertEquals;
+
+public class NettingFlowsTests {
+    private final MockNetwork network;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+    private final StartedMockNode carly;
+    private final StartedMockNode dan;
+
+    public NettingFlowsTests() throws Exception {
+        network = new MockNetwork(prepareMockNetworkParameters());
+        alice = network.createNode();
+        bob = network.createNode();
+        carly = network.createNode();
+        dan = network.createNode();
+        Arrays.asList(alice, bob, carly, dan).forEach(it -> {
+            it.registerInitiatedFlow(IssueFlows.Responder.class);
+            it.registerInitiatedFlow(NettingFlows.Responder.class);
+        });
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private static Party partyOf(@NotNull final StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    @NotNull
+    private Transfer transfer(
+            @NotNull final StartedMockNode issuer,
+            @NotNull final StartedMockNode payer,
+            @NotNull final StartedMockNode payee,
+            final long quantity) {
+        return new Transfer(partyOf(issuer), partyOf(payer), partyOf(payee), quantity);
+    }
+
+    @NotNull
+    private SignedTransaction settle(
+            @NotNull final StartedMockNode coordinator,
+            @NotNull final List<Transfer> grossTransfers) throws Exception {
+        final CordaFuture<SignedTransaction> future = coordinator.startFlow(new NettingFlows.Initiator(grossTransfers));
+        network.runNetwork();
+        return future.get();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void grossTransfersCannotBeEmpty() {
+        new NettingFlows.Initiator(Collections.emptyList());
+    }
+
+    @Test
+    public void cycleIsSettledInASingleMoveWithChange() throws Throwable {
+        issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(carly, 10L)));
+
+        final SignedTransaction tx = settle(bob, Arrays.asList(
+                transfer(alice, bob, carly, 10L),
+                transfer(alice, carly, dan, 10L),
+                transfer(alice, dan, bob, 4L)));
+
+        // Only Bob pays, so only his state is consumed.
+        assertEquals(1, tx.getTx().getInputs().size());
+        assertEquals(Arrays.asList(
+                createFrom(alice, dan, 6L),
+                createFrom(alice, bob, 4L)),
+                tx.getTx().outputsOfType(TokenState.class));
+        assertHasStatesInVault(bob, Collections.singletonList(createFrom(alice, bob, 4L)));
+        assertHasStatesInVault(carly, Collections.singletonList(createFrom(alice, carly, 10L)));
+        assertHasStatesInVault(dan, Collections.singletonList(createFrom(alice, dan, 6L)));
+    }
+
+    @Test
+    public void coordinatorCanBeAPayeeAndIssuersAreSettledTogether() throws Throwable {
+        issueTokens(alice, network, Collections.singletonList(new FlowHelpers.NodeHolding(carly, 20L)));
+        issueTokens(dan, network, Collections.singletonList(new FlowHelpers.NodeHolding(bob, 5L)));
+
+        final SignedTransaction tx = settle(bob, Arrays.asList(
+                transfer(alice, carly, bob, 8L),
+                transfer(dan, bob, carly, 5L)));
+
+        assertEquals(2, tx.getTx().getInputs().size());
+        assertEquals(Arrays.asList(
+                createFrom(alice, bob, 8L),
+                createFrom(dan, carly, 5L),
+                createFrom(alice, carly, 12L)),
+                tx.getTx().outputsOfType(TokenState.class));
+        assertHasStatesInVault(bob, Collections.singletonList(createFrom(alice, bob, 8L)));
+        assertHasStatesInVault(carly, Arrays.asList(
+                createFrom(dan, carly, 5L),
+                createFrom(alice, carly, 12L)));
+    }
+
+    @Test(expected = FlowException.class)
+    public void payerMustHaveEnough() throws Throwable {
+        issueTokens(alice, network, Collections.singletonList(new FlowHelpers.NodeHolding(carly, 5L)));
+
+        try {
+            settle(bob, Collections.singletonList(transfer(alice, carly, bob, 8L)));
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+}
@@ -441,4 +441,77 @@ public class RedeemFlowsTests {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void SimpleInitiatorCanGiveChangeInTheRedeemTransaction() throws Throwable {
+        final TokenState expected0 = createFrom(alice, bob, 10L);
+        final TokenState expected1 = createFrom(alice, bob, 20L);
+        final TokenState expected2 = createFrom(alice, bob, 5L);
+        final TokenState expectedChange = createFrom(alice, bob, 3L);
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(bob, 20L),
+                new FlowHelpers.NodeHolding(bob, 5L)));
+
+        final SimpleInitiator flow = new SimpleInitiator(
+                tokens.get(0).getState().getNotary(),
+                alice.getInfo().getLegalIdentities().get(0),
+                bob.getInfo().getLegalIdentities().get(0),
+                32L,
+                new SelectionStrategy.InVaultOrder(),
+                true);
+        final CordaFuture<Pair<SignedTransaction, SignedTransaction>> future = bob.startFlow(flow);
+        network.runNetwork();
+        final Pair<SignedTransaction, SignedTransaction> txPair = future.get();
+
+        // There was no separate move.
+        assertNull(txPair.getKey());
+        for (StartedMockNode node : Arrays.asList(alice, bob)) {
+            final SignedTransaction recordedTx = node.getServices().getValidatedTransactions().getTransaction(txPair.getValue().getId());
+            //noinspection ConstantConditions
+            final List<StateRef> txInputs = recordedTx.getTx().getInputs();
+            assertEquals(3, txInputs.size());
+            assertEquals(expected0, node.getServices().toStateAndRef(txInputs.get(0)).getState().getData());
+            assertEquals(expected1, node.getServices().toStateAndRef(txInputs.get(1)).getState().getData());
+            assertEquals(expected2, node.getServices().toStateAndRef(txInputs.get(2)).getState().getData());
+            final List<TransactionState<ContractState>> txOutputs = recordedTx.getTx().getOutputs();
+            assertEquals(1, txOutputs.size());
+            assertEquals(expectedChange, txOutputs.get(0).getData());
+        }
+
+        // The change is in the holder's vault.
+        final List<StateAndRef<TokenState>> bobTokens = bob.getServices().getVaultService()
+                .queryBy(TokenState.class).getStates();
+        assertEquals(1, bobTokens.size());
+        assertEquals(expectedChange, bobTokens.get(0).getState().getData());
+    }
+
+    @Test
+    public void SimpleInitiatorOnlyCollectsTokensOfTheIssuer() throws Throwable {
+        final TokenState expected0 = createFrom(alice, bob, 10L);
+        final TokenState expected1 = createFrom(alice, bob, 20L);
+        final List<StateAndRef<TokenState>> tokens = issueTokens(carly, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 15L),
+                new FlowHelpers.NodeHolding(bob, 25L)));
+        issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(bob, 20L)));
+
+        final SimpleInitiator flow = new SimpleInitiator(
+                tokens.get(0).getState().getNotary(),
+                alice.getInfo().getLegalIdentities().get(0),
+                bob.getInfo().getLegalIdentities().get(0),
+                30L);
+        final CordaFuture<Pair<SignedTransaction, SignedTransaction>> future = bob.startFlow(flow);
+        network.runNetwork();
+        final Pair<SignedTransaction, SignedTransaction> txPair = future.get();
+
+        assertNull(txPair.getKey());
+        final SignedTransaction recordedTx = bob.getServices().getValidatedTransactions().getTransaction(txPair.getValue().getId());
+        //noinspection ConstantConditions
+        final List<StateRef> txInputs = recordedTx.getTx().getInputs();
+        assertEquals(2, txInputs.size());
+        assertEquals(expected0, bob.getServices().toStateAndRef(txInputs.get(0)).getState().getData());
+        assertEquals(expected1, bob.getServices().toStateAndRef(txInputs.get(1)).getState().getData());
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.template.flows;
+
+import com.template.states.TokenState;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.StartedMockNode;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.template.flows.FlowHelpers.*;
+import static org.junit.Assert.*;
+
+public class RelevanceCheckerTests {
+    private final MockNetwork network;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+    private final StartedMockNode carly;
+
+    public RelevanceCheckerTests() throws Exception {
+        network = new MockNetwork(prepareMockNetworkParameters());
+        alice = network.createNode();
+        bob = network.createNode();
+        carly = network.createNode();
+        Arrays.asList(alice, bob, carly).forEach(it -> {
+            it.registerInitiatedFlow(IssueFlows.Responder.class);
+            it.registerInitiatedFlow(MoveFlows.Initiator.class, MoveFlows.Responder.class);
+        });
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private static Party partyOf(@NotNull final StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    @NotNull
+    private SignedTransaction moveFromBobToCarly() throws Throwable {
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Collections.singletonList(
+                new FlowHelpers.NodeHolding(bob, 10L)));
+        final CordaFuture<SignedTransaction> future = bob.startFlow(new MoveFlows.Initiator(
+                tokens, Collections.singletonList(createFrom(alice, carly, 10L))));
+        network.runNetwork();
+        return future.get();
+    }
+
+    @Test
+    public void onlyTheInputHolderIsHolderOfAnInput() throws Throwable {
+        final SignedTransaction moveTx = moveFromBobToCarly();
+        final RelevanceChecker checker = carly.getServices().cordaService(RelevanceChecker.class);
+
+        assertTrue(checker.isHolderOfAnInput(moveTx, partyOf(bob)));
+        assertFalse(checker.isHolderOfAnInput(moveTx, partyOf(carly)));
+        assertFalse(checker.isHolderOfAnInput(moveTx, partyOf(alice)));
+    }
+
+    @Test
+    public void theIssuerIsRelevantToo() throws Throwable {
+        final SignedTransaction moveTx = moveFromBobToCarly();
+        final RelevanceChecker checker = carly.getServices().cordaService(RelevanceChecker.class);
+
+        assertTrue(checker.isIssuerOrHolderOfAnInput(moveTx, partyOf(alice)));
+        assertTrue(checker.isIssuerOrHolderOfAnInput(moveTx, partyOf(bob)));
+        assertFalse(checker.isIssuerOrHolderOfAnInput(moveTx, partyOf(carly)));
+    }
+
+    @Test
+    public void loadedStatesAreCached() throws Throwable {
+        final SignedTransaction moveTx = moveFromBobToCarly();
+        final RelevanceChecker checker = carly.getServices().cordaService(RelevanceChecker.class);
+        final int before = checker.getCachedCount();
+
+        checker.isHolderOfAnInput(moveTx, partyOf(carly));
+        checker.isHolderOfAnInput(moveTx, partyOf(carly));
+
+        assertEquals(before + 1, checker.getCachedCount());
+    }
+
+}
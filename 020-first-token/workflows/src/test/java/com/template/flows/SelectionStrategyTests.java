@@ -0,0 +1,120 @@
+package com.template.flows;
+
+import com.template.flows.RedeemFlows.StateAccumulator;
+import com.template.states.TokenState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.testing.core.TestIdentity;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static com.template.contracts.TokenContract.TOKEN_CONTRACT_ID;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class SelectionStrategyTests {
+
+    private final Party notary = new TestIdentity(new CordaX500Name("Notary", "London", "GB")).getParty();
+    private final Party alice = new TestIdentity(new CordaX500Name("Alice", "London", "GB")).getParty();
+    private final Party bob = new TestIdentity(new CordaX500Name("Bob", "New York", "US")).getParty();
+
+    @NotNull
+    private List<StateAndRef<TokenState>> candidates(final long... quantities) {
+        return LongStream.of(quantities)
+                .mapToObj(it -> new StateAndRef<>(
+                        new TransactionState<>(new TokenState(alice, bob, it), TOKEN_CONTRACT_ID, notary),
+                        new StateRef(SecureHash.randomSHA256(), 0)))
+                .collect(Collectors.toList());
+    }
+
+    @NotNull
+    private static List<Long> quantitiesOf(@NotNull final StateAccumulator accumulator) {
+        return accumulator.states.stream()
+                .map(it -> it.getState().getData().getQuantity())
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void inVaultOrderKeepsTheGivenOrder() {
+        final StateAccumulator picked = new SelectionStrategy.InVaultOrder().select(candidates(10, 20, 5), 25L);
+        assertNotNull(picked);
+        assertEquals(asList(10L, 20L), quantitiesOf(picked));
+        assertEquals(30L, picked.sum);
+    }
+
+    @Test
+    public void allReturnNullWhenTheTargetCannotBeReached() {
+        for (final SelectionStrategy strategy : asList(
+                new SelectionStrategy.InVaultOrder(),
+                new SelectionStrategy.LargestFirst(),
+                new SelectionStrategy.SmallestFirst(),
+                new SelectionStrategy.MinimiseInputs(),
+                new SelectionStrategy.ExactMatch())) {
+            assertNull(strategy.select(candidates(10, 20), 31L));
+        }
+    }
+
+    @Test
+    public void largestFirstPicksTheLargest() {
+        final StateAccumulator picked = new SelectionStrategy.LargestFirst().select(candidates(5, 30, 10, 20), 45L);
+        assertNotNull(picked);
+        assertEquals(asList(30L, 20L), quantitiesOf(picked));
+    }
+
+    @Test
+    public void smallestFirstPicksTheSmallest() {
+        final StateAccumulator picked = new SelectionStrategy.SmallestFirst().select(candidates(5, 30, 10, 20), 12L);
+        assertNotNull(picked);
+        assertEquals(asList(5L, 10L), quantitiesOf(picked));
+    }
+
+    @Test
+    public void minimiseInputsPrefersTheSmallestSingleStateThatCovers() {
+        final StateAccumulator picked = new SelectionStrategy.MinimiseInputs().select(candidates(50, 5, 30, 10), 25L);
+        assertNotNull(picked);
+        assertEquals(asList(30L), quantitiesOf(picked));
+    }
+
+    @Test
+    public void minimiseInputsFallsBackToTheLargest() {
+        final StateAccumulator picked = new SelectionStrategy.MinimiseInputs().select(candidates(5, 30, 10, 20), 45L);
+        assertNotNull(picked);
+        assertEquals(asList(30L, 20L), quantitiesOf(picked));
+    }
+
+    @Test
+    public void exactMatchFindsACombinationWithoutChange() {
+        final StateAccumulator picked = new SelectionStrategy.ExactMatch().select(candidates(7, 30, 11, 20, 3), 41L);
+        assertNotNull(picked);
+        assertEquals(41L, picked.sum);
+        assertEquals(asList(30L, 11L), quantitiesOf(picked));
+    }
+
+    @Test
+    public void exactMatchFallsBackWhenThereIsNoExactCombination() {
+        final StateAccumulator picked = new SelectionStrategy.ExactMatch().select(candidates(10, 20, 40), 25L);
+        assertNotNull(picked);
+        assertEquals(asList(40L), quantitiesOf(picked));
+    }
+
+    @Test
+    public void exactMatchGivesUpAfterItsTries() {
+        // Each try explores one more node, so 1 try is not enough to find 3 + 2.
+        final StateAccumulator picked = new SelectionStrategy.ExactMatch(10, 1).select(candidates(4, 3, 2), 5L);
+        assertNotNull(picked);
+        assertEquals(asList(4L, 3L), quantitiesOf(picked));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void exactMatchNeedsPositiveTries() {
+        new SelectionStrategy.ExactMatch(10, 0);
+    }
+}
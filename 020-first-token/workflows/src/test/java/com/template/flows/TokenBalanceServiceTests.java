@@ -0,0 +1,123 @@
+package com.template.flows;
+
+import com.google.common.collect.ImmutableMap;
+import com.template.states.TokenState;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.StartedMockNode;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.template.flows.FlowHelpers.*;
+import static org.junit.Assert.assertEquals;
+
+public class TokenBalanceServiceTests {
+    private final MockNetwork network;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+    private final StartedMockNode carly;
+
+    public TokenBalanceServiceTests() throws Exception {
+        network = new MockNetwork(prepareMockNetworkParameters());
+        alice = network.createNode();
+        bob = network.createNode();
+        carly = network.createNode();
+        Arrays.asList(alice, bob, carly).forEach(it -> {
+            it.registerInitiatedFlow(IssueFlows.Responder.class);
+            it.registerInitiatedFlow(MoveFlows.Initiator.class, MoveFlows.Responder.class);
+        });
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private static Party partyOf(@NotNull final StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private static long balanceOn(
+            @NotNull final StartedMockNode node,
+            @NotNull final StartedMockNode holder,
+            @NotNull final StartedMockNode issuer) {
+        return node.getServices().cordaService(TokenBalanceService.class)
+                .getBalance(partyOf(holder), partyOf(issuer));
+    }
+
+    @Test
+    public void balanceIsZeroWhenNothingIsHeld() {
+        assertEquals(0L, balanceOn(bob, bob, alice));
+    }
+
+    @Test
+    public void balanceIsUpdatedOnIssue() throws Throwable {
+        issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(bob, 20L),
+                new FlowHelpers.NodeHolding(carly, 5L)));
+
+        assertEquals(30L, balanceOn(bob, bob, alice));
+        assertEquals(0L, balanceOn(bob, carly, alice));
+        assertEquals(5L, balanceOn(carly, carly, alice));
+        // The issuer recorded all the states.
+        assertEquals(30L, balanceOn(alice, bob, alice));
+        assertEquals(5L, balanceOn(alice, carly, alice));
+    }
+
+    @Test
+    public void balanceIsUpdatedOnMove() throws Throwable {
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(bob, 20L)));
+
+        final CordaFuture<SignedTransaction> future = bob.startFlow(new MoveFlows.Initiator(tokens, Arrays.asList(
+                createFrom(alice, bob, 12L),
+                createFrom(alice, carly, 18L))));
+        network.runNetwork();
+        future.get();
+
+        assertEquals(12L, balanceOn(bob, bob, alice));
+        assertEquals(18L, balanceOn(carly, carly, alice));
+    }
+
+    @Test
+    public void balancesArePerIssuer() throws Throwable {
+        issueTokens(alice, network, Collections.singletonList(new FlowHelpers.NodeHolding(bob, 10L)));
+        issueTokens(carly, network, Collections.singletonList(new FlowHelpers.NodeHolding(bob, 20L)));
+
+        final CordaFuture<Map<Party, Long>> future = bob.startFlow(new BalanceFlows.Query(partyOf(bob)));
+        network.runNetwork();
+
+        assertEquals(ImmutableMap.of(partyOf(alice), 10L, partyOf(carly), 20L), future.get());
+    }
+
+    @Test
+    public void queryCanBeForASingleIssuer() throws Throwable {
+        issueTokens(alice, network, Collections.singletonList(new FlowHelpers.NodeHolding(bob, 10L)));
+        issueTokens(carly, network, Collections.singletonList(new FlowHelpers.NodeHolding(bob, 20L)));
+
+        final CordaFuture<Map<Party, Long>> future = bob.startFlow(
+                new BalanceFlows.Query(partyOf(bob), partyOf(carly)));
+        network.runNetwork();
+
+        assertEquals(ImmutableMap.of(partyOf(carly), 20L), future.get());
+    }
+
+}
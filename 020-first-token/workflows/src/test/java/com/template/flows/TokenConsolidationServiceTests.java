@@ -0,0 +1,109 @@
+package com.template.flows;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.template.states.TokenState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.testing.node.*;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.template.flows.FlowHelpers.issueTokens;
+import static org.junit.Assert.*;
+
+public class TokenConsolidationServiceTests {
+    private final MockNetwork network;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+
+    public TokenConsolidationServiceTests() {
+        network = new MockNetwork(new MockNetworkParameters()
+                .withNotarySpecs(ImmutableList.of(new MockNetworkNotarySpec(Constants.desiredNotary)))
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("com.template.contracts"),
+                        TestCordapp.findCordapp("com.template.flows")
+                                .withConfig(ImmutableMap.of(
+                                        TokenConsolidationService.THRESHOLD_KEY, 3,
+                                        TokenConsolidationService.MAX_INPUTS_KEY, 10)))));
+        alice = network.createNode();
+        bob = network.createNode();
+        Arrays.asList(alice, bob).forEach(it -> it.registerInitiatedFlow(IssueFlows.Responder.class));
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private List<StateAndRef<TokenState>> tokensInVault(@NotNull final StartedMockNode node) {
+        return node.transaction(() -> node.getServices().getVaultService().queryBy(TokenState.class).getStates());
+    }
+
+    /**
+     * The service starts flows from its own thread, so we have to let the network run until they are done.
+     */
+    private void runNetworkUntilIdle(@NotNull final Party issuer) throws Exception {
+        final CompletableFuture<Void> idle = bob.getServices().cordaService(TokenConsolidationService.class)
+                .whenIdleWith(issuer);
+        for (int attempt = 0; attempt < 50; attempt++) {
+            network.runNetwork();
+            try {
+                idle.get(100, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // The flow may be waiting for messages that the next run will deliver.
+            }
+        }
+        fail("The consolidation did not finish in time.");
+    }
+
+    @Test
+    public void isEnabledByTheConfiguration() {
+        assertTrue(bob.getServices().cordaService(TokenConsolidationService.class).isEnabled());
+    }
+
+    @Test
+    public void doesNotConsolidateBelowTheThreshold() throws Throwable {
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(bob, 20L)));
+        final Party issuer = tokens.get(0).getState().getData().getIssuer();
+
+        runNetworkUntilIdle(issuer);
+
+        assertEquals(2, tokensInVault(bob).size());
+        assertEquals(2L, bob.getServices().cordaService(TokenConsolidationService.class)
+                .countHeld(issuer, tokens.get(0).getState().getNotary()));
+    }
+
+    @Test
+    public void consolidatesWhenTheThresholdIsReached() throws Throwable {
+        final List<StateAndRef<TokenState>> tokens = issueTokens(alice, network, Arrays.asList(
+                new FlowHelpers.NodeHolding(bob, 10L),
+                new FlowHelpers.NodeHolding(bob, 20L),
+                new FlowHelpers.NodeHolding(bob, 5L)));
+        final Party issuer = tokens.get(0).getState().getData().getIssuer();
+
+        runNetworkUntilIdle(issuer);
+
+        final List<StateAndRef<TokenState>> bobTokens = tokensInVault(bob);
+        assertEquals(1, bobTokens.size());
+        assertEquals(35L, bobTokens.get(0).getState().getData().getQuantity());
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.template.flows;
+
+import com.template.flows.RedeemFlows.StateAccumulator;
+import com.template.states.TokenState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteria.SoftLockingCondition;
+import net.corda.core.node.services.vault.QueryCriteria.SoftLockingType;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.StartedMockNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static com.template.flows.FlowHelpers.*;
+import static org.junit.Assert.assertEquals;
+
+public class TokenSelectorTests {
+    private final MockNetwork network;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+
+    public TokenSelectorTests() throws Exception {
+        network = new MockNetwork(prepareMockNetworkParameters());
+        alice = network.createNode();
+        bob = network.createNode();
+        Arrays.asList(alice, bob).forEach(it -> it.registerInitiatedFlow(IssueFlows.Responder.class));
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    private QueryCriteria bobsTokensOfAlice() {
+        final Party bobParty = bob.getInfo().getLegalIdentities().get(0);
+        return new QueryCriteria.VaultQueryCriteria()
+                .withParticipants(Collections.singletonList(bobParty))
+                .and(TokenQueries.issuedBy(alice.getInfo().getLegalIdentities().get(0)));
+    }
+
+    private List<StateAndRef<TokenState>> lockedTokens(final UUID lockId) {
+        return bob.transaction(() -> bob.getServices().getVaultService().queryBy(
+                TokenState.class,
+                new QueryCriteria.VaultQueryCriteria().withSoftLockingCondition(new SoftLockingCondition(
+                        SoftLockingType.SPECIFIED, Collections.singletonList(lockId))))
+                .getStates());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pageSizeMustBePositive() {
+        new TokenSelector(bob.getServices(), 0);
+    }
+
+    @Test
+    public void stopsAsSoonAsTheTargetIsReached() throws Throwable {
+        issueTokens(alice, network, Arrays.asList(
+                new NodeHolding(bob, 10L),
+                new NodeHolding(bob, 20L),
+                new NodeHolding(bob, 5L)));
+        final UUID lockId = UUID.randomUUID();
+
+        final StateAccumulator selected = bob.transaction(() -> {
+            try {
+                return new TokenSelector(bob.getServices(), 1)
+                        .selectWorthAtLeast(bobsTokensOfAlice(), 25L, lockId);
+            } catch (FlowException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        assertEquals(30L, selected.sum);
+        assertEquals(2, selected.states.size());
+        assertEquals(selected.states, lockedTokens(lockId));
+    }
+
+    @Test
+    public void skipsTheStatesLockedByOthers() throws Throwable {
+        issueTokens(alice, network, Arrays.asList(
+                new NodeHolding(bob, 10L),
+                new NodeHolding(bob, 20L),
+                new NodeHolding(bob, 5L)));
+        final UUID otherLockId = UUID.randomUUID();
+        final UUID lockId = UUID.randomUUID();
+
+        final StateAccumulator selected = bob.transaction(() -> {
+            try {
+                new TokenSelector(bob.getServices()).selectWorthAtLeast(bobsTokensOfAlice(), 10L, otherLockId);
+                return new TokenSelector(bob.getServices()).selectWorthAtLeast(bobsTokensOfAlice(), 25L, lockId);
+            } catch (FlowException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        assertEquals(25L, selected.sum);
+        assertEquals(2, selected.states.size());
+        assertEquals(20L, selected.states.get(0).getState().getData().getQuantity());
+        assertEquals(5L, selected.states.get(1).getState().getData().getQuantity());
+    }
+
+    @Test(expected = FlowException.class)
+    public void failsIfThereAreNotEnoughTokens() throws Throwable {
+        issueTokens(alice, network, Arrays.asList(
+                new NodeHolding(bob, 10L),
+                new NodeHolding(bob, 20L)));
+
+        try {
+            bob.transaction(() -> {
+                try {
+                    return new TokenSelector(bob.getServices(), 1)
+                            .selectWorthAtLeast(bobsTokensOfAlice(), 35L, UUID.randomUUID());
+                } catch (FlowException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package com.template.car;
 
+import com.google.common.collect.ImmutableList;
 import com.r3.corda.lib.tokens.contracts.states.EvolvableTokenType;
 import net.corda.core.contracts.BelongsToContract;
 import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
 import org.apache.commons.lang3.Validate;
 import org.jetbrains.annotations.NotNull;
 
@@ -11,7 +15,7 @@ import java.util.List;
 import java.util.Objects;
 
 @BelongsToContract(CarTokenContract.class)
-public class CarTokenType extends EvolvableTokenType {
+public class CarTokenType extends EvolvableTokenType implements QueryableState {
 
     public static final int FRACTION_DIGITS = 0;
     @NotNull
@@ -77,6 +81,24 @@ public class CarTokenType extends EvolvableTokenType {
         return price;
     }
 
+    // Being a QueryableState, each car type is also saved in a table of its own, whose columns can be used in vault
+    // queries. This is what lets us find a car by VIN without loading all the others.
+
+    @NotNull
+    @Override
+    public PersistentState generateMappedObject(@NotNull final MappedSchema schema) {
+        if (!(schema instanceof CarTokenTypeSchemaV1)) {
+            throw new IllegalArgumentException("Unrecognised schema " + schema);
+        }
+        return new CarTokenTypeSchemaV1.PersistentCarTokenType(vin, make, mileage, price);
+    }
+
+    @NotNull
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() {
+        return ImmutableList.of(new CarTokenTypeSchemaV1());
+    }
+
     // We require `equals()` and `hashCode` to properly group Tokens, and also to be able to use
     // them in a HashMap.
     @Override
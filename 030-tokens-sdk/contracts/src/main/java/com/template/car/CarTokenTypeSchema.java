@@ -0,0 +1,10 @@
+package com.template.car;
+
+/**
+ * The family of schemas for {@link CarTokenType}. Each version of the schema is a {@link CarTokenTypeSchemaV1}, and so
+ * on.
+ */
+public final class CarTokenTypeSchema {
+    private CarTokenTypeSchema() {
+    }
+}
@@ -0,0 +1,93 @@
+package com.template.car;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/**
+ * The first version of the {@link CarTokenType} schema. It lets flows find a car by VIN, or cars by make and price,
+ * with an index lookup instead of loading all car types and filtering them in the JVM.
+ */
+public final class CarTokenTypeSchemaV1 extends MappedSchema {
+
+    public static final String CHANGELOG_MASTER = "car-token-type.changelog-master";
+
+    public CarTokenTypeSchemaV1() {
+        super(CarTokenTypeSchema.class, 1, ImmutableList.of(PersistentCarTokenType.class));
+    }
+
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return CHANGELOG_MASTER;
+    }
+
+    /**
+     * Each update of a car creates a new state, and the rows of the consumed ones stay. So the VIN index cannot be
+     * unique in the table, it is only unique among the unconsumed states. The flows that create car types check it.
+     */
+    @Entity
+    @Table(name = "car_token_types",
+            indexes = {
+                    @Index(name = "car_vin_idx", columnList = "vin"),
+                    @Index(name = "car_make_price_idx", columnList = "make, price")
+            })
+    public static class PersistentCarTokenType extends PersistentState {
+        @Column(name = "vin", nullable = false)
+        @NotNull
+        private final String vin;
+        @Column(name = "make", nullable = false)
+        @NotNull
+        private final String make;
+        @Column(name = "mileage", nullable = false)
+        private final long mileage;
+        @Column(name = "price", nullable = false)
+        private final long price;
+
+        public PersistentCarTokenType(
+                @NotNull final String vin,
+                @NotNull final String make,
+                final long mileage,
+                final long price) {
+            this.vin = vin;
+            this.make = make;
+            this.mileage = mileage;
+            this.price = price;
+        }
+
+        /**
+         * Default constructor required by Hibernate.
+         */
+        public PersistentCarTokenType() {
+            this.vin = "";
+            this.make = "";
+            this.mileage = 0L;
+            this.price = 0L;
+        }
+
+        @NotNull
+        public String getVin() {
+            return vin;
+        }
+
+        @NotNull
+        public String getMake() {
+            return make;
+        }
+
+        public long getMileage() {
+            return mileage;
+        }
+
+        public long getPrice() {
+            return price;
+        }
+    }
+}
@@ -12,10 +12,19 @@ public final class AirMileType extends TokenType {
     public static final String IDENTIFIER = "AIR";
     public static final int FRACTION_DIGITS = 0;
 
+    /**
+     * The id is computed by hashing the JAR that contains this class, which is slow. So it is computed once, on
+     * first use, and kept for the lifetime of the class loader, which is that of the node.
+     */
     @NotNull
     public static SecureHash getContractAttachment() {
         //noinspection ConstantConditions
-        return TransactionUtilitiesKt.getAttachmentIdForGenericParam(new AirMileType());
+        return ContractAttachmentHolder.ID;
+    }
+
+    private static final class ContractAttachmentHolder {
+        // The JVM initialises it lazily, and only once, when the class is first accessed.
+        private static final SecureHash ID = TransactionUtilitiesKt.getAttachmentIdForGenericParam(new AirMileType());
     }
 
     /**
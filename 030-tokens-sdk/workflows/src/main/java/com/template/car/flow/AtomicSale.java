@@ -9,34 +9,165 @@ import com.r3.corda.lib.tokens.contracts.types.TokenPointer;
 import com.r3.corda.lib.tokens.contracts.types.TokenType;
 import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
 import com.r3.corda.lib.tokens.selection.TokenQueryBy;
-import com.r3.corda.lib.tokens.selection.database.selector.DatabaseTokenSelection;
 import com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilitiesKt;
 import com.r3.corda.lib.tokens.workflows.internal.flows.distribution.UpdateDistributionListFlow;
 import com.r3.corda.lib.tokens.workflows.types.PartyAndToken;
 import com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt;
 import com.template.car.CarTokenType;
+import com.template.usd.PreferredSelection;
 import kotlin.Pair;
 import net.corda.core.contracts.*;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.Party;
 import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 import java.util.stream.Collectors;
 
-import static com.r3.corda.lib.tokens.selection.database.config.DatabaseSelectionConfigKt.*;
 import static com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt.heldTokenCriteria;
 
+/**
+ * The seller and the buyer of a car agree on the car, its price and the payment, then sign the sale in a single
+ * transaction.
+ * In {@link #PROTOCOL_V1}, the seller sends the car info, the held car and the currency, and the buyer sends its
+ * currency inputs and outputs, each in a message of its own, each waiting for the previous one.
+ * In {@link #PROTOCOL_V2}, the seller sends all that in a single {@link SaleOffer}, and the buyer replies with only
+ * its currency inputs, from which both sides derive the same outputs with {@link #paymentOutputs}. The buyer checks
+ * the offer when it receives the transaction to sign, which brings the offered states with their history. The car
+ * info is a reference state of the transaction, so the sale cannot be notarised at a price that has since changed.
+ * Each side runs the highest version that the other supports.
+ */
 public interface AtomicSale {
 
-    @InitiatingFlow
+    int PROTOCOL_V1 = 1;
+    int PROTOCOL_V2 = 2;
+
+    /**
+     * What the seller sends to the buyer in {@link #PROTOCOL_V2}.
+     */
+    @CordaSerializable
+    class SaleOffer {
+        @NotNull
+        private final StateAndRef<CarTokenType> carInfo;
+        @NotNull
+        private final StateAndRef<NonFungibleToken> heldCar;
+        @NotNull
+        private final IssuedTokenType issuedCurrency;
+
+        public SaleOffer(
+                @NotNull final StateAndRef<CarTokenType> carInfo,
+                @NotNull final StateAndRef<NonFungibleToken> heldCar,
+                @NotNull final IssuedTokenType issuedCurrency) {
+            //noinspection ConstantConditions
+            if (carInfo == null) throw new NullPointerException("The carInfo cannot be null");
+            //noinspection ConstantConditions
+            if (heldCar == null) throw new NullPointerException("The heldCar cannot be null");
+            //noinspection ConstantConditions
+            if (issuedCurrency == null) throw new NullPointerException("The issuedCurrency cannot be null");
+            this.carInfo = carInfo;
+            this.heldCar = heldCar;
+            this.issuedCurrency = issuedCurrency;
+        }
+
+        @NotNull
+        public StateAndRef<CarTokenType> getCarInfo() {
+            return carInfo;
+        }
+
+        @NotNull
+        public StateAndRef<NonFungibleToken> getHeldCar() {
+            return heldCar;
+        }
+
+        @NotNull
+        public IssuedTokenType getIssuedCurrency() {
+            return issuedCurrency;
+        }
+    }
+
+    /**
+     * @return The currency outputs of a {@link #PROTOCOL_V2} sale: the price to the seller, then the change, if any,
+     * to the buyer. Seller and buyer compute them on their own, so they do not need to be sent.
+     * @throws FlowException If the inputs are not all of the currency, or do not cover the price.
+     */
+    @NotNull
+    static List<FungibleToken> paymentOutputs(
+            @NotNull final List<StateAndRef<FungibleToken>> currencyInputs,
+            @NotNull final IssuedTokenType issuedCurrency,
+            final long price,
+            @NotNull final Party seller,
+            @NotNull final Party buyer) throws FlowException {
+        if (currencyInputs.isEmpty()) throw new FlowException("There are no currency inputs");
+        long sumInputs = 0L;
+        for (final StateAndRef<FungibleToken> input : currencyInputs) {
+            final FungibleToken token = input.getState().getData();
+            if (!token.getIssuedTokenType().equals(issuedCurrency))
+                throw new FlowException("A currency input is not of " + issuedCurrency);
+            sumInputs = Math.addExact(sumInputs, token.getAmount().getQuantity());
+        }
+        final Amount<IssuedTokenType> priceInCurrency = AmountUtilitiesKt.amount(price, issuedCurrency);
+        final long change = sumInputs - priceInCurrency.getQuantity();
+        if (change < 0) throw new FlowException("The currency inputs do not cover the price of " + price);
+        // Same jar hash as the inputs, which both sides see, so both sides create equal outputs.
+        final SecureHash jarHash = currencyInputs.get(0).getState().getData().getTokenTypeJarHash();
+        final List<FungibleToken> outputs = new ArrayList<>(2);
+        outputs.add(new FungibleToken(priceInCurrency, seller, jarHash));
+        if (0 < change) outputs.add(new FungibleToken(new Amount<>(change, issuedCurrency), buyer, jarHash));
+        return outputs;
+    }
+
+    /**
+     * @throws FlowException If, other than the currency, the transaction does not only move the held car to us.
+     */
+    static void checkCarOutputAndCommands(
+            @NotNull final SignedTransaction stx,
+            @NotNull final StateAndRef<NonFungibleToken> heldCarInfo,
+            @NotNull final Party us) throws FlowException {
+        final List<ContractState> allOutputs = stx.getCoreTransaction().getOutputStates();
+        // If we keep only the car tokens.
+        final List<NonFungibleToken> allCarOutputs = allOutputs.stream()
+                .filter(it -> it instanceof NonFungibleToken)
+                .map(it -> (NonFungibleToken) it)
+                .collect(Collectors.toList());
+        // Let's not pass if there is not exactly 1 car.
+        if (allCarOutputs.size() != 1) throw new FlowException("Wrong count of car outputs");
+        // And it has to be the car we expect.
+        final NonFungibleToken outputHeldCar = allCarOutputs.get(0);
+        if (!outputHeldCar.getLinearId().equals(heldCarInfo.getState().getData().getLinearId()))
+            throw new FlowException("This is not the car we expected");
+        if (!outputHeldCar.getHolder().equals(us))
+            throw new FlowException("The car is not held by us in output");
+
+        // There should only be 2 move commands.
+        final List<Command<?>> commands = stx.getTx().getCommands();
+        if (commands.size() != 2) throw new FlowException("There are not the 2 expected commands");
+        final List<?> tokenCommands = commands.stream()
+                .map(Command::getValue)
+                .filter(it -> it instanceof MoveTokenCommand)
+                .collect(Collectors.toList());
+        if (tokenCommands.size() != 2)
+            throw new FlowException("There are not the 2 expected move commands");
+    }
+
+    /**
+     * @throws FlowException If the held car is not a token of the car info.
+     */
+    static void checkSameCar(
+            @NotNull final StateAndRef<CarTokenType> carInfo,
+            @NotNull final StateAndRef<NonFungibleToken> heldCarInfo) throws FlowException {
+        final TokenType heldType = heldCarInfo.getState().getData().getTokenType();
+        if (!(heldType instanceof TokenPointer)
+                || !((TokenPointer<?>) heldType).getPointer().getPointer()
+                .equals(carInfo.getState().getData().getLinearId()))
+            throw new FlowException("The owned car does not correspond to the earlier car info.");
+    }
+
+    @InitiatingFlow(version = PROTOCOL_V2)
     class CarSeller extends FlowLogic<SignedTransaction> {
 
         @NotNull
@@ -67,22 +198,12 @@ public interface AtomicSale {
         public SignedTransaction call() throws FlowException {
             // Fetch the latest known state.
             final StateAndRef<CarTokenType> carInfo = car.getPointer().resolve(getServiceHub());
-            // Send the car information to the buyer. A bit ahead of time so that it can fetch states while we do too.
             final FlowSession buyerSession = initiateFlow(buyer);
-            subFlow(new SendStateAndRefFlow(buyerSession, Collections.singletonList(carInfo)));
-
-            final long price = carInfo.getState().getData().getPrice();
             final QueryCriteria tokenCriteria = heldTokenCriteria(car);
             final List<StateAndRef<NonFungibleToken>> ownedCarTokens = getServiceHub().getVaultService()
                     .queryBy(NonFungibleToken.class, tokenCriteria).getStates();
             if (ownedCarTokens.size() != 1) throw new FlowException("NonFungibleToken not found");
 
-            // Send the proof that we own the car.
-            subFlow(new SendStateAndRefFlow(buyerSession, ownedCarTokens));
-
-            // Send the currency desired.
-            buyerSession.send(issuedCurrency);
-
             // Prepare the transaction. The only notary the seller and buyer have no control over is that of the
             // car info. So we have to pick this one.
             final Party notary = carInfo.getState().getNotary();
@@ -92,15 +213,53 @@ public interface AtomicSale {
             final PartyAndToken carForBuyer = new PartyAndToken(buyer, car);
             MoveTokensUtilitiesKt.addMoveNonFungibleTokens(txBuilder, getServiceHub(), carForBuyer, null);
 
+            if (buyerSession.getCounterpartyFlowInfo().getFlowVersion() < PROTOCOL_V2) {
+                agreeV1(buyerSession, carInfo, ownedCarTokens, txBuilder);
+            } else {
+                agreeV2(buyerSession, carInfo, ownedCarTokens.get(0), txBuilder);
+            }
+
+            // Sign the transaction and send it to buyer for signature.
+            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder,
+                    getOurIdentity().getOwningKey());
+            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+                    Collections.singletonList(buyerSession)));
+
+            // Finalise the transaction
+            final SignedTransaction notarised = subFlow(new FinalityFlow(
+                    fullySignedTx, Collections.singletonList(buyerSession)));
+
+            // Distribute updates of the evolvable car token.
+            subFlow(new UpdateDistributionListFlow(notarised));
+
+            return notarised;
+        }
+
+        /**
+         * Sends the offer and receives the payment in {@link #PROTOCOL_V1}, and adds them to the transaction.
+         */
+        @Suspendable
+        private void agreeV1(
+                @NotNull final FlowSession buyerSession,
+                @NotNull final StateAndRef<CarTokenType> carInfo,
+                @NotNull final List<StateAndRef<NonFungibleToken>> ownedCarTokens,
+                @NotNull final TransactionBuilder txBuilder) throws FlowException {
+            // Send the car information to the buyer.
+            subFlow(new SendStateAndRefFlow(buyerSession, Collections.singletonList(carInfo)));
+
+            final long price = carInfo.getState().getData().getPrice();
+
+            // Send the proof that we own the car.
+            subFlow(new SendStateAndRefFlow(buyerSession, ownedCarTokens));
+
+            // Send the currency desired.
+            buyerSession.send(issuedCurrency);
+
             // Receive the currency states that will go in input.
             final List<StateAndRef<FungibleToken>> currencyInputs = subFlow(new ReceiveStateAndRefFlow<>(buyerSession));
             // Let's make sure the buyer is not trying to pass off some of our own dollars as payment... After all, we
             // are going to sign this transaction.
-            final long ourCurrencyInputCount = currencyInputs.stream()
-                    .filter(it -> it.getState().getData().getHolder().equals(getOurIdentity()))
-                    .count();
-            if (ourCurrencyInputCount != 0)
-                throw new FlowException("The buyer sent us some of our token states: " + ourCurrencyInputCount);
+            checkNoneOurs(currencyInputs);
             // Other than that, we do not care much about the inputs as we expect that any error will be caught by the
             // contract.
 
@@ -123,21 +282,41 @@ public interface AtomicSale {
 
             // Put those currency states where they belong.
             MoveTokensUtilitiesKt.addMoveTokens(txBuilder, currencyInputs, currencyOutputs);
+        }
 
-            // Sign the transaction and send it to buyer for signature.
-            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder,
-                    getOurIdentity().getOwningKey());
-            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
-                    Collections.singletonList(buyerSession)));
-
-            // Finalise the transaction
-            final SignedTransaction notarised = subFlow(new FinalityFlow(
-                    fullySignedTx, Collections.singletonList(buyerSession)));
-
-            // Distribute updates of the evolvable car token.
-            subFlow(new UpdateDistributionListFlow(notarised));
+        /**
+         * Sends the offer and receives the payment in {@link #PROTOCOL_V2}, one message each way, and adds them to the
+         * transaction.
+         */
+        @Suspendable
+        private void agreeV2(
+                @NotNull final FlowSession buyerSession,
+                @NotNull final StateAndRef<CarTokenType> carInfo,
+                @NotNull final StateAndRef<NonFungibleToken> ownedCarToken,
+                @NotNull final TransactionBuilder txBuilder) throws FlowException {
+            // The buyer gets the history of these states with the transaction to sign, so no need to send it now.
+            buyerSession.send(new SaleOffer(carInfo, ownedCarToken, issuedCurrency));
+            // The price is bound to this version of the car info.
+            if (!txBuilder.referenceStates().contains(carInfo.getRef())) {
+                txBuilder.addReferenceState(carInfo.referenced());
+            }
+
+            // Receive the currency states that will go in input, with their history.
+            final List<StateAndRef<FungibleToken>> currencyInputs = subFlow(new ReceiveStateAndRefFlow<>(buyerSession));
+            checkNoneOurs(currencyInputs);
+            // This also checks that we are paid.
+            final List<FungibleToken> currencyOutputs = paymentOutputs(currencyInputs, issuedCurrency,
+                    carInfo.getState().getData().getPrice(), getOurIdentity(), buyerSession.getCounterparty());
+            MoveTokensUtilitiesKt.addMoveTokens(txBuilder, currencyInputs, currencyOutputs);
+        }
 
-            return notarised;
+        private void checkNoneOurs(@NotNull final List<StateAndRef<FungibleToken>> currencyInputs)
+                throws FlowException {
+            final long ourCurrencyInputCount = currencyInputs.stream()
+                    .filter(it -> it.getState().getData().getHolder().equals(getOurIdentity()))
+                    .count();
+            if (ourCurrencyInputCount != 0)
+                throw new FlowException("The buyer sent us some of our token states: " + ourCurrencyInputCount);
         }
     }
 
@@ -156,6 +335,16 @@ public interface AtomicSale {
         @Override
         @NotNull
         public SignedTransaction call() throws FlowException {
+            if (sellerSession.getCounterpartyFlowInfo().getFlowVersion() < PROTOCOL_V2) return buyV1();
+            return buyV2();
+        }
+
+        /**
+         * The {@link #PROTOCOL_V1} side of the sale, for sellers that do not know {@link #PROTOCOL_V2}.
+         */
+        @Suspendable
+        @NotNull
+        private SignedTransaction buyV1() throws FlowException {
             // Receive the car information. We will resolve the car type right after, from the NonFungibleToken, but
             // we have to receive for now.
             final List<StateAndRef<CarTokenType>> carInfos = subFlow(new ReceiveStateAndRefFlow<>(sellerSession));
@@ -167,11 +356,7 @@ public interface AtomicSale {
             if (heldCarInfos.size() != 1) throw new FlowException("We expected a single held car");
             final StateAndRef<NonFungibleToken> heldCarInfo = heldCarInfos.get(0);
             // Is this the same car?
-            //noinspection unchecked
-            if (!((TokenPointer<CarTokenType>) heldCarInfo.getState().getData().getTokenType())
-                    .getPointer().getPointer()
-                    .equals(carInfo.getState().getData().getLinearId()))
-                throw new FlowException("The owned car does not correspond to the earlier car info.");
+            checkSameCar(carInfo, heldCarInfo);
 
             // TODO have an internal check that this is indeed the car we intend to buy.
 
@@ -180,22 +365,8 @@ public interface AtomicSale {
 
             // TODO have an internal check that this is indeed the currency we decided to use in the sale.
 
-            // Assemble the currency states.
-            final QueryCriteria heldByMe = QueryUtilitiesKt.heldTokenAmountCriteria(
-                    issuedCurrency.getTokenType(), getOurIdentity());
-            final QueryCriteria properlyIssued = QueryUtilitiesKt.tokenAmountWithIssuerCriteria(
-                    issuedCurrency.getTokenType(), issuedCurrency.getIssuer());
-            // Have the utility do the "dollars to cents" conversion for us.
-            final Amount<TokenType> priceInCurrency = AmountUtilitiesKt.amount(price, issuedCurrency.getTokenType());
-            // Generate the buyer's currency inputs, to be spent, and the outputs, the currency tokens that will be
-            // held by Alice.
-            final DatabaseTokenSelection tokenSelection = new DatabaseTokenSelection(
-                    getServiceHub(), MAX_RETRIES_DEFAULT, RETRY_SLEEP_DEFAULT, RETRY_CAP_DEFAULT, PAGE_SIZE_DEFAULT);
-            final Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> inputsAndOutputs = tokenSelection.generateMove(
-                    Collections.singletonList(new Pair<>(sellerSession.getCounterparty(), priceInCurrency)),
-                    getOurIdentity(),
-                    new TokenQueryBy(issuedCurrency.getIssuer(), it -> true, heldByMe.and(properlyIssued)),
-                    getRunId().getUuid());
+            final Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> inputsAndOutputs =
+                    selectPayment(issuedCurrency, price);
 
             // Send the currency states that will go in input, along with their history.
             subFlow(new SendStateAndRefFlow(sellerSession, inputsAndOutputs.getFirst()));
@@ -239,34 +410,99 @@ public interface AtomicSale {
                     if (!inputsAndOutputs.getSecond().equals(allCurrencyOutputs))
                         throw new FlowException("Inconsistency in FungibleToken outputs compared to expectation");
 
-                    // If we keep only the car tokens.
-                    final List<NonFungibleToken> allCarOutputs = allOutputs.stream()
-                            .filter(it -> it instanceof NonFungibleToken)
-                            .map(it -> (NonFungibleToken) it)
-                            .collect(Collectors.toList());
-                    // Let's not pass if there is not exactly 1 car.
-                    if (allCarOutputs.size() != 1) throw new FlowException("Wrong count of car outputs");
-                    // And it has to be the car we expect.
-                    final NonFungibleToken outputHeldCar = allCarOutputs.get(0);
-                    if (!outputHeldCar.getLinearId().equals(heldCarInfo.getState().getData().getLinearId()))
-                        throw new FlowException("This is not the car we expected");
-                    if (!outputHeldCar.getHolder().equals(getOurIdentity()))
-                        throw new FlowException("The car is not held by us in output");
-
-                    // There should only be 2 move commands.
-                    final List<Command<?>> commands = stx.getTx().getCommands();
-                    if (commands.size() != 2) throw new FlowException("There are not the 2 expected commands");
-                    final List<?> tokenCommands = commands.stream()
-                            .map(Command::getValue)
-                            .filter(it -> it instanceof MoveTokenCommand)
+                    checkCarOutputAndCommands(stx, heldCarInfo, getOurIdentity());
+                }
+            }).getId();
+
+            // Finalise the transaction.
+            return subFlow(new ReceiveFinalityFlow(sellerSession, signedTxId));
+        }
+
+        /**
+         * The {@link #PROTOCOL_V2} side of the sale. The offer comes in one message and we reply with one. We check
+         * that the offer was true once we have the transaction to sign, which brings the offered states' history.
+         */
+        @Suspendable
+        @NotNull
+        private SignedTransaction buyV2() throws FlowException {
+            final SaleOffer offer = sellerSession.receive(SaleOffer.class).unwrap(it -> {
+                checkSameCar(it.getCarInfo(), it.getHeldCar());
+                return it;
+            });
+            final StateAndRef<CarTokenType> carInfo = offer.getCarInfo();
+            final StateAndRef<NonFungibleToken> heldCarInfo = offer.getHeldCar();
+            final IssuedTokenType issuedCurrency = offer.getIssuedCurrency();
+
+            final long price = carInfo.getState().getData().getPrice();
+            final List<StateAndRef<FungibleToken>> currencyInputs = selectPayment(issuedCurrency, price).getFirst();
+            // The seller derives the outputs from them, as we do.
+            final List<FungibleToken> currencyOutputs = paymentOutputs(currencyInputs, issuedCurrency, price,
+                    sellerSession.getCounterparty(), getOurIdentity());
+
+            // Send the currency states that will go in input, along with their history.
+            subFlow(new SendStateAndRefFlow(sellerSession, currencyInputs));
+
+            // Sign the received transaction.
+            final SecureHash signedTxId = subFlow(new SignTransactionFlow(sellerSession) {
+                @Override
+                // The offer came without proof, so here we make sure the states exist as they were offered, and that
+                // this is the transaction we expect.
+                protected void checkTransaction(@NotNull SignedTransaction stx) throws FlowException {
+                    // The transaction's dependencies have been resolved, so the offered states are known here.
+                    if (!getServiceHub().toStateAndRef(carInfo.getRef()).equals(carInfo))
+                        throw new FlowException("The offered car info is not the one on the ledger");
+                    if (!getServiceHub().toStateAndRef(heldCarInfo.getRef()).equals(heldCarInfo))
+                        throw new FlowException("The offered held car is not the one on the ledger");
+                    // The price is that of the car info in reference, which the notary checks is current.
+                    if (!new HashSet<>(stx.getReferences()).equals(Collections.singleton(carInfo.getRef())))
+                        throw new FlowException("The car info is not the only reference");
+
+                    final Set<StateRef> allKnownInputs = currencyInputs.stream()
+                            .map(StateAndRef::getRef)
+                            .collect(Collectors.toSet());
+                    allKnownInputs.add(heldCarInfo.getRef());
+                    if (!new HashSet<>(stx.getInputs()).equals(allKnownInputs))
+                        throw new FlowException("Inconsistency in input refs compared to expectation");
+
+                    final List<ContractState> allOutputs = stx.getCoreTransaction().getOutputStates();
+                    if (allOutputs.size() != currencyOutputs.size() + 1)
+                        throw new FlowException("Wrong count of outputs");
+                    final List<FungibleToken> allCurrencyOutputs = allOutputs.stream()
+                            .filter(it -> it instanceof FungibleToken)
+                            .map(it -> (FungibleToken) it)
                             .collect(Collectors.toList());
-                    if (tokenCommands.size() != 2)
-                        throw new FlowException("There are not the 2 expected move commands");
+                    if (!currencyOutputs.equals(allCurrencyOutputs))
+                        throw new FlowException("Inconsistency in FungibleToken outputs compared to expectation");
+
+                    checkCarOutputAndCommands(stx, heldCarInfo, getOurIdentity());
                 }
             }).getId();
 
             // Finalise the transaction.
             return subFlow(new ReceiveFinalityFlow(sellerSession, signedTxId));
         }
+
+        /**
+         * @return The buyer's currency inputs, to be spent, and the outputs, the currency tokens that will be held by
+         * the seller, plus our change.
+         */
+        @Suspendable
+        @NotNull
+        private Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> selectPayment(
+                @NotNull final IssuedTokenType issuedCurrency,
+                final long price) {
+            // Assemble the currency states.
+            final QueryCriteria heldByMe = QueryUtilitiesKt.heldTokenAmountCriteria(
+                    issuedCurrency.getTokenType(), getOurIdentity());
+            final QueryCriteria properlyIssued = QueryUtilitiesKt.tokenAmountWithIssuerCriteria(
+                    issuedCurrency.getTokenType(), issuedCurrency.getIssuer());
+            // Have the utility do the "dollars to cents" conversion for us.
+            final Amount<TokenType> priceInCurrency = AmountUtilitiesKt.amount(price, issuedCurrency.getTokenType());
+            return PreferredSelection.generateMove(this,
+                    Collections.singletonList(new Pair<>(sellerSession.getCounterparty(), priceInCurrency)),
+                    getOurIdentity(),
+                    issuedCurrency,
+                    new TokenQueryBy(issuedCurrency.getIssuer(), it -> true, heldByMe.and(properlyIssued)));
+        }
     }
 }
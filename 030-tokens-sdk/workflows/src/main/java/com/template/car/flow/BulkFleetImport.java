@@ -0,0 +1,421 @@
+package com.template.car.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.workflows.flows.rpc.CreateEvolvableTokens;
+import com.r3.corda.lib.tokens.workflows.flows.rpc.IssueTokens;
+import com.template.car.CarTokenContract;
+import com.template.car.CarTokenType;
+import com.template.flows.Chunking;
+import net.corda.core.contracts.Attachment;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.IdentityService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Onboards a whole fleet of cars, in two steps. First the DMV creates the {@link CarTokenType}s with
+ * {@link CreateCarTypes}, then the dealership issues them to their holders with {@link IssueCars}.
+ * {@link CarTokenContract}, via {@link com.r3.corda.lib.tokens.contracts.EvolvableTokenContract}, accepts a single
+ * car type per create transaction, so the first step is still one transaction per car. The second step however
+ * issues many held cars per transaction. For N cars, that makes about N + N / {@link IssueCars#DEFAULT_MAX_CARS_PER_TX}
+ * transactions instead of 2N. Both steps can be split into lanes, to have that many flows running in parallel.
+ */
+public interface BulkFleetImport {
+
+    /**
+     * One line of the fleet to import.
+     */
+    @CordaSerializable
+    class FleetRecord {
+        @NotNull
+        private final String vin;
+        @NotNull
+        private final String make;
+        private final long price;
+        @NotNull
+        private final AbstractParty holder;
+
+        public FleetRecord(
+                @NotNull final String vin,
+                @NotNull final String make,
+                final long price,
+                @NotNull final AbstractParty holder) {
+            //noinspection ConstantConditions
+            if (vin == null || vin.trim().isEmpty()) throw new IllegalArgumentException("The vin cannot be empty");
+            //noinspection ConstantConditions
+            if (make == null || make.trim().isEmpty()) throw new IllegalArgumentException("The make cannot be empty");
+            // The contract would reject it, better to know before sending anything.
+            if (price <= 0) throw new IllegalArgumentException("The price must be positive");
+            //noinspection ConstantConditions
+            if (holder == null) throw new NullPointerException("The holder cannot be null");
+            this.vin = vin;
+            this.make = make;
+            this.price = price;
+            this.holder = holder;
+        }
+
+        @NotNull
+        public String getVin() {
+            return vin;
+        }
+
+        @NotNull
+        public String getMake() {
+            return make;
+        }
+
+        public long getPrice() {
+            return price;
+        }
+
+        @NotNull
+        public AbstractParty getHolder() {
+            return holder;
+        }
+    }
+
+    /**
+     * A car type that exists, and who is to hold it.
+     */
+    @CordaSerializable
+    class HeldCar {
+        @NotNull
+        private final UniqueIdentifier carId;
+        @NotNull
+        private final AbstractParty holder;
+
+        public HeldCar(@NotNull final UniqueIdentifier carId, @NotNull final AbstractParty holder) {
+            //noinspection ConstantConditions
+            if (carId == null) throw new NullPointerException("The carId cannot be null");
+            //noinspection ConstantConditions
+            if (holder == null) throw new NullPointerException("The holder cannot be null");
+            this.carId = carId;
+            this.holder = holder;
+        }
+
+        @NotNull
+        public UniqueIdentifier getCarId() {
+            return carId;
+        }
+
+        @NotNull
+        public AbstractParty getHolder() {
+            return holder;
+        }
+    }
+
+    /**
+     * Reads records in the form {@code vin,make,price,holder}, one per line, where the holder is an X500 name, like
+     * {@code 1HGCM82633A004352,BMW,25000,O=Alice, L=London, C=GB}. The holder comes last as it contains commas.
+     * Blank lines and lines starting with {@code #} are skipped.
+     */
+    @NotNull
+    static List<FleetRecord> readCsv(
+            @NotNull final InputStream csv,
+            @NotNull final IdentityService identityService) throws IOException {
+        final List<FleetRecord> records = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(csv, StandardCharsets.UTF_8));
+        int lineNumber = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.startsWith("#")) continue;
+            final String[] fields = line.split(",", 4);
+            if (fields.length != 4) throw new IllegalArgumentException("Line " + lineNumber + " has too few fields");
+            final CordaX500Name holderName = CordaX500Name.parse(fields[3].trim());
+            final Party holder = identityService.wellKnownPartyFromX500Name(holderName);
+            if (holder == null) throw new IllegalArgumentException("Line " + lineNumber + ", unknown " + holderName);
+            records.add(new FleetRecord(
+                    fields[0].trim(), fields[1].trim(), Long.parseLong(fields[2].trim()), holder));
+        }
+        return records;
+    }
+
+    /**
+     * Started by the DMV. It creates one car type per record, and informs the observers, which have to include the
+     * dealership that is going to run {@link IssueCars}.
+     * The node checkpoints the flow after each car type, so after a restart it resumes from there.
+     */
+    @StartableByRPC
+    class CreateCarTypes extends FlowLogic<List<HeldCar>> {
+
+        @NotNull
+        private final Party notary;
+        @NotNull
+        private final List<FleetRecord> records;
+        @Nullable
+        private final SecureHash csvAttachment;
+        @Nullable
+        private final String csvPath;
+        @NotNull
+        private final List<Party> observers;
+
+        public CreateCarTypes(
+                @NotNull final Party notary,
+                @NotNull final List<FleetRecord> records,
+                @NotNull final List<Party> observers) {
+            //noinspection ConstantConditions
+            if (notary == null) throw new NullPointerException("The notary cannot be null");
+            //noinspection ConstantConditions
+            if (records == null) throw new NullPointerException("The records cannot be null");
+            if (records.isEmpty()) throw new IllegalArgumentException("The records cannot be empty");
+            requireDistinctVins(records);
+            //noinspection ConstantConditions
+            if (observers == null) throw new NullPointerException("The observers cannot be null");
+            this.notary = notary;
+            this.records = ImmutableList.copyOf(records);
+            this.csvAttachment = null;
+            this.csvPath = null;
+            this.observers = ImmutableList.copyOf(observers);
+        }
+
+        /**
+         * @param csvAttachment An uploaded zip that contains the CSV file, as read by {@link #readCsv}.
+         * @param csvPath       The path of the CSV file inside the zip.
+         */
+        public CreateCarTypes(
+                @NotNull final Party notary,
+                @NotNull final SecureHash csvAttachment,
+                @NotNull final String csvPath,
+                @NotNull final List<Party> observers) {
+            //noinspection ConstantConditions
+            if (notary == null) throw new NullPointerException("The notary cannot be null");
+            //noinspection ConstantConditions
+            if (csvAttachment == null) throw new NullPointerException("The csvAttachment cannot be null");
+            //noinspection ConstantConditions
+            if (csvPath == null) throw new NullPointerException("The csvPath cannot be null");
+            //noinspection ConstantConditions
+            if (observers == null) throw new NullPointerException("The observers cannot be null");
+            this.notary = notary;
+            this.records = Collections.emptyList();
+            this.csvAttachment = csvAttachment;
+            this.csvPath = csvPath;
+            this.observers = ImmutableList.copyOf(observers);
+        }
+
+        /**
+         * Deals the records, round-robin, to at most {@code parallelism} flows. Start them all to have as many
+         * transactions in flight.
+         * Each lane checks in the vault that a VIN is new before creating it, which cannot see what another lane is
+         * creating at the same time. So a VIN may only appear once in the whole list.
+         */
+        @NotNull
+        public static List<CreateCarTypes> lanes(
+                @NotNull final Party notary,
+                @NotNull final List<FleetRecord> records,
+                @NotNull final List<Party> observers,
+                final int parallelism) {
+            requireDistinctVins(records);
+            return Chunking.deal(records, parallelism).stream()
+                    .map(it -> new CreateCarTypes(notary, it, observers))
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * @return The created cars and their future holders, in record order, to pass on to the dealership.
+         */
+        @Suspendable
+        @Override
+        @NotNull
+        public List<HeldCar> call() throws FlowException {
+            final Party dmv = getOurIdentity();
+            if (!dmv.getName().equals(CarTokenTypeConstants.DMV)) {
+                throw new FlowException("We are not the DMV");
+            }
+            final List<FleetRecord> toCreate = csvAttachment == null ? records : readAttachment(csvAttachment);
+            final List<HeldCar> created = new ArrayList<>(toCreate.size());
+            for (final FleetRecord record : toCreate) {
+                // The vin index cannot be unique, so it is the DMV that keeps VINs unique.
+                if (CarTokenQueries.findByVin(getServiceHub(), record.getVin()) != null) {
+                    throw new FlowException("There already is a car with VIN " + record.getVin());
+                }
+                // The contract wants a mileage of 0 at creation.
+                final CarTokenType newCar = new CarTokenType(Collections.singletonList(dmv),
+                        new UniqueIdentifier(), record.getVin(), record.getMake(), 0, record.getPrice());
+                subFlow(new CreateEvolvableTokens(new TransactionState<>(newCar, notary), observers));
+                created.add(new HeldCar(newCar.getLinearId(), record.getHolder()));
+            }
+            return created;
+        }
+
+        private static void requireDistinctVins(@NotNull final List<FleetRecord> records) {
+            final Set<String> vins = new HashSet<>(records.size());
+            for (final FleetRecord record : records) {
+                if (!vins.add(record.getVin())) {
+                    throw new IllegalArgumentException("The VIN " + record.getVin() + " appears more than once");
+                }
+            }
+        }
+
+        @NotNull
+        private List<FleetRecord> readAttachment(@NotNull final SecureHash csvAttachment) throws FlowException {
+            final Attachment attachment = getServiceHub().getAttachments().openAttachment(csvAttachment);
+            if (attachment == null) throw new FlowException("Unknown attachment " + csvAttachment);
+            final ByteArrayOutputStream csv = new ByteArrayOutputStream();
+            try {
+                attachment.extractFile(csvPath, csv);
+                final List<FleetRecord> read = readCsv(
+                        new ByteArrayInputStream(csv.toByteArray()), getServiceHub().getIdentityService());
+                if (read.isEmpty()) throw new FlowException("There are no records in " + csvPath);
+                requireDistinctVins(read);
+                return read;
+            } catch (IOException | IllegalArgumentException e) {
+                throw new FlowException("Cannot read " + csvPath + " in " + csvAttachment, e);
+            }
+        }
+    }
+
+    /**
+     * The chunks of held cars that a single {@link IssueCars} flow issues, one transaction per chunk, in this order.
+     * Build them with {@link IssueCars#chunk}, or get whole flows with {@link IssueCars#lanes}.
+     */
+    @CordaSerializable
+    class Lane {
+        @NotNull
+        private final List<List<HeldCar>> chunks;
+
+        public Lane(@NotNull final List<List<HeldCar>> chunks) {
+            //noinspection ConstantConditions
+            if (chunks == null) throw new NullPointerException("The chunks cannot be null");
+            if (chunks.isEmpty()) throw new IllegalArgumentException("The chunks cannot be empty");
+            if (chunks.stream().anyMatch(List::isEmpty)) {
+                throw new IllegalArgumentException("The chunks cannot be empty");
+            }
+            this.chunks = ImmutableList.copyOf(chunks);
+        }
+
+        @NotNull
+        public List<List<HeldCar>> getChunks() {
+            return chunks;
+        }
+    }
+
+    /**
+     * Started by the dealership, once it has been informed of the car types. It issues the cars to their holders in
+     * chunks, bounded both in cars and in distinct holders, one transaction per chunk.
+     * The node checkpoints the flow after each chunk, so after a restart it resumes from the last completed chunk.
+     * These checkpoints carry all the held cars of the flow, which is one more reason to split a large fleet in
+     * {@link #lanes}.
+     */
+    @StartableByRPC
+    class IssueCars extends FlowLogic<List<SecureHash>> {
+
+        public static final int DEFAULT_MAX_CARS_PER_TX = 100;
+        public static final int DEFAULT_MAX_HOLDERS_PER_TX = 20;
+
+        @NotNull
+        private final List<List<HeldCar>> chunks;
+
+        public IssueCars(@NotNull final List<HeldCar> heldCars) {
+            this(heldCars, DEFAULT_MAX_CARS_PER_TX, DEFAULT_MAX_HOLDERS_PER_TX);
+        }
+
+        public IssueCars(
+                @NotNull final List<HeldCar> heldCars,
+                final int maxCarsPerTx,
+                final int maxHoldersPerTx) {
+            this(new Lane(chunk(heldCars, maxCarsPerTx, maxHoldersPerTx)));
+        }
+
+        public IssueCars(@NotNull final Lane lane) {
+            //noinspection ConstantConditions
+            if (lane == null) throw new NullPointerException("The lane cannot be null");
+            this.chunks = lane.getChunks();
+        }
+
+        /**
+         * Splits the held cars, in order, into chunks that have at most this many cars and this many distinct
+         * holders.
+         */
+        @NotNull
+        public static List<List<HeldCar>> chunk(
+                @NotNull final List<HeldCar> heldCars,
+                final int maxCarsPerTx,
+                final int maxHoldersPerTx) {
+            return Chunking.chunk(heldCars, HeldCar::getHolder, maxCarsPerTx, maxHoldersPerTx);
+        }
+
+        /**
+         * Deals the chunks, round-robin, to at most {@code parallelism} flows. Start them all to have as many
+         * transactions in flight.
+         */
+        @NotNull
+        public static List<IssueCars> lanes(
+                @NotNull final List<HeldCar> heldCars,
+                final int maxCarsPerTx,
+                final int maxHoldersPerTx,
+                final int parallelism) {
+            return Chunking.deal(chunk(heldCars, maxCarsPerTx, maxHoldersPerTx), parallelism).stream()
+                    .map(it -> new IssueCars(new Lane(it)))
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * @return The ids of the issue transactions, in chunk order.
+         */
+        @Suspendable
+        @Override
+        @NotNull
+        public List<SecureHash> call() throws FlowException {
+            final Party dealership = getOurIdentity();
+            final List<SecureHash> txIds = new ArrayList<>(chunks.size());
+            for (final List<HeldCar> chunk : chunks) {
+                final Map<UniqueIdentifier, StateAndRef<CarTokenType>> cars = fetchCars(chunk);
+                final List<NonFungibleToken> heldCars = new ArrayList<>(chunk.size());
+                for (final HeldCar heldCar : chunk) {
+                    final StateAndRef<CarTokenType> car = cars.get(heldCar.getCarId());
+                    if (car == null) throw new FlowException("Unknown car " + heldCar.getCarId());
+                    heldCars.add(new NonFungibleToken(
+                            new IssuedTokenType(dealership, car.getState().getData().toPointer(CarTokenType.class)),
+                            heldCar.getHolder(),
+                            new UniqueIdentifier(),
+                            null));
+                }
+                // The chunks are checkpointed whole already, there is no need to add the transactions to them.
+                txIds.add(subFlow(new IssueTokens(heldCars)).getId());
+            }
+            return txIds;
+        }
+
+        /**
+         * Fetches the cars of the chunk in a single query.
+         */
+        @NotNull
+        private Map<UniqueIdentifier, StateAndRef<CarTokenType>> fetchCars(@NotNull final List<HeldCar> chunk) {
+            final List<UUID> carIds = chunk.stream()
+                    .map(it -> it.getCarId().getId())
+                    .distinct()
+                    .collect(Collectors.toList());
+            final QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(
+                    null, carIds, null, Vault.StateStatus.UNCONSUMED);
+            return getServiceHub().getVaultService()
+                    .queryBy(CarTokenType.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, carIds.size()))
+                    .getStates()
+                    .stream()
+                    .collect(Collectors.toMap(it -> it.getState().getData().getLinearId(), it -> it));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.template.car.flow;
+
+import com.google.common.collect.ImmutableSet;
+import com.template.car.CarTokenType;
+import com.template.car.CarTokenTypeSchemaV1.PersistentCarTokenType;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.vault.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.getField;
+
+/**
+ * Vault query helpers based on the {@link com.template.car.CarTokenTypeSchemaV1} columns of {@link CarTokenType}. They
+ * let the database find cars by VIN, make and price, instead of fetching all car types and filtering them in the JVM.
+ * Like all custom criteria, they select only unconsumed states unless told otherwise.
+ */
+public interface CarTokenQueries {
+
+    /**
+     * @return The criteria that selects the car with the given VIN.
+     */
+    @NotNull
+    static QueryCriteria byVin(@NotNull final String vin) {
+        final CriteriaExpression vinIndex = Builder.equal(field("vin"), vin);
+        //noinspection unchecked
+        return new QueryCriteria.VaultCustomQueryCriteria(vinIndex);
+    }
+
+    /**
+     * @return The criteria that selects only the cars of the given make.
+     */
+    @NotNull
+    static QueryCriteria ofMake(@NotNull final String make) {
+        final CriteriaExpression makeIndex = Builder.equal(field("make"), make);
+        //noinspection unchecked
+        return new QueryCriteria.VaultCustomQueryCriteria(makeIndex);
+    }
+
+    /**
+     * @return The criteria that selects only the cars of the given make that cost at most the given price. It uses
+     * the composite make and price index.
+     */
+    @NotNull
+    static QueryCriteria ofMakeAtMost(@NotNull final String make, final long maxPrice) {
+        final CriteriaExpression priceIndex = Builder.lessThanOrEqual(field("price"), maxPrice);
+        //noinspection unchecked
+        return ofMake(make).and(new QueryCriteria.VaultCustomQueryCriteria(priceIndex));
+    }
+
+    /**
+     * @return The sort that orders cars by their price.
+     */
+    @NotNull
+    static Sort sortByPrice(@NotNull final Sort.Direction direction) {
+        return new Sort(ImmutableSet.of(new Sort.SortColumn(
+                new SortAttribute.Custom(PersistentCarTokenType.class, "price"),
+                direction)));
+    }
+
+    /**
+     * @return The unconsumed car with the given VIN, if there is one in our vault.
+     * @throws FlowException When there is more than one, as the vin index cannot enforce uniqueness.
+     */
+    @Nullable
+    static StateAndRef<CarTokenType> findByVin(@NotNull final ServiceHub serviceHub, @NotNull final String vin)
+            throws FlowException {
+        final List<StateAndRef<CarTokenType>> found = serviceHub.getVaultService()
+                .queryBy(CarTokenType.class, byVin(vin))
+                .getStates();
+        if (found.size() > 1) throw new FlowException("There are " + found.size() + " cars with VIN " + vin);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    @NotNull
+    static FieldInfo field(@NotNull final String name) {
+        try {
+            return getField(name, PersistentCarTokenType.class);
+        } catch (NoSuchFieldException e) {
+            // The names are ours and fixed, so this is a programming error.
+            throw new IllegalArgumentException("Unknown car column " + name, e);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.template.car.flow;
+
+import com.template.car.CarTokenType;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Telematics send odometer readings every few minutes, and each {@link UpdateCarTokenTypeFlow} is a transaction that
+ * goes to the notary, the observers and the whole distribution list. This service, on the DMV's node, buffers the
+ * readings it gets from {@link CoalescedCarUpdateFlows.Submit} and keeps only the latest one per car. It writes them
+ * with one {@link CoalescedCarUpdateFlows.Flush} per car:
+ * <ul>
+ *     <li>every {@link #FLUSH_INTERVAL_KEY} seconds, for all the buffered cars,</li>
+ *     <li>or as soon as a car's buffered mileage is {@link #MILEAGE_THRESHOLD_KEY} ahead of its ledger mileage.</li>
+ * </ul>
+ * For instance, in the CorDapp configuration:
+ * <pre>
+ * carUpdateFlushIntervalSeconds=3600
+ * carUpdateMileageThreshold=500
+ * carUpdateMaxFlushAttempts=3
+ * </pre>
+ * A flush interval of 0 leaves it to {@link #flush()}, and a threshold of 0 disables it.
+ * A reading whose flush fails waits for the next flush, up to {@link #MAX_FLUSH_ATTEMPTS_KEY} attempts in all. After
+ * that it is dropped with an error in the log, so that a reading that cannot be written, for instance because one of
+ * its observers never answers, does not take a flow at every flush forever. The readings that came after it are kept.
+ * The buffer is in memory only. Readings that had not been flushed when the node stops are lost, which is acceptable
+ * for readings that the next ones supersede anyway.
+ */
+@CordaService
+public class CarUpdateCoalescer extends SingletonSerializeAsToken {
+
+    public static final String FLUSH_INTERVAL_KEY = "carUpdateFlushIntervalSeconds";
+    public static final String MILEAGE_THRESHOLD_KEY = "carUpdateMileageThreshold";
+    public static final String MAX_FLUSH_ATTEMPTS_KEY = "carUpdateMaxFlushAttempts";
+    public static final long DEFAULT_FLUSH_INTERVAL_SECONDS = 15 * 60;
+    public static final int DEFAULT_MAX_FLUSH_ATTEMPTS = 3;
+
+    private final static Logger log = LoggerFactory.getLogger(CarUpdateCoalescer.class);
+
+    @NotNull
+    private final AppServiceHub serviceHub;
+    private final long flushIntervalSeconds;
+    private final long mileageThreshold;
+    private final int maxFlushAttempts;
+    // A single thread is enough, and it keeps the flows from being started from within the submitting flow.
+    @NotNull
+    private final ScheduledExecutorService executor;
+    /**
+     * The latest reading of each car, waiting to be flushed. All access is synchronised on it.
+     */
+    @NotNull
+    private final Map<UniqueIdentifier, PendingUpdate> pending;
+    /**
+     * The cars for which a flush flow is under way. Their new readings wait in {@link #pending} for the next flush,
+     * so that two updates of the same car do not race for the same input. All access is synchronised on
+     * {@link #pending}.
+     */
+    @NotNull
+    private final Set<UniqueIdentifier> flushing;
+
+    @SuppressWarnings("unused")
+    public CarUpdateCoalescer(@NotNull final AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.flushIntervalSeconds = config.exists(FLUSH_INTERVAL_KEY)
+                ? config.getLong(FLUSH_INTERVAL_KEY)
+                : DEFAULT_FLUSH_INTERVAL_SECONDS;
+        this.mileageThreshold = config.exists(MILEAGE_THRESHOLD_KEY) ? config.getLong(MILEAGE_THRESHOLD_KEY) : 0L;
+        this.maxFlushAttempts = config.exists(MAX_FLUSH_ATTEMPTS_KEY)
+                ? config.getInt(MAX_FLUSH_ATTEMPTS_KEY)
+                : DEFAULT_MAX_FLUSH_ATTEMPTS;
+        if (flushIntervalSeconds < 0) throw new IllegalArgumentException(FLUSH_INTERVAL_KEY + " cannot be negative");
+        if (mileageThreshold < 0) throw new IllegalArgumentException(MILEAGE_THRESHOLD_KEY + " cannot be negative");
+        if (maxFlushAttempts < 1) throw new IllegalArgumentException(MAX_FLUSH_ATTEMPTS_KEY + " must be at least 1");
+        this.pending = new HashMap<>();
+        this.flushing = new HashSet<>();
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "car-update-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (0 < flushIntervalSeconds) {
+            executor.scheduleWithFixedDelay(this::flushLogged,
+                    flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Buffers a reading. Out of order readings cannot bring the mileage down, and the price is the last one submitted.
+     *
+     * @param observers They are added to the observers of the previous readings of this car.
+     */
+    public void submit(
+            @NotNull final UniqueIdentifier carId,
+            final long mileage,
+            final long price,
+            @NotNull final List<Party> observers) {
+        if (mileage < 0) throw new IllegalArgumentException("The mileage cannot be negative");
+        if (price <= 0) throw new IllegalArgumentException("The price must be positive");
+        Boolean thresholdReached = mergeIntoPending(carId, null, mileage, price, observers);
+        if (thresholdReached == null) {
+            // Once per car and per flush, so as to know where the ledger stands. It is a vault query, so it is done
+            // without holding the lock that the other submitters and the flushes are waiting on.
+            final StateAndRef<CarTokenType> carRef = loadCar(serviceHub, carId);
+            if (carRef == null) throw new IllegalArgumentException("Unknown car " + carId);
+            thresholdReached = mergeIntoPending(
+                    carId, carRef.getState().getData().getMileage(), mileage, price, observers);
+        }
+        if (thresholdReached) executor.execute(() -> flushLogged(carId));
+    }
+
+    /**
+     * @param ledgerMileage The mileage of the car on the ledger, used if the car has no pending update yet.
+     * @return Whether the car's update reached the threshold, or null if the car had no pending update and no
+     * ledgerMileage was given.
+     */
+    @Nullable
+    private Boolean mergeIntoPending(
+            @NotNull final UniqueIdentifier carId,
+            @Nullable final Long ledgerMileage,
+            final long mileage,
+            final long price,
+            @NotNull final List<Party> observers) {
+        synchronized (pending) {
+            PendingUpdate update = pending.get(carId);
+            if (update == null) {
+                if (ledgerMileage == null) return null;
+                update = new PendingUpdate(ledgerMileage);
+                pending.put(carId, update);
+            }
+            update.merge(mileage, price, observers);
+            return 0 < mileageThreshold && mileageThreshold <= update.mileage - update.ledgerMileage;
+        }
+    }
+
+    /**
+     * Starts a flush flow for each buffered car that is not already being flushed.
+     *
+     * @return The futures of the started flows.
+     */
+    @NotNull
+    public List<CordaFuture<SignedTransaction>> flush() {
+        final List<UniqueIdentifier> carIds;
+        synchronized (pending) {
+            carIds = new ArrayList<>(pending.keySet());
+        }
+        final List<CordaFuture<SignedTransaction>> started = new ArrayList<>(carIds.size());
+        for (final UniqueIdentifier carId : carIds) {
+            final CordaFuture<SignedTransaction> future = flush(carId);
+            if (future != null) started.add(future);
+        }
+        return started;
+    }
+
+    /**
+     * @return The future of the started flow, or null if there was nothing to flush or it is already being flushed.
+     */
+    @Nullable
+    public CordaFuture<SignedTransaction> flush(@NotNull final UniqueIdentifier carId) {
+        final PendingUpdate update;
+        synchronized (pending) {
+            if (flushing.contains(carId)) return null;
+            update = pending.remove(carId);
+            if (update == null) return null;
+            flushing.add(carId);
+        }
+        final CordaFuture<SignedTransaction> future;
+        try {
+            future = serviceHub.startFlow(new CoalescedCarUpdateFlows.Flush(
+                    carId, update.mileage, update.price, new ArrayList<>(update.observers)))
+                    .getReturnValue();
+        } catch (RuntimeException e) {
+            requeue(carId, update);
+            throw e;
+        }
+        future.then(result -> {
+            try {
+                result.get();
+                synchronized (pending) {
+                    flushing.remove(carId);
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                log.warn("Failed to flush the updates of car " + carId, e);
+                requeue(carId, update);
+            }
+            return null;
+        });
+        return future;
+    }
+
+    /**
+     * Puts back a reading whose flush failed, so that the next flush tries again. If a newer reading came in since,
+     * the failed one is merged into it, so that its mileage and observers are not lost. Once the reading has used up
+     * its attempts, it is dropped instead.
+     */
+    private void requeue(@NotNull final UniqueIdentifier carId, @NotNull final PendingUpdate failed) {
+        synchronized (pending) {
+            flushing.remove(carId);
+            failed.failedAttempts++;
+            if (maxFlushAttempts <= failed.failedAttempts) {
+                log.error("Dropping the updates of car " + carId + " after " + failed.failedAttempts
+                        + " failed flushes");
+                return;
+            }
+            log.info("The updates of car " + carId + " wait for the next flush");
+            final PendingUpdate newer = pending.get(carId);
+            if (newer == null) pending.put(carId, failed);
+            else newer.mergeOlder(failed);
+        }
+    }
+
+    private void flushLogged() {
+        try {
+            final int count = flush().size();
+            if (0 < count) log.info("Flushing the updates of " + count + " cars");
+        } catch (Exception e) {
+            log.error("Failed to flush the car updates", e);
+        }
+    }
+
+    private void flushLogged(@NotNull final UniqueIdentifier carId) {
+        try {
+            flush(carId);
+        } catch (Exception e) {
+            log.error("Failed to flush the updates of car " + carId, e);
+        }
+    }
+
+    /**
+     * @return Whether this car has a reading waiting or being flushed.
+     */
+    public boolean isBusyWith(@NotNull final UniqueIdentifier carId) {
+        synchronized (pending) {
+            return pending.containsKey(carId) || flushing.contains(carId);
+        }
+    }
+
+    /**
+     * @return The unconsumed car with this linear id, if it is in the vault.
+     */
+    @Nullable
+    static StateAndRef<CarTokenType> loadCar(
+            @NotNull final ServiceHub serviceHub,
+            @NotNull final UniqueIdentifier carId) {
+        final QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(
+                null, Collections.singletonList(carId.getId()), null, Vault.StateStatus.UNCONSUMED);
+        final List<StateAndRef<CarTokenType>> found = serviceHub.getVaultService()
+                .queryBy(CarTokenType.class, criteria)
+                .getStates();
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    /**
+     * The coalesced readings of a car since its last flush.
+     */
+    private static class PendingUpdate {
+        private final long ledgerMileage;
+        private long mileage;
+        private long price;
+        @NotNull
+        private final Set<Party> observers;
+        /**
+         * How many flushes of these readings failed. A newer reading that takes them in inherits the count, as it
+         * could fail for the same reason.
+         */
+        private int failedAttempts;
+
+        PendingUpdate(final long ledgerMileage) {
+            this.ledgerMileage = ledgerMileage;
+            this.mileage = ledgerMileage;
+            this.price = 0L;
+            this.observers = new LinkedHashSet<>();
+            this.failedAttempts = 0;
+        }
+
+        void merge(final long mileage, final long price, @NotNull final List<Party> observers) {
+            this.mileage = Math.max(this.mileage, mileage);
+            this.price = price;
+            this.observers.addAll(observers);
+        }
+
+        /**
+         * Unlike {@link #merge}, it keeps this price, which is the more recent one.
+         */
+        void mergeOlder(@NotNull final PendingUpdate older) {
+            this.mileage = Math.max(this.mileage, older.mileage);
+            this.observers.addAll(older.observers);
+            this.failedAttempts = Math.max(this.failedAttempts, older.failedAttempts);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.template.car.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.template.car.CarTokenType;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * The flows that go with the {@link CarUpdateCoalescer}. The readings come in with {@link Submit}, and the service
+ * writes them to the ledger with {@link Flush}.
+ */
+public interface CoalescedCarUpdateFlows {
+
+    /**
+     * Started by the telematics feed on the DMV's node. It does not create a transaction, it only hands the reading
+     * to the {@link CarUpdateCoalescer}, which keeps the latest reading per car until its next flush.
+     */
+    @StartableByRPC
+    class Submit extends FlowLogic<Void> {
+
+        @NotNull
+        private final UniqueIdentifier carId;
+        private final long mileage;
+        private final long price;
+        @NotNull
+        private final List<Party> observers;
+
+        public Submit(
+                @NotNull final UniqueIdentifier carId,
+                final long mileage,
+                final long price,
+                @NotNull final List<Party> observers) {
+            //noinspection ConstantConditions
+            if (carId == null) throw new NullPointerException("The carId cannot be null");
+            if (mileage < 0) throw new IllegalArgumentException("The mileage cannot be negative");
+            if (price <= 0) throw new IllegalArgumentException("The price must be positive");
+            //noinspection ConstantConditions
+            if (observers == null) throw new NullPointerException("The observers cannot be null");
+            this.carId = carId;
+            this.mileage = mileage;
+            this.price = price;
+            this.observers = ImmutableList.copyOf(observers);
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            if (!getOurIdentity().getName().equals(CarTokenTypeConstants.DMV)) {
+                throw new FlowException("We are not the DMV");
+            }
+            try {
+                getServiceHub().cordaService(CarUpdateCoalescer.class).submit(carId, mileage, price, observers);
+            } catch (IllegalArgumentException e) {
+                throw new FlowException(e.getMessage(), e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Started by the {@link CarUpdateCoalescer} to write the latest reading of a car in a single
+     * {@link UpdateCarTokenTypeFlow}. The reading is checked against the car as it is now on the ledger, which may
+     * have changed since the reading was buffered.
+     */
+    @StartableByService
+    class Flush extends FlowLogic<SignedTransaction> {
+
+        @NotNull
+        private final UniqueIdentifier carId;
+        private final long mileage;
+        private final long price;
+        @NotNull
+        private final List<Party> observers;
+
+        public Flush(
+                @NotNull final UniqueIdentifier carId,
+                final long mileage,
+                final long price,
+                @NotNull final List<Party> observers) {
+            //noinspection ConstantConditions
+            if (carId == null) throw new NullPointerException("The carId cannot be null");
+            //noinspection ConstantConditions
+            if (observers == null) throw new NullPointerException("The observers cannot be null");
+            this.carId = carId;
+            this.mileage = mileage;
+            this.price = price;
+            this.observers = ImmutableList.copyOf(observers);
+        }
+
+        /**
+         * @return The update transaction, or null when the reading brings nothing new.
+         */
+        @Suspendable
+        @Override
+        @Nullable
+        public SignedTransaction call() throws FlowException {
+            final StateAndRef<CarTokenType> carRef = CarUpdateCoalescer.loadCar(getServiceHub(), carId);
+            if (carRef == null) throw new FlowException("Unknown car " + carId);
+            final CarTokenType car = carRef.getState().getData();
+            // The contract refuses a mileage that decreases, so we keep the ledger's when it is ahead.
+            final long newMileage = Math.max(mileage, car.getMileage());
+            if (newMileage == car.getMileage() && price == car.getPrice()) return null;
+            return subFlow(new UpdateCarTokenTypeFlow(carRef, newMileage, price, observers));
+        }
+    }
+}
@@ -43,6 +43,9 @@ public class IssueCarTokenTypeFlow extends FlowLogic<SignedTransaction> {
         if (!dmv.getName().equals(CarTokenTypeConstants.DMV)) {
             throw new FlowException("We are not the DMV");
         }
+        if (CarTokenQueries.findByVin(getServiceHub(), vin) != null) {
+            throw new FlowException("There already is a car with VIN " + vin);
+        }
         final CarTokenType newCar = new CarTokenType(Collections.singletonList(dmv),
                 new UniqueIdentifier(), vin, make, 0, price);
         final TransactionState<CarTokenType> txState = new TransactionState<>(newCar, notary);
@@ -0,0 +1,62 @@
+package com.template.flows;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Helpers for the bulk flows, which split a long list of outputs into transactions of bounded size, and can share
+ * these transactions among several flows that run in parallel.
+ */
+public interface Chunking {
+
+    /**
+     * Splits the items, in order, into chunks that have at most {@code maxItems} items and at most {@code maxHolders}
+     * distinct holders. The number of holders matters as each one of them gets a session when the chunk is finalised.
+     */
+    @NotNull
+    static <T, H> List<List<T>> chunk(
+            @NotNull final List<T> items,
+            @NotNull final Function<T, H> holderOf,
+            final int maxItems,
+            final int maxHolders) {
+        //noinspection ConstantConditions
+        if (items == null) throw new NullPointerException("The items cannot be null");
+        //noinspection ConstantConditions
+        if (holderOf == null) throw new NullPointerException("The holderOf cannot be null");
+        if (maxItems <= 0) throw new IllegalArgumentException("The maxItems must be positive");
+        if (maxHolders <= 0) throw new IllegalArgumentException("The maxHolders must be positive");
+        final List<List<T>> chunks = new ArrayList<>();
+        List<T> current = new ArrayList<>();
+        final Set<H> currentHolders = new HashSet<>();
+        for (final T item : items) {
+            final H holder = holderOf.apply(item);
+            final boolean isNewHolder = !currentHolders.contains(holder);
+            if (current.size() == maxItems || (isNewHolder && currentHolders.size() == maxHolders)) {
+                chunks.add(current);
+                current = new ArrayList<>();
+                currentHolders.clear();
+            }
+            current.add(item);
+            currentHolders.add(holder);
+        }
+        if (!current.isEmpty()) chunks.add(current);
+        return chunks;
+    }
+
+    /**
+     * Deals the elements, round-robin, into at most {@code parallelism} lanes, none of them empty.
+     */
+    @NotNull
+    static <T> List<List<T>> deal(@NotNull final List<T> elements, final int parallelism) {
+        //noinspection ConstantConditions
+        if (elements == null) throw new NullPointerException("The elements cannot be null");
+        if (parallelism <= 0) throw new IllegalArgumentException("The parallelism must be positive");
+        final int laneCount = Math.min(parallelism, elements.size());
+        final List<List<T>> lanes = new ArrayList<>(laneCount);
+        for (int lane = 0; lane < laneCount; lane++) lanes.add(new ArrayList<>());
+        for (int i = 0; i < elements.size(); i++) lanes.get(i % laneCount).add(elements.get(i));
+        return lanes;
+    }
+}
@@ -5,7 +5,6 @@ import com.google.common.collect.ImmutableList;
 import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
 import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
 import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
-import com.r3.corda.lib.tokens.contracts.utilities.TransactionUtilitiesKt;
 import com.r3.corda.lib.tokens.workflows.flows.rpc.IssueTokens;
 import com.template.states.AirMileType;
 import javafx.util.Pair;
@@ -19,8 +18,7 @@ import net.corda.core.utilities.ProgressTracker;
 import net.corda.core.utilities.ProgressTracker.Step;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 import java.util.stream.Collectors;
 
 public interface IssueFlows {
@@ -52,10 +50,17 @@ public interface IssueFlows {
          * This constructor would typically be called by RPC or by {@link FlowLogic#subFlow}.
          */
         public Initiator(@NotNull final List<Pair<AbstractParty, Long>> heldQuantities) {
+            this(heldQuantities, tracker());
+        }
+
+        public Initiator(@NotNull final List<Pair<AbstractParty, Long>> heldQuantities,
+                         @NotNull final ProgressTracker progressTracker) {
             //noinspection ConstantConditions
             if (heldQuantities == null) throw new NullPointerException("heldQuantities cannot be null");
+            //noinspection ConstantConditions
+            if (progressTracker == null) throw new NullPointerException("progressTracker cannot be null");
             this.heldQuantities = ImmutableList.copyOf(heldQuantities);
-            this.progressTracker = tracker();
+            this.progressTracker = progressTracker;
         }
 
         /**
@@ -79,7 +84,7 @@ public interface IssueFlows {
             // It is a design decision to have this flow initiated by the issuer.
             final AirMileType airMileType = new AirMileType();
             final IssuedTokenType issuedAirMile = new IssuedTokenType(getOurIdentity(), airMileType);
-            final SecureHash contractAttachment = TransactionUtilitiesKt.getAttachmentIdForGenericParam(airMileType);
+            final SecureHash contractAttachment = AirMileType.getContractAttachment();
 
             final List<FungibleToken> outputTokens = heldQuantities
                     // Thanks to the Stream, we are able to have our 'final List' in one go, instead of creating a
@@ -105,4 +110,117 @@ public interface IssueFlows {
             return notarised;
         }
     }
+
+    /**
+     * Started by the issuer to issue air miles to a great many members, for instance in a nightly loyalty run. A
+     * single {@link IssueTokens} transaction with hundreds of thousands of outputs, and as many sessions, would be too
+     * large to notarise and finalise. Instead, this flow splits the list into chunks, bounded both in outputs and in
+     * distinct holders, and issues each chunk in its own transaction, one after the other.
+     * The node checkpoints the flow after each chunk, so after a restart it resumes from the last completed chunk
+     * instead of issuing everything again. Mind that all the chunks of a lane are part of each of its checkpoints, so
+     * a lane should not be given more than it can comfortably checkpoint, which is another reason to use lanes.
+     * To run chunks concurrently, use {@link #lanes} and start each lane separately. The number of lanes bounds the
+     * number of transactions in flight.
+     */
+    @StartableByRPC
+    @StartableByService
+    class BulkInitiator extends FlowLogic<List<SecureHash>> {
+
+        public static final int DEFAULT_MAX_OUTPUTS_PER_TX = 200;
+        public static final int DEFAULT_MAX_HOLDERS_PER_TX = 20;
+
+        @NotNull
+        private final List<List<Pair<AbstractParty, Long>>> chunks;
+        @NotNull
+        private final List<Step> chunkSteps;
+        @NotNull
+        private final ProgressTracker progressTracker;
+
+        public BulkInitiator(@NotNull final List<Pair<AbstractParty, Long>> heldQuantities) {
+            this(heldQuantities, DEFAULT_MAX_OUTPUTS_PER_TX, DEFAULT_MAX_HOLDERS_PER_TX);
+        }
+
+        public BulkInitiator(
+                @NotNull final List<Pair<AbstractParty, Long>> heldQuantities,
+                final int maxOutputsPerTx,
+                final int maxHoldersPerTx) {
+            this(chunk(heldQuantities, maxOutputsPerTx, maxHoldersPerTx), 1);
+        }
+
+        /**
+         * @param chunks Each chunk is issued in its own transaction, in this order.
+         * @param lane   Only used to tell the progress of lanes apart.
+         */
+        public BulkInitiator(@NotNull final List<List<Pair<AbstractParty, Long>>> chunks, final int lane) {
+            //noinspection ConstantConditions
+            if (chunks == null) throw new NullPointerException("chunks cannot be null");
+            if (chunks.isEmpty()) throw new IllegalArgumentException("chunks cannot be empty");
+            if (chunks.stream().anyMatch(List::isEmpty)) throw new IllegalArgumentException("chunks cannot be empty");
+            this.chunks = ImmutableList.copyOf(chunks);
+            // One step per chunk, so that an RPC client can follow how far along we are.
+            final List<Step> chunkSteps = new ArrayList<>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                chunkSteps.add(new Step("Lane " + lane + ", issuing chunk " + (i + 1) + " of " + chunks.size() + ".") {
+                    @NotNull
+                    @Override
+                    public ProgressTracker childProgressTracker() {
+                        return Initiator.tracker();
+                    }
+                });
+            }
+            this.chunkSteps = ImmutableList.copyOf(chunkSteps);
+            this.progressTracker = new ProgressTracker(chunkSteps.toArray(new Step[0]));
+        }
+
+        /**
+         * Splits the held quantities, in order, into chunks that have at most this many outputs and this many
+         * distinct holders.
+         */
+        @NotNull
+        public static List<List<Pair<AbstractParty, Long>>> chunk(
+                @NotNull final List<Pair<AbstractParty, Long>> heldQuantities,
+                final int maxOutputsPerTx,
+                final int maxHoldersPerTx) {
+            return Chunking.chunk(heldQuantities, Pair::getKey, maxOutputsPerTx, maxHoldersPerTx);
+        }
+
+        /**
+         * Deals the chunks, round-robin, to at most {@code parallelism} flows. Start them all to have as many
+         * transactions in flight.
+         */
+        @NotNull
+        public static List<BulkInitiator> lanes(
+                @NotNull final List<Pair<AbstractParty, Long>> heldQuantities,
+                final int maxOutputsPerTx,
+                final int maxHoldersPerTx,
+                final int parallelism) {
+            final List<List<List<Pair<AbstractParty, Long>>>> dealt = Chunking.deal(
+                    chunk(heldQuantities, maxOutputsPerTx, maxHoldersPerTx), parallelism);
+            final List<BulkInitiator> lanes = new ArrayList<>(dealt.size());
+            for (int lane = 0; lane < dealt.size(); lane++) lanes.add(new BulkInitiator(dealt.get(lane), lane + 1));
+            return lanes;
+        }
+
+        @NotNull
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        /**
+         * @return The ids of the issue transactions, in chunk order.
+         */
+        @Suspendable
+        @Override
+        public List<SecureHash> call() throws FlowException {
+            final List<SecureHash> txIds = new ArrayList<>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                final Step chunkStep = chunkSteps.get(i);
+                progressTracker.setCurrentStep(chunkStep);
+                // The chunks are in every checkpoint anyway, but at least the issued transactions are not.
+                txIds.add(subFlow(new Initiator(chunks.get(i), chunkStep.childProgressTracker())).getId());
+            }
+            return txIds;
+        }
+    }
 }
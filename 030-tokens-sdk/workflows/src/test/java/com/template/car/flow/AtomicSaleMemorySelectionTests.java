@@ -0,0 +1,42 @@
+package com.template.car.flow;
+
+import com.google.common.collect.ImmutableMap;
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
+import com.template.usd.FungibleTokenIndex;
+import net.corda.core.transactions.SignedTransaction;
+import org.junit.Test;
+
+import java.security.PublicKey;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs all the {@link AtomicSaleTests} again, with the buyer selecting its dollars from the {@link FungibleTokenIndex}.
+ */
+public class AtomicSaleMemorySelectionTests extends AtomicSaleTests {
+
+    public AtomicSaleMemorySelectionTests() {
+        super(ImmutableMap.of(FungibleTokenIndex.MODE_KEY, FungibleTokenIndex.MODE_MEMORY));
+    }
+
+    @Test
+    public void buyerPaysWithWhatTheIndexHas() throws Exception {
+        final FungibleTokenIndex bobsIndex = bob.getServices().cordaService(FungibleTokenIndex.class);
+        final PublicKey bobKey = bob.getInfo().getLegalIdentities().get(0).getOwningKey();
+        assertTrue(bobsIndex.isEnabled());
+        assertEquals(AmountUtilitiesKt.amount(50_000L, usMintUsd).getQuantity(),
+                bobsIndex.quantityOf(bobKey, usMintUsd));
+        final NonFungibleToken bmw = issueUpdatedCarToAlice("abc123", "BMW", 30_000L,
+                21_000L, 9_000L);
+
+        final SignedTransaction saleTx = sellToBob(bmw);
+
+        // The car and Bob's only dollar state.
+        assertEquals(2, saleTx.getInputs().size());
+        // The index followed the sale, and has only Bob's change.
+        assertEquals(AmountUtilitiesKt.amount(29_000L, usMintUsd).getQuantity(),
+                bobsIndex.quantityOf(bobKey, usMintUsd));
+    }
+}
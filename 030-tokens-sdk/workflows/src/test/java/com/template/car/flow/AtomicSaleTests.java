@@ -13,10 +13,11 @@ import com.r3.corda.lib.tokens.workflows.flows.rpc.UpdateEvolvableToken;
 import com.template.car.CarTokenType;
 import com.template.usd.UsdTokenConstants;
 import net.corda.core.concurrent.CordaFuture;
-import net.corda.core.contracts.Amount;
-import net.corda.core.contracts.StateAndRef;
-import net.corda.core.contracts.TransactionState;
-import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.contracts.*;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.InitiatingFlow;
+import net.corda.core.identity.Party;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.testing.node.MockNetwork;
 import net.corda.testing.node.MockNodeParameters;
@@ -29,9 +30,11 @@ import org.junit.Test;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class AtomicSaleTests {
     private final MockNetwork network;
@@ -39,14 +42,18 @@ public class AtomicSaleTests {
     private final StartedMockNode usMint;
     private final StartedMockNode dmv;
     private final StartedMockNode bmwDealer;
-    private final StartedMockNode alice;
-    private final StartedMockNode bob;
+    protected final StartedMockNode alice;
+    protected final StartedMockNode bob;
     @SuppressWarnings("FieldCanBeLocal")
     private final TokenType usdTokenType;
-    private final IssuedTokenType usMintUsd;
+    protected final IssuedTokenType usMintUsd;
 
     public AtomicSaleTests() {
-        network = new MockNetwork(CarTokenCourseHelpers.prepareMockNetworkParameters());
+        this(Collections.emptyMap());
+    }
+
+    protected AtomicSaleTests(@NotNull final Map<String, ?> flowConfig) {
+        network = new MockNetwork(CarTokenCourseHelpers.prepareMockNetworkParameters(flowConfig));
         notary = network.getDefaultNotaryNode();
         usMint = network.createNode(new MockNodeParameters()
                 .withLegalName(UsdTokenConstants.US_MINT));
@@ -81,7 +88,7 @@ public class AtomicSaleTests {
     }
 
     @NotNull
-    private NonFungibleToken issueUpdatedCarToAlice(
+    protected NonFungibleToken issueUpdatedCarToAlice(
             @SuppressWarnings("SameParameterValue")
             @NotNull final String vin,
             @SuppressWarnings("SameParameterValue") @NotNull final String make,
@@ -165,6 +172,99 @@ public class AtomicSaleTests {
         final UniqueIdentifier bobCarType = ((TokenPointer<CarTokenType>) bobCarToken.getTokenType())
                 .getPointer().getPointer();
         assertEquals(bmwPointer.getPointer().getPointer(), bobCarType);
+
+        // The price was that of the current car info.
+        assertEquals(1, saleTx.getReferences().size());
+        final StateAndRef<CarTokenType> carInfo = bob.transaction(() ->
+                bob.getServices().toStateAndRef(saleTx.getReferences().get(0)));
+        assertEquals(21_000L, carInfo.getState().getData().getPrice());
+    }
+
+    /**
+     * The mock nodes all have the same CorDapp, so a seller on the previous version is simulated by a seller that
+     * initiates with {@link AtomicSale#PROTOCOL_V1}. The buyer then sees a v1 counterparty, and so does the seller.
+     */
+    @InitiatingFlow(version = AtomicSale.PROTOCOL_V1)
+    static class V1CarSeller extends AtomicSale.CarSeller {
+        V1CarSeller(
+                @NotNull final TokenPointer<CarTokenType> car,
+                @NotNull final Party buyer,
+                @NotNull final IssuedTokenType issuedCurrency) {
+            super(car, buyer, issuedCurrency);
+        }
+    }
+
+    @Test
+    public void saleFallsBackToV1WithAV1Counterparty() throws Exception {
+        bob.registerInitiatedFlow(V1CarSeller.class, AtomicSale.CarBuyer.class);
+        final NonFungibleToken bmw = issueUpdatedCarToAlice("abc123", "BMW", 30_000L,
+                21_000L, 9_000L);
+        //noinspection unchecked
+        final TokenPointer<CarTokenType> bmwPointer = (TokenPointer<CarTokenType>) bmw.getTokenType();
+        final CordaFuture<SignedTransaction> saleFuture = alice.startFlow(new V1CarSeller(
+                bmwPointer, bob.getInfo().getLegalIdentities().get(0), usMintUsd));
+        network.runNetwork();
+        final SignedTransaction saleTx = saleFuture.get();
+
+        // The seller ran agreeV1 and the buyer buyV1, else the messages would not have matched.
+        final long alicePaid = saleTx.getCoreTransaction().outputsOfType(FungibleToken.class).stream()
+                .filter(it -> it.getHolder().equals(alice.getInfo().getLegalIdentities().get(0)))
+                .filter(it -> it.getIssuedTokenType().equals(usMintUsd))
+                .map(it -> it.getAmount().getQuantity())
+                .reduce(0L, Math::addExact);
+        assertEquals(AmountUtilitiesKt.amount(21_000L, usdTokenType).getQuantity(), alicePaid);
+        final List<NonFungibleToken> carOutputs = saleTx.getCoreTransaction().outputsOfType(NonFungibleToken.class);
+        assertEquals(1, carOutputs.size());
+        assertEquals(bob.getInfo().getLegalIdentities().get(0), carOutputs.get(0).getHolder());
+        assertEquals(bmw.getLinearId(), carOutputs.get(0).getLinearId());
+    }
+
+    @NotNull
+    protected SignedTransaction sellToBob(@NotNull final NonFungibleToken car) throws Exception {
+        //noinspection unchecked
+        final TokenPointer<CarTokenType> carPointer = (TokenPointer<CarTokenType>) car.getTokenType();
+        final CordaFuture<SignedTransaction> saleFuture = alice.startFlow(new AtomicSale.CarSeller(
+                carPointer, bob.getInfo().getLegalIdentities().get(0), usMintUsd));
+        network.runNetwork();
+        return saleFuture.get();
+    }
+
+    @NotNull
+    private StateAndRef<FungibleToken> usdInput(final long dollars, final int index) {
+        final Party bobParty = bob.getInfo().getLegalIdentities().get(0);
+        final FungibleToken token = new FungibleToken(AmountUtilitiesKt.amount(dollars, usMintUsd), bobParty, null);
+        return new StateAndRef<>(new TransactionState<>(token, notary.getInfo().getLegalIdentities().get(0)),
+                new StateRef(SecureHash.randomSHA256(), index));
+    }
+
+    @Test
+    public void paymentOutputsPayThePriceAndReturnTheChange() throws Exception {
+        final Party aliceParty = alice.getInfo().getLegalIdentities().get(0);
+        final Party bobParty = bob.getInfo().getLegalIdentities().get(0);
+        final List<FungibleToken> outputs = AtomicSale.paymentOutputs(
+                Arrays.asList(usdInput(15_000L, 0), usdInput(10_000L, 1)),
+                usMintUsd, 21_000L, aliceParty, bobParty);
+
+        assertEquals(2, outputs.size());
+        assertEquals(aliceParty, outputs.get(0).getHolder());
+        assertEquals(AmountUtilitiesKt.amount(21_000L, usMintUsd), outputs.get(0).getAmount());
+        assertEquals(bobParty, outputs.get(1).getHolder());
+        assertEquals(AmountUtilitiesKt.amount(4_000L, usMintUsd), outputs.get(1).getAmount());
+
+        // No change.
+        assertEquals(1, AtomicSale.paymentOutputs(Collections.singletonList(usdInput(21_000L, 0)),
+                usMintUsd, 21_000L, aliceParty, bobParty).size());
+    }
+
+    @Test
+    public void paymentOutputsRefuseTooLittle() {
+        try {
+            AtomicSale.paymentOutputs(Collections.singletonList(usdInput(20_000L, 0)), usMintUsd, 21_000L,
+                    alice.getInfo().getLegalIdentities().get(0), bob.getInfo().getLegalIdentities().get(0));
+            fail("It should have failed");
+        } catch (FlowException e) {
+            assertEquals("The currency inputs do not cover the price of 21000", e.getMessage());
+        }
     }
 
 }
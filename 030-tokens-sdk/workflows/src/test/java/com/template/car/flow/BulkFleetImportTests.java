@@ -0,0 +1,179 @@
+package com.template.car.flow;
+
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.template.car.CarTokenType;
+import com.template.car.flow.BulkFleetImport.FleetRecord;
+import com.template.car.flow.BulkFleetImport.HeldCar;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNodeParameters;
+import net.corda.testing.node.StartedMockNode;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class BulkFleetImportTests {
+    private final MockNetwork network;
+    private final StartedMockNode notary;
+    private final StartedMockNode dmv;
+    private final StartedMockNode bmwDealer;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+
+    public BulkFleetImportTests() {
+        network = new MockNetwork(CarTokenCourseHelpers.prepareMockNetworkParameters());
+        notary = network.getDefaultNotaryNode();
+        dmv = network.createNode(new MockNodeParameters()
+                .withLegalName(CarTokenTypeConstants.DMV));
+        bmwDealer = network.createNode(new MockNodeParameters()
+                .withLegalName(CarTokenTypeConstants.BMW_DEALER));
+        alice = network.createNode();
+        bob = network.createNode();
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private static Party partyOf(@NotNull final StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    @NotNull
+    private List<HeldCar> createCarTypes(@NotNull final List<FleetRecord> records) throws Exception {
+        final CordaFuture<List<HeldCar>> future = dmv.startFlow(new BulkFleetImport.CreateCarTypes(
+                partyOf(notary), records, Collections.singletonList(partyOf(bmwDealer))));
+        network.runNetwork();
+        return future.get();
+    }
+
+    @Test
+    public void csvIsReadWithTheHolderLast() throws Exception {
+        final String csv = "# vin,make,price,holder\n" +
+                "abc123,BMW,30000," + partyOf(alice).getName() + "\n" +
+                "\n" +
+                "def456,BMW,25000," + partyOf(bob).getName() + "\n";
+
+        final List<FleetRecord> records = dmv.transaction(() -> {
+            try {
+                return BulkFleetImport.readCsv(
+                        new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8)),
+                        dmv.getServices().getIdentityService());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        assertEquals(2, records.size());
+        assertEquals("abc123", records.get(0).getVin());
+        assertEquals(30_000L, records.get(0).getPrice());
+        assertEquals(partyOf(alice), records.get(0).getHolder());
+        assertEquals(partyOf(bob), records.get(1).getHolder());
+    }
+
+    @Test
+    public void chunkSplitsByCarAndHolderCounts() {
+        final HeldCar alice1 = new HeldCar(new UniqueIdentifier(), partyOf(alice));
+        final HeldCar alice2 = new HeldCar(new UniqueIdentifier(), partyOf(alice));
+        final HeldCar bob1 = new HeldCar(new UniqueIdentifier(), partyOf(bob));
+
+        assertEquals(Arrays.asList(Arrays.asList(alice1, alice2), Collections.singletonList(bob1)),
+                BulkFleetImport.IssueCars.chunk(Arrays.asList(alice1, alice2, bob1), 2, 10));
+        assertEquals(Arrays.asList(Arrays.asList(alice1, alice2), Collections.singletonList(bob1)),
+                BulkFleetImport.IssueCars.chunk(Arrays.asList(alice1, alice2, bob1), 10, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lanesRefuseAVinThatWouldBeCreatedInTwoLanes() {
+        // Dealt round-robin to 2 lanes, each abc123 would end up in its own lane.
+        BulkFleetImport.CreateCarTypes.lanes(partyOf(notary), Arrays.asList(
+                new FleetRecord("abc123", "BMW", 30_000L, partyOf(alice)),
+                new FleetRecord("abc123", "BMW", 30_000L, partyOf(bob))),
+                Collections.emptyList(), 2);
+    }
+
+    @Test
+    public void createCarTypesIsRefusedIfNotDmv() throws Throwable {
+        final CordaFuture<List<HeldCar>> future = bmwDealer.startFlow(new BulkFleetImport.CreateCarTypes(
+                partyOf(notary),
+                Collections.singletonList(new FleetRecord("abc123", "BMW", 30_000L, partyOf(alice))),
+                Collections.emptyList()));
+        network.runNetwork();
+        try {
+            future.get();
+            throw new AssertionError("It should have failed");
+        } catch (ExecutionException e) {
+            assertEquals("We are not the DMV", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void fleetIsImportedWithFewerIssueTransactions() throws Exception {
+        final List<HeldCar> heldCars = createCarTypes(Arrays.asList(
+                new FleetRecord("abc123", "BMW", 30_000L, partyOf(alice)),
+                new FleetRecord("def456", "BMW", 25_000L, partyOf(alice)),
+                new FleetRecord("ghi789", "BMW", 40_000L, partyOf(bob))));
+        assertEquals(3, heldCars.size());
+        final List<CarTokenType> dealerCars = bmwDealer.transaction(() -> bmwDealer.getServices().getVaultService()
+                .queryBy(CarTokenType.class).getStates()).stream()
+                .map(it -> it.getState().getData())
+                .collect(Collectors.toList());
+        assertEquals(3, dealerCars.size());
+
+        final CordaFuture<List<SecureHash>> future = bmwDealer.startFlow(new BulkFleetImport.IssueCars(heldCars));
+        network.runNetwork();
+        final List<SecureHash> txIds = future.get();
+
+        // All 3 cars in a single transaction.
+        assertEquals(1, txIds.size());
+        final SignedTransaction issueTx = alice.getServices().getValidatedTransactions().getTransaction(txIds.get(0));
+        assertNotNull(issueTx);
+        assertEquals(3, issueTx.getTx().outputsOfType(NonFungibleToken.class).size());
+        assertEquals(2, alice.transaction(() -> alice.getServices().getVaultService()
+                .queryBy(NonFungibleToken.class).getStates()).size());
+        assertEquals(1, bob.transaction(() -> bob.getServices().getVaultService()
+                .queryBy(NonFungibleToken.class).getStates()).size());
+    }
+
+    @Test
+    public void lanesShareTheWork() throws Exception {
+        final List<HeldCar> heldCars = createCarTypes(Arrays.asList(
+                new FleetRecord("abc123", "BMW", 30_000L, partyOf(alice)),
+                new FleetRecord("def456", "BMW", 25_000L, partyOf(bob))));
+
+        final List<BulkFleetImport.IssueCars> lanes = BulkFleetImport.IssueCars.lanes(heldCars, 1, 10, 4);
+        assertEquals(2, lanes.size());
+        final CordaFuture<List<SecureHash>> future1 = bmwDealer.startFlow(lanes.get(0));
+        final CordaFuture<List<SecureHash>> future2 = bmwDealer.startFlow(lanes.get(1));
+        network.runNetwork();
+
+        assertEquals(1, future1.get().size());
+        assertEquals(1, future2.get().size());
+        assertEquals(1, bob.transaction(() -> bob.getServices().getVaultService()
+                .queryBy(NonFungibleToken.class).getStates()).size());
+    }
+
+}
@@ -8,10 +8,16 @@ import net.corda.testing.node.TestCordapp;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Collections;
+import java.util.Map;
 
 public interface CarTokenCourseHelpers {
     @NotNull
     static MockNetworkParameters prepareMockNetworkParameters() {
+        return prepareMockNetworkParameters(Collections.emptyMap());
+    }
+
+    @NotNull
+    static MockNetworkParameters prepareMockNetworkParameters(@NotNull final Map<String, ?> flowConfig) {
         return new MockNetworkParameters()
                 .withNotarySpecs(Collections.singletonList(new MockNetworkNotarySpec(CarTokenTypeConstants.NOTARY)))
                 .withCordappsForAllNodes(ImmutableList.of(
@@ -20,7 +26,7 @@ public interface CarTokenCourseHelpers {
                         TestCordapp.findCordapp("com.r3.corda.lib.tokens.money"),
                         TestCordapp.findCordapp("com.r3.corda.lib.tokens.selection"),
                         TestCordapp.findCordapp("com.template.states"),
-                        TestCordapp.findCordapp("com.template.flows")))
+                        TestCordapp.findCordapp("com.template.flows").withConfig(flowConfig)))
                 .withNetworkParameters(ParametersUtilitiesKt.testNetworkParameters(
                         Collections.emptyList(), 4
                 ));
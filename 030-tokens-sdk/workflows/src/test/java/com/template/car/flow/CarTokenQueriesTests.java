@@ -0,0 +1,123 @@
+package com.template.car.flow;
+
+import com.template.car.CarTokenType;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNodeParameters;
+import net.corda.testing.node.StartedMockNode;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_SIZE;
+import static org.junit.Assert.*;
+
+public class CarTokenQueriesTests {
+    private final MockNetwork network;
+    private final StartedMockNode notary;
+    private final StartedMockNode dmv;
+
+    public CarTokenQueriesTests() {
+        network = new MockNetwork(CarTokenCourseHelpers.prepareMockNetworkParameters());
+        notary = network.getDefaultNotaryNode();
+        dmv = network.createNode(new MockNodeParameters()
+                .withLegalName(CarTokenTypeConstants.DMV));
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private StateAndRef<CarTokenType> createCar(
+            @NotNull final String vin,
+            @NotNull final String make,
+            final long price) throws Exception {
+        final CordaFuture<SignedTransaction> future = dmv.startFlow(new IssueCarTokenTypeFlow(
+                notary.getInfo().getLegalIdentities().get(0), vin, make, price, Collections.emptyList()));
+        network.runNetwork();
+        return future.get().getCoreTransaction().outRefsOfType(CarTokenType.class).get(0);
+    }
+
+    @Nullable
+    private StateAndRef<CarTokenType> findByVinOnDmv(@NotNull final String vin) {
+        return dmv.transaction(() -> {
+            try {
+                return CarTokenQueries.findByVin(dmv.getServices(), vin);
+            } catch (FlowException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @Test
+    public void carIsFoundByVin() throws Exception {
+        createCar("abc123", "BMW", 30_000L);
+        final StateAndRef<CarTokenType> created = createCar("abc124", "BMW", 25_000L);
+
+        assertEquals(created, findByVinOnDmv("abc124"));
+        assertNull(findByVinOnDmv("zzz999"));
+    }
+
+    @Test
+    public void updatedCarIsFoundOnceByVin() throws Exception {
+        final StateAndRef<CarTokenType> created = createCar("abc123", "BMW", 30_000L);
+        final CordaFuture<SignedTransaction> future = dmv.startFlow(new UpdateCarTokenTypeFlow(
+                created, 8_000L, 22_000L, Collections.emptyList()));
+        network.runNetwork();
+        final StateAndRef<CarTokenType> updated = future.get().getCoreTransaction()
+                .outRefsOfType(CarTokenType.class).get(0);
+
+        assertEquals(updated, findByVinOnDmv("abc123"));
+    }
+
+    @Test
+    public void carsOfMakeAreFilteredAndSortedByPrice() throws Exception {
+        createCar("abc123", "BMW", 30_000L);
+        createCar("abc124", "BMW", 25_000L);
+        createCar("abc125", "BMW", 50_000L);
+        createCar("abc126", "Mini", 20_000L);
+
+        final List<String> vins = dmv.transaction(() -> dmv.getServices().getVaultService().queryBy(
+                CarTokenType.class,
+                CarTokenQueries.ofMakeAtMost("BMW", 30_000L),
+                new PageSpecification(DEFAULT_PAGE_NUM, DEFAULT_PAGE_SIZE),
+                CarTokenQueries.sortByPrice(Sort.Direction.ASC))
+                .getStates()).stream()
+                .map(it -> it.getState().getData().getVin())
+                .collect(Collectors.toList());
+        assertEquals(Arrays.asList("abc124", "abc123"), vins);
+    }
+
+    @Test
+    public void duplicateVinIsRefused() throws Exception {
+        createCar("abc123", "BMW", 30_000L);
+        try {
+            createCar("abc123", "BMW", 25_000L);
+            fail("It should have failed");
+        } catch (ExecutionException e) {
+            assertEquals("There already is a car with VIN abc123", e.getCause().getMessage());
+        }
+    }
+
+}
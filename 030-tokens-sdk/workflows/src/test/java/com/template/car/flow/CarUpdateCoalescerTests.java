@@ -0,0 +1,198 @@
+package com.template.car.flow;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.template.car.CarTokenType;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNodeParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class CarUpdateCoalescerTests {
+    private final MockNetwork network;
+    private final StartedMockNode notary;
+    private final StartedMockNode dmv;
+
+    public CarUpdateCoalescerTests() {
+        network = new MockNetwork(CarTokenCourseHelpers.prepareMockNetworkParameters()
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.money"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.selection"),
+                        TestCordapp.findCordapp("com.template.states"),
+                        TestCordapp.findCordapp("com.template.flows")
+                                .withConfig(ImmutableMap.of(
+                                        CarUpdateCoalescer.FLUSH_INTERVAL_KEY, 0,
+                                        CarUpdateCoalescer.MILEAGE_THRESHOLD_KEY, 1_000,
+                                        CarUpdateCoalescer.MAX_FLUSH_ATTEMPTS_KEY, 2)))));
+        notary = network.getDefaultNotaryNode();
+        dmv = network.createNode(new MockNodeParameters()
+                .withLegalName(CarTokenTypeConstants.DMV));
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private CarUpdateCoalescer coalescer() {
+        return dmv.getServices().cordaService(CarUpdateCoalescer.class);
+    }
+
+    @NotNull
+    private UniqueIdentifier createCar() throws Exception {
+        final CordaFuture<SignedTransaction> future = dmv.startFlow(new IssueCarTokenTypeFlow(
+                notary.getInfo().getLegalIdentities().get(0), "abc123", "BMW", 30_000L, Collections.emptyList()));
+        network.runNetwork();
+        return future.get().getCoreTransaction().outputsOfType(CarTokenType.class).get(0).getLinearId();
+    }
+
+    private void submit(@NotNull final UniqueIdentifier carId, final long mileage, final long price)
+            throws Exception {
+        final CordaFuture<Void> future = dmv.startFlow(new CoalescedCarUpdateFlows.Submit(
+                carId, mileage, price, Collections.emptyList()));
+        network.runNetwork();
+        future.get();
+    }
+
+    @NotNull
+    private List<StateAndRef<CarTokenType>> carsInVault() {
+        return dmv.transaction(() -> dmv.getServices().getVaultService().queryBy(CarTokenType.class).getStates());
+    }
+
+    /**
+     * The service starts flows from its own thread, so we have to let the network run until they are done.
+     */
+    private void runNetworkUntilIdle(@NotNull final UniqueIdentifier carId) throws InterruptedException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            network.runNetwork();
+            if (!coalescer().isBusyWith(carId)) return;
+            Thread.sleep(100);
+        }
+        fail("The flush did not finish in time.");
+    }
+
+    @Test
+    public void readingsAreCoalescedIntoOneUpdate() throws Exception {
+        final UniqueIdentifier carId = createCar();
+        submit(carId, 100L, 29_000L);
+        submit(carId, 300L, 28_000L);
+        // Out of order, its mileage is ignored but its price is the latest.
+        submit(carId, 200L, 27_000L);
+        assertEquals(0L, carsInVault().get(0).getState().getData().getMileage());
+
+        final List<CordaFuture<SignedTransaction>> flushed = coalescer().flush();
+        network.runNetwork();
+
+        assertEquals(1, flushed.size());
+        assertNotNull(flushed.get(0).get());
+        final CarTokenType car = carsInVault().get(0).getState().getData();
+        assertEquals(300L, car.getMileage());
+        assertEquals(27_000L, car.getPrice());
+        assertFalse(coalescer().isBusyWith(carId));
+    }
+
+    @Test
+    public void nothingNewIsNotWritten() throws Exception {
+        final UniqueIdentifier carId = createCar();
+        submit(carId, 0L, 30_000L);
+
+        final List<CordaFuture<SignedTransaction>> flushed = coalescer().flush();
+        network.runNetwork();
+
+        assertNull(flushed.get(0).get());
+        assertTrue(coalescer().flush().isEmpty());
+    }
+
+    @Test
+    public void thresholdFlushesWithoutWaiting() throws Exception {
+        final UniqueIdentifier carId = createCar();
+        submit(carId, 400L, 30_000L);
+        assertTrue(coalescer().isBusyWith(carId));
+
+        submit(carId, 1_200L, 29_000L);
+        runNetworkUntilIdle(carId);
+
+        assertEquals(1_200L, carsInVault().get(0).getState().getData().getMileage());
+    }
+
+    @Test
+    public void failedFlushIsPutBackForTheNextOne() throws Exception {
+        final UniqueIdentifier carId = createCar();
+        // No node answers for this observer, so the update transaction cannot be finalised.
+        final Party stranger = new TestIdentity(new CordaX500Name("Stranger", "Paris", "FR")).getParty();
+        final CordaFuture<Void> submitted = dmv.startFlow(new CoalescedCarUpdateFlows.Submit(
+                carId, 100L, 29_000L, Collections.singletonList(stranger)));
+        network.runNetwork();
+        submitted.get();
+
+        assertFlushFails(coalescer().flush());
+        // The reading was put back, so the next flush starts a new flow for it.
+        assertFlushFails(flushWhenRequeued());
+
+        // Both attempts are used up, so the reading was dropped instead of being tried at every flush.
+        for (int attempt = 0; attempt < 50 && coalescer().isBusyWith(carId); attempt++) Thread.sleep(100);
+        assertFalse(coalescer().isBusyWith(carId));
+        assertTrue(coalescer().flush().isEmpty());
+    }
+
+    private void assertFlushFails(@NotNull final List<CordaFuture<SignedTransaction>> flushed)
+            throws InterruptedException {
+        network.runNetwork();
+        assertEquals(1, flushed.size());
+        try {
+            flushed.get(0).get();
+            fail("It should have failed");
+        } catch (ExecutionException e) {
+            // Expected.
+        }
+    }
+
+    /**
+     * The failed reading is put back once its flow has ended, which may be a little after its future is done.
+     */
+    @NotNull
+    private List<CordaFuture<SignedTransaction>> flushWhenRequeued() throws InterruptedException {
+        List<CordaFuture<SignedTransaction>> flushed = coalescer().flush();
+        for (int attempt = 0; attempt < 50 && flushed.isEmpty(); attempt++) {
+            Thread.sleep(100);
+            flushed = coalescer().flush();
+        }
+        return flushed;
+    }
+
+    @Test
+    public void unknownCarIsRefused() throws Exception {
+        try {
+            submit(new UniqueIdentifier(), 100L, 30_000L);
+            fail("It should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().startsWith("Unknown car"));
+        }
+    }
+
+}
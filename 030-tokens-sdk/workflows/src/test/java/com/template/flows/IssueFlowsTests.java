@@ -2,10 +2,14 @@ package com.template.flows;
 
 import com.google.common.collect.ImmutableList;
 import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.utilities.TransactionUtilitiesKt;
+import com.template.states.AirMileType;
 import javafx.util.Pair;
 import net.corda.core.concurrent.CordaFuture;
 import net.corda.core.contracts.ContractState;
 import net.corda.core.contracts.TransactionState;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.AbstractParty;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.testing.node.MockNetwork;
 import net.corda.testing.node.StartedMockNode;
@@ -13,6 +17,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -220,4 +225,82 @@ public class IssueFlowsTests {
         assertHasStatesInVault(dan, Collections.emptyList());
     }
 
+    @Test
+    public void chunkSplitsByOutputCount() {
+        final Pair<AbstractParty, Long> bob10 = new NodeHolding(bob, 10L).toPair();
+        final List<List<Pair<AbstractParty, Long>>> chunks = IssueFlows.BulkInitiator.chunk(
+                Arrays.asList(bob10, bob10, bob10, bob10, bob10), 2, 10);
+        assertEquals(Arrays.asList(
+                Arrays.asList(bob10, bob10),
+                Arrays.asList(bob10, bob10),
+                Collections.singletonList(bob10)), chunks);
+    }
+
+    @Test
+    public void chunkSplitsByDistinctHolderCount() {
+        final Pair<AbstractParty, Long> bob10 = new NodeHolding(bob, 10L).toPair();
+        final Pair<AbstractParty, Long> carly20 = new NodeHolding(carly, 20L).toPair();
+        final Pair<AbstractParty, Long> dan30 = new NodeHolding(dan, 30L).toPair();
+        final List<List<Pair<AbstractParty, Long>>> chunks = IssueFlows.BulkInitiator.chunk(
+                Arrays.asList(bob10, carly20, bob10, dan30, carly20), 10, 2);
+        assertEquals(Arrays.asList(
+                Arrays.asList(bob10, carly20, bob10),
+                Arrays.asList(dan30, carly20)), chunks);
+    }
+
+    @Test
+    public void lanesAreBoundedByParallelism() {
+        final Pair<AbstractParty, Long> bob10 = new NodeHolding(bob, 10L).toPair();
+        final List<Pair<AbstractParty, Long>> heldQuantities = Arrays.asList(bob10, bob10, bob10, bob10, bob10);
+        assertEquals(2, IssueFlows.BulkInitiator.lanes(heldQuantities, 1, 10, 2).size());
+        assertEquals(5, IssueFlows.BulkInitiator.lanes(heldQuantities, 1, 10, 8).size());
+    }
+
+    @Test
+    public void issuedTokensCarryTheJarHashTheSdkWouldHaveComputed() throws Exception {
+        final SecureHash expected = TransactionUtilitiesKt.getAttachmentIdForGenericParam(new AirMileType());
+        final IssueFlows.BulkInitiator flow = new IssueFlows.BulkInitiator(ImmutableList.of(
+                new Pair<>(bob.getInfo().getLegalIdentities().get(0), 10L),
+                new Pair<>(carly.getInfo().getLegalIdentities().get(0), 20L)), 1, 10);
+        final CordaFuture<List<SecureHash>> future = alice.startFlow(flow);
+        network.runNetwork();
+        final List<SecureHash> txIds = future.get();
+
+        // Each chunk got its own Initiator, and all of them stamped the same hash on their outputs.
+        assertEquals(2, txIds.size());
+        for (final SecureHash txId : txIds) {
+            final SignedTransaction tx = alice.getServices().getValidatedTransactions().getTransaction(txId);
+            assertNotNull(tx);
+            final List<FungibleToken> outputs = tx.getTx().outputsOfType(FungibleToken.class);
+            assertEquals(1, outputs.size());
+            assertEquals(expected, outputs.get(0).getTokenTypeJarHash());
+        }
+    }
+
+    @Test
+    public void bulkInitiatorIssuesEachChunkInItsOwnTransaction() throws Exception {
+        final FungibleToken expected1 = createFrom(alice, bob, 10L);
+        final FungibleToken expected2 = createFrom(alice, bob, 20L);
+        final FungibleToken expected3 = createFrom(alice, carly, 30L);
+
+        final IssueFlows.BulkInitiator flow = new IssueFlows.BulkInitiator(ImmutableList.of(
+                toPair(expected1),
+                toPair(expected2),
+                toPair(expected3)), 2, 10);
+        final CordaFuture<List<SecureHash>> future = alice.startFlow(flow);
+        network.runNetwork();
+        final List<SecureHash> txIds = future.get();
+
+        assertEquals(2, txIds.size());
+        final SignedTransaction firstTx = alice.getServices().getValidatedTransactions().getTransaction(txIds.get(0));
+        assertNotNull(firstTx);
+        assertEquals(2, firstTx.getTx().getOutputs().size());
+        final SignedTransaction secondTx = carly.getServices().getValidatedTransactions().getTransaction(txIds.get(1));
+        assertNotNull(secondTx);
+        assertEquals(expected3, secondTx.getTx().getOutputs().get(0).getData());
+        assertHasStatesInVault(bob, ImmutableList.of(expected1, expected2));
+        assertHasStatesInVault(carly, ImmutableList.of(expected3));
+        assertHasStatesInVault(dan, Collections.emptyList());
+    }
+
 }
@@ -0,0 +1,143 @@
+package com.template.usd;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.selection.TokenQueryBy;
+import com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.*;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class FungibleTokenIndexTests {
+    private final MockNetwork network;
+    private final StartedMockNode usMint;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+    private final IssuedTokenType usMintUsd;
+
+    public FungibleTokenIndexTests() {
+        network = new MockNetwork(new MockNetworkParameters()
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.money"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.selection"),
+                        TestCordapp.findCordapp("com.template.states"),
+                        TestCordapp.findCordapp("com.template.flows")
+                                .withConfig(ImmutableMap.of(
+                                        FungibleTokenIndex.MODE_KEY, FungibleTokenIndex.MODE_MEMORY)))));
+        usMint = network.createNode(new MockNodeParameters()
+                .withLegalName(UsdTokenConstants.US_MINT));
+        alice = network.createNode();
+        bob = network.createNode();
+        usMintUsd = new IssuedTokenType(partyOf(usMint), new TokenType("USD", 2));
+    }
+
+    @Before
+    public void setup() throws Exception {
+        network.runNetwork();
+        final CordaFuture<SignedTransaction> future = usMint.startFlow(new IssueUsdFlow(partyOf(alice), 100L));
+        network.runNetwork();
+        future.get();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private static Party partyOf(@NotNull final StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    @NotNull
+    private static FungibleTokenIndex indexOf(@NotNull final StartedMockNode node) {
+        return node.getServices().cordaService(FungibleTokenIndex.class);
+    }
+
+    @Test
+    public void isEnabledByTheConfiguration() {
+        assertTrue(indexOf(alice).isEnabled());
+    }
+
+    @Test
+    public void issuedTokensAreIndexedByHolder() {
+        assertEquals(10_000L, indexOf(alice).quantityOf(partyOf(alice).getOwningKey(), usMintUsd));
+        assertEquals(0L, indexOf(bob).quantityOf(partyOf(bob).getOwningKey(), usMintUsd));
+    }
+
+    @Test
+    public void selectedTokensAreNotSelectedAgain() {
+        final List<StateAndRef<FungibleToken>> first = alice.transaction(() -> indexOf(alice).select(
+                UUID.randomUUID(), partyOf(alice).getOwningKey(), usMintUsd, 6_000L));
+        assertNotNull(first);
+        assertEquals(1, first.size());
+
+        assertNull(alice.transaction(() -> indexOf(alice).select(
+                UUID.randomUUID(), partyOf(alice).getOwningKey(), usMintUsd, 1_000L)));
+    }
+
+    @Test
+    public void tokensComeBackWhenTheirSoftLockIsReleased() {
+        final UUID lockId = UUID.randomUUID();
+        assertNotNull(alice.transaction(() -> indexOf(alice).select(
+                lockId, partyOf(alice).getOwningKey(), usMintUsd, 6_000L)));
+        // As the node does when the flow ends without spending them.
+        alice.transaction(() -> {
+            alice.getServices().getVaultService().softLockRelease(lockId, null);
+            return null;
+        });
+
+        assertNotNull(alice.transaction(() -> indexOf(alice).select(
+                UUID.randomUUID(), partyOf(alice).getOwningKey(), usMintUsd, 1_000L)));
+    }
+
+    @Test
+    public void callerCriteriaAndPredicateAreApplied() {
+        final TokenQueryBy heldByBob = new TokenQueryBy(partyOf(usMint), it -> true,
+                QueryUtilitiesKt.heldTokenAmountCriteria(usMintUsd.getTokenType(), partyOf(bob)));
+        assertNull(alice.transaction(() -> indexOf(alice).select(
+                UUID.randomUUID(), partyOf(alice).getOwningKey(), usMintUsd, 1_000L, heldByBob)));
+        final TokenQueryBy nothing = new TokenQueryBy(partyOf(usMint), it -> false, null);
+        assertNull(alice.transaction(() -> indexOf(alice).select(
+                UUID.randomUUID(), partyOf(alice).getOwningKey(), usMintUsd, 1_000L, nothing)));
+
+        // Those refused were not kept reserved.
+        final TokenQueryBy heldByAlice = new TokenQueryBy(partyOf(usMint), it -> true,
+                QueryUtilitiesKt.heldTokenAmountCriteria(usMintUsd.getTokenType(), partyOf(alice)));
+        assertNotNull(alice.transaction(() -> indexOf(alice).select(
+                UUID.randomUUID(), partyOf(alice).getOwningKey(), usMintUsd, 1_000L, heldByAlice)));
+    }
+
+    @Test
+    public void tooLittleIsNotSelected() {
+        assertNull(alice.transaction(() -> indexOf(alice).select(
+                UUID.randomUUID(), partyOf(alice).getOwningKey(), usMintUsd, 10_001L)));
+    }
+
+    @Test
+    public void movedTokensFollowTheVault() throws Exception {
+        final CordaFuture<SignedTransaction> future = alice.startFlow(new MoveUsdFlow(partyOf(bob), 30L));
+        network.runNetwork();
+        future.get();
+
+        assertEquals(7_000L, indexOf(alice).quantityOf(partyOf(alice).getOwningKey(), usMintUsd));
+        assertEquals(3_000L, indexOf(bob).quantityOf(partyOf(bob).getOwningKey(), usMintUsd));
+    }
+
+}
@@ -0,0 +1,356 @@
+package com.template.car.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.r3.corda.lib.tokens.contracts.commands.MoveTokenCommand;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.types.TokenPointer;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
+import com.r3.corda.lib.tokens.selection.TokenQueryBy;
+import com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilitiesKt;
+import com.r3.corda.lib.tokens.workflows.internal.flows.distribution.UpdateDistributionListFlow;
+import com.r3.corda.lib.tokens.workflows.types.PartyAndToken;
+import com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt;
+import com.template.car.state.CarTokenType;
+import com.template.identity.BatchedKeySync;
+import com.template.identity.PartyResolutionCache;
+import com.template.usd.PreferredSelection;
+import kotlin.Pair;
+import net.corda.core.contracts.*;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import java.security.PublicKey;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt.heldTokenCriteria;
+
+/**
+ * Like {@link AtomicSaleAccountsSafe}, but it sells several cars, each to its own buyer, in a single session and a
+ * single transaction. All the buyers have to be on the same host, and each pays for its own cars at the price of their
+ * car info. The number of lines per transaction is capped by the CorDapp configuration of each side, for instance:
+ * <pre>
+ * batchSaleMaxLines=100
+ * </pre>
+ */
+public interface AtomicBatchSaleAccountsSafe {
+
+    String MAX_LINES_KEY = "batchSaleMaxLines";
+    int DEFAULT_MAX_LINES = 100;
+
+    static int maxLines(@NotNull final ServiceHub serviceHub) {
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        return config.exists(MAX_LINES_KEY) ? config.getInt(MAX_LINES_KEY) : DEFAULT_MAX_LINES;
+    }
+
+    /**
+     * A car and who buys it.
+     */
+    @CordaSerializable
+    class SaleLine {
+        @NotNull
+        private final TokenPointer<CarTokenType> car;
+        @NotNull
+        private final AbstractParty buyer;
+
+        public SaleLine(@NotNull final TokenPointer<CarTokenType> car, @NotNull final AbstractParty buyer) {
+            //noinspection ConstantConditions
+            if (car == null) throw new NullPointerException("The car cannot be null");
+            //noinspection ConstantConditions
+            if (buyer == null) throw new NullPointerException("The buyer cannot be null");
+            this.car = car;
+            this.buyer = buyer;
+        }
+
+        @NotNull
+        public TokenPointer<CarTokenType> getCar() {
+            return car;
+        }
+
+        @NotNull
+        public AbstractParty getBuyer() {
+            return buyer;
+        }
+
+        @NotNull
+        public UniqueIdentifier getCarId() {
+            return car.getPointer().getPointer();
+        }
+    }
+
+    /**
+     * Its responder flow is {@link CarBuyer}.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    class CarSeller extends FlowLogic<SignedTransaction> {
+
+        @NotNull
+        private final List<SaleLine> lines;
+        @NotNull
+        private final IssuedTokenType issuedCurrency;
+
+        public CarSeller(@NotNull final List<SaleLine> lines, @NotNull final IssuedTokenType issuedCurrency) {
+            //noinspection ConstantConditions
+            if (lines == null) throw new NullPointerException("The lines cannot be null");
+            //noinspection ConstantConditions
+            if (issuedCurrency == null) throw new NullPointerException("The issuedCurrency cannot be null");
+            if (lines.isEmpty()) throw new IllegalArgumentException("There must be at least one line");
+            final long distinctCars = lines.stream().map(SaleLine::getCarId).distinct().count();
+            if (distinctCars != lines.size()) throw new IllegalArgumentException("A car is in more than one line");
+            this.lines = new ArrayList<>(lines);
+            this.issuedCurrency = issuedCurrency;
+        }
+
+        @Suspendable
+        @Override
+        @NotNull
+        public SignedTransaction call() throws FlowException {
+            final int maxLines = maxLines(getServiceHub());
+            if (maxLines < lines.size())
+                throw new FlowException("There are " + lines.size() + " lines, more than the " + maxLines + " allowed");
+            // We need to have been informed about these possibly anonymous identities ahead of time.
+            final PartyResolutionCache resolutionCache = getServiceHub().cordaService(PartyResolutionCache.class);
+            final Set<Party> buyerHosts = new HashSet<>();
+            for (final SaleLine line : lines) {
+                final Party host = resolutionCache.wellKnownPartyOf(line.getBuyer());
+                if (host == null) throw new FlowException("This buyer is unknown: " + line.getBuyer());
+                buyerHosts.add(host);
+            }
+            if (buyerHosts.size() != 1) throw new FlowException("The buyers are not all on the same host");
+            final FlowSession buyerSession = initiateFlow(buyerHosts.iterator().next());
+
+            // Fetch the latest known states, in the order of the lines.
+            final List<StateAndRef<CarTokenType>> carInfos = new ArrayList<>(lines.size());
+            final List<StateAndRef<NonFungibleToken>> heldCarTokens = new ArrayList<>(lines.size());
+            for (final SaleLine line : lines) {
+                carInfos.add(line.getCar().getPointer().resolve(getServiceHub()));
+                final List<StateAndRef<NonFungibleToken>> held = getServiceHub().getVaultService()
+                        .queryBy(NonFungibleToken.class, heldTokenCriteria(line.getCar())).getStates();
+                if (held.size() != 1) throw new FlowException("NonFungibleToken not found for " + line.getCarId());
+                heldCarTokens.add(held.get(0));
+            }
+            // The only notary the seller and buyer have no control over is that of the car infos.
+            final Set<Party> notaries = carInfos.stream()
+                    .map(it -> it.getState().getNotary())
+                    .collect(Collectors.toSet());
+            if (notaries.size() != 1) throw new FlowException("The cars are not all on the same notary");
+
+            // Send the lines with their evidence, and the currency desired.
+            subFlow(new SendStateAndRefFlow(buyerSession, carInfos));
+            subFlow(new SendStateAndRefFlow(buyerSession, heldCarTokens));
+            buyerSession.send(lines);
+            buyerSession.send(issuedCurrency);
+
+            // Move each car token to its buyer, and work out what is due to each of our holders.
+            final TransactionBuilder txBuilder = new TransactionBuilder(notaries.iterator().next());
+            final Map<AbstractParty, Long> dueToSellers = new HashMap<>();
+            for (int index = 0; index < lines.size(); index++) {
+                final SaleLine line = lines.get(index);
+                MoveTokensUtilitiesKt.addMoveNonFungibleTokens(txBuilder, getServiceHub(),
+                        new PartyAndToken(line.getBuyer(), line.getCar()), null);
+                final long price = AmountUtilitiesKt.amount(carInfos.get(index).getState().getData().getPrice(),
+                        issuedCurrency.getTokenType()).getQuantity();
+                dueToSellers.merge(heldCarTokens.get(index).getState().getData().getHolder(), price, Math::addExact);
+            }
+
+            // Receive the currency states that will go in input.
+            final List<StateAndRef<FungibleToken>> currencyInputs = subFlow(new ReceiveStateAndRefFlow<>(buyerSession));
+            // We are going to sign with our holder keys, so none of their money should be coming in.
+            final long holderCurrencyInputCount = currencyInputs.stream()
+                    .filter(it -> dueToSellers.containsKey(it.getState().getData().getHolder()))
+                    .count();
+            if (holderCurrencyInputCount != 0)
+                throw new FlowException("The buyer sent us some of the holders' token states: " +
+                        holderCurrencyInputCount);
+            // Resolve the input holders we do not know, in one go.
+            subFlow(new BatchedKeySync.Request(buyerSession, currencyInputs.stream()
+                    .map(it -> it.getState().getData().getHolder().getOwningKey())
+                    .collect(Collectors.toList())));
+
+            // Receive the currency states that will go in output, and make sure each holder is paid in full.
+            // noinspection unchecked
+            final List<FungibleToken> currencyOutputs = buyerSession.receive(List.class).unwrap(it -> it);
+            final Map<AbstractParty, Long> paidToSellers = new HashMap<>();
+            currencyOutputs.stream()
+                    .filter(it -> dueToSellers.containsKey(it.getHolder()))
+                    .filter(it -> it.getIssuedTokenType().equals(issuedCurrency))
+                    .forEach(it -> paidToSellers.merge(it.getHolder(), it.getAmount().getQuantity(), Math::addExact));
+            for (final Map.Entry<AbstractParty, Long> due : dueToSellers.entrySet()) {
+                final long paid = paidToSellers.getOrDefault(due.getKey(), 0L);
+                if (paid < due.getValue())
+                    throw new FlowException("Holder " + due.getKey() + " was paid only " + paid +
+                            " instead of the expected " + due.getValue());
+            }
+            MoveTokensUtilitiesKt.addMoveTokens(txBuilder, currencyInputs, currencyOutputs);
+
+            // Sign with all our holder keys and send it to the buyer host for signature.
+            final List<PublicKey> sellerKeys = dueToSellers.keySet().stream()
+                    .map(AbstractParty::getOwningKey)
+                    .collect(Collectors.toList());
+            final SignedTransaction partSignedTx = getServiceHub().signInitialTransaction(txBuilder, sellerKeys);
+            final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(partSignedTx,
+                    Collections.singletonList(buyerSession), sellerKeys));
+
+            // Distribute updates of the evolvable car tokens.
+            subFlow(new UpdateDistributionListFlow(fullySignedTx));
+
+            return subFlow(new FinalityFlow(fullySignedTx, Collections.singletonList(buyerSession)));
+        }
+    }
+
+    @SuppressWarnings("unused")
+    @InitiatedBy(CarSeller.class)
+    class CarBuyer extends FlowLogic<SignedTransaction> {
+        @NotNull
+        private final FlowSession sellerSession;
+
+        public CarBuyer(@NotNull final FlowSession sellerSession) {
+            this.sellerSession = sellerSession;
+        }
+
+        @Suspendable
+        @Override
+        @NotNull
+        public SignedTransaction call() throws FlowException {
+            // Receive the lines with their evidence.
+            final List<StateAndRef<CarTokenType>> carInfos = subFlow(new ReceiveStateAndRefFlow<>(sellerSession));
+            final List<StateAndRef<NonFungibleToken>> heldCarTokens = subFlow(new ReceiveStateAndRefFlow<>(sellerSession));
+            //noinspection unchecked
+            final List<SaleLine> lines = sellerSession.receive(List.class).unwrap(it -> it);
+            final IssuedTokenType issuedCurrency = sellerSession.receive(IssuedTokenType.class).unwrap(it -> it);
+            final int maxLines = maxLines(getServiceHub());
+            if (maxLines < lines.size())
+                throw new FlowException("There are " + lines.size() + " lines, more than the " + maxLines + " allowed");
+
+            // Index the evidence by car linear id.
+            final Map<UniqueIdentifier, StateAndRef<CarTokenType>> carInfoById = new HashMap<>();
+            carInfos.forEach(it -> carInfoById.put(it.getState().getData().getLinearId(), it));
+            final Map<UniqueIdentifier, StateAndRef<NonFungibleToken>> heldCarById = new HashMap<>();
+            for (final StateAndRef<NonFungibleToken> heldCar : heldCarTokens) {
+                //noinspection unchecked
+                heldCarById.put(((TokenPointer<CarTokenType>) heldCar.getState().getData().getTokenType())
+                        .getPointer().getPointer(), heldCar);
+            }
+            final Map<UniqueIdentifier, SaleLine> lineById = new HashMap<>();
+            lines.forEach(it -> lineById.put(it.getCarId(), it));
+            if (lineById.size() != lines.size()) throw new FlowException("A car is in more than one line");
+            if (!carInfoById.keySet().equals(lineById.keySet()) || !heldCarById.keySet().equals(lineById.keySet()))
+                throw new FlowException("The car infos and held cars do not correspond to the lines");
+
+            // Each buyer pays for its own cars, to the holder of each car.
+            final Set<PublicKey> buyerKeys = lines.stream()
+                    .map(it -> it.getBuyer().getOwningKey())
+                    .collect(Collectors.toSet());
+            final Set<PublicKey> ourBuyerKeys = new HashSet<>();
+            getServiceHub().getKeyManagementService().filterMyKeys(buyerKeys).forEach(ourBuyerKeys::add);
+            if (!ourBuyerKeys.equals(buyerKeys)) throw new FlowException("Some buyers are not ours");
+            final Map<AbstractParty, List<Pair<AbstractParty, Amount<TokenType>>>> paymentsPerBuyer = new LinkedHashMap<>();
+            for (final SaleLine line : lines) {
+                final Amount<TokenType> price = AmountUtilitiesKt.amount(
+                        carInfoById.get(line.getCarId()).getState().getData().getPrice(),
+                        issuedCurrency.getTokenType());
+                paymentsPerBuyer.computeIfAbsent(line.getBuyer(), it -> new ArrayList<>())
+                        .add(new Pair<>(heldCarById.get(line.getCarId()).getState().getData().getHolder(), price));
+            }
+            final QueryCriteria properlyIssued = QueryUtilitiesKt.tokenAmountWithIssuerCriteria(
+                    issuedCurrency.getTokenType(), issuedCurrency.getIssuer());
+            final List<StateAndRef<FungibleToken>> currencyInputs = new ArrayList<>();
+            final List<FungibleToken> currencyOutputs = new ArrayList<>();
+            for (final Map.Entry<AbstractParty, List<Pair<AbstractParty, Amount<TokenType>>>> payments :
+                    paymentsPerBuyer.entrySet()) {
+                final QueryCriteria heldByBuyer = QueryUtilitiesKt.heldTokenAmountCriteria(
+                        issuedCurrency.getTokenType(), payments.getKey());
+                final Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> inputsAndOutputs =
+                        PreferredSelection.generateMove(this, payments.getValue(), payments.getKey(), issuedCurrency,
+                                new TokenQueryBy(issuedCurrency.getIssuer(), it -> true,
+                                        heldByBuyer.and(properlyIssued)));
+                currencyInputs.addAll(inputsAndOutputs.getFirst());
+                currencyOutputs.addAll(inputsAndOutputs.getSecond());
+            }
+
+            // Send the currency states that will go in input, along with their history.
+            subFlow(new SendStateAndRefFlow(sellerSession, currencyInputs));
+            // Prove the input holders that the seller misses.
+            subFlow(new BatchedKeySync.Provide(sellerSession, currencyInputs.stream()
+                    .map(it -> it.getState().getData().getHolder().getOwningKey())
+                    .collect(Collectors.toSet())));
+            // Send the currency states that will go in output.
+            sellerSession.send(currencyOutputs);
+
+            // Sign the received transaction, once we have checked each line.
+            final SecureHash signedTxId = subFlow(new SignTransactionFlow(sellerSession) {
+                @Override
+                protected void checkTransaction(@NotNull SignedTransaction stx) throws FlowException {
+                    // There should be no extra inputs, other than the cars.
+                    final Set<StateRef> allKnownInputs = currencyInputs.stream()
+                            .map(StateAndRef::getRef)
+                            .collect(Collectors.toSet());
+                    heldCarById.values().forEach(it -> allKnownInputs.add(it.getRef()));
+                    if (!new HashSet<>(stx.getInputs()).equals(allKnownInputs))
+                        throw new FlowException("Inconsistency in input refs compared to expectation");
+
+                    // The currency outputs have to be those we gave, in the same order.
+                    final List<ContractState> allOutputs = stx.getCoreTransaction().getOutputStates();
+                    final List<FungibleToken> allCurrencyOutputs = allOutputs.stream()
+                            .filter(it -> it instanceof FungibleToken)
+                            .map(it -> (FungibleToken) it)
+                            .collect(Collectors.toList());
+                    if (!currencyOutputs.equals(allCurrencyOutputs))
+                        throw new FlowException("Inconsistency in FungibleToken outputs compared to expectation");
+
+                    // Each car has to go to the buyer of its line.
+                    final Map<UniqueIdentifier, NonFungibleToken> outputCarById = new HashMap<>();
+                    for (final ContractState output : allOutputs) {
+                        if (output instanceof FungibleToken) continue;
+                        if (!(output instanceof NonFungibleToken)) throw new FlowException("Unexpected output");
+                        final NonFungibleToken outputCar = (NonFungibleToken) output;
+                        if (outputCarById.put(outputCar.getLinearId(), outputCar) != null)
+                            throw new FlowException("This car is in output more than once: " + outputCar.getLinearId());
+                    }
+                    if (outputCarById.size() != lines.size()) throw new FlowException("Wrong count of car outputs");
+                    for (final SaleLine line : lines) {
+                        final NonFungibleToken heldCar = heldCarById.get(line.getCarId()).getState().getData();
+                        final NonFungibleToken outputCar = outputCarById.get(heldCar.getLinearId());
+                        if (outputCar == null) throw new FlowException("This car is missing: " + line.getCarId());
+                        if (!outputCar.getHolder().equals(line.getBuyer()))
+                            throw new FlowException("This car is not held by its buyer: " + line.getCarId());
+                        if (!outputCar.getIssuedTokenType().equals(heldCar.getIssuedTokenType()))
+                            throw new FlowException("This car changed its token type: " + line.getCarId());
+                    }
+
+                    // There should only be move commands, one per car and one for the currency.
+                    final Set<IssuedTokenType> expectedMoves = heldCarById.values().stream()
+                            .map(it -> it.getState().getData().getIssuedTokenType())
+                            .collect(Collectors.toSet());
+                    expectedMoves.add(issuedCurrency);
+                    final List<Command<?>> commands = stx.getTx().getCommands();
+                    if (commands.size() != expectedMoves.size())
+                        throw new FlowException("There are not the " + expectedMoves.size() + " expected commands");
+                    final Set<IssuedTokenType> moves = new HashSet<>();
+                    for (final Command<?> command : commands) {
+                        if (!(command.getValue() instanceof MoveTokenCommand))
+                            throw new FlowException("There is a command other than a move");
+                        moves.add(((MoveTokenCommand) command.getValue()).getToken());
+                    }
+                    if (!moves.equals(expectedMoves))
+                        throw new FlowException("The move commands do not correspond to the lines");
+                }
+            }).getId();
+
+            return subFlow(new ReceiveFinalityFlow(sellerSession, signedTxId));
+        }
+    }
+}
@@ -9,12 +9,12 @@ import com.r3.corda.lib.tokens.contracts.types.TokenPointer;
 import com.r3.corda.lib.tokens.contracts.types.TokenType;
 import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
 import com.r3.corda.lib.tokens.selection.TokenQueryBy;
-import com.r3.corda.lib.tokens.selection.database.selector.DatabaseTokenSelection;
 import com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilitiesKt;
 import com.r3.corda.lib.tokens.workflows.internal.flows.distribution.UpdateDistributionListFlow;
 import com.r3.corda.lib.tokens.workflows.types.PartyAndToken;
 import com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt;
 import com.template.car.state.CarTokenType;
+import com.template.usd.PreferredSelection;
 import kotlin.Pair;
 import net.corda.core.contracts.*;
 import net.corda.core.crypto.SecureHash;
@@ -31,7 +31,6 @@ import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import static com.r3.corda.lib.tokens.selection.database.config.DatabaseSelectionConfigKt.*;
 import static com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt.heldTokenCriteria;
 
 public interface AtomicSale {
@@ -186,13 +185,12 @@ public interface AtomicSale {
             final Amount<TokenType> priceInCurrency = AmountUtilitiesKt.amount(price, issuedCurrency.getTokenType());
             // Generate the buyer's currency inputs, to be spent, and the outputs, the currency tokens that will be
             // held by Alice.
-            final DatabaseTokenSelection tokenSelection = new DatabaseTokenSelection(
-                    getServiceHub(), MAX_RETRIES_DEFAULT, RETRY_SLEEP_DEFAULT, RETRY_CAP_DEFAULT, PAGE_SIZE_DEFAULT);
-            final Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> inputsAndOutputs = tokenSelection.generateMove(
-                    Collections.singletonList(new Pair<>(sellerSession.getCounterparty(), priceInCurrency)),
-                    getOurIdentity(),
-                    new TokenQueryBy(issuedCurrency.getIssuer(), it -> true, heldByMe.and(properlyIssued)),
-                    getRunId().getUuid());
+            final Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> inputsAndOutputs =
+                    PreferredSelection.generateMove(this,
+                            Collections.singletonList(new Pair<>(sellerSession.getCounterparty(), priceInCurrency)),
+                            getOurIdentity(),
+                            issuedCurrency,
+                            new TokenQueryBy(issuedCurrency.getIssuer(), it -> true, heldByMe.and(properlyIssued)));
 
             // Send the currency states that will go in input, along with their history.
             subFlow(new SendStateAndRefFlow(sellerSession, inputsAndOutputs.getFirst()));
@@ -8,26 +8,88 @@ import com.r3.corda.lib.accounts.workflows.flows.SendKeyForAccountFlow;
 import com.r3.corda.lib.accounts.workflows.services.AccountService;
 import com.r3.corda.lib.ci.workflows.ProvideKeyFlow;
 import com.r3.corda.lib.ci.workflows.RequestKeyFlow;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
 import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
 import com.r3.corda.lib.tokens.contracts.types.TokenPointer;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.selection.TokenQueryBy;
+import com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt;
 import com.template.car.state.CarTokenType;
+import com.template.identity.BatchedKeySync;
+import com.template.identity.PartyResolutionCache;
+import com.template.usd.FungibleTokenIndex;
+import com.template.usd.PreferredSelection;
+import kotlin.Pair;
+import net.corda.core.contracts.Amount;
 import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.DigitalSignature;
+import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.AnonymousParty;
 import net.corda.core.identity.Party;
 import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
 import net.corda.core.transactions.SignedTransaction;
 import org.jetbrains.annotations.NotNull;
 
+import java.security.PublicKey;
 import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
 public interface AtomicSaleAccounts {
 
+    /**
+     * The buyer host generates the buyer's key when the seller requests it.
+     */
+    int PROTOCOL_V1 = 1;
+    /**
+     * The seller sends an {@link AccountKeyRequest}, and the buyer host answers with a key of the account that it took
+     * from its {@link ConfidentialKeyPool}, signed to prove that it holds it.
+     */
+    int PROTOCOL_V2 = 2;
+    /**
+     * As {@link #PROTOCOL_V2}, and the seller resolves the currency input holders it does not know with a single
+     * {@link BatchedKeySync}.
+     */
+    int PROTOCOL_V3 = 3;
+
+    /**
+     * What the seller sends to get a key of the buyer account, in place of the request of {@link RequestKeyFlow}, so
+     * that the buyer host can answer with a key it generated ahead of time.
+     */
+    @CordaSerializable
+    class AccountKeyRequest {
+        @NotNull
+        private final SecureHash nonce;
+        @NotNull
+        private final UUID accountId;
+
+        public AccountKeyRequest(@NotNull final SecureHash nonce, @NotNull final UUID accountId) {
+            //noinspection ConstantConditions
+            if (nonce == null) throw new NullPointerException("The nonce cannot be null");
+            //noinspection ConstantConditions
+            if (accountId == null) throw new NullPointerException("The accountId cannot be null");
+            this.nonce = nonce;
+            this.accountId = accountId;
+        }
+
+        @NotNull
+        public SecureHash getNonce() {
+            return nonce;
+        }
+
+        @NotNull
+        public UUID getAccountId() {
+            return accountId;
+        }
+    }
+
     /**
      * Its responder flow is {@link CarBuyer}.
      */
-    @InitiatingFlow
+    @InitiatingFlow(version = PROTOCOL_V3)
     class CarSeller extends FlowLogic<SignedTransaction> {
 
         @NotNull
@@ -67,21 +129,41 @@ public interface AtomicSaleAccounts {
             // We can now pass off to the safe atomic sale.
 
             return subFlow(new AtomicSaleAccountsSafe.CarSellerFlow(car, buyerSession, issuedCurrency) {
+                @Override
+                protected boolean isKeySyncBatched() {
+                    return PROTOCOL_V3 <= buyerSession.getCounterpartyFlowInfo().getFlowVersion();
+                }
+
                 @NotNull
                 @Override
                 protected FlowLogic<AbstractParty> getSyncBuyerPartyFlow() {
                     // Wrapping it to avoid having to cast to FlowLogic<? extends Abstract>.
                     return new FlowLogic<AbstractParty>() {
                         /**
-                         * We use {@link RequestKeyFlow} and {@link ProvideKeyFlow} instead of
-                         * {@link RequestKeyForAccountFlow} because {@link SendKeyForAccountFlow} returns only Unit
+                         * With a version 1 buyer, we use {@link RequestKeyFlow} and {@link ProvideKeyFlow} instead
+                         * of {@link RequestKeyForAccountFlow} because {@link SendKeyForAccountFlow} returns only Unit.
+                         * From version 2, we send an {@link AccountKeyRequest}, which lets the buyer host answer with a
+                         * key from its pool.
                          */
                         @NotNull
                         @Suspendable
                         @Override
                         public AbstractParty call() throws FlowException {
-                            return subFlow(new RequestKeyFlow(
-                                    buyerSession, buyerAccount.getState().getData().getLinearId().getId()));
+                            if (buyerSession.getCounterpartyFlowInfo().getFlowVersion() < PROTOCOL_V2) {
+                                return subFlow(new RequestKeyFlow(
+                                        buyerSession, buyerAccount.getState().getData().getLinearId().getId()));
+                            }
+                            // A single message pair, as with the version 1 request.
+                            final SecureHash nonce = SecureHash.randomSHA256();
+                            final DigitalSignature.WithKey proof = buyerSession.sendAndReceive(
+                                    DigitalSignature.WithKey.class, new AccountKeyRequest(nonce, buyer))
+                                    .unwrap(it -> it);
+                            final PublicKey buyerKey = proof.getBy();
+                            if (!proof.isValid(BatchedKeySync.ownershipClaim(nonce, buyerKey)))
+                                throw new FlowException("The proof of ownership of the buyer key is invalid");
+                            getServiceHub().getIdentityService().registerKey(buyerKey, buyerHost, null);
+                            getServiceHub().cordaService(PartyResolutionCache.class).put(buyerKey, buyerHost);
+                            return new AnonymousParty(buyerKey);
                         }
                     };
                 }
@@ -114,24 +196,55 @@ public interface AtomicSaleAccounts {
                 throw new FlowException("We are not this account's host");
             // We can now pass off to the safe atomic sale.
             return subFlow(new AtomicSaleAccountsSafe.CarBuyerFlow(sellerSession) {
+                @Override
+                protected boolean isKeySyncBatched() {
+                    return PROTOCOL_V3 <= sellerSession.getCounterpartyFlowInfo().getFlowVersion();
+                }
+
                 @NotNull
                 @Override
                 protected FlowLogic<AbstractParty> getSyncBuyerPartyHandlerFlow() {
                     // Wrapping it to avoid having to cast to FlowLogic<? extends Abstract>.
                     return new FlowLogic<AbstractParty>() {
                         /**
-                         * We use {@link RequestKeyFlow} and {@link ProvideKeyFlow} instead of
-                         * {@link RequestKeyForAccountFlow} because {@link SendKeyForAccountFlow} returns only Unit
+                         * With a version 1 seller, we use {@link RequestKeyFlow} and {@link ProvideKeyFlow} instead
+                         * of {@link RequestKeyForAccountFlow} because {@link SendKeyForAccountFlow} returns only Unit.
+                         * From version 2, we answer its {@link AccountKeyRequest} with a key from our
+                         * {@link ConfidentialKeyPool}.
                          */
                         @Suspendable
                         @NotNull
                         @Override
                         public AbstractParty call() throws FlowException {
-                            return subFlow(new ProvideKeyFlow(sellerSession));
+                            if (sellerSession.getCounterpartyFlowInfo().getFlowVersion() < PROTOCOL_V2) {
+                                return subFlow(new ProvideKeyFlow(sellerSession));
+                            }
+                            final AccountKeyRequest request = sellerSession.receive(AccountKeyRequest.class)
+                                    .unwrap(it -> {
+                                        if (!it.getAccountId().equals(buyer))
+                                            throw new FlowException("The key request is not for the buyer account");
+                                        return it;
+                                    });
+                            PublicKey buyerKey = getServiceHub().cordaService(ConfidentialKeyPool.class)
+                                    .take(buyer);
+                            // The pool is disabled or was emptied faster than it could be refilled.
+                            if (buyerKey == null) {
+                                buyerKey = getServiceHub().getKeyManagementService().freshKey(buyer);
+                            }
+                            // The car is going to be held by this key, so it had better be the account's.
+                            if (!buyer.equals(getServiceHub().getIdentityService().externalIdForPublicKey(buyerKey)))
+                                throw new FlowException("The buyer key is not mapped to the buyer account");
+                            sellerSession.send(getServiceHub().getKeyManagementService().sign(
+                                    BatchedKeySync.ownershipClaim(request.getNonce(), buyerKey), buyerKey));
+                            return new AnonymousParty(buyerKey);
                         }
                     };
                 }
 
+                /**
+                 * This joins the external id mapping, so it is only used when selecting from the database. The
+                 * {@link FungibleTokenIndex} already knows which keys are the account's.
+                 */
                 @NotNull
                 @Override
                 protected QueryCriteria getHeldByBuyer(
@@ -140,6 +253,25 @@ public interface AtomicSaleAccounts {
                     return new QueryCriteria.VaultQueryCriteria()
                             .withExternalIds(Collections.singletonList(buyer));
                 }
+
+                /**
+                 * The inputs can be held by any key of the buyer account, not only by the new one. The states picked
+                 * in memory are only checked against the issuer.
+                 */
+                @Suspendable
+                @NotNull
+                @Override
+                protected Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> generateMove(
+                        @NotNull final List<Pair<AbstractParty, Amount<TokenType>>> partiesAndAmounts,
+                        @NotNull final AbstractParty changeHolder,
+                        @NotNull final IssuedTokenType issuedCurrency,
+                        @NotNull final TokenQueryBy databaseQueryBy) {
+                    final TokenQueryBy memoryQueryBy = new TokenQueryBy(issuedCurrency.getIssuer(), it -> true,
+                            QueryUtilitiesKt.tokenAmountWithIssuerCriteria(
+                                    issuedCurrency.getTokenType(), issuedCurrency.getIssuer()));
+                    return PreferredSelection.generateMoveForAccount(this, partiesAndAmounts, buyer, changeHolder,
+                            issuedCurrency, memoryQueryBy, databaseQueryBy);
+                }
             });
         }
     }
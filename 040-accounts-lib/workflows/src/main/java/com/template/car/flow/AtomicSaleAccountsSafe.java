@@ -11,12 +11,14 @@ import com.r3.corda.lib.tokens.contracts.types.TokenPointer;
 import com.r3.corda.lib.tokens.contracts.types.TokenType;
 import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
 import com.r3.corda.lib.tokens.selection.TokenQueryBy;
-import com.r3.corda.lib.tokens.selection.database.selector.DatabaseTokenSelection;
 import com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilitiesKt;
 import com.r3.corda.lib.tokens.workflows.internal.flows.distribution.UpdateDistributionListFlow;
 import com.r3.corda.lib.tokens.workflows.types.PartyAndToken;
 import com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt;
 import com.template.car.state.CarTokenType;
+import com.template.identity.BatchedKeySync;
+import com.template.identity.PartyResolutionCache;
+import com.template.usd.PreferredSelection;
 import kotlin.Pair;
 import net.corda.core.contracts.*;
 import net.corda.core.crypto.SecureHash;
@@ -34,15 +36,24 @@ import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 
-import static com.r3.corda.lib.tokens.selection.database.config.DatabaseSelectionConfigKt.*;
 import static com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt.heldTokenCriteria;
 
 public interface AtomicSaleAccountsSafe {
 
+    /**
+     * The seller sends the currency input holders it does not know, and the buyer syncs them with
+     * {@link SyncKeyMappingFlow}.
+     */
+    int PROTOCOL_V1 = 1;
+    /**
+     * The seller resolves the currency input holders it does not know with a single {@link BatchedKeySync}.
+     */
+    int PROTOCOL_V2 = 2;
+
     /**
      * Its responder flow is {@link CarBuyer}.
      */
-    @InitiatingFlow
+    @InitiatingFlow(version = PROTOCOL_V2)
     class CarSeller extends FlowLogic<SignedTransaction> {
 
         @NotNull
@@ -72,9 +83,19 @@ public interface AtomicSaleAccountsSafe {
         @Override
         public SignedTransaction call() throws FlowException {
             // We need to have been informed about this possibly anonymous identity ahead of time.
-            final Party buyerHost = getServiceHub().getIdentityService().requireWellKnownPartyFromAnonymous(buyer);
+            final Party buyerHost;
+            try {
+                buyerHost = getServiceHub().cordaService(PartyResolutionCache.class).requireWellKnownPartyOf(buyer);
+            } catch (IllegalArgumentException e) {
+                throw new FlowException(e.getMessage(), e);
+            }
             final FlowSession buyerSession = initiateFlow(buyerHost);
             return subFlow(new CarSellerFlow(car, buyerSession, issuedCurrency) {
+                @Override
+                protected boolean isKeySyncBatched() {
+                    return PROTOCOL_V2 <= buyerSession.getCounterpartyFlowInfo().getFlowVersion();
+                }
+
                 @NotNull
                 @Override
                 protected FlowLogic<AbstractParty> getSyncBuyerPartyFlow() {
@@ -127,6 +148,12 @@ public interface AtomicSaleAccountsSafe {
         @NotNull
         abstract protected FlowLogic<AbstractParty> getSyncBuyerPartyFlow();
 
+        /**
+         * @return Whether the buyer resolves the keys we miss with {@link BatchedKeySync}, which has to match
+         * {@link CarBuyerFlow#isKeySyncBatched()}.
+         */
+        abstract protected boolean isKeySyncBatched();
+
         @Suspendable
         @Override
         @NotNull
@@ -173,16 +200,26 @@ public interface AtomicSaleAccountsSafe {
                         holderCurrencyInputCount);
             // Other than that, we do not care much about the inputs as we expect that any error will be caught by the
             // contract.
-            // Collect the missing public keys
-            final List<AbstractParty> missingKeys = currencyInputs.stream()
-                    .map(it -> it.getState().getData().getHolder())
-                    .distinct()
-                    .filter(it -> getServiceHub().getIdentityService().wellKnownPartyFromAnonymous(it) == null)
-                    .collect(Collectors.toList());
-            // And send them.
-            buyerSession.send(missingKeys);
-            // Receive the resolutions.
-            subFlow(new SyncKeyMappingFlowHandler(buyerSession));
+            final PartyResolutionCache resolutionCache = getServiceHub().cordaService(PartyResolutionCache.class);
+            if (isKeySyncBatched()) {
+                // Resolve the missing public keys in one go.
+                subFlow(new BatchedKeySync.Request(buyerSession, currencyInputs.stream()
+                        .map(it -> it.getState().getData().getHolder().getOwningKey())
+                        .collect(Collectors.toList())));
+            } else {
+                // Collect the missing public keys
+                final List<AbstractParty> missingKeys = currencyInputs.stream()
+                        .map(it -> it.getState().getData().getHolder())
+                        .distinct()
+                        .filter(it -> resolutionCache.wellKnownPartyOf(it) == null)
+                        .collect(Collectors.toList());
+                // And send them.
+                buyerSession.send(missingKeys);
+                // Receive the resolutions.
+                subFlow(new SyncKeyMappingFlowHandler(buyerSession));
+                // They went straight to the identity service.
+                missingKeys.forEach(it -> resolutionCache.forget(it.getOwningKey()));
+            }
 
             // Receive the currency states that will go in output.
             // noinspection unchecked
@@ -235,6 +272,11 @@ public interface AtomicSaleAccountsSafe {
         @Override
         public SignedTransaction call() throws FlowException {
             return subFlow(new CarBuyerFlow(sellerSession) {
+                @Override
+                protected boolean isKeySyncBatched() {
+                    return PROTOCOL_V2 <= sellerSession.getCounterpartyFlowInfo().getFlowVersion();
+                }
+
                 @NotNull
                 @Override
                 protected FlowLogic<AbstractParty> getSyncBuyerPartyHandlerFlow() {
@@ -278,11 +320,33 @@ public interface AtomicSaleAccountsSafe {
         @NotNull
         abstract protected FlowLogic<AbstractParty> getSyncBuyerPartyHandlerFlow();
 
+        /**
+         * @return Whether the seller resolves the keys it misses with {@link BatchedKeySync}, which has to match
+         * {@link CarSellerFlow#isKeySyncBatched()}.
+         */
+        abstract protected boolean isKeySyncBatched();
+
         @NotNull
         abstract protected QueryCriteria getHeldByBuyer(
                 @NotNull final IssuedTokenType issuedCurrency,
                 @NotNull final AbstractParty buyer) throws FlowException;
 
+        /**
+         * @param changeHolder    The buyer, who keeps the change.
+         * @param databaseQueryBy Built on {@link #getHeldByBuyer}, for when the tokens are selected from the database.
+         * @return The currency inputs and outputs, selected by holder.
+         */
+        @Suspendable
+        @NotNull
+        protected Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> generateMove(
+                @NotNull final List<Pair<AbstractParty, Amount<TokenType>>> partiesAndAmounts,
+                @NotNull final AbstractParty changeHolder,
+                @NotNull final IssuedTokenType issuedCurrency,
+                @NotNull final TokenQueryBy databaseQueryBy) {
+            return PreferredSelection.generateMove(
+                    this, partiesAndAmounts, changeHolder, issuedCurrency, databaseQueryBy);
+        }
+
         @Suspendable
         @Override
         @NotNull
@@ -320,15 +384,13 @@ public interface AtomicSaleAccountsSafe {
             final Amount<TokenType> priceInCurrency = AmountUtilitiesKt.amount(price, issuedCurrency.getTokenType());
             // Generate the buyer's currency inputs, to be spent, and the outputs, the currency tokens that will be
             // held by the seller.
-            final DatabaseTokenSelection tokenSelection = new DatabaseTokenSelection(
-                    getServiceHub(), MAX_RETRIES_DEFAULT, RETRY_SLEEP_DEFAULT, RETRY_CAP_DEFAULT, PAGE_SIZE_DEFAULT);
-            final Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> inputsAndOutputs = tokenSelection.generateMove(
+            final Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> inputsAndOutputs = generateMove(
                     // Eventually held by the seller.
                     Collections.singletonList(new Pair<>(heldCarToken.getState().getData().getHolder(), priceInCurrency)),
                     // We see here that we should not rely on the default value, because the buyer keeps the change.
                     buyer,
-                    new TokenQueryBy(issuedCurrency.getIssuer(), it -> true, heldByBuyer.and(properlyIssued)),
-                    getRunId().getUuid());
+                    issuedCurrency,
+                    new TokenQueryBy(issuedCurrency.getIssuer(), it -> true, heldByBuyer.and(properlyIssued)));
 
             // Send the currency states that will go in input, along with their history.
             subFlow(new SendStateAndRefFlow(sellerSession, inputsAndOutputs.getFirst()));
@@ -337,14 +399,21 @@ public interface AtomicSaleAccountsSafe {
             final Set<AbstractParty> potentiallyMissingKeys = inputsAndOutputs.getFirst().stream()
                     .map(it -> it.getState().getData().getHolder())
                     .collect(Collectors.toSet());
-            // Receive from the seller the public keys actually missing.
-            //noinspection unchecked
-            final List<AbstractParty> missingKeys = (List<AbstractParty>) sellerSession.receive(List.class).unwrap(it -> it);
-            // Make sure we are not hoodwinked into disclosing unrelated keys.
-            if (!potentiallyMissingKeys.containsAll(missingKeys))
-                throw new FlowException("A missing key is not in the potentially missing keys");
-            // Send the resolution to these missing keys.
-            subFlow(new SyncKeyMappingFlow(sellerSession, missingKeys));
+            if (isKeySyncBatched()) {
+                // Prove the keys that the seller misses, and only those among the potentially missing ones.
+                subFlow(new BatchedKeySync.Provide(sellerSession, potentiallyMissingKeys.stream()
+                        .map(AbstractParty::getOwningKey)
+                        .collect(Collectors.toList())));
+            } else {
+                // Receive from the seller the public keys actually missing.
+                //noinspection unchecked
+                final List<AbstractParty> missingKeys = (List<AbstractParty>) sellerSession.receive(List.class).unwrap(it -> it);
+                // Make sure we are not hoodwinked into disclosing unrelated keys.
+                if (!potentiallyMissingKeys.containsAll(missingKeys))
+                    throw new FlowException("A missing key is not in the potentially missing keys");
+                // Send the resolution to these missing keys.
+                subFlow(new SyncKeyMappingFlow(sellerSession, missingKeys));
+            }
 
             // Send the currency states that will go in output.
             sellerSession.send(inputsAndOutputs.getSecond());
@@ -0,0 +1,222 @@
+package com.template.car.flow;
+
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * On the host of buyer accounts, each {@link AtomicSaleAccounts.CarBuyer} needs a fresh confidential key for its
+ * account, and generating and persisting it is a good share of the sale. This service generates them ahead of time,
+ * with {@link FillConfidentialKeyPoolFlow}, and keeps them per account. When an account has {@link #LOW_WATERMARK_KEY}
+ * keys or fewer left, it is refilled in the background up to {@link #HIGH_WATERMARK_KEY} keys. At most
+ * {@link #MAX_ACCOUNTS_KEY} accounts have a pool, and the one that was used the longest ago makes room for a new one.
+ * For instance, in the CorDapp configuration:
+ * <pre>
+ * confidentialKeyPoolLowWatermark=2
+ * confidentialKeyPoolHighWatermark=10
+ * confidentialKeyPoolMaxAccounts=1000
+ * </pre>
+ * A high watermark of 0 disables the pool. An account gets its pool at its first sale, or ahead of it with
+ * {@link #prefill(UUID)}. When its pool is empty, the sale generates its key on demand.
+ * The pool is in memory only. The keys it held when the node stops, or when the pool is evicted, are already mapped
+ * to their account, and are simply never used.
+ */
+@CordaService
+public class ConfidentialKeyPool extends SingletonSerializeAsToken {
+
+    public static final String LOW_WATERMARK_KEY = "confidentialKeyPoolLowWatermark";
+    public static final String HIGH_WATERMARK_KEY = "confidentialKeyPoolHighWatermark";
+    public static final String MAX_ACCOUNTS_KEY = "confidentialKeyPoolMaxAccounts";
+    public static final int DEFAULT_LOW_WATERMARK = 2;
+    public static final int DEFAULT_HIGH_WATERMARK = 10;
+    public static final int DEFAULT_MAX_ACCOUNTS = 1_000;
+
+    private final static Logger log = LoggerFactory.getLogger(ConfidentialKeyPool.class);
+
+    @NotNull
+    private final AppServiceHub serviceHub;
+    private final int lowWatermark;
+    private final int highWatermark;
+    // A single thread is enough, and it keeps the fill flows from being started from within the sale flows.
+    @NotNull
+    private final ExecutorService executor;
+    /**
+     * The keys ready for each account, in access order, so that the eldest is the least recently used. All access is
+     * synchronised on it.
+     */
+    @NotNull
+    private final Map<UUID, Pool> pools;
+
+    @SuppressWarnings("unused")
+    public ConfidentialKeyPool(@NotNull final AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.lowWatermark = config.exists(LOW_WATERMARK_KEY)
+                ? config.getInt(LOW_WATERMARK_KEY)
+                : DEFAULT_LOW_WATERMARK;
+        this.highWatermark = config.exists(HIGH_WATERMARK_KEY)
+                ? config.getInt(HIGH_WATERMARK_KEY)
+                : DEFAULT_HIGH_WATERMARK;
+        if (lowWatermark < 0) throw new IllegalArgumentException(LOW_WATERMARK_KEY + " cannot be negative");
+        if (highWatermark < 0) throw new IllegalArgumentException(HIGH_WATERMARK_KEY + " cannot be negative");
+        if (0 < highWatermark && highWatermark <= lowWatermark) {
+            throw new IllegalArgumentException(HIGH_WATERMARK_KEY + " must be greater than " + LOW_WATERMARK_KEY);
+        }
+        final int maxAccounts = config.exists(MAX_ACCOUNTS_KEY)
+                ? config.getInt(MAX_ACCOUNTS_KEY)
+                : DEFAULT_MAX_ACCOUNTS;
+        if (maxAccounts <= 0) throw new IllegalArgumentException(MAX_ACCOUNTS_KEY + " must be positive");
+        this.pools = new LinkedHashMap<UUID, Pool>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<UUID, Pool> eldest) {
+                return maxAccounts < size();
+            }
+        };
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "confidential-key-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isEnabled() {
+        return 0 < highWatermark;
+    }
+
+    /**
+     * Takes a key of the account out of its pool, and refills the pool if it is running low.
+     *
+     * @return The key, already mapped to the account, or null if the pool is disabled or empty, in which case the
+     * caller generates one on demand.
+     */
+    @Nullable
+    public PublicKey take(@NotNull final UUID accountId) {
+        if (!isEnabled()) return null;
+        final Pool pool;
+        final PublicKey key;
+        final int count;
+        synchronized (pools) {
+            pool = pools.computeIfAbsent(accountId, id -> new Pool());
+            key = pool.keys.pollFirst();
+            count = startFillIfLow(pool);
+        }
+        if (0 < count) executor.execute(() -> fill(accountId, pool, count));
+        return key;
+    }
+
+    /**
+     * Creates the pool of the account if needed, and fills it in the background if it is running low, so that its
+     * first sale does not have to generate its key on demand.
+     */
+    public void prefill(@NotNull final UUID accountId) {
+        if (!isEnabled()) return;
+        final Pool pool;
+        final int count;
+        synchronized (pools) {
+            pool = pools.computeIfAbsent(accountId, id -> new Pool());
+            count = startFillIfLow(pool);
+        }
+        if (0 < count) executor.execute(() -> fill(accountId, pool, count));
+    }
+
+    /**
+     * @return The number of keys ready for the account.
+     */
+    public int sizeOf(@NotNull final UUID accountId) {
+        synchronized (pools) {
+            final Pool pool = pools.get(accountId);
+            return pool == null ? 0 : pool.keys.size();
+        }
+    }
+
+    /**
+     * @return Whether the pool of this account is being filled.
+     */
+    public boolean isFilling(@NotNull final UUID accountId) {
+        return !whenFilled(accountId).isDone();
+    }
+
+    /**
+     * @return Done when the fill of the pool of this account that is under way, if any, is over, whether it worked
+     * or not.
+     */
+    @NotNull
+    public CompletableFuture<Void> whenFilled(@NotNull final UUID accountId) {
+        synchronized (pools) {
+            final Pool pool = pools.get(accountId);
+            return pool == null ? CompletableFuture.completedFuture(null) : pool.filled;
+        }
+    }
+
+    /**
+     * To be called while synchronised on {@link #pools}.
+     *
+     * @return The number of keys to generate for this pool, or 0 if it does not need a fill.
+     */
+    private int startFillIfLow(@NotNull final Pool pool) {
+        if (!pool.filled.isDone() || lowWatermark < pool.keys.size()) return 0;
+        pool.filled = new CompletableFuture<>();
+        return highWatermark - pool.keys.size();
+    }
+
+    private void fill(@NotNull final UUID accountId, @NotNull final Pool pool, final int count) {
+        final CordaFuture<List<PublicKey>> future;
+        try {
+            future = serviceHub.startFlow(new FillConfidentialKeyPoolFlow(accountId, count)).getReturnValue();
+        } catch (Exception e) {
+            log.error("Failed to start filling the key pool of account " + accountId, e);
+            doneFilling(pool, null);
+            return;
+        }
+        future.then(result -> {
+            List<PublicKey> keys = null;
+            try {
+                keys = result.get();
+            } catch (Exception e) {
+                log.error("Failed to fill the key pool of account " + accountId, e);
+            }
+            doneFilling(pool, keys);
+            return null;
+        });
+    }
+
+    /**
+     * The pool may have been evicted in the meantime, in which case its keys are never used.
+     */
+    private void doneFilling(@NotNull final Pool pool, @Nullable final List<PublicKey> keys) {
+        synchronized (pools) {
+            if (keys != null) pool.keys.addAll(keys);
+            pool.filled.complete(null);
+        }
+    }
+
+    /**
+     * The keys ready for an account.
+     */
+    private static class Pool {
+        @NotNull
+        private final Deque<PublicKey> keys = new ArrayDeque<>();
+        /**
+         * Not done while a fill flow is under way, so that only one at a time is.
+         */
+        @NotNull
+        private CompletableFuture<Void> filled = CompletableFuture.completedFuture(null);
+    }
+}
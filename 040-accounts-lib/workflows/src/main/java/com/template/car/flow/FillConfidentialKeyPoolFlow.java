@@ -0,0 +1,43 @@
+package com.template.car.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByService;
+import org.jetbrains.annotations.NotNull;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Started by the {@link ConfidentialKeyPool} to generate fresh keys for an account, each mapped to it, ahead of the
+ * sales that will use them.
+ */
+@StartableByService
+public class FillConfidentialKeyPoolFlow extends FlowLogic<List<PublicKey>> {
+
+    @NotNull
+    private final UUID accountId;
+    private final int count;
+
+    public FillConfidentialKeyPoolFlow(@NotNull final UUID accountId, final int count) {
+        //noinspection ConstantConditions
+        if (accountId == null) throw new NullPointerException("The accountId cannot be null");
+        if (count <= 0) throw new IllegalArgumentException("The count must be positive");
+        this.accountId = accountId;
+        this.count = count;
+    }
+
+    @Suspendable
+    @Override
+    @NotNull
+    public List<PublicKey> call() throws FlowException {
+        final List<PublicKey> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(getServiceHub().getKeyManagementService().freshKey(accountId));
+        }
+        return keys;
+    }
+}
@@ -5,6 +5,7 @@ import com.r3.corda.lib.ci.workflows.SyncKeyMappingFlow;
 import com.r3.corda.lib.ci.workflows.SyncKeyMappingFlowHandler;
 import com.template.dummy.state.DummyContract;
 import com.template.dummy.state.DummyState;
+import com.template.identity.BatchedKeySync;
 import net.corda.core.flows.*;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
@@ -20,7 +21,17 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public interface DummyFlow {
-    @InitiatingFlow
+
+    /**
+     * The observers get the parties with {@link SyncKeyMappingFlow}.
+     */
+    int PROTOCOL_V1 = 1;
+    /**
+     * The observers get the parties' keys, and resolve those they do not know with a single {@link BatchedKeySync}.
+     */
+    int PROTOCOL_V2 = 2;
+
+    @InitiatingFlow(version = PROTOCOL_V2)
     public class Create extends FlowLogic<SignedTransaction> {
         @NotNull
         private final List<DummyState> toCreate;
@@ -57,7 +68,12 @@ public interface DummyFlow {
                     .map(this::initiateFlow)
                     .collect(Collectors.toList());
             for (FlowSession observerSession : observerSessions) {
-                subFlow(new SyncKeyMappingFlow(observerSession, parties));
+                if (PROTOCOL_V2 <= observerSession.getCounterpartyFlowInfo().getFlowVersion()) {
+                    observerSession.send(signingKeys);
+                    subFlow(new BatchedKeySync.Provide(observerSession, signingKeys));
+                } else {
+                    subFlow(new SyncKeyMappingFlow(observerSession, parties));
+                }
             }
             return subFlow(new FinalityFlow(signedTx, observerSessions));
         }
@@ -75,7 +91,13 @@ public interface DummyFlow {
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            subFlow(new SyncKeyMappingFlowHandler(counterpartySession));
+            if (PROTOCOL_V2 <= counterpartySession.getCounterpartyFlowInfo().getFlowVersion()) {
+                //noinspection unchecked
+                final List<PublicKey> keys = counterpartySession.receive(List.class).unwrap(it -> it);
+                subFlow(new BatchedKeySync.Request(counterpartySession, keys));
+            } else {
+                subFlow(new SyncKeyMappingFlowHandler(counterpartySession));
+            }
             return subFlow(new ReceiveFinalityFlow(counterpartySession, null, StatesToRecord.ALL_VISIBLE));
         }
     }
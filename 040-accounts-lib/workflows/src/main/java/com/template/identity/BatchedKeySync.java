@@ -0,0 +1,170 @@
+package com.template.identity;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.crypto.DigitalSignature;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.Party;
+import net.corda.core.serialization.CordaSerializable;
+import org.jetbrains.annotations.NotNull;
+
+import java.security.PublicKey;
+import java.util.*;
+
+/**
+ * A key sync that resolves, in a single message pair, all the keys of a counterparty that we do not know yet. We send
+ * the keys we miss, with a nonce, and the counterparty sends back, for each, a signature of the nonce and the key made
+ * with that key, which proves that it holds the key. Only keys of the counterparty itself can be resolved like this.
+ * <p>
+ * {@link Request} and {@link Provide} are inline sub flows, to be called by both sides of an existing session.
+ */
+public interface BatchedKeySync {
+
+    /**
+     * @return What the holder of the key signs to prove it.
+     */
+    @NotNull
+    static byte[] ownershipClaim(@NotNull final SecureHash nonce, @NotNull final PublicKey key) {
+        final byte[] nonceBytes = nonce.getBytes();
+        final byte[] keyBytes = key.getEncoded();
+        final byte[] claim = Arrays.copyOf(nonceBytes, nonceBytes.length + keyBytes.length);
+        System.arraycopy(keyBytes, 0, claim, nonceBytes.length, keyBytes.length);
+        return claim;
+    }
+
+    /**
+     * What {@link Request} sends to {@link Provide}.
+     */
+    @CordaSerializable
+    class KeyRequest {
+        @NotNull
+        private final SecureHash nonce;
+        @NotNull
+        private final List<PublicKey> keys;
+
+        public KeyRequest(@NotNull final SecureHash nonce, @NotNull final List<PublicKey> keys) {
+            //noinspection ConstantConditions
+            if (nonce == null) throw new NullPointerException("The nonce cannot be null");
+            //noinspection ConstantConditions
+            if (keys == null) throw new NullPointerException("The keys cannot be null");
+            this.nonce = nonce;
+            this.keys = keys;
+        }
+
+        @NotNull
+        public SecureHash getNonce() {
+            return nonce;
+        }
+
+        @NotNull
+        public List<PublicKey> getKeys() {
+            return keys;
+        }
+    }
+
+    /**
+     * Its counterpart is {@link Provide}. It registers the proven keys in the identity service and in the
+     * {@link PartyResolutionCache}.
+     */
+    class Request extends FlowLogic<Map<PublicKey, Party>> {
+        @NotNull
+        private final FlowSession session;
+        @NotNull
+        private final Collection<PublicKey> keys;
+
+        /**
+         * @param keys The keys to resolve. Those already known are not requested.
+         */
+        public Request(@NotNull final FlowSession session, @NotNull final Collection<PublicKey> keys) {
+            //noinspection ConstantConditions
+            if (session == null) throw new NullPointerException("The session cannot be null");
+            //noinspection ConstantConditions
+            if (keys == null) throw new NullPointerException("The keys cannot be null");
+            this.session = session;
+            this.keys = keys;
+        }
+
+        /**
+         * @return The keys that were missing and are now resolved. Those the counterparty did not prove are not in it.
+         */
+        @Suspendable
+        @Override
+        @NotNull
+        public Map<PublicKey, Party> call() throws FlowException {
+            final PartyResolutionCache cache = getServiceHub().cordaService(PartyResolutionCache.class);
+            final Set<PublicKey> missing = new LinkedHashSet<>();
+            for (final PublicKey key : keys) {
+                if (cache.wellKnownPartyOf(new AnonymousParty(key)) == null) missing.add(key);
+            }
+            // We send even when nothing is missing, as the counterparty is waiting for it.
+            final SecureHash nonce = SecureHash.randomSHA256();
+            //noinspection unchecked
+            final List<DigitalSignature.WithKey> proofs = session.sendAndReceive(List.class,
+                    new KeyRequest(nonce, new ArrayList<>(missing))).unwrap(it -> it);
+
+            final Party counterparty = session.getCounterparty();
+            final Map<PublicKey, Party> resolved = new HashMap<>();
+            for (final DigitalSignature.WithKey proof : proofs) {
+                final PublicKey key = proof.getBy();
+                if (!missing.contains(key)) throw new FlowException("We did not request this key: " + key);
+                if (!proof.isValid(ownershipClaim(nonce, key)))
+                    throw new FlowException("The proof of ownership of this key is invalid: " + key);
+                getServiceHub().getIdentityService().registerKey(key, counterparty, null);
+                cache.put(key, counterparty);
+                resolved.put(key, counterparty);
+            }
+            return resolved;
+        }
+    }
+
+    /**
+     * Its counterpart is {@link Request}.
+     */
+    class Provide extends FlowLogic<List<PublicKey>> {
+        @NotNull
+        private final FlowSession session;
+        @NotNull
+        private final Set<PublicKey> disclosable;
+
+        /**
+         * @param disclosable The keys that the counterparty may request. It has to ask for a subset of them, so that
+         *                    we do not disclose unrelated keys.
+         */
+        public Provide(@NotNull final FlowSession session, @NotNull final Collection<PublicKey> disclosable) {
+            //noinspection ConstantConditions
+            if (session == null) throw new NullPointerException("The session cannot be null");
+            //noinspection ConstantConditions
+            if (disclosable == null) throw new NullPointerException("The disclosable cannot be null");
+            this.session = session;
+            this.disclosable = new HashSet<>(disclosable);
+        }
+
+        /**
+         * @return The keys that the counterparty requested.
+         */
+        @Suspendable
+        @Override
+        @NotNull
+        public List<PublicKey> call() throws FlowException {
+            final KeyRequest request = session.receive(KeyRequest.class).unwrap(it -> {
+                if (!disclosable.containsAll(it.getKeys()))
+                    throw new FlowException("A requested key is not in the disclosable keys");
+                return it;
+            });
+            final List<PublicKey> keys = request.getKeys();
+            final Set<PublicKey> ours = new HashSet<>();
+            getServiceHub().getKeyManagementService().filterMyKeys(keys).forEach(ours::add);
+            if (!ours.containsAll(keys)) throw new FlowException("A requested key is not ours");
+            final List<DigitalSignature.WithKey> proofs = new ArrayList<>(keys.size());
+            for (final PublicKey key : keys) {
+                proofs.add(getServiceHub().getKeyManagementService()
+                        .sign(ownershipClaim(request.getNonce(), key), key));
+            }
+            session.send(proofs);
+            return keys;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.template.identity;
+
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.security.PublicKey;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node-local cache in front of {@link net.corda.core.node.services.IdentityService#wellKnownPartyFromAnonymous},
+ * keyed by public key. The key of a party never changes hands, so a resolved key stays cached until it is evicted.
+ * An unknown key is cached for a short time only, because a key sync may register it at any time. For instance, in the
+ * CorDapp configuration:
+ * <pre>
+ * partyResolutionCacheSize=10000
+ * partyResolutionNegativeSeconds=30
+ * </pre>
+ * When the cache is full, it evicts the expired unknown keys first, then arbitrary entries.
+ * Flows that register keys outside of {@link BatchedKeySync} should {@link #forget} them.
+ */
+@CordaService
+public class PartyResolutionCache extends SingletonSerializeAsToken {
+
+    public static final String SIZE_KEY = "partyResolutionCacheSize";
+    public static final String NEGATIVE_SECONDS_KEY = "partyResolutionNegativeSeconds";
+    public static final int DEFAULT_SIZE = 10_000;
+    public static final long DEFAULT_NEGATIVE_SECONDS = 30L;
+
+    @NotNull
+    private final AppServiceHub serviceHub;
+    private final int maxSize;
+    private final long negativeNanos;
+    @NotNull
+    private final Map<PublicKey, Entry> entries;
+
+    @SuppressWarnings("unused")
+    public PartyResolutionCache(@NotNull final AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.maxSize = config.exists(SIZE_KEY) ? config.getInt(SIZE_KEY) : DEFAULT_SIZE;
+        final long negativeSeconds = config.exists(NEGATIVE_SECONDS_KEY)
+                ? config.getLong(NEGATIVE_SECONDS_KEY)
+                : DEFAULT_NEGATIVE_SECONDS;
+        if (maxSize <= 0) throw new IllegalArgumentException(SIZE_KEY + " must be positive");
+        if (negativeSeconds < 0) throw new IllegalArgumentException(NEGATIVE_SECONDS_KEY + " cannot be negative");
+        this.negativeNanos = TimeUnit.SECONDS.toNanos(negativeSeconds);
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Like {@link net.corda.core.node.services.IdentityService#wellKnownPartyFromAnonymous}. Call it from a flow, as
+     * a miss goes to the identity service.
+     *
+     * @return The well-known party, or null if the key is unknown.
+     */
+    @Nullable
+    public Party wellKnownPartyOf(@NotNull final AbstractParty party) {
+        if (party instanceof Party) return (Party) party;
+        final PublicKey key = party.getOwningKey();
+        final long now = System.nanoTime();
+        final Entry cached = entries.get(key);
+        if (cached != null && (cached.party != null || 0 < cached.expiresAt - now)) return cached.party;
+        final Party resolved = serviceHub.getIdentityService().wellKnownPartyFromAnonymous(party);
+        put(key, new Entry(resolved, now + negativeNanos), now);
+        return resolved;
+    }
+
+    /**
+     * Like {@link net.corda.core.node.services.IdentityService#requireWellKnownPartyFromAnonymous}.
+     */
+    @NotNull
+    public Party requireWellKnownPartyOf(@NotNull final AbstractParty party) {
+        final Party resolved = wellKnownPartyOf(party);
+        if (resolved == null) throw new IllegalArgumentException("Could not find Party for " + party);
+        return resolved;
+    }
+
+    /**
+     * Records a resolution that was just registered in the identity service.
+     */
+    public void put(@NotNull final PublicKey key, @NotNull final Party party) {
+        put(key, new Entry(party, 0L), System.nanoTime());
+    }
+
+    /**
+     * Drops what is cached about this key, so that the next resolution goes to the identity service.
+     */
+    public void forget(@NotNull final PublicKey key) {
+        entries.remove(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void put(@NotNull final PublicKey key, @NotNull final Entry entry, final long now) {
+        if (maxSize <= entries.size() && !entries.containsKey(key)) evict(now);
+        entries.put(key, entry);
+    }
+
+    /**
+     * Makes room for at least one entry. Concurrent puts may briefly take the cache above its size.
+     */
+    private void evict(final long now) {
+        entries.values().removeIf(it -> it.party == null && it.expiresAt - now <= 0);
+        final Iterator<PublicKey> iterator = entries.keySet().iterator();
+        while (maxSize <= entries.size() && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static class Entry {
+        /**
+         * Null when the key was unknown.
+         */
+        @Nullable
+        private final Party party;
+        /**
+         * When an unknown key has to be looked up again, in {@link System#nanoTime()}.
+         */
+        private final long expiresAt;
+
+        Entry(@Nullable final Party party, final long expiresAt) {
+            this.party = party;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package com.template.usd;
+
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.selection.TokenQueryBy;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.ServiceLifecycleEvent;
+import net.corda.core.node.services.StatesNotAvailableException;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.utilities.NonEmptySet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.PublicKey;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_SIZE;
+
+/**
+ * An in-memory index of our unconsumed {@link FungibleToken}s, kept up to date from the vault updates, with a bucket
+ * per holder key and issued token type. Selecting from it takes no retry sleep, only a single soft lock reservation,
+ * which also catches the states that the index believes are available but are not. When the caller has its own
+ * criteria, a single query by state ref checks that the picked states match them.
+ * The buckets of the keys of an account are also grouped per account and issued token type, with their total, so that
+ * account-held tokens are selected without joining the external id mapping. The account of a key is looked up once,
+ * when the index first sees a state held by it.
+ * It is used by {@link PreferredSelection} when the CorDapp configuration has:
+ * <pre>
+ * tokenSelection=memory
+ * </pre>
+ * Otherwise, or when the index cannot cover an amount, {@link PreferredSelection} selects from the database.
+ * The index is loaded from the vault when the node starts, before it runs any flow.
+ */
+@CordaService
+public class FungibleTokenIndex extends SingletonSerializeAsToken {
+
+    public static final String MODE_KEY = "tokenSelection";
+    public static final String MODE_DATABASE = "database";
+    public static final String MODE_MEMORY = "memory";
+    /**
+     * The account of the keys that have none, as the maps cannot hold null.
+     */
+    private static final UUID NO_ACCOUNT = new UUID(0L, 0L);
+
+    private final static Logger log = LoggerFactory.getLogger(FungibleTokenIndex.class);
+
+    @NotNull
+    private final AppServiceHub serviceHub;
+    private final boolean enabled;
+    @NotNull
+    private final Map<BucketKey, Bucket> buckets;
+    /**
+     * The account of each holder key we have seen, or {@link #NO_ACCOUNT}.
+     */
+    @NotNull
+    private final Map<PublicKey, UUID> accountOfKey;
+    @NotNull
+    private final Map<AccountKey, AccountEntry> accounts;
+
+    @SuppressWarnings("unused")
+    public FungibleTokenIndex(@NotNull final AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        final CordappConfig config = serviceHub.getAppContext().getConfig();
+        final String mode = config.exists(MODE_KEY) ? config.getString(MODE_KEY) : MODE_DATABASE;
+        if (!mode.equals(MODE_DATABASE) && !mode.equals(MODE_MEMORY)) {
+            throw new IllegalArgumentException(MODE_KEY + " must be " + MODE_DATABASE + " or " + MODE_MEMORY);
+        }
+        this.enabled = mode.equals(MODE_MEMORY);
+        this.buckets = new ConcurrentHashMap<>();
+        this.accountOfKey = new ConcurrentHashMap<>();
+        this.accounts = new ConcurrentHashMap<>();
+        if (!enabled) {
+            log.info("In-memory token selection is disabled");
+            return;
+        }
+        // The vault is read once the node has created all its services, and still before it runs any flow.
+        serviceHub.register(AppServiceHub.SERVICE_PRIORITY_NORMAL, event -> {
+            if (event != ServiceLifecycleEvent.BEFORE_STATE_MACHINE_START) return;
+            serviceHub.getDatabase().transaction(session -> {
+                trackAndLoad();
+                return null;
+            });
+        });
+    }
+
+    private void trackAndLoad() {
+        // We track before we load, so that nothing is missed in between. A state loaded after its consumption was
+        // handled stays in the index until a selection fails to reserve it.
+        final QueryCriteria unconsumed = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED);
+        serviceHub.getVaultService()
+                .trackBy(FungibleToken.class, unconsumed, new PageSpecification(DEFAULT_PAGE_NUM, 1))
+                .getUpdates().subscribe(
+                this::handleUpdate,
+                error -> log.error("In FungibleToken tracking", error),
+                () -> log.info("FungibleToken updates closed!"));
+        int pageNumber = DEFAULT_PAGE_NUM;
+        List<StateAndRef<FungibleToken>> page;
+        do {
+            page = serviceHub.getVaultService()
+                    .queryBy(FungibleToken.class, unconsumed, new PageSpecification(pageNumber, DEFAULT_PAGE_SIZE))
+                    .getStates();
+            page.forEach(this::add);
+            pageNumber++;
+        } while (page.size() == DEFAULT_PAGE_SIZE);
+    }
+
+    private void handleUpdate(@NotNull final Vault.Update<FungibleToken> update) {
+        update.getConsumed().forEach(this::remove);
+        update.getProduced().forEach(this::add);
+    }
+
+    private void add(@NotNull final StateAndRef<FungibleToken> token) {
+        final FungibleToken data = token.getState().getData();
+        final boolean added = buckets.computeIfAbsent(BucketKey.of(data), key -> new Bucket()).add(token);
+        if (!added) return;
+        final UUID accountId = accountOf(data.getHolder().getOwningKey());
+        if (accountId.equals(NO_ACCOUNT)) return;
+        accounts.computeIfAbsent(new AccountKey(accountId, data.getIssuedTokenType()), key -> new AccountEntry())
+                .add(data.getHolder().getOwningKey(), data.getAmount().getQuantity());
+    }
+
+    private void remove(@NotNull final StateAndRef<FungibleToken> token) {
+        final FungibleToken data = token.getState().getData();
+        final Bucket bucket = buckets.get(BucketKey.of(data));
+        if (bucket == null || !bucket.remove(token.getRef())) return;
+        final UUID accountId = accountOf(data.getHolder().getOwningKey());
+        if (accountId.equals(NO_ACCOUNT)) return;
+        final AccountEntry entry = accounts.get(new AccountKey(accountId, data.getIssuedTokenType()));
+        if (entry != null) entry.subtract(data.getAmount().getQuantity());
+    }
+
+    @NotNull
+    private UUID accountOf(@NotNull final PublicKey holder) {
+        return accountOfKey.computeIfAbsent(holder, key -> {
+            final UUID accountId = serviceHub.getIdentityService().externalIdForPublicKey(key);
+            return accountId == null ? NO_ACCOUNT : accountId;
+        });
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Picks states of the holder that cover the quantity and soft locks them for the flow. Call it from the flow
+     * that spends them. The states stay out of the other selections until they are consumed, or until the node
+     * releases the flow's soft locks, for instance because the flow failed.
+     *
+     * @param lockId   The soft lock id, as with the database selection, normally the flow's run id.
+     * @param holder   The key that holds the states.
+     * @param quantity The quantity to cover, in the token's smallest unit.
+     * @param queryBy  What the caller would have selected from the database, if it says more than the holder and the
+     *                 issued token type. The picked states have to satisfy its predicate and its criteria.
+     * @return The reserved states, or null if the index is disabled or cannot cover the quantity, in which case the
+     * caller selects from the database.
+     */
+    @Nullable
+    public List<StateAndRef<FungibleToken>> select(
+            @NotNull final UUID lockId,
+            @NotNull final PublicKey holder,
+            @NotNull final IssuedTokenType issuedTokenType,
+            final long quantity,
+            @Nullable final TokenQueryBy queryBy) {
+        if (!enabled || !isOfIssuer(queryBy, issuedTokenType)) return null;
+        final Bucket bucket = buckets.get(new BucketKey(holder, issuedTokenType));
+        if (bucket == null) return null;
+        final Predicate<StateAndRef<FungibleToken>> predicate = predicateOf(queryBy);
+        List<StateAndRef<FungibleToken>> selected = bucket.take(quantity, predicate);
+        if (selected == null) {
+            // Some flows may have ended without spending what they had selected.
+            releaseUnlocked(Collections.singletonList(bucket));
+            selected = bucket.take(quantity, predicate);
+            if (selected == null) return null;
+        }
+        return reserve(lockId, Collections.singletonMap(bucket, selected), queryBy);
+    }
+
+    /**
+     * Like {@link #select(UUID, PublicKey, IssuedTokenType, long, TokenQueryBy)}, when the holder and the issued
+     * token type are all there is to it.
+     */
+    @Nullable
+    public List<StateAndRef<FungibleToken>> select(
+            @NotNull final UUID lockId,
+            @NotNull final PublicKey holder,
+            @NotNull final IssuedTokenType issuedTokenType,
+            final long quantity) {
+        return select(lockId, holder, issuedTokenType, quantity, null);
+    }
+
+    /**
+     * Like {@link #select(UUID, PublicKey, IssuedTokenType, long, TokenQueryBy)}, for the states held by any key of
+     * the account.
+     *
+     * @param accountId The account, as in the external id of its keys.
+     * @return The reserved states, or null if the index is disabled or cannot cover the quantity.
+     */
+    @Nullable
+    public List<StateAndRef<FungibleToken>> selectForAccount(
+            @NotNull final UUID lockId,
+            @NotNull final UUID accountId,
+            @NotNull final IssuedTokenType issuedTokenType,
+            final long quantity,
+            @Nullable final TokenQueryBy queryBy) {
+        if (!canAfford(accountId, issuedTokenType, quantity) || !isOfIssuer(queryBy, issuedTokenType)) return null;
+        final AccountEntry entry = accounts.get(new AccountKey(accountId, issuedTokenType));
+        if (entry == null) return null;
+        final List<Bucket> accountBuckets = entry.holders()
+                .stream()
+                .map(holder -> buckets.get(new BucketKey(holder, issuedTokenType)))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        final Predicate<StateAndRef<FungibleToken>> predicate = predicateOf(queryBy);
+        Map<Bucket, List<StateAndRef<FungibleToken>>> takenPerBucket = take(accountBuckets, quantity, predicate);
+        if (takenPerBucket == null) {
+            // Some flows may have ended without spending what they had selected.
+            releaseUnlocked(accountBuckets);
+            takenPerBucket = take(accountBuckets, quantity, predicate);
+            if (takenPerBucket == null) return null;
+        }
+        return reserve(lockId, takenPerBucket, queryBy);
+    }
+
+    /**
+     * Like {@link #selectForAccount(UUID, UUID, IssuedTokenType, long, TokenQueryBy)}, when the account and the
+     * issued token type are all there is to it.
+     */
+    @Nullable
+    public List<StateAndRef<FungibleToken>> selectForAccount(
+            @NotNull final UUID lockId,
+            @NotNull final UUID accountId,
+            @NotNull final IssuedTokenType issuedTokenType,
+            final long quantity) {
+        return selectForAccount(lockId, accountId, issuedTokenType, quantity, null);
+    }
+
+    private static boolean isOfIssuer(
+            @Nullable final TokenQueryBy queryBy,
+            @NotNull final IssuedTokenType issuedTokenType) {
+        return queryBy == null || queryBy.getIssuer() == null
+                || queryBy.getIssuer().equals(issuedTokenType.getIssuer());
+    }
+
+    @NotNull
+    private static Predicate<StateAndRef<FungibleToken>> predicateOf(@Nullable final TokenQueryBy queryBy) {
+        if (queryBy == null) return it -> true;
+        return it -> queryBy.getPredicate().invoke(it);
+    }
+
+    /**
+     * @return What was taken from each bucket, in order, to cover the quantity, or null if they cannot, in which case
+     * nothing is taken.
+     */
+    @Nullable
+    private static Map<Bucket, List<StateAndRef<FungibleToken>>> take(
+            @NotNull final List<Bucket> fromBuckets,
+            final long quantity,
+            @NotNull final Predicate<StateAndRef<FungibleToken>> predicate) {
+        final Map<Bucket, List<StateAndRef<FungibleToken>>> takenPerBucket = new LinkedHashMap<>();
+        long remaining = quantity;
+        for (final Bucket bucket : fromBuckets) {
+            if (remaining <= 0) break;
+            final List<StateAndRef<FungibleToken>> taken = bucket.takeUpTo(remaining, predicate);
+            takenPerBucket.put(bucket, taken);
+            remaining -= quantityOf(taken);
+        }
+        if (0 < remaining) {
+            // Some are reserved by other selections.
+            takenPerBucket.forEach((bucket, taken) -> bucket.release(refsOf(taken)));
+            return null;
+        }
+        return takenPerBucket;
+    }
+
+    @Nullable
+    private List<StateAndRef<FungibleToken>> reserve(
+            @NotNull final UUID lockId,
+            @NotNull final Map<Bucket, List<StateAndRef<FungibleToken>>> takenPerBucket,
+            @Nullable final TokenQueryBy queryBy) {
+        final List<StateAndRef<FungibleToken>> selected = new ArrayList<>();
+        takenPerBucket.values().forEach(selected::addAll);
+        final List<StateRef> refs = refsOf(selected);
+        if (queryBy != null && queryBy.getQueryCriteria() != null
+                && !allMatch(queryBy.getQueryCriteria(), refs)) {
+            log.info("Token states do not match the caller's criteria: " + refs);
+            takenPerBucket.forEach((bucket, taken) -> bucket.release(refsOf(taken)));
+            return null;
+        }
+        try {
+            serviceHub.getVaultService().softLockReserve(lockId, NonEmptySet.copyOf(refs));
+        } catch (StatesNotAvailableException e) {
+            // Some are consumed, or locked by a flow that did not go through us. We drop the consumed ones, and
+            // keep the others out, until the node releases their soft locks.
+            log.info("Token states could not be reserved: " + refs);
+            serviceHub.getVaultService()
+                    .queryBy(FungibleToken.class, new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.CONSUMED)
+                            .withStateRefs(refs))
+                    .getStates()
+                    .forEach(this::remove);
+            takenPerBucket.forEach((bucket, taken) -> bucket.markLocked(refsOf(taken)));
+            return null;
+        }
+        takenPerBucket.forEach((bucket, taken) -> bucket.markLocked(refsOf(taken)));
+        return selected;
+    }
+
+    private boolean allMatch(@NotNull final QueryCriteria criteria, @NotNull final List<StateRef> refs) {
+        final QueryCriteria theseOnes = criteria.and(new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED)
+                .withStateRefs(refs));
+        return serviceHub.getVaultService()
+                .queryBy(FungibleToken.class, theseOnes, new PageSpecification(DEFAULT_PAGE_NUM, refs.size()))
+                .getStates()
+                .size() == refs.size();
+    }
+
+    /**
+     * Makes available again the states of these buckets that are unconsumed and no longer soft locked. The node
+     * releases the soft locks of a flow when it ends, so these are states that their flow selected but did not spend.
+     */
+    private void releaseUnlocked(@NotNull final List<Bucket> fromBuckets) {
+        final Map<StateRef, Bucket> bucketOfRef = new HashMap<>();
+        fromBuckets.forEach(bucket -> bucket.lockedRefs().forEach(ref -> bucketOfRef.put(ref, bucket)));
+        if (bucketOfRef.isEmpty()) return;
+        final QueryCriteria unlocked = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED)
+                .withStateRefs(new ArrayList<>(bucketOfRef.keySet()))
+                .withSoftLockingCondition(new QueryCriteria.SoftLockingCondition(
+                        QueryCriteria.SoftLockingType.UNLOCKED_ONLY, Collections.emptyList()));
+        serviceHub.getVaultService()
+                .queryBy(FungibleToken.class, unlocked, new PageSpecification(DEFAULT_PAGE_NUM, bucketOfRef.size()))
+                .getStates()
+                .forEach(it -> bucketOfRef.get(it.getRef()).release(Collections.singletonList(it.getRef())));
+    }
+
+    /**
+     * @return The quantity of the states in the index, whether they are reserved or not.
+     */
+    public long quantityOf(@NotNull final PublicKey holder, @NotNull final IssuedTokenType issuedTokenType) {
+        final Bucket bucket = buckets.get(new BucketKey(holder, issuedTokenType));
+        return bucket == null ? 0L : bucket.totalQuantity();
+    }
+
+    /**
+     * @return The quantity of the states of the account in the index, whether they are reserved or not.
+     */
+    public long quantityOfAccount(@NotNull final UUID accountId, @NotNull final IssuedTokenType issuedTokenType) {
+        final AccountEntry entry = accounts.get(new AccountKey(accountId, issuedTokenType));
+        return entry == null ? 0L : entry.quantity();
+    }
+
+    /**
+     * @return Whether the account holds enough of the token, without a query. It is false when the index is disabled.
+     * Even when it is true, a selection can fail when some of the states are reserved by other flows.
+     */
+    public boolean canAfford(
+            @NotNull final UUID accountId,
+            @NotNull final IssuedTokenType issuedTokenType,
+            final long quantity) {
+        return enabled && quantity <= quantityOfAccount(accountId, issuedTokenType);
+    }
+
+    @NotNull
+    private static List<StateRef> refsOf(@NotNull final List<StateAndRef<FungibleToken>> tokens) {
+        return tokens.stream().map(StateAndRef::getRef).collect(Collectors.toList());
+    }
+
+    private static long quantityOf(@NotNull final List<StateAndRef<FungibleToken>> tokens) {
+        long sum = 0L;
+        for (final StateAndRef<FungibleToken> token : tokens) {
+            sum = Math.addExact(sum, token.getState().getData().getAmount().getQuantity());
+        }
+        return sum;
+    }
+
+    private static final class BucketKey {
+        @NotNull
+        private final PublicKey holder;
+        @NotNull
+        private final IssuedTokenType issuedTokenType;
+
+        BucketKey(@NotNull final PublicKey holder, @NotNull final IssuedTokenType issuedTokenType) {
+            this.holder = holder;
+            this.issuedTokenType = issuedTokenType;
+        }
+
+        @NotNull
+        static BucketKey of(@NotNull final FungibleToken token) {
+            return new BucketKey(token.getHolder().getOwningKey(), token.getIssuedTokenType());
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final BucketKey that = (BucketKey) o;
+            return holder.equals(that.holder) && issuedTokenType.equals(that.issuedTokenType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(holder, issuedTokenType);
+        }
+    }
+
+    private static final class AccountKey {
+        @NotNull
+        private final UUID accountId;
+        @NotNull
+        private final IssuedTokenType issuedTokenType;
+
+        AccountKey(@NotNull final UUID accountId, @NotNull final IssuedTokenType issuedTokenType) {
+            this.accountId = accountId;
+            this.issuedTokenType = issuedTokenType;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final AccountKey that = (AccountKey) o;
+            return accountId.equals(that.accountId) && issuedTokenType.equals(that.issuedTokenType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(accountId, issuedTokenType);
+        }
+    }
+
+    /**
+     * The keys of an account that have held an issued token type, and the quantity they hold now.
+     */
+    private static final class AccountEntry {
+        @NotNull
+        private final Set<PublicKey> holders = new LinkedHashSet<>();
+        private long quantity = 0L;
+
+        synchronized void add(@NotNull final PublicKey holder, final long added) {
+            holders.add(holder);
+            quantity = Math.addExact(quantity, added);
+        }
+
+        synchronized void subtract(final long subtracted) {
+            quantity -= subtracted;
+        }
+
+        @NotNull
+        synchronized List<PublicKey> holders() {
+            return new ArrayList<>(holders);
+        }
+
+        synchronized long quantity() {
+            return quantity;
+        }
+    }
+
+    /**
+     * The states of a holder and issued token type. Those taken by a selection are reserved until they are consumed,
+     * or until the soft lock of their flow is found released.
+     */
+    private static final class Bucket {
+        @NotNull
+        private final Map<StateRef, StateAndRef<FungibleToken>> available = new LinkedHashMap<>();
+        @NotNull
+        private final Map<StateRef, StateAndRef<FungibleToken>> reserved = new HashMap<>();
+        /**
+         * The reserved states that have been soft locked in the vault. Until then, they cannot be released on the
+         * grounds that the vault has no lock on them.
+         */
+        @NotNull
+        private final Set<StateRef> locked = new HashSet<>();
+
+        /**
+         * @return Whether it was not in the bucket already.
+         */
+        synchronized boolean add(@NotNull final StateAndRef<FungibleToken> token) {
+            if (reserved.containsKey(token.getRef())) return false;
+            return available.put(token.getRef(), token) == null;
+        }
+
+        /**
+         * @return Whether it was in the bucket.
+         */
+        synchronized boolean remove(@NotNull final StateRef ref) {
+            locked.remove(ref);
+            final boolean wasAvailable = available.remove(ref) != null;
+            return reserved.remove(ref) != null || wasAvailable;
+        }
+
+        @Nullable
+        synchronized List<StateAndRef<FungibleToken>> take(
+                final long quantity,
+                @NotNull final Predicate<StateAndRef<FungibleToken>> predicate) {
+            final List<StateAndRef<FungibleToken>> taken = takeUpTo(quantity, predicate);
+            if (quantityOf(taken) < quantity) {
+                release(refsOf(taken));
+                return null;
+            }
+            return taken;
+        }
+
+        /**
+         * @return The available states that cover the quantity, or all of them if they do not.
+         */
+        @NotNull
+        synchronized List<StateAndRef<FungibleToken>> takeUpTo(
+                final long quantity,
+                @NotNull final Predicate<StateAndRef<FungibleToken>> predicate) {
+            final List<StateAndRef<FungibleToken>> taken = new ArrayList<>();
+            long sum = 0L;
+            for (final StateAndRef<FungibleToken> token : available.values()) {
+                if (quantity <= sum) break;
+                if (!predicate.test(token)) continue;
+                taken.add(token);
+                sum = Math.addExact(sum, token.getState().getData().getAmount().getQuantity());
+            }
+            for (final StateAndRef<FungibleToken> token : taken) {
+                available.remove(token.getRef());
+                reserved.put(token.getRef(), token);
+            }
+            return taken;
+        }
+
+        synchronized void markLocked(@NotNull final List<StateRef> refs) {
+            for (final StateRef ref : refs) {
+                if (reserved.containsKey(ref)) locked.add(ref);
+            }
+        }
+
+        /**
+         * Makes these reserved states available again.
+         */
+        synchronized void release(@NotNull final List<StateRef> refs) {
+            for (final StateRef ref : refs) {
+                locked.remove(ref);
+                final StateAndRef<FungibleToken> token = reserved.remove(ref);
+                if (token != null) available.put(ref, token);
+            }
+        }
+
+        @NotNull
+        synchronized List<StateRef> lockedRefs() {
+            return new ArrayList<>(locked);
+        }
+
+        synchronized long totalQuantity() {
+            long sum = 0L;
+            for (final StateAndRef<FungibleToken> token : available.values()) {
+                sum = Math.addExact(sum, token.getState().getData().getAmount().getQuantity());
+            }
+            for (final StateAndRef<FungibleToken> token : reserved.values()) {
+                sum = Math.addExact(sum, token.getState().getData().getAmount().getQuantity());
+            }
+            return sum;
+        }
+    }
+}
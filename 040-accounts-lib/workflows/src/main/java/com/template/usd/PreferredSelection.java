@@ -0,0 +1,125 @@
+package com.template.usd;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
+import com.r3.corda.lib.tokens.selection.TokenQueryBy;
+import com.r3.corda.lib.tokens.selection.database.selector.DatabaseTokenSelection;
+import kotlin.Pair;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.AbstractParty;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static com.r3.corda.lib.tokens.selection.database.config.DatabaseSelectionConfigKt.*;
+
+/**
+ * Selects the fungible tokens to spend with the {@link FungibleTokenIndex} when it is enabled, and from the database
+ * otherwise, or when the index cannot cover the amount.
+ */
+public interface PreferredSelection {
+
+    /**
+     * Like {@link DatabaseTokenSelection#generateMove}, it returns the inputs, and the outputs that pay the parties
+     * and give the change back.
+     *
+     * @param changeHolder    Who holds the inputs, and keeps the change.
+     * @param issuedTokenType What the inputs are, in memory.
+     * @param databaseQueryBy What the inputs are, in the database. The states picked in memory have to satisfy it
+     *                        too, else the selection is left to the database.
+     */
+    @Suspendable
+    @NotNull
+    static Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> generateMove(
+            @NotNull final FlowLogic<?> flow,
+            @NotNull final List<Pair<AbstractParty, Amount<TokenType>>> partiesAndAmounts,
+            @NotNull final AbstractParty changeHolder,
+            @NotNull final IssuedTokenType issuedTokenType,
+            @NotNull final TokenQueryBy databaseQueryBy) {
+        final List<StateAndRef<FungibleToken>> inputs = flow.getServiceHub().cordaService(FungibleTokenIndex.class)
+                .select(flow.getRunId().getUuid(), changeHolder.getOwningKey(), issuedTokenType,
+                        requiredOf(partiesAndAmounts), databaseQueryBy);
+        if (inputs == null) {
+            return generateMoveFromDatabase(flow, partiesAndAmounts, changeHolder, databaseQueryBy);
+        }
+        return new Pair<>(inputs, outputsOf(inputs, partiesAndAmounts, changeHolder, issuedTokenType));
+    }
+
+    /**
+     * Like {@link #generateMove}, for the tokens held by any key of an account.
+     *
+     * @param accountId       Whose keys hold the inputs.
+     * @param changeHolder    Who keeps the change, normally a key of the account.
+     * @param memoryQueryBy   What the states picked in memory have to satisfy too. The index already groups the keys
+     *                        of the account, so this should leave out the account's criteria.
+     * @param databaseQueryBy What the inputs are, in the database, including the account's criteria.
+     */
+    @Suspendable
+    @NotNull
+    static Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> generateMoveForAccount(
+            @NotNull final FlowLogic<?> flow,
+            @NotNull final List<Pair<AbstractParty, Amount<TokenType>>> partiesAndAmounts,
+            @NotNull final UUID accountId,
+            @NotNull final AbstractParty changeHolder,
+            @NotNull final IssuedTokenType issuedTokenType,
+            @NotNull final TokenQueryBy memoryQueryBy,
+            @NotNull final TokenQueryBy databaseQueryBy) {
+        final List<StateAndRef<FungibleToken>> inputs = flow.getServiceHub().cordaService(FungibleTokenIndex.class)
+                .selectForAccount(flow.getRunId().getUuid(), accountId, issuedTokenType,
+                        requiredOf(partiesAndAmounts), memoryQueryBy);
+        if (inputs == null) {
+            return generateMoveFromDatabase(flow, partiesAndAmounts, changeHolder, databaseQueryBy);
+        }
+        return new Pair<>(inputs, outputsOf(inputs, partiesAndAmounts, changeHolder, issuedTokenType));
+    }
+
+    @Suspendable
+    @NotNull
+    static Pair<List<StateAndRef<FungibleToken>>, List<FungibleToken>> generateMoveFromDatabase(
+            @NotNull final FlowLogic<?> flow,
+            @NotNull final List<Pair<AbstractParty, Amount<TokenType>>> partiesAndAmounts,
+            @NotNull final AbstractParty changeHolder,
+            @NotNull final TokenQueryBy databaseQueryBy) {
+        final DatabaseTokenSelection tokenSelection = new DatabaseTokenSelection(flow.getServiceHub(),
+                MAX_RETRIES_DEFAULT, RETRY_SLEEP_DEFAULT, RETRY_CAP_DEFAULT, PAGE_SIZE_DEFAULT);
+        return tokenSelection.generateMove(
+                partiesAndAmounts, changeHolder, databaseQueryBy, flow.getRunId().getUuid());
+    }
+
+    static long requiredOf(@NotNull final List<Pair<AbstractParty, Amount<TokenType>>> partiesAndAmounts) {
+        return partiesAndAmounts.stream()
+                .map(it -> it.getSecond().getQuantity())
+                .reduce(0L, Math::addExact);
+    }
+
+    /**
+     * @return The outputs that pay the parties from the inputs, then the change, if any.
+     */
+    @NotNull
+    static List<FungibleToken> outputsOf(
+            @NotNull final List<StateAndRef<FungibleToken>> inputs,
+            @NotNull final List<Pair<AbstractParty, Amount<TokenType>>> partiesAndAmounts,
+            @NotNull final AbstractParty changeHolder,
+            @NotNull final IssuedTokenType issuedTokenType) {
+        // Same jar hash as the inputs.
+        final SecureHash jarHash = inputs.get(0).getState().getData().getTokenTypeJarHash();
+        final List<FungibleToken> outputs = new ArrayList<>(partiesAndAmounts.size() + 1);
+        for (final Pair<AbstractParty, Amount<TokenType>> partyAndAmount : partiesAndAmounts) {
+            outputs.add(new FungibleToken(
+                    new Amount<>(partyAndAmount.getSecond().getQuantity(), issuedTokenType),
+                    partyAndAmount.getFirst(), jarHash));
+        }
+        final long change = inputs.stream()
+                .map(it -> it.getState().getData().getAmount().getQuantity())
+                .reduce(0L, Math::addExact) - requiredOf(partiesAndAmounts);
+        if (0 < change) outputs.add(new FungibleToken(new Amount<>(change, issuedTokenType), changeHolder, jarHash));
+        return outputs;
+    }
+}
@@ -0,0 +1,192 @@
+package com.template.car.flow;
+
+import com.google.common.collect.ImmutableMap;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import com.r3.corda.lib.accounts.workflows.flows.CreateAccount;
+import com.r3.corda.lib.accounts.workflows.flows.RequestKeyForAccount;
+import com.r3.corda.lib.ci.workflows.SyncKeyMappingInitiator;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.types.TokenPointer;
+import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.r3.corda.lib.tokens.workflows.flows.rpc.IssueTokens;
+import com.template.car.state.CarTokenType;
+import com.template.usd.UsdTokenConstants;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.LinearPointer;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNodeParameters;
+import net.corda.testing.node.StartedMockNode;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class AtomicBatchSaleAccountsSafeTests {
+    private final MockNetwork network;
+    private final StartedMockNode notary;
+    private final StartedMockNode usMint;
+    private final StartedMockNode dmv;
+    private final StartedMockNode bmwDealer;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+    private final IssuedTokenType usMintUsd;
+
+    public AtomicBatchSaleAccountsSafeTests() {
+        network = new MockNetwork(CarTokenCourseHelpers.prepareMockNetworkParameters(ImmutableMap.of(
+                AtomicBatchSaleAccountsSafe.MAX_LINES_KEY, 2)));
+        notary = network.getDefaultNotaryNode();
+        usMint = network.createNode(new MockNodeParameters()
+                .withLegalName(UsdTokenConstants.US_MINT));
+        dmv = network.createNode(new MockNodeParameters()
+                .withLegalName(CarTokenTypeConstants.DMV));
+        bmwDealer = network.createNode(new MockNodeParameters()
+                .withLegalName(CarTokenTypeConstants.BMW_DEALER));
+        alice = network.createNode();
+        bob = network.createNode();
+        usMintUsd = new IssuedTokenType(partyOf(usMint), FiatCurrency.Companion.getInstance("USD"));
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private static Party partyOf(@NotNull final StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    @NotNull
+    private <T> T runAndGet(@NotNull final CordaFuture<T> future) throws Exception {
+        network.runNetwork();
+        return future.get();
+    }
+
+    @NotNull
+    private AnonymousParty newAccountKey(
+            @NotNull final StartedMockNode host,
+            @NotNull final String name,
+            @NotNull final List<StartedMockNode> others) throws Exception {
+        //noinspection unchecked
+        final StateAndRef<AccountInfo> account = (StateAndRef<AccountInfo>) runAndGet(
+                host.startFlow(new CreateAccount(name)));
+        final AnonymousParty key = runAndGet(host.startFlow(new RequestKeyForAccount(
+                account.getState().getData())));
+        for (final StartedMockNode other : others) {
+            runAndGet(host.startFlow(new SyncKeyMappingInitiator(partyOf(other), Collections.singletonList(key))));
+        }
+        return key;
+    }
+
+    @NotNull
+    private NonFungibleToken issueNewBmwTo(
+            @NotNull final String vin,
+            final long price,
+            @NotNull final AbstractParty holder) throws Exception {
+        final CarTokenType bmw = runAndGet(dmv.startFlow(new IssueCarTokenTypeFlow(partyOf(notary),
+                vin, "BMW", price, Collections.singletonList(partyOf(bmwDealer)))))
+                .getCoreTransaction().outputsOfType(CarTokenType.class).get(0);
+        return runAndGet(bmwDealer.startFlow(new IssueCarToHolderFlow(bmw, partyOf(bmwDealer), holder)))
+                .getCoreTransaction().outputsOfType(NonFungibleToken.class).get(0);
+    }
+
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private static TokenPointer<CarTokenType> pointerOf(@NotNull final NonFungibleToken heldCar) {
+        return (TokenPointer<CarTokenType>) heldCar.getTokenType();
+    }
+
+    private long paidTo(@NotNull final SignedTransaction tx, @NotNull final AbstractParty holder) {
+        return tx.getCoreTransaction().outputsOfType(FungibleToken.class).stream()
+                .filter(it -> it.getHolder().equals(holder))
+                .filter(it -> it.getIssuedTokenType().equals(usMintUsd))
+                .map(it -> it.getAmount().getQuantity())
+                .reduce(0L, Math::addExact);
+    }
+
+    @Test
+    public void carsAreSoldToSeveralAccountsInOneTransaction() throws Exception {
+        final AnonymousParty dan = newAccountKey(alice, "dan", Collections.singletonList(bmwDealer));
+        final NonFungibleToken dansBmw = issueNewBmwTo("abc124", 25_000L, dan);
+        final NonFungibleToken alicesBmw = issueNewBmwTo("abc125", 20_000L, partyOf(alice));
+        final AnonymousParty emma = newAccountKey(bob, "emma", Arrays.asList(alice, usMint));
+        final AnonymousParty frank = newAccountKey(bob, "frank", Arrays.asList(alice, usMint));
+        runAndGet(usMint.startFlow(new IssueTokens(Arrays.asList(
+                new FungibleToken(AmountUtilitiesKt.amount(30_000L, usMintUsd), emma, null),
+                new FungibleToken(AmountUtilitiesKt.amount(30_000L, usMintUsd), frank, null)),
+                Collections.emptyList())));
+
+        final SignedTransaction saleTx = runAndGet(alice.startFlow(new AtomicBatchSaleAccountsSafe.CarSeller(
+                Arrays.asList(
+                        new AtomicBatchSaleAccountsSafe.SaleLine(pointerOf(dansBmw), emma),
+                        new AtomicBatchSaleAccountsSafe.SaleLine(pointerOf(alicesBmw), frank)),
+                usMintUsd)));
+
+        final List<NonFungibleToken> soldCars = saleTx.getCoreTransaction().outputsOfType(NonFungibleToken.class);
+        assertEquals(2, soldCars.size());
+        for (final NonFungibleToken soldCar : soldCars) {
+            final AbstractParty expectedBuyer = soldCar.getLinearId().equals(dansBmw.getLinearId()) ? emma : frank;
+            assertEquals(expectedBuyer, soldCar.getHolder());
+        }
+        assertEquals(AmountUtilitiesKt.amount(25_000L, usMintUsd).getQuantity(), paidTo(saleTx, dan));
+        assertEquals(AmountUtilitiesKt.amount(20_000L, usMintUsd).getQuantity(), paidTo(saleTx, partyOf(alice)));
+        // Each buyer paid for their own car.
+        assertEquals(AmountUtilitiesKt.amount(5_000L, usMintUsd).getQuantity(), paidTo(saleTx, emma));
+        assertEquals(AmountUtilitiesKt.amount(10_000L, usMintUsd).getQuantity(), paidTo(saleTx, frank));
+        // The buyer host recorded it too.
+        assertNotNull(bob.getServices().getValidatedTransactions().getTransaction(saleTx.getId()));
+    }
+
+    @Test
+    public void tooManyLinesAreRefused() throws Exception {
+        final AnonymousParty emma = newAccountKey(bob, "emma", Collections.singletonList(alice));
+        final List<AtomicBatchSaleAccountsSafe.SaleLine> lines = Arrays.asList(
+                new AtomicBatchSaleAccountsSafe.SaleLine(new TokenPointer<>(
+                        new LinearPointer<>(new UniqueIdentifier(), CarTokenType.class), 0), emma),
+                new AtomicBatchSaleAccountsSafe.SaleLine(new TokenPointer<>(
+                        new LinearPointer<>(new UniqueIdentifier(), CarTokenType.class), 0), emma),
+                new AtomicBatchSaleAccountsSafe.SaleLine(new TokenPointer<>(
+                        new LinearPointer<>(new UniqueIdentifier(), CarTokenType.class), 0), emma));
+
+        try {
+            runAndGet(alice.startFlow(new AtomicBatchSaleAccountsSafe.CarSeller(lines, usMintUsd)));
+            fail("It should have failed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof FlowException);
+            assertTrue(e.getCause().getMessage().contains("more than the 2 allowed"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sameCarTwiceIsRefused() {
+        final TokenPointer<CarTokenType> car = new TokenPointer<>(
+                new LinearPointer<>(new UniqueIdentifier(), CarTokenType.class), 0);
+        new AtomicBatchSaleAccountsSafe.CarSeller(Arrays.asList(
+                new AtomicBatchSaleAccountsSafe.SaleLine(car, partyOf(bob)),
+                new AtomicBatchSaleAccountsSafe.SaleLine(car, partyOf(bob))),
+                usMintUsd);
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.template.car.flow;
+
+import com.google.common.collect.ImmutableMap;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import com.r3.corda.lib.accounts.workflows.flows.CreateAccount;
+import com.r3.corda.lib.accounts.workflows.flows.RequestKeyForAccount;
+import com.r3.corda.lib.accounts.workflows.flows.ShareAccountInfo;
+import com.r3.corda.lib.accounts.workflows.services.AccountService;
+import com.r3.corda.lib.accounts.workflows.services.KeyManagementBackedAccountService;
+import com.r3.corda.lib.ci.workflows.SyncKeyMappingInitiator;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.types.TokenPointer;
+import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.r3.corda.lib.tokens.workflows.flows.rpc.IssueTokens;
+import com.template.car.state.CarTokenType;
+import com.template.usd.UsdTokenConstants;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNodeParameters;
+import net.corda.testing.node.StartedMockNode;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class ConfidentialKeyPoolTests {
+    private final MockNetwork network;
+    private final StartedMockNode notary;
+    private final StartedMockNode usMint;
+    private final StartedMockNode dmv;
+    private final StartedMockNode bmwDealer;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+    private final IssuedTokenType usMintUsd;
+
+    public ConfidentialKeyPoolTests() {
+        network = new MockNetwork(CarTokenCourseHelpers.prepareMockNetworkParameters(ImmutableMap.of(
+                ConfidentialKeyPool.LOW_WATERMARK_KEY, 1,
+                ConfidentialKeyPool.HIGH_WATERMARK_KEY, 3,
+                ConfidentialKeyPool.MAX_ACCOUNTS_KEY, 2)));
+        notary = network.getDefaultNotaryNode();
+        usMint = network.createNode(new MockNodeParameters()
+                .withLegalName(UsdTokenConstants.US_MINT));
+        dmv = network.createNode(new MockNodeParameters()
+                .withLegalName(CarTokenTypeConstants.DMV));
+        bmwDealer = network.createNode(new MockNodeParameters()
+                .withLegalName(CarTokenTypeConstants.BMW_DEALER));
+        alice = network.createNode();
+        bob = network.createNode();
+        usMintUsd = new IssuedTokenType(partyOf(usMint), FiatCurrency.Companion.getInstance("USD"));
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private static Party partyOf(@NotNull final StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    @NotNull
+    private static ConfidentialKeyPool poolOf(@NotNull final StartedMockNode node) {
+        return node.getServices().cordaService(ConfidentialKeyPool.class);
+    }
+
+    @NotNull
+    private StateAndRef<AccountInfo> createAccount(
+            @NotNull final StartedMockNode host,
+            @NotNull final String name) throws Exception {
+        final CordaFuture<StateAndRef<? extends AccountInfo>> future = host.startFlow(
+                new CreateAccount(name));
+        network.runNetwork();
+        //noinspection unchecked
+        return (StateAndRef<AccountInfo>) future.get();
+    }
+
+    @NotNull
+    private AnonymousParty requestNewKey(
+            @NotNull final StartedMockNode host,
+            @NotNull final AccountInfo forWhom) throws Exception {
+        final CordaFuture<AnonymousParty> future = host.startFlow(new RequestKeyForAccount(forWhom));
+        network.runNetwork();
+        return future.get();
+    }
+
+    @NotNull
+    private <T> T runAndGet(@NotNull final CordaFuture<T> future) throws Exception {
+        network.runNetwork();
+        return future.get();
+    }
+
+    /**
+     * The service starts its flows from its own thread, so we have to let the network run while we wait for them.
+     */
+    private void runNetworkUntilFilled(
+            @NotNull final StartedMockNode host,
+            @NotNull final UUID accountId) throws Exception {
+        final CompletableFuture<Void> filled = poolOf(host).whenFilled(accountId);
+        for (int attempt = 0; attempt < 100; attempt++) {
+            network.runNetwork();
+            try {
+                filled.get(50, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // The fill flow may not have been started yet.
+            }
+        }
+        fail("The pool was not filled in time.");
+    }
+
+    @Test
+    public void prefillFillsUpToTheHighWatermark() throws Exception {
+        final UUID emmaId = createAccount(bob, "emma").getState().getData().getIdentifier().getId();
+        assertEquals(0, poolOf(bob).sizeOf(emmaId));
+
+        poolOf(bob).prefill(emmaId);
+        runNetworkUntilFilled(bob, emmaId);
+
+        assertEquals(3, poolOf(bob).sizeOf(emmaId));
+    }
+
+    @Test
+    public void takenKeysBelongToTheAccountAndAreRefilledWhenLow() throws Exception {
+        final UUID emmaId = createAccount(bob, "emma").getState().getData().getIdentifier().getId();
+        poolOf(bob).prefill(emmaId);
+        runNetworkUntilFilled(bob, emmaId);
+        final AccountService accountService = bob.getServices().cordaService(KeyManagementBackedAccountService.class);
+
+        assertEquals(emmaId, accountService.accountIdForKey(poolOf(bob).take(emmaId)));
+        assertFalse(poolOf(bob).isFilling(emmaId));
+        assertEquals(2, poolOf(bob).sizeOf(emmaId));
+
+        assertEquals(emmaId, accountService.accountIdForKey(poolOf(bob).take(emmaId)));
+        runNetworkUntilFilled(bob, emmaId);
+        assertEquals(3, poolOf(bob).sizeOf(emmaId));
+    }
+
+    @Test
+    public void emptyPoolGivesNoKey() throws Exception {
+        final UUID emmaId = createAccount(bob, "emma").getState().getData().getIdentifier().getId();
+
+        assertNull(poolOf(bob).take(emmaId));
+        runNetworkUntilFilled(bob, emmaId);
+        assertEquals(3, poolOf(bob).sizeOf(emmaId));
+    }
+
+    @Test
+    public void leastRecentlyUsedPoolIsEvicted() throws Exception {
+        final UUID emmaId = createAccount(bob, "emma").getState().getData().getIdentifier().getId();
+        final UUID fredId = createAccount(bob, "fred").getState().getData().getIdentifier().getId();
+        final UUID gaelId = createAccount(bob, "gael").getState().getData().getIdentifier().getId();
+        poolOf(bob).prefill(emmaId);
+        runNetworkUntilFilled(bob, emmaId);
+        poolOf(bob).prefill(fredId);
+        runNetworkUntilFilled(bob, fredId);
+        // Emma's pool is used again, so Fred's is the eldest.
+        assertNotNull(poolOf(bob).take(emmaId));
+
+        poolOf(bob).prefill(gaelId);
+        runNetworkUntilFilled(bob, gaelId);
+
+        assertEquals(2, poolOf(bob).sizeOf(emmaId));
+        assertEquals(0, poolOf(bob).sizeOf(fredId));
+        assertEquals(3, poolOf(bob).sizeOf(gaelId));
+    }
+
+    @Test
+    public void saleUsesAPooledKey() throws Exception {
+        final CarTokenType bmw = runAndGet(dmv.startFlow(new IssueCarTokenTypeFlow(partyOf(notary),
+                "abc124", "BMW", 25_000L, Collections.singletonList(partyOf(bmwDealer)))))
+                .getCoreTransaction().outputsOfType(CarTokenType.class).get(0);
+        final StateAndRef<AccountInfo> dan = createAccount(alice, "dan");
+        final AnonymousParty danParty = requestNewKey(alice, dan.getState().getData());
+        runAndGet(alice.startFlow(new SyncKeyMappingInitiator(
+                partyOf(bmwDealer), Collections.singletonList(danParty))));
+        final NonFungibleToken dansBmw = runAndGet(bmwDealer.startFlow(new IssueCarToHolderFlow(
+                bmw, partyOf(bmwDealer), danParty)))
+                .getCoreTransaction().outputsOfType(NonFungibleToken.class).get(0);
+        final StateAndRef<AccountInfo> emma = createAccount(bob, "emma");
+        final UUID emmaId = emma.getState().getData().getIdentifier().getId();
+        final AnonymousParty emmaParty = requestNewKey(bob, emma.getState().getData());
+        runAndGet(bob.startFlow(new SyncKeyMappingInitiator(
+                partyOf(usMint), Collections.singletonList(emmaParty))));
+        runAndGet(bob.startFlow(new ShareAccountInfo(emma, Collections.singletonList(partyOf(alice)))));
+        runAndGet(usMint.startFlow(new IssueTokens(
+                Collections.singletonList(new FungibleToken(
+                        AmountUtilitiesKt.amount(30_000L, usMintUsd), emmaParty, null)),
+                Collections.emptyList())));
+        poolOf(bob).prefill(emmaId);
+        runNetworkUntilFilled(bob, emmaId);
+
+        //noinspection unchecked
+        final SignedTransaction saleTx = runAndGet(alice.startFlow(new AtomicSaleAccounts.CarSeller(
+                (TokenPointer<CarTokenType>) dansBmw.getTokenType(), emmaId, usMintUsd)));
+
+        final NonFungibleToken emmaCarToken = saleTx.getCoreTransaction().outputsOfType(NonFungibleToken.class)
+                .get(0);
+        final AccountService bobAccountService = bob.getServices()
+                .cordaService(KeyManagementBackedAccountService.class);
+        assertEquals(emmaId, bobAccountService.accountIdForKey(emmaCarToken.getHolder().getOwningKey()));
+        assertNotEquals(emmaParty.getOwningKey(), emmaCarToken.getHolder().getOwningKey());
+        // One key was taken, and it is not low enough to refill.
+        assertEquals(2, poolOf(bob).sizeOf(emmaId));
+    }
+
+}
@@ -0,0 +1,118 @@
+package com.template.identity;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.r3.corda.lib.ci.workflows.SyncKeyMappingInitiator;
+import com.template.dummy.flow.DummyFlow;
+import com.template.dummy.state.DummyState;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class PartyResolutionCacheTests {
+    private final MockNetwork network;
+    private final StartedMockNode alice;
+    private final StartedMockNode bob;
+
+    public PartyResolutionCacheTests() {
+        network = new MockNetwork(new MockNetworkParameters()
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.ci.workflows"),
+                        TestCordapp.findCordapp("com.template.dummy.state"),
+                        TestCordapp.findCordapp("com.template.dummy.flow")
+                                .withConfig(ImmutableMap.of(
+                                        PartyResolutionCache.SIZE_KEY, 2,
+                                        PartyResolutionCache.NEGATIVE_SECONDS_KEY, 3_600)))));
+        alice = network.createNode();
+        bob = network.createNode();
+    }
+
+    @Before
+    public void setup() {
+        network.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private static Party partyOf(@NotNull final StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    @NotNull
+    private static PartyResolutionCache cacheOf(@NotNull final StartedMockNode node) {
+        return node.getServices().cordaService(PartyResolutionCache.class);
+    }
+
+    @NotNull
+    private static AnonymousParty newKey(@NotNull final StartedMockNode node) {
+        return node.transaction(() -> new AnonymousParty(node.getServices().getKeyManagementService().freshKey()));
+    }
+
+    @Test
+    public void wellKnownPartiesResolveToThemselves() {
+        assertEquals(partyOf(alice), cacheOf(bob).wellKnownPartyOf(partyOf(alice)));
+        assertEquals(0, cacheOf(bob).size());
+    }
+
+    @Test
+    public void unknownKeysStayUnknownUntilForgotten() throws Exception {
+        final AnonymousParty aliceKey = newKey(alice);
+        assertNull(bob.transaction(() -> cacheOf(bob).wellKnownPartyOf(aliceKey)));
+
+        // This sync goes straight to the identity service.
+        final CordaFuture<?> future = alice.startFlow(new SyncKeyMappingInitiator(
+                partyOf(bob), Collections.singletonList(aliceKey)));
+        network.runNetwork();
+        future.get();
+        assertNull(bob.transaction(() -> cacheOf(bob).wellKnownPartyOf(aliceKey)));
+
+        cacheOf(bob).forget(aliceKey.getOwningKey());
+        assertEquals(partyOf(alice), bob.transaction(() -> cacheOf(bob).wellKnownPartyOf(aliceKey)));
+    }
+
+    @Test
+    public void batchedKeySyncResolvesTheMissingKeys() throws Exception {
+        final AnonymousParty lost = newKey(alice);
+        final AnonymousParty seen = newKey(alice);
+        assertNull(bob.transaction(() -> cacheOf(bob).wellKnownPartyOf(lost)));
+
+        final CordaFuture<SignedTransaction> future = alice.startFlow(new DummyFlow.Create(
+                Collections.singletonList(new DummyState(lost, seen)),
+                Collections.singletonList(partyOf(bob))));
+        network.runNetwork();
+        future.get();
+
+        assertEquals(partyOf(alice), bob.transaction(() -> cacheOf(bob).wellKnownPartyOf(lost)));
+        assertEquals(partyOf(alice), bob.transaction(() -> cacheOf(bob).wellKnownPartyOf(seen)));
+        assertEquals(partyOf(alice), bob.getServices().getIdentityService().wellKnownPartyFromAnonymous(seen));
+    }
+
+    @Test
+    public void cacheIsBounded() {
+        for (int i = 0; i < 5; i++) {
+            final AnonymousParty aliceKey = newKey(alice);
+            bob.transaction(() -> cacheOf(bob).wellKnownPartyOf(aliceKey));
+        }
+        assertEquals(2, cacheOf(bob).size());
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.template.usd;
+
+import com.google.common.collect.ImmutableMap;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import com.r3.corda.lib.accounts.workflows.flows.CreateAccount;
+import com.r3.corda.lib.accounts.workflows.flows.RequestKeyForAccount;
+import com.r3.corda.lib.ci.workflows.SyncKeyMappingInitiator;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
+import com.r3.corda.lib.tokens.money.FiatCurrency;
+import com.r3.corda.lib.tokens.selection.TokenQueryBy;
+import com.r3.corda.lib.tokens.workflows.utilities.QueryUtilitiesKt;
+import com.r3.corda.lib.tokens.workflows.flows.rpc.IssueTokens;
+import com.template.car.flow.CarTokenCourseHelpers;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNodeParameters;
+import net.corda.testing.node.StartedMockNode;
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class FungibleTokenIndexTests {
+    private final MockNetwork network;
+    private final StartedMockNode usMint;
+    private final StartedMockNode bob;
+    private final IssuedTokenType usMintUsd;
+    private UUID emmaId;
+    private AnonymousParty emmaParty1;
+    private AnonymousParty emmaParty2;
+
+    public FungibleTokenIndexTests() {
+        network = new MockNetwork(CarTokenCourseHelpers.prepareMockNetworkParameters(ImmutableMap.of(
+                FungibleTokenIndex.MODE_KEY, FungibleTokenIndex.MODE_MEMORY)));
+        usMint = network.createNode(new MockNodeParameters()
+                .withLegalName(UsdTokenConstants.US_MINT));
+        bob = network.createNode();
+        usMintUsd = new IssuedTokenType(usMint.getInfo().getLegalIdentities().get(0),
+                FiatCurrency.Companion.getInstance("USD"));
+    }
+
+    @Before
+    public void setup() throws Exception {
+        network.runNetwork();
+        final CordaFuture<StateAndRef<? extends AccountInfo>> accountFuture = bob.startFlow(
+                new CreateAccount("emma"));
+        network.runNetwork();
+        final AccountInfo emma = accountFuture.get().getState().getData();
+        emmaId = emma.getIdentifier().getId();
+        emmaParty1 = requestNewKey(emma);
+        emmaParty2 = requestNewKey(emma);
+        // Inform the mint about who is emma1 and emma2.
+        final CordaFuture<?> syncFuture = bob.startFlow(new SyncKeyMappingInitiator(
+                usMint.getInfo().getLegalIdentities().get(0), Arrays.asList(emmaParty1, emmaParty2)));
+        network.runNetwork();
+        syncFuture.get();
+        // 2 keys of the account, and the host itself, hold dollars.
+        final CordaFuture<SignedTransaction> issueFuture = usMint.startFlow(new IssueTokens(Arrays.asList(
+                new FungibleToken(AmountUtilitiesKt.amount(100L, usMintUsd), emmaParty1, null),
+                new FungibleToken(AmountUtilitiesKt.amount(200L, usMintUsd), emmaParty2, null),
+                new FungibleToken(AmountUtilitiesKt.amount(400L, usMintUsd),
+                        bob.getInfo().getLegalIdentities().get(0), null)),
+                Collections.emptyList()));
+        network.runNetwork();
+        issueFuture.get();
+    }
+
+    @After
+    public void tearDown() {
+        network.stopNodes();
+    }
+
+    @NotNull
+    private AnonymousParty requestNewKey(@NotNull final AccountInfo forWhom) throws Exception {
+        final CordaFuture<AnonymousParty> future = bob.startFlow(new RequestKeyForAccount(forWhom));
+        network.runNetwork();
+        return future.get();
+    }
+
+    @NotNull
+    private FungibleTokenIndex index() {
+        return bob.getServices().cordaService(FungibleTokenIndex.class);
+    }
+
+    @Test
+    public void accountQuantityIsTheSumOfItsKeys() {
+        assertEquals(30_000L, index().quantityOfAccount(emmaId, usMintUsd));
+        assertEquals(0L, index().quantityOfAccount(UUID.randomUUID(), usMintUsd));
+        assertTrue(index().canAfford(emmaId, usMintUsd, 30_000L));
+        assertFalse(index().canAfford(emmaId, usMintUsd, 30_001L));
+    }
+
+    @Test
+    public void selectionForAccountSpansItsKeys() {
+        final List<StateAndRef<FungibleToken>> selected = bob.transaction(() -> index().selectForAccount(
+                UUID.randomUUID(), emmaId, usMintUsd, 25_000L));
+
+        assertNotNull(selected);
+        assertEquals(2, selected.size());
+        assertTrue(selected.stream()
+                .map(it -> it.getState().getData().getHolder())
+                .allMatch(it -> it.equals(emmaParty1) || it.equals(emmaParty2)));
+        // They are reserved now.
+        assertNull(bob.transaction(() -> index().selectForAccount(
+                UUID.randomUUID(), emmaId, usMintUsd, 1L)));
+    }
+
+    @Test
+    public void failedSelectionForAccountReservesNothing() {
+        // The dollars of emma1 are taken by a selection by holder.
+        assertNotNull(bob.transaction(() -> index().select(
+                UUID.randomUUID(), emmaParty1.getOwningKey(), usMintUsd, 10_000L)));
+        assertTrue(index().canAfford(emmaId, usMintUsd, 25_000L));
+        assertNull(bob.transaction(() -> index().selectForAccount(
+                UUID.randomUUID(), emmaId, usMintUsd, 25_000L)));
+
+        // The dollars of emma2 were given back.
+        final List<StateAndRef<FungibleToken>> selected = bob.transaction(() -> index().selectForAccount(
+                UUID.randomUUID(), emmaId, usMintUsd, 20_000L));
+        assertNotNull(selected);
+        assertEquals(emmaParty2, selected.get(0).getState().getData().getHolder());
+    }
+
+    @Test
+    public void accountTokensComeBackWhenTheirSoftLockIsReleased() {
+        final UUID lockId = UUID.randomUUID();
+        assertNotNull(bob.transaction(() -> index().selectForAccount(lockId, emmaId, usMintUsd, 30_000L)));
+        // As the node does when the flow ends without spending them.
+        bob.transaction(() -> {
+            bob.getServices().getVaultService().softLockRelease(lockId, null);
+            return null;
+        });
+
+        final List<StateAndRef<FungibleToken>> selected = bob.transaction(() -> index().selectForAccount(
+                UUID.randomUUID(), emmaId, usMintUsd, 30_000L));
+        assertNotNull(selected);
+        assertEquals(2, selected.size());
+    }
+
+    @Test
+    public void accountSelectionAppliesTheCallerCriteria() {
+        final TokenQueryBy ofAnotherIssuer = new TokenQueryBy(null, it -> true,
+                QueryUtilitiesKt.tokenAmountWithIssuerCriteria(usMintUsd.getTokenType(),
+                        bob.getInfo().getLegalIdentities().get(0)));
+        assertNull(bob.transaction(() -> index().selectForAccount(
+                UUID.randomUUID(), emmaId, usMintUsd, 25_000L, ofAnotherIssuer)));
+
+        // Those refused were not kept reserved.
+        final TokenQueryBy ofUsMint = new TokenQueryBy(null, it -> true,
+                QueryUtilitiesKt.tokenAmountWithIssuerCriteria(usMintUsd.getTokenType(), usMintUsd.getIssuer()));
+        assertNotNull(bob.transaction(() -> index().selectForAccount(
+                UUID.randomUUID(), emmaId, usMintUsd, 25_000L, ofUsMint)));
+    }
+}
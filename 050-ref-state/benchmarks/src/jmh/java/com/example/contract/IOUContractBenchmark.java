@@ -0,0 +1,97 @@
+package com.example.contract;
+
+import com.example.state.IOUState;
+import com.example.state.KYCState;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+
+/**
+ * Measures {@link IOUContract#verify} alone, on IOU transactions with a growing number of {@link KYCState} reference
+ * inputs, so that we can tell whether verification time grows with the number of reference states.
+ * The lender's and the borrower's KYC states come last, so that a scan would have to go through all the others.
+ * The {@link LedgerTransaction} is resolved once per trial so that only the contract code is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IOUContractBenchmark {
+
+    /**
+     * The number of KYC reference inputs, of which 2 are those of the lender and of the borrower.
+     */
+    @Param({"2", "50", "500"})
+    public int refCount;
+
+    private final TestIdentity notaryId = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+    private final TestIdentity kycIssuerId = new TestIdentity(new CordaX500Name("KYC Issuer", "Zurich", "CH"));
+    private final TestIdentity lenderId = new TestIdentity(new CordaX500Name("Lender", "London", "GB"));
+    private final TestIdentity borrowerId = new TestIdentity(new CordaX500Name("Borrower", "New York", "US"));
+    private final IOUContract contract = new IOUContract();
+
+    private LedgerTransaction iouTx;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final MockServices services = new MockServices(
+                Arrays.asList("com.example.contract", "com.example.state"),
+                kycIssuerId,
+                lenderId,
+                borrowerId);
+        // Building transactions serialises their components, and outside of the test DSL there is no
+        // serialisation environment. The ledger DSL sets one up for the duration of the block.
+        ledger(services, ledger -> {
+            resolveTransaction(services);
+            return null;
+        });
+    }
+
+    private void resolveTransaction(@NotNull final MockServices services) {
+        final Party notary = notaryId.getParty();
+        final Party kycIssuer = kycIssuerId.getParty();
+        final Party lender = lenderId.getParty();
+        final Party borrower = borrowerId.getParty();
+
+        // The KYC states only need to be in storage to be referenced, so they are issued in a single transaction.
+        final TransactionBuilder kycBuilder = new TransactionBuilder(notary)
+                .addCommand(new Command<>(new KYCContract.Commands.Create(), kycIssuer.getOwningKey()));
+        for (int i = 0; i < refCount - 2; i++) {
+            final Party customer = new TestIdentity(new CordaX500Name("Customer " + i, "Paris", "FR")).getParty();
+            kycBuilder.addOutputState(new KYCState(kycIssuer, customer, true), KYCContract.class.getName());
+        }
+        kycBuilder.addOutputState(new KYCState(kycIssuer, lender, true), KYCContract.class.getName());
+        kycBuilder.addOutputState(new KYCState(kycIssuer, borrower, true), KYCContract.class.getName());
+        final SignedTransaction kycIssued = services.signInitialTransaction(kycBuilder);
+        services.recordTransactions(Collections.singletonList(kycIssued));
+        final List<StateAndRef<KYCState>> kycStates = kycIssued.getTx().outRefsOfType(KYCState.class);
+
+        final TransactionBuilder iouBuilder = new TransactionBuilder(notary)
+                .addCommand(new Command<>(new IOUContract.Commands.Create(),
+                        Arrays.asList(lender.getOwningKey(), borrower.getOwningKey())))
+                .addOutputState(new IOUState(10, lender, borrower, kycIssuer, new UniqueIdentifier()),
+                        IOUContract.ID);
+        kycStates.forEach(it -> iouBuilder.addReferenceState(it.referenced()));
+        iouTx = iouBuilder.toLedgerTransaction(services);
+    }
+
+    @Benchmark
+    public void verifyCreate() {
+        contract.verify(iouTx);
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.contract;
+
+import com.example.state.IOUState;
+import com.example.state.KYCState;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.WireTransaction;
+import net.corda.testing.common.internal.ParametersUtilitiesKt;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.dsl.LedgerDSL;
+import net.corda.testing.dsl.TestLedgerDSLInterpreter;
+import net.corda.testing.dsl.TestTransactionDSLInterpreter;
+import net.corda.testing.node.MockServices;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+
+public class IOUContractTests {
+
+    private final TestIdentity notaryId = new TestIdentity(
+            new CordaX500Name("Notary", "Washington D.C.", "US"));
+    private final MockServices ledgerServices = new MockServices(
+            Arrays.asList("com.example.contract", "com.example.state"),
+            notaryId,
+            ParametersUtilitiesKt.testNetworkParameters(Collections.emptyList(), 4));
+    private final Party kycIssuer = new TestIdentity(
+            new CordaX500Name("KYC Issuer", "Zurich", "CH")).getParty();
+    private final Party otherKycIssuer = new TestIdentity(
+            new CordaX500Name("Other KYC Issuer", "Berlin", "DE")).getParty();
+    private final Party alice = new TestIdentity(
+            new CordaX500Name("Alice", "London", "GB")).getParty();
+    private final Party bob = new TestIdentity(
+            new CordaX500Name("Bob", "New York", "US")).getParty();
+
+    @NotNull
+    private static StateRef issueKyc(
+            @NotNull final LedgerDSL<TestTransactionDSLInterpreter, TestLedgerDSLInterpreter> ledger,
+            @NotNull final KYCState kyc) {
+        final WireTransaction tx = ledger.transaction(txDSL -> {
+            txDSL.output(KYCContract.class.getName(), kyc);
+            txDSL.command(Collections.singletonList(kyc.getIssuer().getOwningKey()),
+                    new KYCContract.Commands.Create());
+            return txDSL.verifies();
+        });
+        return tx.outRef(0).getRef();
+    }
+
+    @NotNull
+    private IOUState iouFromAliceToBob() {
+        return new IOUState(10, alice, bob, kycIssuer, new UniqueIdentifier());
+    }
+
+    @Test
+    public void lenderAndBorrowerNeedAValidKycOfTheExpectedIssuer() {
+        ledger(ledgerServices, ledger -> {
+            final StateRef aliceKyc = issueKyc(ledger, new KYCState(kycIssuer, alice, true));
+            final StateRef bobKyc = issueKyc(ledger, new KYCState(kycIssuer, bob, true));
+            final StateRef bobInvalidKyc = issueKyc(ledger, new KYCState(kycIssuer, bob, false));
+            final StateRef bobOtherKyc = issueKyc(ledger, new KYCState(otherKycIssuer, bob, true));
+            ledger.transaction(tx -> {
+                tx.output(IOUContract.ID, iouFromAliceToBob());
+                tx.command(Arrays.asList(alice.getOwningKey(), bob.getOwningKey()),
+                        new IOUContract.Commands.Create());
+                tx.failsWith("Lender must have passed KYC check.");
+
+                tx.reference(aliceKyc);
+                tx.failsWith("Borrower must have passed KYC check.");
+
+                tx.tweak(txCopy -> {
+                    txCopy.reference(bobInvalidKyc);
+                    return txCopy.failsWith("Borrower must have passed KYC check.");
+                });
+
+                tx.tweak(txCopy -> {
+                    txCopy.reference(bobOtherKyc);
+                    return txCopy.failsWith("Borrower must have passed KYC check.");
+                });
+
+                tx.reference(bobKyc);
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void aSingleValidKycIsEnoughForAParty() {
+        ledger(ledgerServices, ledger -> {
+            final StateRef aliceKyc = issueKyc(ledger, new KYCState(kycIssuer, alice, true));
+            final StateRef bobInvalidKyc = issueKyc(ledger, new KYCState(kycIssuer, bob, false));
+            final StateRef bobKyc = issueKyc(ledger, new KYCState(kycIssuer, bob, true));
+            ledger.transaction(tx -> {
+                tx.output(IOUContract.ID, iouFromAliceToBob());
+                tx.command(Arrays.asList(alice.getOwningKey(), bob.getOwningKey()),
+                        new IOUContract.Commands.Create());
+                tx.reference(aliceKyc);
+                tx.reference(bobKyc);
+                tx.reference(bobInvalidKyc);
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+}
@@ -5,8 +5,8 @@ import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
 import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
 import com.r3.corda.lib.tokens.contracts.types.TokenType;
 import com.r3.corda.lib.tokens.selection.TokenQueryBy;
-import com.r3.corda.lib.tokens.selection.database.selector.DatabaseTokenSelection;
 import com.template.proposal.state.SalesProposal;
+import com.template.usd.PreferredSelection;
 import kotlin.Pair;
 import kotlin.jvm.functions.Function1;
 import net.corda.core.contracts.Amount;
@@ -21,8 +21,6 @@ import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 
-import static com.r3.corda.lib.tokens.selection.database.config.DatabaseSelectionConfigKt.*;
-
 public class SalesProposalUtils {
 
     @NotNull
@@ -54,18 +52,16 @@ public class SalesProposalUtils {
                 proposal.getPrice().getToken());
         // Generate the buyer's currency inputs, to be spent, and the outputs, the currency tokens that will be
         // held by the seller.
-        final DatabaseTokenSelection tokenSelection = new DatabaseTokenSelection(
-                flow.getServiceHub(), MAX_RETRIES_DEFAULT, RETRY_SLEEP_DEFAULT, RETRY_CAP_DEFAULT, PAGE_SIZE_DEFAULT);
-        return tokenSelection.generateMove(
+        return PreferredSelection.generateMove(flow,
                 // Eventually held by the seller.
                 Collections.singletonList(new Pair<>(proposal.getSeller(), priceInCurrency)),
                 // We see here that we should not rely on the default value, because the buyer keeps the change.
                 proposal.getBuyer(),
+                issuedCurrency,
                 new TokenQueryBy(
                         issuedCurrency.getIssuer(),
                         (Function1<? super StateAndRef<? extends FungibleToken>, Boolean> & Serializable) it -> true,
-                        heldByBuyer),
-                flow.getRunId().getUuid());
+                        heldByBuyer));
     }
 
 }
@@ -0,0 +1,90 @@
+package com.template.proposal.flow;
+
+import com.google.common.collect.ImmutableMap;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.NonFungibleToken;
+import com.r3.corda.lib.tokens.contracts.utilities.AmountUtilitiesKt;
+import com.r3.corda.lib.tokens.workflows.flows.rpc.IssueTokens;
+import com.template.car.state.CarTokenType;
+import com.template.proposal.flow.SalesProposalAcceptFlows.AcceptSimpleFlow;
+import com.template.proposal.flow.SalesProposalOfferFlows.OfferSimpleFlow;
+import com.template.proposal.state.SalesProposal;
+import com.template.usd.FungibleTokenIndex;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.AnonymousParty;
+import net.corda.core.transactions.SignedTransaction;
+import org.junit.Test;
+
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs all the {@link SalesProposalAcceptFlowsTests} again, with the buyer selecting its dollars from the
+ * {@link FungibleTokenIndex}.
+ */
+public class SalesProposalAcceptMemorySelectionTests extends SalesProposalAcceptFlowsTests {
+
+    public SalesProposalAcceptMemorySelectionTests() {
+        super(ImmutableMap.of(FungibleTokenIndex.MODE_KEY, FungibleTokenIndex.MODE_MEMORY));
+    }
+
+    @Test
+    public void buyerAccountPaysWithWhatTheIndexHas() throws Exception {
+        // Seller is on alice.
+        final StateAndRef<AccountInfo> seller = createAccount(alice, "carly");
+        final AnonymousParty sellerParty = requestNewKey(alice, seller.getState().getData());
+        informKeys(alice, Collections.singletonList(sellerParty.getOwningKey()),
+                Collections.singletonList(bmwDealer));
+        // Buyer is on bob, and the mint pays to its key.
+        final StateAndRef<AccountInfo> buyer = createAccount(bob, "dan");
+        final AnonymousParty buyerParty = requestNewKey(bob, buyer.getState().getData());
+        informKeys(bob, Collections.singletonList(buyerParty.getOwningKey()), Arrays.asList(alice, usMint));
+        // The car.
+        final StateAndRef<CarTokenType> bmwType = createNewBmw("abc124", "BMW",
+                Collections.singletonList(bmwDealer.getInfo().getLegalIdentities().get(0)))
+                .getCoreTransaction().outRefsOfType(CarTokenType.class).get(0);
+        final StateAndRef<NonFungibleToken> bmw1 = issueCarTo(
+                bmwType.getState().getData().toPointer(CarTokenType.class),
+                sellerParty)
+                .getCoreTransaction().outRefsOfType(NonFungibleToken.class).get(0);
+        // Seller makes an offer.
+        final OfferSimpleFlow offerFlow = new OfferSimpleFlow(
+                bmw1.getState().getData().getLinearId(), buyerParty, 11_000L, "USD",
+                usMint.getInfo().getLegalIdentities().get(0), 3600);
+        final CordaFuture<SignedTransaction> offerFuture = alice.startFlow(offerFlow);
+        network.runNetwork();
+        final StateAndRef<SalesProposal> proposal = offerFuture.get().getTx().outRef(0);
+        // Issue dollars to the buyer's key.
+        final CordaFuture<SignedTransaction> issueFuture = usMint.startFlow(new IssueTokens(
+                Collections.singletonList(new FungibleToken(
+                        AmountUtilitiesKt.amount(20_000L, usMintUsd), buyerParty, null)),
+                Collections.emptyList()));
+        network.runNetwork();
+        final StateAndRef<FungibleToken> buyersDollars = issueFuture.get().getTx()
+                .outRefsOfType(FungibleToken.class).get(0);
+        final FungibleTokenIndex bobsIndex = bob.getServices().cordaService(FungibleTokenIndex.class);
+        final PublicKey buyerKey = buyerParty.getOwningKey();
+        assertTrue(bobsIndex.isEnabled());
+        assertEquals(AmountUtilitiesKt.amount(20_000L, usMintUsd).getQuantity(),
+                bobsIndex.quantityOf(buyerKey, usMintUsd));
+
+        // Buyer accepts.
+        final CordaFuture<SignedTransaction> acceptFuture = bob.startFlow(
+                new AcceptSimpleFlow(proposal.getState().getData().getLinearId()));
+        network.runNetwork();
+        final SignedTransaction acceptTx = acceptFuture.get();
+
+        // The proposal, the car and the buyer's only dollar state.
+        assertEquals(3, acceptTx.getInputs().size());
+        assertTrue(acceptTx.getInputs().contains(buyersDollars.getRef()));
+        // The index followed the sale, and has only the buyer's change.
+        assertEquals(AmountUtilitiesKt.amount(9_000L, usMintUsd).getQuantity(),
+                bobsIndex.quantityOf(buyerKey, usMintUsd));
+    }
+}
@@ -1,18 +1,15 @@
 package com.example.contract;
 
 import com.example.state.IOUState;
-import com.example.state.KYCState;
 import net.corda.core.contracts.CommandData;
 import net.corda.core.contracts.CommandWithParties;
 import net.corda.core.contracts.Contract;
-import net.corda.core.contracts.StateAndRef;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.transactions.LedgerTransaction;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.List;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
 import static net.corda.core.contracts.ContractsDSL.requireThat;
@@ -55,17 +52,12 @@ public class IOUContract implements Contract {
             require.using("The IOU's value must be non-negative.",
                     out.getValue() > 0);
 
-            // KYC reference state constraints.
-            final Stream<KYCState> validKycData = tx.referenceInputRefsOfType(KYCState.class).stream()
-                    .map(it -> it.getState().getData())
-                    // Only the expected issuer.
-                    .filter(it -> it.getIssuer().equals(out.getKycIssuer()))
-                    // Valid one.
-                    .filter(KYCState::isValid);
-            require.using("Lender must have passed KYC check.", validKycData
-                    .anyMatch(it -> it.getCustomer().equals(out.getLender())));
-            require.using("Borrower must have passed KYC check.", validKycData
-                    .anyMatch(it -> it.getCustomer().equals(out.getBorrower())));
+            // KYC reference state constraints, with a single pass over the reference states.
+            final KYCIndex kycIndex = KYCIndex.of(tx);
+            require.using("Lender must have passed KYC check.",
+                    kycIndex.isValid(out.getKycIssuer(), out.getLender()));
+            require.using("Borrower must have passed KYC check.",
+                    kycIndex.isValid(out.getKycIssuer(), out.getBorrower()));
 
             return null;
         });
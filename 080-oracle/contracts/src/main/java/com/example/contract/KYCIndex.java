@@ -0,0 +1,45 @@
+package com.example.contract;
+
+import com.example.state.KYCState;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.LedgerTransaction;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The KYC reference states of a transaction, indexed by issuer and customer in a single pass, so that checking each
+ * party of the transaction is a lookup instead of a scan of all the reference states.
+ */
+public class KYCIndex {
+
+    @NotNull
+    private final Map<Party, Map<Party, Boolean>> validityByIssuerAndCustomer;
+
+    public KYCIndex(@NotNull final List<KYCState> kycStates) {
+        //noinspection ConstantConditions
+        if (kycStates == null) throw new NullPointerException("The kycStates cannot be null");
+        this.validityByIssuerAndCustomer = new HashMap<>();
+        for (final KYCState kycState : kycStates) {
+            // A single valid state is enough, whatever the other states of the same pair say.
+            validityByIssuerAndCustomer.computeIfAbsent(kycState.getIssuer(), it -> new HashMap<>())
+                    .merge(kycState.getCustomer(), kycState.isValid(), Boolean::logicalOr);
+        }
+    }
+
+    @NotNull
+    public static KYCIndex of(@NotNull final LedgerTransaction tx) {
+        return new KYCIndex(tx.referenceInputsOfType(KYCState.class));
+    }
+
+    /**
+     * @return Whether the transaction has a valid KYC state of this customer, issued by this issuer.
+     */
+    public boolean isValid(@NotNull final Party issuer, @NotNull final Party customer) {
+        final Map<Party, Boolean> validityByCustomer = validityByIssuerAndCustomer.get(issuer);
+        if (validityByCustomer == null) return false;
+        return validityByCustomer.getOrDefault(customer, false);
+    }
+}
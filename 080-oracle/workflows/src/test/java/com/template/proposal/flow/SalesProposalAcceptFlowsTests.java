@@ -46,6 +46,7 @@ import java.security.PublicKey;
 import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
@@ -53,17 +54,21 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class SalesProposalAcceptFlowsTests {
-    private final MockNetwork network;
+    protected final MockNetwork network;
     private final StartedMockNode notary;
-    private final StartedMockNode usMint;
+    protected final StartedMockNode usMint;
     private final StartedMockNode dmv;
-    private final StartedMockNode bmwDealer;
-    private final StartedMockNode alice;
-    private final StartedMockNode bob;
-    private final IssuedTokenType usMintUsd;
+    protected final StartedMockNode bmwDealer;
+    protected final StartedMockNode alice;
+    protected final StartedMockNode bob;
+    protected final IssuedTokenType usMintUsd;
 
     public SalesProposalAcceptFlowsTests() {
-        network = new MockNetwork(CarTokenCourseHelpers.prepareMockNetworkParameters());
+        this(Collections.emptyMap());
+    }
+
+    protected SalesProposalAcceptFlowsTests(@NotNull final Map<String, ?> flowConfig) {
+        network = new MockNetwork(CarTokenCourseHelpers.prepareMockNetworkParameters(flowConfig));
         notary = network.getDefaultNotaryNode();
         usMint = network.createNode(new MockNodeParameters()
                 .withLegalName(UsdTokenConstants.US_MINT));
@@ -90,7 +95,7 @@ public class SalesProposalAcceptFlowsTests {
     }
 
     @NotNull
-    private StateAndRef<AccountInfo> createAccount(
+    protected StateAndRef<AccountInfo> createAccount(
             @NotNull final StartedMockNode host,
             @NotNull final String name) throws Exception {
         final CordaFuture<StateAndRef<? extends AccountInfo>> future = host.startFlow(
@@ -101,7 +106,7 @@ public class SalesProposalAcceptFlowsTests {
     }
 
     @NotNull
-    private AnonymousParty requestNewKey(
+    protected AnonymousParty requestNewKey(
             @NotNull final StartedMockNode host,
             @NotNull final AccountInfo forWhom) throws Exception {
         final CordaFuture<AnonymousParty> future = host.startFlow(new RequestKeyForAccount(forWhom));
@@ -109,7 +114,7 @@ public class SalesProposalAcceptFlowsTests {
         return future.get();
     }
 
-     private void informKeys(
+    protected void informKeys(
             @NotNull final StartedMockNode host,
             @NotNull final List<PublicKey> who,
             @NotNull final List<StartedMockNode> others) throws Exception {
@@ -126,7 +131,7 @@ public class SalesProposalAcceptFlowsTests {
     }
 
     @NotNull
-    private SignedTransaction createNewBmw(
+    protected SignedTransaction createNewBmw(
             @SuppressWarnings("SameParameterValue") @NotNull final String vin,
             @SuppressWarnings("SameParameterValue") @NotNull final String make,
             @NotNull final List<Party> observers) throws Exception {
@@ -138,7 +143,7 @@ public class SalesProposalAcceptFlowsTests {
     }
 
     @NotNull
-    private SignedTransaction issueCarTo(
+    protected SignedTransaction issueCarTo(
             @NotNull final TokenPointer<CarTokenType> car,
             @NotNull final AbstractParty holder) throws Exception {
         final IssueCarToHolderFlow flow = new IssueCarToHolderFlow(